@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.functions;
+
+import org.apache.beam.sdk.metrics.Metrics;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.PCollectionView;
+import com.google.cloud.genomics.dataflow.model.ReadBatch;
+import com.google.cloud.genomics.utils.Contig;
+import com.google.genomics.v1.Read;
+
+/*
+ * Same as KeyReadsFn, for reads emitted in batches.
+ * The reads of a batch are keyed one by one, since neighbouring reads may fall
+ * into different writing shards, but the side input and the counters are looked up
+ * once per batch.
+ */
+public class KeyReadBatchesFn extends DoFn<ReadBatch, KV<Contig, Read>> {
+
+  private final PCollectionView<WritingShardBoundaries> boundariesView;
+  private long lociPerShard;
+
+  public KeyReadBatchesFn() {
+    this(null);
+  }
+
+  /**
+   * @param boundariesView shards to key the reads by; references they don't cover
+   * fall back to fixed lociPerWritingShard windows.
+   */
+  public KeyReadBatchesFn(PCollectionView<WritingShardBoundaries> boundariesView) {
+    this.boundariesView = boundariesView;
+  }
+
+  @StartBundle
+  public void startBundle(StartBundleContext c) {
+    lociPerShard = c.getPipelineOptions()
+      .as(KeyReadsFn.Options.class)
+      .getLociPerWritingShard();
+  }
+
+  @ProcessElement
+  public void processElement(DoFn<ReadBatch, KV<Contig, Read>>.ProcessContext c)
+    throws Exception {
+    final WritingShardBoundaries boundaries =
+        boundariesView != null ? c.sideInput(boundariesView) : null;
+    long unmapped = 0;
+    for (Read read : c.element().getReads()) {
+      c.output(KV.of(KeyReadsFn.shardKeyForRead(read, boundaries, lociPerShard), read));
+      if (KeyReadsFn.isUnmapped(read)) {
+        unmapped++;
+      }
+    }
+    Metrics.counter(KeyReadsFn.class, "Keyed reads").inc(c.element().size());
+    Metrics.counter(KeyReadsFn.class, "Keyed unmapped reads").inc(unmapped);
+  }
+}
@@ -21,6 +21,7 @@ import org.apache.beam.sdk.options.PipelineOptions;
 import org.apache.beam.sdk.metrics.Metrics;
 import org.apache.beam.sdk.transforms.DoFn;
 import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.PCollectionView;
 import com.google.cloud.genomics.utils.Contig;
 import com.google.genomics.v1.Read;
 
@@ -29,7 +30,10 @@ import java.util.logging.Logger;
 /*
  * Takes a read and associates it with a Contig.
  * This can be used to shard Reads so they can be written to disk in parallel.
- * The size of the Contigs is determined by Options.getLociPerWritingShard.
+ * The size of the Contigs is determined by Options.getLociPerWritingShard, or,
+ * when given WritingShardBoundaries, by the density of the reads.
+ * Reads that are placed nowhere are spread over UNPLACED_READ_KEYS keys by the hash
+ * of their fragment name, so that mates stay together.
  */
 public class KeyReadsFn extends DoFn<Read, KV<Contig,Read>> {
   private static final Logger LOG = Logger.getLogger(KeyReadsFn.class.getName());
@@ -40,13 +44,57 @@ public class KeyReadsFn extends DoFn<Read, KV<Contig,Read>> {
     long getLociPerWritingShard();
 
     void setLociPerWritingShard(long lociPerShard);
+
+    @Description("Choose variable-width writing shards holding about readsPerWritingShard "
+        + "reads each, from a histogram of a sample of the reads, instead of fixed "
+        + "lociPerWritingShard windows.")
+    @Default.Boolean(false)
+    boolean getDensityAdaptiveSharding();
+
+    void setDensityAdaptiveSharding(boolean densityAdaptiveSharding);
+
+    @Description("Reads per writing shard, with densityAdaptiveSharding")
+    @Default.Long(1000000)
+    long getReadsPerWritingShard();
+
+    void setReadsPerWritingShard(long readsPerWritingShard);
+
+    @Description("Fraction of the reads sampled to build the density histogram, "
+        + "with densityAdaptiveSharding")
+    @Default.Double(0.01)
+    double getShardingSampleRate();
+
+    void setShardingSampleRate(double shardingSampleRate);
+
+    @Description("Width of the density histogram buckets, in loci, which is also the "
+        + "narrowest a writing shard can get, with densityAdaptiveSharding")
+    @Default.Long(1000)
+    long getLociPerHistogramBucket();
+
+    void setLociPerHistogramBucket(long lociPerHistogramBucket);
   }
 
+  /** Number of keys that the reads without a reference are spread over. */
+  static final int UNPLACED_READ_KEYS = 64;
+
+  private final PCollectionView<WritingShardBoundaries> boundariesView;
   private long lociPerShard;
   private long count;
   private long minPos = Long.MAX_VALUE;
   private long maxPos = Long.MIN_VALUE;
 
+  public KeyReadsFn() {
+    this(null);
+  }
+
+  /**
+   * @param boundariesView shards to key the reads by; references they don't cover
+   * fall back to fixed lociPerWritingShard windows.
+   */
+  public KeyReadsFn(PCollectionView<WritingShardBoundaries> boundariesView) {
+    this.boundariesView = boundariesView;
+  }
+
   @StartBundle
   public void startBundle(StartBundleContext c) {
     lociPerShard = c.getPipelineOptions()
@@ -69,10 +117,9 @@ public class KeyReadsFn extends DoFn<Read, KV<Contig,Read>> {
     minPos = Math.min(minPos, pos);
     maxPos = Math.max(maxPos, pos);
     count++;
-    c.output(
-        KV.of(
-            shardKeyForRead(read, lociPerShard),
-            read));
+    final Contig shard = shardKeyForRead(read,
+        boundariesView != null ? c.sideInput(boundariesView) : null, lociPerShard);
+    c.output(KV.of(shard, read));
     Metrics.counter(KeyReadsFn.class, "Keyed reads").inc();
     if (isUnmapped(read)) {
       Metrics.counter(KeyReadsFn.class, "Keyed unmapped reads").inc();
@@ -90,6 +137,25 @@ public class KeyReadsFn extends DoFn<Read, KV<Contig,Read>> {
     return false;
   }
 
+  /**
+   * @param boundaries shards to key the read by, or null to use fixed windows of
+   * lociPerShard loci only.
+   * @return the writing shard of the read, with unplaced reads spread over several keys.
+   */
+  public static Contig shardKeyForRead(Read read, WritingShardBoundaries boundaries,
+      long lociPerShard) {
+    final Contig shard;
+    if (boundaries != null) {
+      final Contig position = shardKeyForRead(read, 1);
+      final Contig adaptiveShard = boundaries.shardFor(position.referenceName, position.start);
+      shard = adaptiveShard != null ? adaptiveShard
+          : shardFromAlignmentStart(position.referenceName, position.start, lociPerShard);
+    } else {
+      shard = shardKeyForRead(read, lociPerShard);
+    }
+    return shard.referenceName.equals("*") ? unplacedShardKey(read) : shard;
+  }
+
   public static Contig shardKeyForRead(Read read, long lociPerShard) {
     String referenceName = null;
     Long alignmentStart = null;
@@ -116,6 +182,11 @@ public class KeyReadsFn extends DoFn<Read, KV<Contig,Read>> {
     return shardFromAlignmentStart(referenceName, alignmentStart, lociPerShard);
   }
 
+  static Contig unplacedShardKey(Read read) {
+    final long bucket = (read.getFragmentName().hashCode() & Integer.MAX_VALUE) % UNPLACED_READ_KEYS;
+    return new Contig("*", bucket, bucket + 1);
+  }
+
   static Contig shardFromAlignmentStart(String referenceName, long alignmentStart, long lociPerShard) {
     final long shardStart = (alignmentStart / lociPerShard) * lociPerShard;
     return new Contig(referenceName, shardStart, shardStart + lociPerShard);
@@ -15,30 +15,112 @@
  */
 package com.google.cloud.genomics.dataflow.functions;
 
+import org.apache.beam.sdk.coders.SerializableCoder;
+import org.apache.beam.sdk.transforms.Count;
+import org.apache.beam.sdk.transforms.Create;
+import org.apache.beam.sdk.transforms.DoFn;
 import org.apache.beam.sdk.transforms.GroupByKey;
 import org.apache.beam.sdk.transforms.PTransform;
 import org.apache.beam.sdk.transforms.ParDo;
+import org.apache.beam.sdk.transforms.View;
 import org.apache.beam.sdk.values.KV;
 import org.apache.beam.sdk.values.PCollection;
+import org.apache.beam.sdk.values.PCollectionView;
 import com.google.cloud.genomics.utils.Contig;
 import com.google.genomics.v1.Read;
 
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
 /*
  * Takes a collection of reads and shards them out by Contig.
  * Can be used to prepare reads for being written to disk in parallel.
+ * With densityAdaptiveSharding, a sample of the reads is counted first to choose
+ * shard boundaries (@see WritingShardBoundaries).
  */
 public class ShardReadsTransform extends PTransform<PCollection<Read>, PCollection<KV<Contig, Iterable<Read>>>> {
+  private static final Logger LOG = Logger.getLogger(ShardReadsTransform.class.getName());
 
   static public interface Options extends KeyReadsFn.Options {}
 
+  private final Options options;
+
+  public ShardReadsTransform(Options options) {
+    this.options = options;
+  }
+
   @Override
   public PCollection<KV<Contig, Iterable<Read>>> expand(PCollection<Read> reads) {
+    if (options.getDensityAdaptiveSharding()) {
+      final PCollectionView<Iterable<KV<KV<String, Long>, Long>>> histogram = reads
+          .apply("Sample read positions", ParDo.of(new SampleReadPositionsFn(
+              options.getShardingSampleRate(), options.getLociPerHistogramBucket())))
+          .apply(Count.<KV<String, Long>>perElement())
+          .apply(View.<KV<KV<String, Long>, Long>>asIterable());
+      final PCollectionView<WritingShardBoundaries> boundaries = reads.getPipeline()
+          .apply("Shard boundaries task", Create.of("boundaries"))
+          .apply("Compute shard boundaries", ParDo
+            .of(new ComputeBoundariesFn(histogram, options.getLociPerHistogramBucket(),
+                Math.max(1, (long) (options.getReadsPerWritingShard()
+                    * options.getShardingSampleRate()))))
+            .withSideInputs(histogram))
+          .setCoder(SerializableCoder.of(WritingShardBoundaries.class))
+          .apply(View.<WritingShardBoundaries>asSingleton());
+      return reads
+        .apply("KeyReads", ParDo.of(new KeyReadsFn(boundaries)).withSideInputs(boundaries))
+        .apply(GroupByKey.<Contig, Read>create());
+    }
     return reads
       .apply("KeyReads", ParDo.of(new KeyReadsFn()))
       .apply(GroupByKey.<Contig, Read>create());
   }
 
-  public static PCollection<KV<Contig, Iterable<Read>>> shard(PCollection<Read> reads) {
-    return (new ShardReadsTransform()).expand(reads);
+  public static PCollection<KV<Contig, Iterable<Read>>> shard(PCollection<Read> reads,
+      Options options) {
+    return (new ShardReadsTransform(options)).expand(reads);
+  }
+
+  /**
+   * Outputs the reference and histogram bucket of a random sample of the reads,
+   * placed the same way KeyReadsFn places them.
+   */
+  static class SampleReadPositionsFn extends DoFn<Read, KV<String, Long>> {
+    private final double sampleRate;
+    private final long lociPerBucket;
+
+    SampleReadPositionsFn(double sampleRate, long lociPerBucket) {
+      this.sampleRate = sampleRate;
+      this.lociPerBucket = lociPerBucket;
+    }
+
+    @ProcessElement
+    public void processElement(ProcessContext c) {
+      if (ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+        return;
+      }
+      final Contig position = KeyReadsFn.shardKeyForRead(c.element(), 1);
+      c.output(KV.of(position.referenceName, position.start / lociPerBucket));
+    }
+  }
+
+  static class ComputeBoundariesFn extends DoFn<String, WritingShardBoundaries> {
+    private final PCollectionView<Iterable<KV<KV<String, Long>, Long>>> histogramView;
+    private final long lociPerBucket;
+    private final long sampledReadsPerShard;
+
+    ComputeBoundariesFn(PCollectionView<Iterable<KV<KV<String, Long>, Long>>> histogramView,
+        long lociPerBucket, long sampledReadsPerShard) {
+      this.histogramView = histogramView;
+      this.lociPerBucket = lociPerBucket;
+      this.sampledReadsPerShard = sampledReadsPerShard;
+    }
+
+    @ProcessElement
+    public void processElement(ProcessContext c) {
+      final WritingShardBoundaries boundaries = WritingShardBoundaries.fromHistogram(
+          c.sideInput(histogramView), lociPerBucket, sampledReadsPerShard);
+      LOG.info("Density adaptive sharding: " + boundaries);
+      c.output(boundaries);
+    }
   }
 }
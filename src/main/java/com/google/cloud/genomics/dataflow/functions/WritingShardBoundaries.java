@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.functions;
+
+import org.apache.beam.sdk.values.KV;
+import com.google.cloud.genomics.utils.Contig;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Variable-width writing shards, chosen so that each shard holds about the same number
+ * of reads according to a histogram of read positions.
+ * Dense regions get narrow shards and sparse ones wide shards, instead of the fixed
+ * lociPerWritingShard windows of KeyReadsFn.
+ * Shards can't be narrower than a histogram bucket.
+ */
+public class WritingShardBoundaries implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  // Sorted shard start positions per reference; the first one is always 0.
+  private final Map<String, long[]> shardStarts;
+
+  WritingShardBoundaries(Map<String, long[]> shardStarts) {
+    this.shardStarts = shardStarts;
+  }
+
+  /**
+   * @param histogram read counts keyed by reference name and bucket index.
+   * @param lociPerBucket width of the histogram buckets.
+   * @param countPerShard how many reads of the histogram to put in each shard.
+   */
+  public static WritingShardBoundaries fromHistogram(
+      Iterable<KV<KV<String, Long>, Long>> histogram, long lociPerBucket, long countPerShard) {
+    final Map<String, TreeMap<Long, Long>> buckets = new HashMap<>();
+    for (KV<KV<String, Long>, Long> bucket : histogram) {
+      TreeMap<Long, Long> referenceBuckets = buckets.get(bucket.getKey().getKey());
+      if (referenceBuckets == null) {
+        referenceBuckets = new TreeMap<>();
+        buckets.put(bucket.getKey().getKey(), referenceBuckets);
+      }
+      referenceBuckets.put(bucket.getKey().getValue(), bucket.getValue());
+    }
+    final Map<String, long[]> shardStarts = new HashMap<>();
+    for (Map.Entry<String, TreeMap<Long, Long>> reference : buckets.entrySet()) {
+      long[] starts = new long[16];
+      int shardCount = 1;
+      long countInShard = 0;
+      for (Map.Entry<Long, Long> bucket : reference.getValue().entrySet()) {
+        if (countInShard > 0 && countInShard + bucket.getValue() > countPerShard) {
+          if (shardCount == starts.length) {
+            starts = Arrays.copyOf(starts, 2 * shardCount);
+          }
+          starts[shardCount++] = bucket.getKey() * lociPerBucket;
+          countInShard = 0;
+        }
+        countInShard += bucket.getValue();
+      }
+      shardStarts.put(reference.getKey(), Arrays.copyOf(starts, shardCount));
+    }
+    return new WritingShardBoundaries(shardStarts);
+  }
+
+  /**
+   * @return the number of shards of the given reference, or 0 if it is not covered.
+   */
+  public int getShardCount(String referenceName) {
+    final long[] starts = shardStarts.get(referenceName);
+    return starts == null ? 0 : starts.length;
+  }
+
+  /**
+   * @return the shard holding the given position, or null if the reference is not covered.
+   */
+  public Contig shardFor(String referenceName, long alignmentStart) {
+    final long[] starts = shardStarts.get(referenceName);
+    if (starts == null) {
+      return null;
+    }
+    int index = Arrays.binarySearch(starts, alignmentStart);
+    if (index < 0) {
+      index = -index - 2;
+    }
+    final long end = index + 1 < starts.length ? starts[index + 1] : Long.MAX_VALUE;
+    return new Contig(referenceName, starts[index], end);
+  }
+
+  @Override
+  public String toString() {
+    int shards = 0;
+    for (long[] starts : shardStarts.values()) {
+      shards += starts.length;
+    }
+    return shards + " shards over " + shardStarts.size() + " references";
+  }
+}
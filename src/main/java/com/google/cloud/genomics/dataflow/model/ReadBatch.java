@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.model;
+
+import org.apache.beam.sdk.coders.DefaultCoder;
+import com.google.cloud.genomics.dataflow.coders.ReadBatchCoder;
+import com.google.common.collect.ImmutableList;
+import com.google.genomics.v1.Read;
+
+import java.util.List;
+
+/**
+ * A group of reads passed between transforms as a single element, so that coders,
+ * metrics and DoFn invocations are paid once per batch rather than once per read.
+ */
+@DefaultCoder(ReadBatchCoder.class)
+public class ReadBatch {
+  /**
+   * Reads per batch emitted by the batched readers.
+   */
+  public static final int DEFAULT_SIZE = 1000;
+
+  private final List<Read> reads;
+
+  public ReadBatch(List<Read> reads) {
+    this.reads = ImmutableList.copyOf(reads);
+  }
+
+  public List<Read> getReads() {
+    return reads;
+  }
+
+  public int size() {
+    return reads.size();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    return obj instanceof ReadBatch && reads.equals(((ReadBatch) obj).reads);
+  }
+
+  @Override
+  public int hashCode() {
+    return reads.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return "ReadBatch of " + reads.size() + " reads";
+  }
+}
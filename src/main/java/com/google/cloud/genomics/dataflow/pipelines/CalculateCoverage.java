@@ -20,8 +20,8 @@ import com.google.api.services.genomics.model.Annotation;
 import com.google.api.services.genomics.model.AnnotationSet;
 import com.google.api.services.genomics.model.BatchCreateAnnotationsRequest;
 import com.google.api.services.genomics.model.Position;
-import com.google.cloud.genomics.dataflow.readers.bam.BAMShard;
 import com.google.cloud.genomics.dataflow.readers.bam.ReadBAMTransform;
+import com.google.cloud.genomics.dataflow.readers.bam.ReadProjection;
 import com.google.cloud.genomics.dataflow.readers.bam.ReaderOptions;
 import com.google.cloud.genomics.dataflow.readers.bam.ShardingPolicy;
 import htsjdk.samtools.ValidationStringency;
@@ -44,6 +44,7 @@ import org.apache.beam.sdk.values.KV;
 import org.apache.beam.sdk.values.PCollection;
 import com.google.cloud.genomics.dataflow.coders.GenericJsonCoder;
 import com.google.cloud.genomics.dataflow.model.PosRgsMq;
+import com.google.cloud.genomics.dataflow.model.ReadBatch;
 import com.google.cloud.genomics.dataflow.readers.ReadGroupStreamer;
 import com.google.cloud.genomics.dataflow.utils.GenomicsOptions;
 import com.google.cloud.genomics.dataflow.utils.ShardOptions;
@@ -90,7 +91,7 @@ public class CalculateCoverage {
    * reads that start before that reference, even if they overlap with the reference, will NOT be
    * counted.
    */
-  public static interface Options extends ShardOptions {
+  public static interface Options extends ShardOptions, ReadBAMTransform.Options {
 
     @Description("Cloud storage prefix containing BAM and BAI files from which to read or a path "
         + "to a local file containing the newline-separated prefixes."
@@ -207,7 +208,7 @@ public class CalculateCoverage {
       throw new IllegalArgumentException("BamInput or InputDatasetId or ReadGroupSetIds must be specified");
     }
 
-    PCollection<Read> reads = null;
+    PCollection<KV<PosRgsMq, Double>> coverageMeans = null;
     String referenceSetId = options.getReferenceSetId();
 
     if (!options.getBamInput().isEmpty()) {
@@ -221,23 +222,26 @@ public class CalculateCoverage {
       final ReaderOptions readerOptions = new ReaderOptions(
           ValidationStringency.LENIENT,
           false);  // Do not include unmapped reads.
+      readerOptions.applyPipelineOptions(options);
+      // CoverageCounts only looks at the alignment.
+      readerOptions.setReadProjection(ReadProjection.of(
+          ReadProjection.Field.ALIGNMENT, ReadProjection.Field.CIGAR));
 
-      ShardingPolicy policy = new ShardingPolicy() {
-        final int MAX_BYTES_PER_SHARD = options.getMaxShardSizeBytes();
-        @Override
-        public Boolean apply(BAMShard shard) {
-          return shard.approximateSizeInBytes() > MAX_BYTES_PER_SHARD;
-        }
-      };
+      final ShardingPolicy policy =
+          ReadBAMTransform.getShardingPolicy(options, options.getMaxShardSizeBytes());
 
-      reads = ReadBAMTransform.getReadsFromBAMFilesSharded (
+      // The reads only live as long as CoverageCounts needs them, so emit them in batches.
+      coverageMeans = ReadBAMTransform.getReadBatchesFromBAMFilesSharded (
           p,
           options,
           auth,
           contigs,
           readerOptions,
           options.getBamInput(),
-          policy);
+          policy,
+          ReadBatch.DEFAULT_SIZE)
+          .apply("CalculateCoverateMean",
+              new CalculateBatchCoverageMean(options.getBucketWidth()));
 
     } else {
 
@@ -262,17 +266,16 @@ public class CalculateCoverage {
             + ". All ReadGroupSets in given input must have an associated ReferenceSet.");
       }
 
-      reads = p.begin()
+      coverageMeans = p.begin()
           .apply(Create.of(rgsIds))
           .apply(ParDo.of(new CheckMatchingReferenceSet(referenceSetId, auth)))
-          .apply(new ReadGroupStreamer(auth, ShardBoundary.Requirement.STRICT, READ_FIELDS, SexChromosomeFilter.INCLUDE_XY));
+          .apply(new ReadGroupStreamer(auth, ShardBoundary.Requirement.STRICT, READ_FIELDS, SexChromosomeFilter.INCLUDE_XY))
+          .apply("CalculateCoverateMean", new CalculateCoverageMean(options.getBucketWidth()));
     }
 
     // Create our destination AnnotationSet for the associated ReferenceSet.
     AnnotationSet annotationSet = createAnnotationSet(referenceSetId);
 
-    PCollection<KV<PosRgsMq, Double>> coverageMeans = reads.apply("CalculateCoverateMean",
-        new CalculateCoverageMean(options.getBucketWidth()));
     PCollection<KV<Position, KV<PosRgsMq.MappingQuality, List<Double>>>> quantiles
         = coverageMeans.apply("CalculateQuantiles", new CalculateQuantiles(options.getNumQuantiles()));
     PCollection<KV<Position, Iterable<KV<PosRgsMq.MappingQuality, List<Double>>>>> answer =
@@ -330,22 +333,40 @@ public class CalculateCoverage {
     }
   }
 
-  static class CoverageCounts extends DoFn<Read, KV<PosRgsMq, Long>> {
+  /**
+   * Same as CalculateCoverageMean, for reads emitted in batches.
+   */
+  public static class CalculateBatchCoverageMean extends PTransform<PCollection<ReadBatch>,
+      PCollection<KV<PosRgsMq, Double>>> {
+    private final long bucketWidth;
+
+    public CalculateBatchCoverageMean(long bucketWidth) {
+      this.bucketWidth = bucketWidth;
+    }
+
+    @Override
+    public PCollection<KV<PosRgsMq, Double>> expand(PCollection<ReadBatch> input) {
+      return input.apply(ParDo.of(new BatchCoverageCounts(bucketWidth)))
+          .apply(Combine.<PosRgsMq, Long>perKey(new SumCounts()))
+          .apply(ParDo.of(new CoverageMeans()));
+    }
+  }
+
+  abstract static class AbstractCoverageCounts<T> extends DoFn<T, KV<PosRgsMq, Long>> {
 
     private static final int LOW_MQ = 10;
     private static final int HIGH_MQ = 30;
     private final long bucketWidth;
 
-    public CoverageCounts(long bucketWidth) {
+    AbstractCoverageCounts(long bucketWidth) {
       this.bucketWidth = bucketWidth;
     }
 
-    @ProcessElement
-    public void processElement(ProcessContext c) {
-      if (c.element().getAlignment() != null) { //is mapped
+    void outputCounts(Read read, ProcessContext c) {
+      if (read.getAlignment() != null) { //is mapped
         // Calculate length of read
         long readLength = 0;
-        for (CigarUnit cigar : c.element().getAlignment().getCigarList()) {
+        for (CigarUnit cigar : read.getAlignment().getCigarList()) {
           switch (cigar.getOperation()) {
             case ALIGNMENT_MATCH:
             case SEQUENCE_MATCH:
@@ -358,7 +379,7 @@ public class CalculateCoverage {
           }
         }
         // Calculate readEnd by shifting readStart by readLength
-        long readStart = c.element().getAlignment().getPosition().getPosition();
+        long readStart = read.getAlignment().getPosition().getPosition();
         long readEnd = readStart + readLength;
         // Calculate the index of the first bucket this read falls into
         long bucket = readStart / bucketWidth * bucketWidth;
@@ -371,8 +392,8 @@ public class CalculateCoverage {
           baseCount += dist;
           Position position = new Position()
               .setPosition(bucket)
-              .setReferenceName(c.element().getAlignment().getPosition().getReferenceName());
-          Integer mq = c.element().getAlignment().getMappingQuality();
+              .setReferenceName(read.getAlignment().getPosition().getReferenceName());
+          Integer mq = read.getAlignment().getMappingQuality();
           if (mq == null) {
             mq = 0;
           }
@@ -384,15 +405,41 @@ public class CalculateCoverage {
           } else {
             mqEnum = PosRgsMq.MappingQuality.H;
           }
-          c.output(KV.of(new PosRgsMq(position, c.element().getReadGroupSetId(), mqEnum), baseCount));
+          c.output(KV.of(new PosRgsMq(position, read.getReadGroupSetId(), mqEnum), baseCount));
           c.output(KV.of(new PosRgsMq(
-              position, c.element().getReadGroupSetId(), PosRgsMq.MappingQuality.A), baseCount));
+              position, read.getReadGroupSetId(), PosRgsMq.MappingQuality.A), baseCount));
           bucket += bucketWidth;
         }
       }
     }
   }
 
+  static class CoverageCounts extends AbstractCoverageCounts<Read> {
+
+    public CoverageCounts(long bucketWidth) {
+      super(bucketWidth);
+    }
+
+    @ProcessElement
+    public void processElement(ProcessContext c) {
+      outputCounts(c.element(), c);
+    }
+  }
+
+  static class BatchCoverageCounts extends AbstractCoverageCounts<ReadBatch> {
+
+    public BatchCoverageCounts(long bucketWidth) {
+      super(bucketWidth);
+    }
+
+    @ProcessElement
+    public void processElement(ProcessContext c) {
+      for (Read read : c.element().getReads()) {
+        outputCounts(read, c);
+      }
+    }
+  }
+
   static class SumCounts implements SerializableFunction<Iterable<Long>, Long> {
 
     @Override
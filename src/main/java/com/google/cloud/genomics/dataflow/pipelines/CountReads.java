@@ -29,9 +29,8 @@ import org.apache.beam.sdk.transforms.ParDo;
 import org.apache.beam.sdk.util.gcsfs.GcsPath;
 import org.apache.beam.sdk.values.PCollection;
 import com.google.cloud.genomics.dataflow.readers.ReadGroupStreamer;
-import com.google.cloud.genomics.dataflow.readers.bam.BAMShard;
 import com.google.cloud.genomics.dataflow.readers.bam.ReadBAMTransform;
-import com.google.cloud.genomics.dataflow.readers.bam.Reader;
+import com.google.cloud.genomics.dataflow.readers.bam.ReadProjection;
 import com.google.cloud.genomics.dataflow.readers.bam.ReaderOptions;
 import com.google.cloud.genomics.dataflow.readers.bam.ShardingPolicy;
 import com.google.cloud.genomics.dataflow.utils.GCSOptions;
@@ -63,7 +62,8 @@ import java.util.logging.Logger;
  */
 public class CountReads {
 
-  public static interface Options extends GCSOptions, ShardOptions, GCSOutputOptions {
+  public static interface Options extends GCSOptions, ShardOptions, GCSOutputOptions,
+      ReadBAMTransform.Options {
 
     @Description("The ID of the Google Genomics ReadGroupSet this pipeline is working with. "
         + "Default (empty) indicates all ReadGroupSets.")
@@ -203,16 +203,14 @@ public class CountReads {
     final ReaderOptions readerOptions = new ReaderOptions(
         ValidationStringency.LENIENT,
         pipelineOptions.isIncludeUnmapped());
+    readerOptions.applyPipelineOptions(pipelineOptions);
+    // Same as READ_FIELDS for the API: counting needs no sequence, qualities or tags.
+    readerOptions.setReadProjection(ReadProjection.of(ReadProjection.Field.ALIGNMENT));
     if (pipelineOptions.isShardBAMReading()) {
       LOG.info("Sharded reading of "+ pipelineOptions.getBAMFilePath());
 
-      ShardingPolicy policy = new ShardingPolicy() {
-        final int MAX_BYTES_PER_SHARD = pipelineOptions.getMaxShardSizeBytes();
-        @Override
-        public Boolean apply(BAMShard shard) {
-          return shard.approximateSizeInBytes() > MAX_BYTES_PER_SHARD;
-        }
-      };
+      final ShardingPolicy policy = ReadBAMTransform.getShardingPolicy(pipelineOptions,
+          pipelineOptions.getMaxShardSizeBytes());
 
       return ReadBAMTransform.getReadsFromBAMFilesSharded(p,
           pipelineOptions,
@@ -223,13 +221,10 @@ public class CountReads {
           policy);
     } else {  // For testing and comparing sharded vs. not sharded only
       LOG.info("Unsharded reading of " + pipelineOptions.getBAMFilePath());
-      return p.apply(
-          Create.of(
-              Reader.readSequentiallyForTesting(
-                  GCSOptions.Methods.createStorageClient(pipelineOptions, auth),
-                  pipelineOptions.getBAMFilePath(),
-                  contigs.iterator().next(),
-                  readerOptions)));
+      return ReadBAMTransform.getReadsFromBAMFileSequentially(p,
+          contigs.iterator().next(),
+          readerOptions,
+          pipelineOptions.getBAMFilePath());
     }
   }
 }
@@ -65,7 +65,7 @@ import java.util.logging.Logger;
 public class ShardedBAMWriting {
 
   static interface Options extends ShardOptions, ShardReadsTransform.Options,
-    WriteBAMTransform.Options, GCSOutputOptions {
+    WriteBAMTransform.Options, ReadBAMTransform.Options, GCSOutputOptions {
     @Description("The Google Cloud Storage path to the BAM file to get reads data from" +
         "This or ReadGroupSetId must be set")
     @Default.String("")
@@ -152,7 +152,7 @@ public class ShardedBAMWriting {
     }
 
     final PCollection<String> writtenFiles = WriteBAMTransform.write(
-        reads, headerInfo, pipelineOptions.getOutput(), pipeline);
+        reads, headerInfo, pipelineOptions.getOutput(), pipeline, pipelineOptions);
 
     writtenFiles
         .apply(
@@ -169,7 +169,7 @@ public class ShardedBAMWriting {
   private static PCollection<Read> getReadsFromBAMFile() throws IOException, URISyntaxException {
     /**
      * Policy used to shard Reads.
-     * By default we are using the default sharding supplied by the policy class.
+     * By default we are using shards of 10MB, or the cost model when --targetShardSeconds is set.
      * If you want custom sharding, use the following pattern:
      * <pre>
      *    BAM_FILE_READ_SHARDING_POLICY = new ShardingPolicy() {
@@ -180,13 +180,15 @@ public class ShardedBAMWriting {
      *   };
      * </pre>
      */
-    final ShardingPolicy BAM_FILE_READ_SHARDING_POLICY = ShardingPolicy.BYTE_SIZE_POLICY_10MB;
+    final ShardingPolicy BAM_FILE_READ_SHARDING_POLICY =
+        ReadBAMTransform.getShardingPolicy(pipelineOptions, 10 * 1024 * 1024);
 
     LOG.info("Sharded reading of " + pipelineOptions.getBAMFilePath());
 
     final ReaderOptions readerOptions = new ReaderOptions(
         ValidationStringency.DEFAULT_STRINGENCY,
         true);
+    readerOptions.applyPipelineOptions(pipelineOptions);
 
     // TODO: change this to ReadBAMTransform.getReadsFromBAMFilesSharded when
     // https://github.com/googlegenomics/dataflow-java/issues/214 is fixed.
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers;
+
+import org.apache.beam.sdk.metrics.Metrics;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.PTransform;
+import org.apache.beam.sdk.transforms.ParDo;
+import org.apache.beam.sdk.values.PCollection;
+import com.google.cloud.genomics.dataflow.model.ReadBatch;
+import com.google.cloud.genomics.utils.OfflineAuth;
+import com.google.cloud.genomics.utils.ShardBoundary;
+import com.google.cloud.genomics.utils.grpc.ReadStreamIterator;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.AbstractIterator;
+import com.google.genomics.v1.Read;
+import com.google.genomics.v1.StreamReadsRequest;
+import com.google.genomics.v1.StreamReadsResponse;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PTransform for streaming reads via gRPC, emitted in batches of a fixed size
+ * rather than one element per read.
+ * The pages of the stream are regrouped, so that every batch of a shard but the last
+ * holds exactly batchSize reads whatever the page size of the server.
+ */
+public class ReadBatchStreamer extends
+PTransform<PCollection<StreamReadsRequest>, PCollection<ReadBatch>> {
+
+  protected final OfflineAuth auth;
+  protected final ShardBoundary.Requirement shardBoundary;
+  protected final String fields;
+  protected final int batchSize;
+
+  /**
+   * @param auth The OfflineAuth to use for the request.
+   * @param shardBoundary The shard boundary semantics to enforce.
+   * @param fields Which fields to include in a partial response or null for all.
+   * @param batchSize Number of reads per batch, e.g. ReadBatch.DEFAULT_SIZE.
+   */
+  public ReadBatchStreamer(OfflineAuth auth, ShardBoundary.Requirement shardBoundary,
+      String fields, int batchSize) {
+    this.auth = auth;
+    this.shardBoundary = shardBoundary;
+    this.fields = fields;
+    this.batchSize = batchSize;
+  }
+
+  @Override
+  public PCollection<ReadBatch> expand(PCollection<StreamReadsRequest> input) {
+    return input.apply(ParDo.of(new RetrieveReadBatches()));
+  }
+
+  /**
+   * Regroups the reads of the pages of a stream into batches of batchSize reads,
+   * followed by a last batch with the remaining reads, if any.
+   */
+  static Iterator<ReadBatch> batches(final Iterator<StreamReadsResponse> pages,
+      final int batchSize) {
+    return new AbstractIterator<ReadBatch>() {
+      private Iterator<Read> page = Collections.emptyIterator();
+
+      @Override
+      protected ReadBatch computeNext() {
+        final List<Read> batch = new ArrayList<>(batchSize);
+        while (batch.size() < batchSize) {
+          if (!page.hasNext()) {
+            if (!pages.hasNext()) {
+              break;
+            }
+            page = pages.next().getAlignmentsList().iterator();
+            continue;
+          }
+          batch.add(page.next());
+        }
+        return batch.isEmpty() ? endOfData() : new ReadBatch(batch);
+      }
+    };
+  }
+
+  private class RetrieveReadBatches extends DoFn<StreamReadsRequest, ReadBatch> {
+
+    @ProcessElement
+    public void processElement(ProcessContext c) throws IOException, GeneralSecurityException {
+      Metrics.counter(RetrieveReadBatches.class, "Initialized Shard Count").inc();
+      Stopwatch stopWatch = Stopwatch.createStarted();
+      Iterator<StreamReadsResponse> iter = ReadStreamIterator.enforceShardBoundary(auth, c.element(), shardBoundary, fields);
+      Iterator<ReadBatch> batches = batches(iter, batchSize);
+      long reads = 0;
+      while (batches.hasNext()) {
+        final ReadBatch batch = batches.next();
+        c.output(batch);
+        reads += batch.size();
+      }
+      stopWatch.stop();
+      Metrics.distribution(RetrieveReadBatches.class, "Shard Processing Time (sec)")
+          .update(stopWatch.elapsed(TimeUnit.SECONDS));
+      Metrics.counter(RetrieveReadBatches.class, "Number of reads").inc(reads);
+      Metrics.counter(RetrieveReadBatches.class, "Finished Shard Count").inc();
+    }
+  }
+}
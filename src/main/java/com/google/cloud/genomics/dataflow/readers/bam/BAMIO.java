@@ -18,6 +18,7 @@ package com.google.cloud.genomics.dataflow.readers.bam;
 import com.google.api.services.storage.Storage;
 
 import htsjdk.samtools.DefaultSAMRecordFactory;
+import htsjdk.samtools.SAMFileSpanImpl;
 import htsjdk.samtools.SamInputResource;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
@@ -29,7 +30,7 @@ import java.io.IOException;
 import java.util.logging.Logger;
 
 /**
- * Utility methods for opening BAM files from GCS storage using HTSJDK.
+ * Utility methods for opening BAM files from GCS storage, or local file:// paths, using HTSJDK.
  * For sharding in pipelines we need access to the guts of BAM index,
  * so openBAMAndExposeIndex provides a convenient way to get both SamReader and
  * a stream for an index file.
@@ -67,10 +68,34 @@ public class BAMIO {
     return openBAM(storageClient, gcsStoragePath, stringency, false);
   }
 
+  /**
+   * Opens a BAM file and its index using the stringency and the GCS streaming
+   * settings (e.g. read-ahead) from the given reader options.
+   * The index is served from the worker-wide BAMMetadataCache, so it is only
+   * downloaded once per file on each worker.
+   */
+  public static SamReader openBAM(Storage.Objects storageClient, String gcsStoragePath,
+      ReaderOptions options) throws IOException {
+    return openBAM(storageClient, gcsStoragePath, options, null);
+  }
+
+  /**
+   * Same as above, but also starts downloading the chunks of the given span
+   * when the options enable read-ahead.
+   */
+  public static SamReader openBAM(Storage.Objects storageClient, String gcsStoragePath,
+      ReaderOptions options, SAMFileSpanImpl prefetchSpan) throws IOException {
+    final BAMMetadataCache.Entry metadata =
+        BAMMetadataCache.get(storageClient, gcsStoragePath, options);
+    return openBAMReader(openBAMFile(storageClient, gcsStoragePath,
+        metadata.openIndex(), options, prefetchSpan),
+        options.getStringency(), false, 0);
+  }
+
   private static SeekableStream openIndexForPath(Storage.Objects storageClient,String gcsStoragePath) {
     final String indexPath = gcsStoragePath + ".bai";
     try {
-      return new SeekableGCSStream(storageClient, indexPath);
+      return openStream(storageClient, indexPath, null);
     } catch (IOException ex) {
       LOG.info("No index for " + indexPath);
       // Ignore if there is no bai file
@@ -78,8 +103,25 @@ public class BAMIO {
     return null;
   }
 
+  /**
+   * Opens an object as a SeekableStream through the StorageBackend for its path.
+   * GCS objects are read ahead if the options ask for it; null options give the plain
+   * streaming SeekableGCSStream.
+   */
+  static SeekableStream openStream(Storage.Objects storageClient, String gcsStoragePath,
+      ReaderOptions options) throws IOException {
+    return StorageBackend.forPath(storageClient, gcsStoragePath).open(gcsStoragePath, options);
+  }
+
   private static SamInputResource openBAMFile(Storage.Objects storageClient, String gcsStoragePath, SeekableStream index) throws IOException {
-    SeekableGCSStream s = new SeekableGCSStream(storageClient, gcsStoragePath);
+    return openBAMFile(storageClient, gcsStoragePath, index, null, null);
+  }
+
+  private static SamInputResource openBAMFile(Storage.Objects storageClient,
+      String gcsStoragePath, SeekableStream index, ReaderOptions options,
+      SAMFileSpanImpl prefetchSpan) throws IOException {
+    SeekableStream s = openStream(storageClient, gcsStoragePath, options);
+    ChunkPrefetcher.prefetch(s, prefetchSpan);
     SamInputResource samInputResource =
         SamInputResource.of(s);
 
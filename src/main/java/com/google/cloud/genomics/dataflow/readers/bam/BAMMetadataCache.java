@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import com.google.api.services.storage.Storage;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.io.ByteStreams;
+
+import htsjdk.samtools.BAMFileIndexImpl;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SamInputResource;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.seekablestream.SeekableStream;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Worker-wide cache of BAM headers and BAI index files, keyed by the path
+ * and generation of the BAM file and the generation of its index.
+ * All shards of a file processed on the same worker share a single download of the
+ * index and a single parse of the header, instead of fetching them again per shard.
+ * HTSJDK index objects are not thread safe, so we keep the raw index bytes and
+ * hand every caller its own index over an in-memory stream.
+ * A file rewritten in place, or an index added or replaced, is noticed once its
+ * generation expires from the cache.
+ */
+public class BAMMetadataCache {
+  private static final Logger LOG = Logger.getLogger(BAMMetadataCache.class.getName());
+
+  /**
+   * Upper bound for the memory used by the cache.
+   * A BAI for a 100 GB BAM is typically around 10 MB.
+   */
+  static final long MAX_CACHE_BYTES = 256L * 1024 * 1024;
+
+  // Rough per-sequence size of a decoded header, on top of its text.
+  private static final int BYTES_PER_SEQUENCE = 100;
+
+  private static final Cache<String, Entry> CACHE = CacheBuilder.newBuilder()
+      .maximumWeight(MAX_CACHE_BYTES)
+      .weigher(new Weigher<String, Entry>() {
+        @Override
+        public int weigh(String key, Entry entry) {
+          return entry.sizeInBytes();
+        }
+      })
+      .build();
+
+  /**
+   * How long the generation of a file is trusted before we ask the storage again.
+   * Keeps opening the many shards of a file from costing a metadata request each.
+   */
+  static final long GENERATION_TTL_SECONDS = 60;
+
+  private static final Cache<String, Long> GENERATIONS = CacheBuilder.newBuilder()
+      .expireAfterWrite(GENERATION_TTL_SECONDS, TimeUnit.SECONDS)
+      .maximumSize(10000)
+      .build();
+
+  /**
+   * Header and index of a particular generation of a BAM file.
+   * The header is shared between all users of the cache and must be treated as read-only.
+   */
+  public static class Entry {
+    final String path;
+    final long generation;
+    final SAMFileHeader header;
+    final byte[] index;
+
+    Entry(String path, long generation, SAMFileHeader header, byte[] index) {
+      this.path = path;
+      this.generation = generation;
+      this.header = header;
+      this.index = index;
+    }
+
+    public long getGeneration() {
+      return generation;
+    }
+
+    public SAMFileHeader getHeader() {
+      return header;
+    }
+
+    public boolean hasIndex() {
+      return index != null;
+    }
+
+    /**
+     * @return a new stream over the cached index file, or null if the BAM has no index.
+     */
+    public SeekableStream openIndex() {
+      return index != null ? new InMemorySeekableStream(index, path + ".bai") : null;
+    }
+
+    /**
+     * @return a new index object for the exclusive use of the caller, or null if
+     * the BAM has no index.
+     */
+    public BAMFileIndexImpl openBAMFileIndex() {
+      return index != null
+          ? new BAMFileIndexImpl(openIndex(), header.getSequenceDictionary()) : null;
+    }
+
+    int sizeInBytes() {
+      final String text = header.getTextHeader();
+      final long size = (index != null ? index.length : 0)
+          + (text != null ? 2L * text.length() : 0)
+          + (long) BYTES_PER_SEQUENCE * header.getSequenceDictionary().size();
+      return (int) Math.min(Integer.MAX_VALUE, size);
+    }
+  }
+
+  /**
+   * Returns the header and index for the current generation of the given BAM file,
+   * downloading them on first use.
+   * @param options used for the stringency and GCS streaming settings; may be null.
+   */
+  public static Entry get(final Storage.Objects storageClient, final String path,
+      final ReaderOptions options) throws IOException {
+    final long generation = getGeneration(storageClient, path);
+    if (generation == StorageBackend.MISSING_GENERATION) {
+      throw new FileNotFoundException("No such BAM file: " + path);
+    }
+    final long indexGeneration = getGeneration(storageClient, path + ".bai");
+    try {
+      return CACHE.get(path + "#" + generation + "#" + indexGeneration, new Callable<Entry>() {
+        @Override
+        public Entry call() throws IOException {
+          return load(storageClient, path, generation, indexGeneration, options);
+        }
+      });
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Error loading header and index of " + path, e.getCause());
+    }
+  }
+
+  /**
+   * Returns the generation of the file, as seen at most GENERATION_TTL_SECONDS ago,
+   * or MISSING_GENERATION if the storage says that it does not exist.
+   */
+  private static long getGeneration(final Storage.Objects storageClient, final String path)
+      throws IOException {
+    try {
+      return GENERATIONS.get(path, new Callable<Long>() {
+        @Override
+        public Long call() throws IOException {
+          return StorageBackend.forPath(storageClient, path).getGeneration(path);
+        }
+      });
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Error getting the generation of " + path, e.getCause());
+    }
+  }
+
+  private static Entry load(Storage.Objects storageClient, String path, long generation,
+      long indexGeneration, ReaderOptions options) throws IOException {
+    LOG.info("Loading header and index of " + path + " generation " + generation);
+    final ValidationStringency stringency = options != null
+        ? options.getStringency() : ValidationStringency.DEFAULT_STRINGENCY;
+    final SAMFileHeader header;
+    try (SamReader reader = SamReaderFactory.makeDefault()
+        .validationStringency(stringency)
+        .open(SamInputResource.of(BAMIO.openStream(storageClient, path, options)))) {
+      header = reader.getFileHeader();
+    }
+    final byte[] index;
+    if (indexGeneration == StorageBackend.MISSING_GENERATION) {
+      // Only a missing index is cached as such; failing to read one is an error.
+      LOG.info("No index for " + path);
+      index = null;
+    } else {
+      index = downloadIndex(storageClient, path + ".bai");
+    }
+    return new Entry(path, generation, header, index);
+  }
+
+  private static byte[] downloadIndex(Storage.Objects storageClient, String indexPath)
+      throws IOException {
+    final SeekableStream stream = BAMIO.openStream(storageClient, indexPath, null);
+    try {
+      final long length = stream.length();
+      if (length > Integer.MAX_VALUE) {
+        throw new IOException("Index is too large to cache: " + indexPath);
+      }
+      final byte[] index = new byte[(int) length];
+      ByteStreams.readFully(stream, index);
+      LOG.info("Downloaded " + length + " bytes of " + indexPath);
+      return index;
+    } finally {
+      stream.close();
+    }
+  }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import htsjdk.samtools.seekablestream.SeekableStream;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Finds where BGZF blocks and BAM records start at arbitrary places in a BAM file,
+ * without an index, the way index-free BAM splitters (e.g. Hadoop-BAM) do.
+ * Blocks are recognized by their gzip and BGZF headers, confirmed by a second block
+ * header right where the first block says it ends. A record start is the first offset
+ * in the inflated data from which several consecutive plausible record headers decode.
+ * Not thread-safe; the stream is not closed.
+ */
+public class BAMRecordBoundaryFinder {
+  // Gzip header up to and including the BGZF block size subfield.
+  private static final int BLOCK_HEADER_LENGTH = 18;
+  private static final int MAX_BLOCK_SIZE = BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE;
+  // block_size and the fixed-length fields that follow it.
+  private static final int RECORD_HEADER_LENGTH = 36;
+  // Sanity limit on a single record, well above anything produced by sequencers.
+  private static final int MAX_RECORD_SIZE = 1 << 24;
+  // Consecutive records that must decode from a candidate offset.
+  private static final int RECORDS_TO_CHECK = 3;
+
+  private final SeekableStream stream;
+  private final int referenceCount;
+  private final long fileLength;
+  private final byte[] window = new byte[2 * MAX_BLOCK_SIZE + BLOCK_HEADER_LENGTH];
+  private final byte[] recordHeader = new byte[RECORD_HEADER_LENGTH];
+  private final byte[] scratch = new byte[MAX_BLOCK_SIZE];
+  // Data inflated from the start of the block being searched for a record start.
+  private BlockCompressedInputStream bgzf;
+  private byte[] inflated = new byte[2 * MAX_BLOCK_SIZE];
+  private int inflatedLength;
+  private boolean inflatedToEnd;
+  private boolean inflateFailed;
+
+  /**
+   * @param stream the BAM file.
+   * @param referenceCount number of references in the file header.
+   */
+  public BAMRecordBoundaryFinder(SeekableStream stream, int referenceCount) {
+    this.stream = stream;
+    this.referenceCount = referenceCount;
+    this.fileLength = stream.length();
+  }
+
+  public long getFileLength() {
+    return fileLength;
+  }
+
+  /**
+   * @return virtual file pointer of the first record, right after the BAM header.
+   */
+  public long findFirstRecordStart() throws IOException {
+    stream.seek(0);
+    final BlockCompressedInputStream bgzf = new BlockCompressedInputStream(stream);
+    // Magic, then the header text and the reference list, both length-prefixed.
+    skipFully(bgzf, 4);
+    skipFully(bgzf, readInt(bgzf));
+    final int references = readInt(bgzf);
+    for (int i = 0; i < references; i++) {
+      skipFully(bgzf, readInt(bgzf));
+      skipFully(bgzf, 4);
+    }
+    return bgzf.getFilePointer();
+  }
+
+  /**
+   * @return address of the first BGZF block that starts at or after the given address
+   * and before endAddress, or -1 if there is none.
+   */
+  public long findBlockStart(long address, long endAddress) throws IOException {
+    final int length = (int) Math.min(window.length, fileLength - address);
+    if (length < BLOCK_HEADER_LENGTH) {
+      return -1;
+    }
+    stream.seek(address);
+    readFully(window, 0, length);
+    // Blocks are at most MAX_BLOCK_SIZE long, so one starts within that distance.
+    final int lastCandidate = (int) Math.min(Math.min(MAX_BLOCK_SIZE, endAddress - address),
+        length - BLOCK_HEADER_LENGTH + 1);
+    for (int i = 0; i < lastCandidate; i++) {
+      final int blockSize = blockSizeAt(window, i, length);
+      if (blockSize <= 0) {
+        continue;
+      }
+      final long nextAddress = address + i + blockSize;
+      if (nextAddress == fileLength || blockSizeAt(window, i + blockSize, length) > 0) {
+        return address + i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return virtual file pointer of the first record that starts in a block at or after
+   * the given address and before endAddress, or -1 if there is none.
+   */
+  public long findRecordStart(long address, long endAddress) throws IOException {
+    long blockAddress = findBlockStart(address, endAddress);
+    while (blockAddress >= 0 && blockAddress < endAddress && blockAddress < fileLength) {
+      stream.seek(blockAddress);
+      readFully(window, 0, BLOCK_HEADER_LENGTH);
+      final int blockSize = blockSizeAt(window, 0, BLOCK_HEADER_LENGTH);
+      if (blockSize <= 0) {
+        throw new IOException("Lost track of BGZF blocks at " + blockAddress + " of "
+            + stream.getSource());
+      }
+      stream.seek(blockAddress + blockSize - 4);
+      readFully(window, 0, 4);
+      final int uncompressedSize = readInt(window, 0);
+
+      // Inflate the block once and test every offset against the buffer; the records
+      // that run past the block are inflated only as far as they are checked.
+      bgzf = new BlockCompressedInputStream(stream);
+      inflatedLength = 0;
+      inflatedToEnd = false;
+      inflateFailed = false;
+      try {
+        bgzf.seek(blockAddress << 16);
+      } catch (IOException | RuntimeException e) {
+        inflatedToEnd = true;
+        inflateFailed = true;
+      }
+      for (int offset = 0; offset < uncompressedSize; offset++) {
+        if (isRecordStart(offset)) {
+          return (blockAddress << 16) | offset;
+        }
+      }
+      // Only the middle of a long record, or an empty block; try the next one.
+      blockAddress += blockSize;
+    }
+    return -1;
+  }
+
+  /**
+   * @return true if RECORDS_TO_CHECK plausible records, or all the records up to the end
+   * of the file, decode from the given offset of the inflated data.
+   */
+  private boolean isRecordStart(int offset) {
+    int position = offset;
+    for (int i = 0; i < RECORDS_TO_CHECK; i++) {
+      if (!inflateUpTo(position + RECORD_HEADER_LENGTH)) {
+        return i > 0 && position == inflatedLength && !inflateFailed;
+      }
+      if (!isPlausibleRecordHeader(inflated, position)) {
+        return false;
+      }
+      final int readNameStart = position + RECORD_HEADER_LENGTH;
+      final int readNameLength = inflated[position + 12] & 0xFF;
+      if (!inflateUpTo(readNameStart + readNameLength)
+          || !isPlausibleReadName(inflated, readNameStart, readNameLength)) {
+        return false;
+      }
+      position += 4 + readInt(inflated, position);
+      if (!inflateUpTo(position)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Inflates the data following the current block until at least length bytes are
+   * buffered.
+   * @return false if the data ends, or does not inflate, before that.
+   */
+  private boolean inflateUpTo(int length) {
+    if (length > inflated.length) {
+      inflated = Arrays.copyOf(inflated, Math.max(length, 2 * inflated.length));
+    }
+    while (inflatedLength < length && !inflatedToEnd) {
+      try {
+        final int n = bgzf.read(inflated, inflatedLength, inflated.length - inflatedLength);
+        if (n <= 0) {
+          inflatedToEnd = true;
+        } else {
+          inflatedLength += n;
+        }
+      } catch (IOException | RuntimeException e) {
+        // Garbage that happens to look like a block header, or a seek past the data.
+        inflatedToEnd = true;
+        inflateFailed = true;
+      }
+    }
+    return inflatedLength >= length;
+  }
+
+  boolean isPlausibleRecordHeader(byte[] buffer, int offset) {
+    final int blockSize = readInt(buffer, offset);
+    final int referenceIndex = readInt(buffer, offset + 4);
+    final int position = readInt(buffer, offset + 8);
+    final int readNameLength = buffer[offset + 12] & 0xFF;
+    final int cigarLength = readUnsignedShort(buffer, offset + 16);
+    final int sequenceLength = readInt(buffer, offset + 20);
+    final int mateReferenceIndex = readInt(buffer, offset + 24);
+    final int matePosition = readInt(buffer, offset + 28);
+    if (blockSize < RECORD_HEADER_LENGTH - 4 || blockSize > MAX_RECORD_SIZE) {
+      return false;
+    }
+    if (referenceIndex < -1 || referenceIndex >= referenceCount
+        || mateReferenceIndex < -1 || mateReferenceIndex >= referenceCount) {
+      return false;
+    }
+    if (position < -1 || matePosition < -1 || readNameLength < 1 || sequenceLength < 0
+        || sequenceLength > MAX_RECORD_SIZE) {
+      return false;
+    }
+    final long variableLength = readNameLength + 4L * cigarLength
+        + (sequenceLength + 1) / 2 + sequenceLength;
+    return (RECORD_HEADER_LENGTH - 4) + variableLength <= blockSize;
+  }
+
+  /**
+   * Read names are printable characters other than '@', followed by a NUL.
+   */
+  static boolean isPlausibleReadName(byte[] buffer, int offset, int length) {
+    if (buffer[offset + length - 1] != 0) {
+      return false;
+    }
+    for (int i = offset; i < offset + length - 1; i++) {
+      if (buffer[i] < '!' || buffer[i] > '~' || buffer[i] == '@') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the size of the BGZF block whose header starts at the given offset of the
+   * buffer, or -1 if there is no plausible block header there.
+   */
+  private static int blockSizeAt(byte[] buffer, int offset, int length) {
+    if (offset + BLOCK_HEADER_LENGTH > length) {
+      return -1;
+    }
+    if ((buffer[offset] & 0xFF) != BlockCompressedStreamConstants.GZIP_ID1
+        || (buffer[offset + 1] & 0xFF) != BlockCompressedStreamConstants.GZIP_ID2
+        || buffer[offset + 2] != BlockCompressedStreamConstants.GZIP_CM_DEFLATE
+        || (buffer[offset + 3] & BlockCompressedStreamConstants.GZIP_FLG) == 0
+        || readUnsignedShort(buffer, offset + 10) != BlockCompressedStreamConstants.GZIP_XLEN
+        || buffer[offset + 12] != BlockCompressedStreamConstants.BGZF_ID1
+        || buffer[offset + 13] != BlockCompressedStreamConstants.BGZF_ID2
+        || readUnsignedShort(buffer, offset + 14) != BlockCompressedStreamConstants.BGZF_LEN) {
+      return -1;
+    }
+    final int blockSize = readUnsignedShort(buffer, offset + 16) + 1;
+    return blockSize >= BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH
+        + BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH ? blockSize : -1;
+  }
+
+  private void readFully(byte[] buffer, int offset, int length) throws IOException {
+    int total = 0;
+    while (total < length) {
+      final int n = stream.read(buffer, offset + total, length - total);
+      if (n < 0) {
+        throw new IOException("Unexpected end of " + stream.getSource() + " at "
+            + (stream.position()));
+      }
+      total += n;
+    }
+  }
+
+  private static int readFully(BlockCompressedInputStream in, byte[] buffer, int length)
+      throws IOException {
+    int total = 0;
+    while (total < length) {
+      final int n = in.read(buffer, total, length - total);
+      if (n <= 0) {
+        break;
+      }
+      total += n;
+    }
+    return total;
+  }
+
+  private int readInt(BlockCompressedInputStream in) throws IOException {
+    if (readFully(in, recordHeader, 4) < 4) {
+      throw new IOException("Truncated BAM header in " + stream.getSource());
+    }
+    return readInt(recordHeader, 0);
+  }
+
+  private void skipFully(BlockCompressedInputStream in, int length) throws IOException {
+    int remaining = length;
+    while (remaining > 0) {
+      final int n = readFully(in, scratch, Math.min(remaining, scratch.length));
+      if (n == 0) {
+        throw new IOException("Truncated BAM header in " + stream.getSource());
+      }
+      remaining -= n;
+    }
+  }
+
+  private static int readUnsignedShort(byte[] buffer, int offset) {
+    return (buffer[offset] & 0xFF) | (buffer[offset + 1] & 0xFF) << 8;
+  }
+
+  private static int readInt(byte[] buffer, int offset) {
+    return (buffer[offset] & 0xFF) | (buffer[offset + 1] & 0xFF) << 8
+        | (buffer[offset + 2] & 0xFF) << 16 | (buffer[offset + 3] & 0xFF) << 24;
+  }
+}
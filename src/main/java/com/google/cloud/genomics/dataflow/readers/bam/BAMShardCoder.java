@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import org.apache.beam.sdk.coders.AtomicCoder;
+import org.apache.beam.sdk.coders.CoderException;
+import org.apache.beam.sdk.coders.CoderProvider;
+import org.apache.beam.sdk.coders.CoderProviders;
+import org.apache.beam.sdk.coders.StringUtf8Coder;
+import org.apache.beam.sdk.util.VarInt;
+import org.apache.beam.sdk.values.TypeDescriptor;
+import com.google.cloud.genomics.utils.Contig;
+import com.google.common.collect.Lists;
+
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.SAMFileSpanImpl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Deterministic coder for BAMShard, so that shards can be used as keys.
+ * Numbers are written as zigzag varints and chunk boundaries as deltas from the
+ * previous boundary, which are small since chunks are mostly sorted and close together.
+ */
+public class BAMShardCoder extends AtomicCoder<BAMShard> {
+  private static final BAMShardCoder INSTANCE = new BAMShardCoder();
+  private static final StringUtf8Coder STRING_CODER = StringUtf8Coder.of();
+
+  public static BAMShardCoder of() {
+    return INSTANCE;
+  }
+
+  /**
+   * Used by @DefaultCoder on BAMShard.
+   */
+  public static CoderProvider getCoderProvider() {
+    return CoderProviders.forCoder(TypeDescriptor.of(BAMShard.class), INSTANCE);
+  }
+
+  private BAMShardCoder() {
+  }
+
+  @Override
+  public void encode(BAMShard shard, OutputStream outStream)
+      throws CoderException, IOException {
+    STRING_CODER.encode(shard.file, outStream);
+    STRING_CODER.encode(shard.contig.referenceName, outStream);
+    writeSigned(shard.contig.start, outStream);
+    writeSigned(shard.contig.end, outStream);
+    writeSigned(shard.cachedSizeInBytes, outStream);
+    writeChunks(shard.chunks, outStream);
+    writeChunks(shard.span != null ? shard.span.getChunkList() : null, outStream);
+  }
+
+  @Override
+  public BAMShard decode(InputStream inStream) throws CoderException, IOException {
+    final String file = STRING_CODER.decode(inStream);
+    final String referenceName = STRING_CODER.decode(inStream);
+    final long start = readSigned(inStream);
+    final long end = readSigned(inStream);
+    final long cachedSizeInBytes = readSigned(inStream);
+    final List<Chunk> chunks = readChunks(inStream);
+    final List<Chunk> spanChunks = readChunks(inStream);
+    final BAMShard shard = new BAMShard(file,
+        spanChunks != null ? new SAMFileSpanImpl(spanChunks) : null,
+        new Contig(referenceName, start, end));
+    shard.chunks = chunks;
+    shard.cachedSizeInBytes = cachedSizeInBytes;
+    return shard;
+  }
+
+  @Override
+  public void verifyDeterministic() throws NonDeterministicException {
+    // Every field is written in a canonical form.
+  }
+
+  /**
+   * Writes the number of chunks plus one, or 0 for a null list, then the
+   * chunk boundaries as deltas.
+   */
+  private static void writeChunks(List<Chunk> chunks, OutputStream outStream)
+      throws IOException {
+    if (chunks == null) {
+      VarInt.encode(0, outStream);
+      return;
+    }
+    VarInt.encode(chunks.size() + 1, outStream);
+    long previous = 0;
+    for (Chunk chunk : chunks) {
+      writeSigned(chunk.getChunkStart() - previous, outStream);
+      writeSigned(chunk.getChunkEnd() - chunk.getChunkStart(), outStream);
+      previous = chunk.getChunkEnd();
+    }
+  }
+
+  private static List<Chunk> readChunks(InputStream inStream) throws IOException {
+    final int count = VarInt.decodeInt(inStream) - 1;
+    if (count < 0) {
+      return null;
+    }
+    final List<Chunk> chunks = Lists.newLinkedList();
+    long previous = 0;
+    for (int i = 0; i < count; i++) {
+      final long chunkStart = previous + readSigned(inStream);
+      final long chunkEnd = chunkStart + readSigned(inStream);
+      chunks.add(new Chunk(chunkStart, chunkEnd));
+      previous = chunkEnd;
+    }
+    return chunks;
+  }
+
+  private static void writeSigned(long value, OutputStream outStream) throws IOException {
+    VarInt.encode((value << 1) ^ (value >> 63), outStream);
+  }
+
+  private static long readSigned(InputStream inStream) throws IOException {
+    final long encoded = VarInt.decodeLong(inStream);
+    return (encoded >>> 1) ^ -(encoded & 1);
+  }
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import htsjdk.samtools.seekablestream.SeekableStream;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * SeekableStream that serves reads from a bounded LRU cache of fixed-size blocks.
+ * Blocks are fetched on a small thread pool shared by all streams in the JVM, and
+ * the blocks following the one being read are requested ahead of time, so sequential
+ * reads rarely have to wait for the underlying storage.
+ * If the caller knows which byte ranges it is going to read (@see #setPrefetchPlan),
+ * read-ahead follows those ranges instead, skipping the gaps between them and
+ * fetching several consecutive blocks with a single request.
+ * Subclasses only need to know how to fetch a single byte range.
+ */
+public abstract class BlockCachingSeekableStream extends SeekableStream {
+  private static final Logger LOG = Logger.getLogger(BlockCachingSeekableStream.class.getName());
+
+  private static final int FETCH_THREADS = 8;
+  private static final ExecutorService FETCH_EXECUTOR = Executors.newFixedThreadPool(
+      FETCH_THREADS,
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("block-fetch-%d").build());
+
+  protected final int blockSize;
+  private final int readAheadBlocks;
+  private final LinkedHashMap<Long, Future<byte[]>> blocks;
+  // Block index ranges [first, last] to prefetch, in reading order, or null.
+  private List<long[]> plannedBlocks = null;
+  private int nextPlannedRange = 0;
+  private long position = 0;
+  private byte[] oneByte = new byte[1];
+  // Cached blocks that have been read from, to tell which ones were fetched for nothing.
+  private final Set<Long> readBlocks = new HashSet<>();
+  protected final IOStats ioStats = IOStats.forStream();
+
+  /**
+   * @param blockSize size of a single fetch, in bytes.
+   * @param readAheadBlocks how many blocks past the current one to request in advance.
+   * @param maxCachedBlocks how many blocks to keep around; raised if it is too small
+   * to hold the current block and its read-ahead. Also bounds a single range request
+   * when following a prefetch plan.
+   */
+  protected BlockCachingSeekableStream(int blockSize, int readAheadBlocks, int maxCachedBlocks) {
+    Preconditions.checkArgument(blockSize > 0, "Block size must be positive: %s", blockSize);
+    this.blockSize = blockSize;
+    this.readAheadBlocks = Math.max(0, readAheadBlocks);
+    final int capacity = Math.max(maxCachedBlocks, 2 * this.readAheadBlocks + 2);
+    this.blocks = new LinkedHashMap<Long, Future<byte[]>>(capacity, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long, Future<byte[]>> eldest) {
+        if (size() > capacity) {
+          evicted(eldest.getKey(), eldest.getValue());
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Fetches length bytes starting at offset from the underlying storage.
+   * Called from the shared fetch pool, possibly for several blocks concurrently.
+   */
+  protected abstract byte[] fetchRange(long offset, int length) throws IOException;
+
+  /**
+   * Tells the stream which byte ranges are going to be read, in reading order.
+   * Overlapping and adjacent ranges are merged, and each merged range is fetched with
+   * as few requests as possible, none of them longer than the read-ahead window.
+   * @param byteRanges list of [start, end) byte offsets.
+   */
+  public void setPrefetchPlan(List<long[]> byteRanges) {
+    final int maxBlocksPerRequest = Math.max(1, readAheadBlocks);
+    final List<long[]> plan = new ArrayList<>();
+    long[] current = null;
+    for (long[] range : byteRanges) {
+      if (range[1] <= range[0]) {
+        continue;
+      }
+      final long first = range[0] / blockSize;
+      final long last = (range[1] - 1) / blockSize;
+      if (current != null && first <= current[1] + 1 && last >= current[0]) {
+        current[1] = Math.max(current[1], last);
+      } else {
+        current = new long[] {first, last};
+        plan.add(current);
+      }
+    }
+    plannedBlocks = new ArrayList<>();
+    for (long[] range : plan) {
+      for (long first = range[0]; first <= range[1]; first += maxBlocksPerRequest) {
+        plannedBlocks.add(
+            new long[] {first, Math.min(range[1], first + maxBlocksPerRequest - 1)});
+      }
+    }
+    nextPlannedRange = 0;
+    if (LOG.isLoggable(Level.FINE)) {
+      LOG.fine("Prefetch plan for " + getSource() + ": " + plannedBlocks.size()
+          + " requests for " + byteRanges.size() + " ranges");
+    }
+  }
+
+  @Override
+  public long position() throws IOException {
+    return position;
+  }
+
+  @Override
+  public boolean eof() throws IOException {
+    return position >= length();
+  }
+
+  @Override
+  public void seek(long newPosition) throws IOException {
+    if (newPosition < 0 || newPosition > length()) {
+      throw new IllegalArgumentException(
+          String.format("Invalid seek offset: position value (%d) must be between 0 and %d",
+              newPosition, length()));
+    }
+    if (newPosition != position) {
+      ioStats.seeks.incrementAndGet();
+    }
+    position = newPosition;
+    // Get the fetch for the new position going before anybody asks for the data.
+    requestBlock(position / blockSize);
+  }
+
+  @Override
+  public int read() throws IOException {
+    final int bytesRead = read(oneByte, 0, 1);
+    return bytesRead == 1 ? (oneByte[0] & 0xFF) : -1;
+  }
+
+  @Override
+  public int read(byte[] buf, int offset, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    int totalBytesRead = 0;
+    while (totalBytesRead < len && position < length()) {
+      final long blockIndex = position / blockSize;
+      final byte[] block = getBlock(blockIndex);
+      final int offsetInBlock = (int) (position - blockIndex * blockSize);
+      final int bytesToCopy = Math.min(len - totalBytesRead, block.length - offsetInBlock);
+      System.arraycopy(block, offsetInBlock, buf, offset + totalBytesRead, bytesToCopy);
+      totalBytesRead += bytesToCopy;
+      position += bytesToCopy;
+    }
+    return totalBytesRead == 0 ? -1 : totalBytesRead;
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (Map.Entry<Long, Future<byte[]>> block : blocks.entrySet()) {
+      evicted(block.getKey(), block.getValue());
+    }
+    blocks.clear();
+    readBlocks.clear();
+  }
+
+  public IOStats getIOStats() {
+    return ioStats;
+  }
+
+  /**
+   * Cancels the fetch of the block if it is still running, or counts the block as
+   * discarded if it was fetched but never read.
+   */
+  private void evicted(long blockIndex, Future<byte[]> block) {
+    if (!block.isDone()) {
+      block.cancel(true);
+    }
+    if (!readBlocks.remove(blockIndex) && block.isDone() && !block.isCancelled()) {
+      ioStats.bytesDiscarded.addAndGet(
+          Math.min(blockSize, length() - blockIndex * blockSize));
+    }
+  }
+
+  /**
+   * Returns the block with the given index, waiting for its fetch if needed,
+   * and makes sure the blocks after it are on their way.
+   */
+  private byte[] getBlock(long blockIndex) throws IOException {
+    final Future<byte[]> block = requestBlock(blockIndex);
+    if (plannedBlocks != null) {
+      requestPlannedBlocks(blockIndex);
+    } else {
+      for (long next = blockIndex + 1; next <= blockIndex + readAheadBlocks; next++) {
+        requestBlock(next);
+      }
+    }
+    final long start = System.nanoTime();
+    try {
+      final byte[] data = block.get();
+      readBlocks.add(blockIndex);
+      return data;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for block " + blockIndex
+          + " of " + getSource());
+    } catch (ExecutionException e) {
+      // Forget the failed fetch so that the next read of this block tries again.
+      blocks.remove(blockIndex);
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Error fetching block " + blockIndex + " of " + getSource(),
+          e.getCause());
+    } finally {
+      ioStats.waitNanos.addAndGet(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Requests the planned ranges that follow the given block, up to the read-ahead window.
+   */
+  private void requestPlannedBlocks(long blockIndex) throws IOException {
+    while (nextPlannedRange < plannedBlocks.size()
+        && plannedBlocks.get(nextPlannedRange)[1] < blockIndex) {
+      nextPlannedRange++;
+    }
+    long blocksAhead = 0;
+    for (int i = nextPlannedRange;
+        i < plannedBlocks.size() && blocksAhead < readAheadBlocks; i++) {
+      final long[] range = plannedBlocks.get(i);
+      final long first = Math.max(range[0], blockIndex + 1);
+      if (first > range[1]) {
+        continue;
+      }
+      requestBlocks(first, range[1]);
+      blocksAhead += range[1] - first + 1;
+    }
+  }
+
+  /**
+   * Starts fetching the given block unless it is cached or in flight already.
+   * @return the pending block, or null if the block is past the end of the stream.
+   */
+  private Future<byte[]> requestBlock(long blockIndex) throws IOException {
+    requestBlocks(blockIndex, blockIndex);
+    return blocks.get(blockIndex);
+  }
+
+  /**
+   * Fetches blocks first..last that are not cached or in flight yet, with one request
+   * per run of consecutive missing blocks.
+   */
+  private void requestBlocks(long first, long last) throws IOException {
+    if (first * blockSize >= length()) {
+      return;
+    }
+    final long lastInFile = (length() - 1) / blockSize;
+    last = Math.min(last, lastInFile);
+    long runStart = -1;
+    for (long blockIndex = first; blockIndex <= last + 1; blockIndex++) {
+      final boolean missing = blockIndex <= last && !blocks.containsKey(blockIndex);
+      if (missing && runStart < 0) {
+        runStart = blockIndex;
+      } else if (!missing && runStart >= 0) {
+        requestRun(runStart, blockIndex - 1);
+        runStart = -1;
+      }
+    }
+  }
+
+  private void requestRun(long first, long last) throws IOException {
+    final long offset = first * blockSize;
+    final int length = (int) Math.min((last - first + 1) * blockSize, length() - offset);
+    if (LOG.isLoggable(Level.FINEST)) {
+      LOG.finest("Requesting blocks " + first + "-" + last + " of " + getSource());
+    }
+    final Future<byte[]> run = FETCH_EXECUTOR.submit(new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws IOException {
+        return fetchRange(offset, length);
+      }
+    });
+    if (first == last) {
+      blocks.put(first, run);
+      return;
+    }
+    final AtomicInteger pendingBlocks = new AtomicInteger((int) (last - first + 1));
+    for (long blockIndex = first; blockIndex <= last; blockIndex++) {
+      final int from = (int) ((blockIndex - first) * blockSize);
+      blocks.put(blockIndex, new BlockOfRun(run, pendingBlocks, from,
+          Math.min(from + blockSize, length)));
+    }
+  }
+
+  /**
+   * View of a single block within a pending multi-block fetch.
+   * The block is copied out of the run the first time it is needed, and kept.
+   * The run is cancelled once all of its blocks are.
+   */
+  private static class BlockOfRun implements Future<byte[]> {
+    private final Future<byte[]> run;
+    // Blocks of the run that have not been cancelled.
+    private final AtomicInteger pendingBlocks;
+    private final int from;
+    private final int to;
+    private volatile byte[] block = null;
+    private volatile boolean cancelled = false;
+
+    BlockOfRun(Future<byte[]> run, AtomicInteger pendingBlocks, int from, int to) {
+      this.run = run;
+      this.pendingBlocks = pendingBlocks;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+      if (cancelled || run.isDone()) {
+        return false;
+      }
+      cancelled = true;
+      if (pendingBlocks.decrementAndGet() == 0) {
+        run.cancel(mayInterruptIfRunning);
+      }
+      return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+      return cancelled || run.isDone();
+    }
+
+    @Override
+    public byte[] get() throws InterruptedException, ExecutionException {
+      if (cancelled) {
+        throw new CancellationException();
+      }
+      if (block == null) {
+        block = Arrays.copyOfRange(run.get(), from, to);
+      }
+      return block;
+    }
+
+    @Override
+    public byte[] get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      if (cancelled) {
+        throw new CancellationException();
+      }
+      if (block == null) {
+        block = Arrays.copyOfRange(run.get(timeout, unit), from, to);
+      }
+      return block;
+    }
+  }
+}
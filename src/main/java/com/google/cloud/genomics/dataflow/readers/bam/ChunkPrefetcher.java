@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.SAMFileSpanImpl;
+import htsjdk.samtools.seekablestream.SeekableStream;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Turns the chunk list of a shard into the byte ranges the reader is going to touch,
+ * so that a block caching stream can download them ahead of the record iterator
+ * instead of waiting for HTSJDK to ask for them one seek at a time.
+ */
+public class ChunkPrefetcher {
+  private static final Logger LOG = Logger.getLogger(ChunkPrefetcher.class.getName());
+
+  /**
+   * Upper bound of a compressed BGZF block; a chunk that ends at a given block
+   * may need all of it.
+   */
+  static final long MAX_BGZF_BLOCK_SIZE = 64 * 1024;
+
+  /**
+   * Chunks closer than this are fetched as one range, since a second request costs
+   * more than downloading the bytes in between.
+   */
+  static final long DEFAULT_MAX_GAP = 256 * 1024;
+
+  /**
+   * Converts chunks (virtual file offsets) into [start, end) byte ranges of the
+   * compressed file, merging ranges that overlap or are separated by at most maxGap bytes.
+   * The chunks are expected in file order, as produced by Chunk.optimizeChunkList.
+   */
+  static List<long[]> toByteRanges(List<Chunk> chunks, long maxGap, long fileLength) {
+    final List<long[]> ranges = new ArrayList<>();
+    long[] current = null;
+    for (Chunk chunk : chunks) {
+      final long start = chunk.getChunkStart() >>> 16;
+      final long end = Math.min(fileLength, (chunk.getChunkEnd() >>> 16) + MAX_BGZF_BLOCK_SIZE);
+      if (start >= end) {
+        continue;
+      }
+      if (current != null && start <= current[1] + maxGap && end >= current[0]) {
+        current[1] = Math.max(current[1], end);
+      } else {
+        current = new long[] {start, end};
+        ranges.add(current);
+      }
+    }
+    return ranges;
+  }
+
+  /**
+   * Hands the byte ranges of the span to the stream, if it is able to prefetch them.
+   * Streams without a block cache are left alone.
+   */
+  public static void prefetch(SeekableStream stream, SAMFileSpanImpl span) throws IOException {
+    if (span == null || !(stream instanceof BlockCachingSeekableStream)) {
+      return;
+    }
+    final List<long[]> ranges = toByteRanges(span.getChunkList(), DEFAULT_MAX_GAP,
+        stream.length());
+    LOG.fine("Prefetching " + ranges.size() + " byte ranges of " + stream.getSource());
+    ((BlockCachingSeekableStream) stream).setPrefetchPlan(ranges);
+  }
+}
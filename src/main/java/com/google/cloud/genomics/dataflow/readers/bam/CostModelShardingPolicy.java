@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Sharding policy that estimates how long a shard will take to process and finalizes
+ * it once the estimate reaches a target runtime.
+ * The estimate adds up the cost of the compressed bytes to inflate and decode, of the
+ * loci covered (for per-locus work such as coverage), and of the chunks in the span,
+ * each of which is a seek. The chunks of the lowest-level bins are what the BAI linear
+ * index points into, so sparse regions, where a lot of loci cost few bytes, are held
+ * back by the loci term, and fragmented ones by the chunk term.
+ * The defaults are rough measurements for reading and converting reads on a single core.
+ */
+public class CostModelShardingPolicy implements ShardingPolicy {
+  public static final double DEFAULT_SECONDS_PER_MEGABYTE = 1.0;
+  public static final double DEFAULT_SECONDS_PER_MEGABASE = 0.01;
+  public static final double DEFAULT_SECONDS_PER_CHUNK = 0.05;
+
+  private final double secondsPerByte;
+  private final double secondsPerLocus;
+  private final double secondsPerChunk;
+  private final double targetShardSeconds;
+
+  public CostModelShardingPolicy(double targetShardSeconds) {
+    this(DEFAULT_SECONDS_PER_MEGABYTE, DEFAULT_SECONDS_PER_MEGABASE, DEFAULT_SECONDS_PER_CHUNK,
+        targetShardSeconds);
+  }
+
+  public CostModelShardingPolicy(double secondsPerMegabyte, double secondsPerMegabase,
+      double secondsPerChunk, double targetShardSeconds) {
+    Preconditions.checkArgument(targetShardSeconds > 0,
+        "Target shard runtime must be positive: %s", targetShardSeconds);
+    this.secondsPerByte = secondsPerMegabyte / (1024 * 1024);
+    this.secondsPerLocus = secondsPerMegabase / 1000000;
+    this.secondsPerChunk = secondsPerChunk;
+    this.targetShardSeconds = targetShardSeconds;
+  }
+
+  /**
+   * @return estimated processing time of the shard, in seconds.
+   */
+  public double estimateSeconds(BAMShard shard) {
+    final int chunks = shard.span != null ? shard.span.getChunkList().size() : 0;
+    return shard.approximateSizeInBytes() * secondsPerByte
+        + shard.sizeInLoci() * secondsPerLocus
+        + chunks * secondsPerChunk;
+  }
+
+  @Override
+  public Boolean apply(BAMShard shard) {
+    return estimateSeconds(shard) > targetShardSeconds;
+  }
+}
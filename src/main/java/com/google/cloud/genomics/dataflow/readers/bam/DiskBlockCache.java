@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Cache of fixed-size blocks of storage objects in a local file, shared by all
+ * processes on the host that use the same file.
+ * Blocks are keyed by object, generation and offset, so a new generation of an object
+ * never sees the blocks of the old one.
+ *
+ * The file is a set-associative cache: a block can only go into one of the few slots of
+ * the set its key hashes to, and evicts the least recently used of them. Recency is a
+ * per-set counter kept in the slots, so it does not depend on the clocks of the
+ * processes. Sets are memory-mapped on first use, many sets to a mapping so that large
+ * caches stay far below the per-process limit on mappings (vm.max_map_count), and each
+ * access locks its set with a file lock, which serializes it with the other processes,
+ * on top of a monitor for the threads of this process.
+ * The header of the file records its geometry; a file with another geometry, or that
+ * is not a block cache at all, is left alone and caching disabled.
+ */
+public class DiskBlockCache {
+  private static final Logger LOG = Logger.getLogger(DiskBlockCache.class.getName());
+
+  private static final long MAGIC = 0x4241_4D42_4C4B_4331L;
+  private static final int VERSION = 1;
+  private static final int FILE_HEADER_SIZE = 4096;
+  static final int DEFAULT_WAYS = 8;
+  // Size of the regions of the file mapped at once, rounded down to whole sets.
+  static final int DEFAULT_REGION_BYTES = 1 << 30;
+
+  // Slot header: state, length, key hash, generation, offset, last use.
+  private static final int SLOT_HEADER_SIZE = 40;
+  private static final int STATE_EMPTY = 0;
+  private static final int STATE_VALID = 1;
+
+  // A process must hold a single instance per file: file locks are per process.
+  private static final Map<Path, DiskBlockCache> OPEN = new HashMap<>();
+
+  private final Path file;
+  private final int blockSize;
+  private final int sets;
+  private final int ways;
+  private final long setSize;
+  private final int setsPerRegion;
+  private final FileChannel channel;
+  private final MappedByteBuffer[] mappedRegions;
+  private final Object[] setMonitors;
+
+  /**
+   * @return the cache in the given file, creating the file if needed, or null if the file
+   * is in use with another geometry.
+   */
+  public static synchronized DiskBlockCache open(String path, long capacityBytes,
+      int blockSize) throws IOException {
+    final Path file = Paths.get(path).toAbsolutePath();
+    DiskBlockCache cache = OPEN.get(file);
+    if (cache == null) {
+      final long slotSize = SLOT_HEADER_SIZE + (long) blockSize;
+      final int sets = (int) Math.max(1,
+          Math.min(Integer.MAX_VALUE, capacityBytes / (DEFAULT_WAYS * slotSize)));
+      cache = create(file, blockSize, sets, DEFAULT_WAYS);
+      if (cache == null) {
+        return null;
+      }
+      OPEN.put(file, cache);
+    }
+    if (cache.blockSize != blockSize) {
+      LOG.warning("Not caching blocks of " + blockSize + " bytes in " + file + ", which holds "
+          + cache.blockSize + " byte blocks");
+      return null;
+    }
+    return cache;
+  }
+
+  static DiskBlockCache create(Path file, int blockSize, int sets, int ways)
+      throws IOException {
+    return create(file, blockSize, sets, ways, DEFAULT_REGION_BYTES);
+  }
+
+  static DiskBlockCache create(Path file, int blockSize, int sets, int ways,
+      int regionBytes) throws IOException {
+    Preconditions.checkArgument(blockSize > 0 && sets > 0 && ways > 0,
+        "Invalid cache geometry: %s byte blocks, %s sets of %s", blockSize, sets, ways);
+    Preconditions.checkArgument(
+        (long) ways * (SLOT_HEADER_SIZE + blockSize) <= Integer.MAX_VALUE,
+        "Sets of %s blocks of %s bytes are too large to map", ways, blockSize);
+    final FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    final DiskBlockCache cache =
+        new DiskBlockCache(file, channel, blockSize, sets, ways, regionBytes);
+    final boolean usable;
+    try (FileLock lock = channel.lock(0, FILE_HEADER_SIZE, false)) {
+      usable = cache.initializeHeader();
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+    // Only closed once the lock is released, which needs the channel open.
+    if (!usable) {
+      channel.close();
+      return null;
+    }
+    LOG.info("Opened block cache " + file + ": " + sets + " sets of " + ways + " blocks of "
+        + blockSize + " bytes");
+    return cache;
+  }
+
+  private DiskBlockCache(Path file, FileChannel channel, int blockSize, int sets, int ways,
+      int regionBytes) {
+    this.file = file;
+    this.channel = channel;
+    this.blockSize = blockSize;
+    this.sets = sets;
+    this.ways = ways;
+    this.setSize = (long) ways * (SLOT_HEADER_SIZE + blockSize);
+    this.setsPerRegion = (int) Math.max(1, Math.min(sets, regionBytes / setSize));
+    this.mappedRegions = new MappedByteBuffer[(sets + setsPerRegion - 1) / setsPerRegion];
+    this.setMonitors = new Object[sets];
+    for (int i = 0; i < sets; i++) {
+      setMonitors[i] = new Object();
+    }
+  }
+
+  /**
+   * Writes the header of a new file, or checks the one already there.
+   * Called with the header locked.
+   */
+  private boolean initializeHeader() throws IOException {
+    final ByteBuffer header = ByteBuffer.allocate(24);
+    if (channel.size() > 0) {
+      channel.read(header, 0);
+      header.flip();
+      if (header.remaining() < 24 || header.getLong() != MAGIC || header.getInt() != VERSION) {
+        LOG.warning("Not using " + file + " as a block cache: it holds something else");
+        return false;
+      }
+      final int fileBlockSize = header.getInt();
+      final int fileSets = header.getInt();
+      final int fileWays = header.getInt();
+      if (fileBlockSize != blockSize || fileSets != sets || fileWays != ways) {
+        LOG.warning("Not using block cache " + file + " with " + fileSets + " sets of "
+            + fileWays + " blocks of " + fileBlockSize + " bytes");
+        return false;
+      }
+    } else {
+      header.putLong(MAGIC).putInt(VERSION).putInt(blockSize).putInt(sets).putInt(ways).flip();
+      channel.write(header, 0);
+    }
+    // Empty slots are all zeros. Also completes a file whose creation was interrupted.
+    final long fileSize = FILE_HEADER_SIZE + sets * setSize;
+    if (channel.size() < fileSize) {
+      channel.write(ByteBuffer.allocate(1), fileSize - 1);
+    }
+    return true;
+  }
+
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  /**
+   * @return the cached block, or null.
+   */
+  public byte[] get(String object, long generation, long offset) throws IOException {
+    final long keyHash = keyHash(object);
+    final int set = setOf(keyHash, generation, offset);
+    synchronized (setMonitors[set]) {
+      final MappedByteBuffer buffer = mapSet(set);
+      final int base = setOffsetInRegion(set);
+      try (FileLock lock = channel.lock(setStart(set), setSize, false)) {
+        for (int way = 0; way < ways; way++) {
+          final int slot = base + way * (SLOT_HEADER_SIZE + blockSize);
+          if (buffer.getInt(slot) == STATE_VALID && buffer.getLong(slot + 8) == keyHash
+              && buffer.getLong(slot + 16) == generation && buffer.getLong(slot + 24) == offset) {
+            final int length = buffer.getInt(slot + 4);
+            if (length < 0 || length > blockSize) {
+              LOG.warning("Ignoring corrupt block in " + file);
+              buffer.putInt(slot, STATE_EMPTY);
+              return null;
+            }
+            buffer.putLong(slot + 32, nextUse(buffer, base));
+            final byte[] data = new byte[length];
+            final ByteBuffer view = buffer.duplicate();
+            view.position(slot + SLOT_HEADER_SIZE);
+            view.get(data);
+            return data;
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Stores a block, at most getBlockSize() bytes, in place of the least recently used
+   * block of its set.
+   */
+  public void put(String object, long generation, long offset, byte[] data, int from,
+      int length) throws IOException {
+    Preconditions.checkArgument(length <= blockSize, "Block of %s bytes in a cache of %s",
+        length, blockSize);
+    final long keyHash = keyHash(object);
+    final int set = setOf(keyHash, generation, offset);
+    synchronized (setMonitors[set]) {
+      final MappedByteBuffer buffer = mapSet(set);
+      final int base = setOffsetInRegion(set);
+      try (FileLock lock = channel.lock(setStart(set), setSize, false)) {
+        int victim = 0;
+        long oldest = Long.MAX_VALUE;
+        for (int way = 0; way < ways; way++) {
+          final int slot = base + way * (SLOT_HEADER_SIZE + blockSize);
+          if (buffer.getInt(slot) != STATE_VALID) {
+            victim = way;
+            break;
+          }
+          if (buffer.getLong(slot + 8) == keyHash && buffer.getLong(slot + 16) == generation
+              && buffer.getLong(slot + 24) == offset) {
+            // Another process got here first.
+            return;
+          }
+          final long lastUse = buffer.getLong(slot + 32);
+          if (lastUse < oldest) {
+            oldest = lastUse;
+            victim = way;
+          }
+        }
+        final int slot = base + victim * (SLOT_HEADER_SIZE + blockSize);
+        final long use = nextUse(buffer, base);
+        // Invalidate first, so that a crash halfway through leaves an empty slot.
+        buffer.putInt(slot, STATE_EMPTY);
+        final ByteBuffer view = buffer.duplicate();
+        view.position(slot + SLOT_HEADER_SIZE);
+        view.put(data, from, length);
+        buffer.putInt(slot + 4, length);
+        buffer.putLong(slot + 8, keyHash);
+        buffer.putLong(slot + 16, generation);
+        buffer.putLong(slot + 24, offset);
+        buffer.putLong(slot + 32, use);
+        buffer.putInt(slot, STATE_VALID);
+      }
+    }
+  }
+
+  /**
+   * Closes the file; the cached blocks stay in it for the next user.
+   */
+  public void close() throws IOException {
+    synchronized (DiskBlockCache.class) {
+      OPEN.remove(file);
+    }
+    channel.close();
+  }
+
+  private long setStart(int set) {
+    return FILE_HEADER_SIZE + set * setSize;
+  }
+
+  /**
+   * @return the mapping of the region holding the set, see setOffsetInRegion.
+   */
+  private MappedByteBuffer mapSet(int set) throws IOException {
+    final int region = set / setsPerRegion;
+    synchronized (mappedRegions) {
+      if (mappedRegions[region] == null) {
+        final int firstSet = region * setsPerRegion;
+        mappedRegions[region] = channel.map(FileChannel.MapMode.READ_WRITE,
+            setStart(firstSet), Math.min(setsPerRegion, sets - firstSet) * setSize);
+      }
+      return mappedRegions[region];
+    }
+  }
+
+  private int setOffsetInRegion(int set) {
+    return (int) ((set % setsPerRegion) * setSize);
+  }
+
+  /**
+   * @return the last use to record for an access to the set: one more than the latest
+   * one of its slots.
+   */
+  private long nextUse(MappedByteBuffer buffer, int base) {
+    long latest = 0;
+    for (int way = 0; way < ways; way++) {
+      final int slot = base + way * (SLOT_HEADER_SIZE + blockSize);
+      if (buffer.getInt(slot) == STATE_VALID) {
+        latest = Math.max(latest, buffer.getLong(slot + 32));
+      }
+    }
+    return latest + 1;
+  }
+
+  /**
+   * @return the number of mappings the whole file takes.
+   */
+  int mappedRegionCount() {
+    return mappedRegions.length;
+  }
+
+  private int setOf(long keyHash, long generation, long offset) {
+    final long hash = Hashing.murmur3_128().newHasher()
+        .putLong(keyHash).putLong(generation).putLong(offset)
+        .hash().asLong();
+    return (int) Math.floorMod(hash, (long) sets);
+  }
+
+  private static long keyHash(String object) {
+    return Hashing.murmur3_128().hashString(object, Charsets.UTF_8).asLong();
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the latencies of the latest range requests, so that a request can be recognized
+ * as unusually slow while it is still in flight.
+ * Requests cover a varying number of blocks, so latencies are kept per block.
+ */
+class FetchLatencyTracker {
+  static final int WINDOW = 1000;
+  // Fewer samples than this make for meaningless percentiles.
+  static final int MIN_SAMPLES = 20;
+
+  private final long[] nanosPerBlock = new long[WINDOW];
+  private int count = 0;
+  private int next = 0;
+
+  /**
+   * Records a request of the given number of blocks, rounded up.
+   */
+  synchronized void record(long nanos, int bytes, int blockSize) {
+    final long blocks = Math.max(1, ((long) bytes + blockSize - 1) / blockSize);
+    nanosPerBlock[next] = nanos / blocks;
+    next = (next + 1) % WINDOW;
+    count = Math.min(count + 1, WINDOW);
+  }
+
+  /**
+   * @return the given percentile, between 0 and 1, of the per-block latency,
+   * or -1 if too few requests have been recorded yet.
+   */
+  synchronized long percentileNanosPerBlock(double percentile) {
+    if (count < MIN_SAMPLES) {
+      return -1;
+    }
+    final long[] sorted = Arrays.copyOf(nanosPerBlock, count);
+    Arrays.sort(sorted);
+    final int index = (int) Math.ceil(percentile * count) - 1;
+    return sorted[Math.max(0, Math.min(count - 1, index))];
+  }
+
+  /**
+   * @return how long a request for the given number of bytes may take before it counts
+   * as slow, or -1 if that is not known yet.
+   */
+  long deadlineNanos(double percentile, int bytes, int blockSize) {
+    final long perBlock = percentileNanosPerBlock(percentile);
+    if (perBlock < 0) {
+      return -1;
+    }
+    return perBlock * Math.max(1, ((long) bytes + blockSize - 1) / blockSize);
+  }
+}
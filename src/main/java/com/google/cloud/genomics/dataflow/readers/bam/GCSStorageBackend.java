@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.StorageObject;
+
+import htsjdk.samtools.seekablestream.SeekableStream;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Objects in GCS, read through SeekableGCSStream or, with read-ahead, ReadAheadGCSStream.
+ */
+public class GCSStorageBackend implements StorageBackend {
+  private static final Logger LOG = Logger.getLogger(GCSStorageBackend.class.getName());
+
+  private final Storage.Objects storageClient;
+
+  public GCSStorageBackend(Storage.Objects storageClient) {
+    this.storageClient = storageClient;
+  }
+
+  @Override
+  public SeekableStream open(String path, ReaderOptions options) throws IOException {
+    if (options != null && options.getReadAheadBlocks() > 0) {
+      final ReadAheadGCSStream stream = new ReadAheadGCSStream(storageClient, path,
+          options.getReadAheadBlockSize(), options.getReadAheadBlocks(),
+          options.getCachedBlocks(),
+          options.getHedgedReads() ? options.getHedgePercentile() : 0);
+      if (options.getDiskCachePath() != null) {
+        try {
+          stream.setDiskCache(DiskBlockCache.open(options.getDiskCachePath(),
+              options.getDiskCacheBytes(), options.getReadAheadBlockSize()));
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Reading " + path + " without the disk cache", e);
+        }
+      }
+      return stream;
+    }
+    return new SeekableGCSStream(storageClient, path);
+  }
+
+  @Override
+  public long getGeneration(String path) throws IOException {
+    final StorageObject location = SeekableGCSStream.uriToStorageObject(path);
+    try {
+      return storageClient.get(location.getBucket(), location.getName())
+          .execute().getGeneration();
+    } catch (GoogleJsonResponseException e) {
+      if (e.getStatusCode() == 404) {
+        return MISSING_GENERATION;
+      }
+      throw e;
+    }
+  }
+
+  @Override
+  public void write(String path, byte[] content, String mimeType) throws IOException {
+    final StorageObject location = SeekableGCSStream.uriToStorageObject(path);
+    storageClient.insert(location.getBucket(), new StorageObject().setName(location.getName()),
+        new ByteArrayContent(mimeType, content))
+        .execute();
+  }
+}
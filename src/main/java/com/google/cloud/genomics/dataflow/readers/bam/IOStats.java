@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import org.apache.beam.sdk.metrics.Distribution;
+import org.apache.beam.sdk.metrics.Metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * I/O counters of a single stream: requests, bytes, seeks, retries and the time
+ * spent waiting for the storage.
+ * Streams update them from whatever thread does the I/O, so they are kept in atomics
+ * and only turned into Beam metrics by publish(), which must be called from the
+ * thread processing the element.
+ *
+ * Streams opened while a thread is collecting (see startCollecting) are attributed
+ * to the element that thread processes, e.g. a BAMShard read by Reader.
+ */
+public class IOStats {
+  // Bounds the memory held by the latencies of a stream that is never published.
+  static final int MAX_LATENCIES = 10000;
+
+  private static final ThreadLocal<List<IOStats>> COLLECTED = new ThreadLocal<>();
+
+  private volatile String source = null;
+  final AtomicLong requests = new AtomicLong();
+  final AtomicLong bytesFetched = new AtomicLong();
+  final AtomicLong seeks = new AtomicLong();
+  final AtomicLong retries = new AtomicLong();
+  final AtomicLong bytesDiscarded = new AtomicLong();
+  final AtomicLong hedgedRequests = new AtomicLong();
+  final AtomicLong waitNanos = new AtomicLong();
+  final AtomicLong bytesFromDiskCache = new AtomicLong();
+  private final ConcurrentLinkedQueue<Long> latenciesMillis = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger latencyCount = new AtomicInteger();
+
+  /**
+   * @return new stats for a stream, collected by the current thread if it collects.
+   */
+  public static IOStats forStream() {
+    final IOStats stats = new IOStats();
+    final List<IOStats> collected = COLLECTED.get();
+    if (collected != null) {
+      collected.add(stats);
+    }
+    return stats;
+  }
+
+  /**
+   * Starts collecting the stats of the streams opened by this thread,
+   * dropping whatever was collected but not published before.
+   */
+  public static void startCollecting() {
+    COLLECTED.set(Collections.synchronizedList(new ArrayList<IOStats>()));
+  }
+
+  /**
+   * Publishes the stats collected by this thread and stops collecting.
+   */
+  public static void publishCollected(Class<?> namespace) {
+    final List<IOStats> collected = COLLECTED.get();
+    COLLECTED.remove();
+    if (collected == null) {
+      return;
+    }
+    synchronized (collected) {
+      for (IOStats stats : collected) {
+        stats.publish(namespace);
+      }
+    }
+  }
+
+  void setSource(String source) {
+    this.source = source;
+  }
+
+  /**
+   * Records a request to the storage, and how long it took to answer.
+   */
+  void recordRequest(long latencyNanos) {
+    requests.incrementAndGet();
+    if (latencyCount.incrementAndGet() <= MAX_LATENCIES) {
+      latenciesMillis.add(TimeUnit.NANOSECONDS.toMillis(latencyNanos));
+    } else {
+      latencyCount.decrementAndGet();
+    }
+  }
+
+  /**
+   * Adds the counts since the last call to the Beam metrics of the given namespace.
+   * Index and BAM file streams are reported separately.
+   */
+  public void publish(Class<?> namespace) {
+    final String prefix = source != null && source.endsWith(".bai") ? "Index " : "BAM ";
+    Metrics.counter(namespace, prefix + "requests").inc(requests.getAndSet(0));
+    Metrics.counter(namespace, prefix + "bytes fetched").inc(bytesFetched.getAndSet(0));
+    Metrics.counter(namespace, prefix + "seeks").inc(seeks.getAndSet(0));
+    Metrics.counter(namespace, prefix + "retries").inc(retries.getAndSet(0));
+    Metrics.counter(namespace, prefix + "bytes discarded").inc(bytesDiscarded.getAndSet(0));
+    Metrics.counter(namespace, prefix + "hedged requests").inc(hedgedRequests.getAndSet(0));
+    Metrics.counter(namespace, prefix + "bytes from disk cache")
+        .inc(bytesFromDiskCache.getAndSet(0));
+    Metrics.counter(namespace, prefix + "I/O wait (ms)")
+        .inc(TimeUnit.NANOSECONDS.toMillis(waitNanos.getAndSet(0)));
+    final Distribution latency = Metrics.distribution(namespace, prefix + "request latency (ms)");
+    Long millis;
+    while ((millis = latenciesMillis.poll()) != null) {
+      latencyCount.decrementAndGet();
+      latency.update(millis);
+    }
+  }
+}
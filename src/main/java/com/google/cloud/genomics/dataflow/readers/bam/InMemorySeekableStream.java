@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import htsjdk.samtools.seekablestream.SeekableStream;
+
+import java.io.IOException;
+
+/**
+ * SeekableStream over a byte array, so that files we have already downloaded
+ * (e.g. a BAM index) can be handed to HTSJDK without going back to GCS.
+ * The array is never modified, so many streams can share it.
+ */
+public class InMemorySeekableStream extends SeekableStream {
+  private final byte[] data;
+  private final String source;
+  private int position = 0;
+
+  public InMemorySeekableStream(byte[] data, String source) {
+    this.data = data;
+    this.source = source;
+  }
+
+  @Override
+  public long length() {
+    return data.length;
+  }
+
+  @Override
+  public long position() throws IOException {
+    return position;
+  }
+
+  @Override
+  public void seek(long newPosition) throws IOException {
+    if (newPosition < 0 || newPosition > data.length) {
+      throw new IllegalArgumentException(
+          String.format("Invalid seek offset: position value (%d) must be between 0 and %d",
+              newPosition, data.length));
+    }
+    position = (int) newPosition;
+  }
+
+  @Override
+  public int read() throws IOException {
+    return position < data.length ? (data[position++] & 0xFF) : -1;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+    if (position >= data.length) {
+      return -1;
+    }
+    final int bytesToCopy = Math.min(length, data.length - position);
+    System.arraycopy(data, position, buffer, offset, bytesToCopy);
+    position += bytesToCopy;
+    return bytesToCopy;
+  }
+
+  @Override
+  public boolean eof() throws IOException {
+    return position >= data.length;
+  }
+
+  @Override
+  public String getSource() {
+    return source;
+  }
+
+  @Override
+  public void close() throws IOException {
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import htsjdk.samtools.seekablestream.SeekableStream;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Local files, named by file:// URIs, read through memory-mapped regions.
+ * GCS streaming settings such as read-ahead do not apply: the page cache does that work.
+ */
+public class LocalFileStorageBackend implements StorageBackend {
+  public static final String FILE_PREFIX = "file://";
+
+  static final LocalFileStorageBackend INSTANCE = new LocalFileStorageBackend();
+
+  private LocalFileStorageBackend() {
+  }
+
+  static Path toPath(String path) throws IOException {
+    if (!path.startsWith(FILE_PREFIX)) {
+      throw new IOException("Invalid local path (does not start with file://): " + path);
+    }
+    try {
+      return Paths.get(URI.create(path));
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Invalid local path: " + path, e);
+    }
+  }
+
+  @Override
+  public SeekableStream open(String path, ReaderOptions options) throws IOException {
+    return new MappedFileSeekableStream(toPath(path), path);
+  }
+
+  /**
+   * Local files have no generations; the modification time and the size stand in for one.
+   */
+  @Override
+  public long getGeneration(String path) throws IOException {
+    final BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(toPath(path), BasicFileAttributes.class);
+    } catch (NoSuchFileException e) {
+      return MISSING_GENERATION;
+    }
+    return attributes.lastModifiedTime().toMillis() * 31 + attributes.size();
+  }
+
+  /**
+   * Writes to a temporary file first, so that readers never see a partial file.
+   */
+  @Override
+  public void write(String path, byte[] content, String mimeType) throws IOException {
+    final Path target = toPath(path);
+    final Path temporary = Files.createTempFile(target.toAbsolutePath().getParent(),
+        target.getFileName().toString(), ".tmp");
+    try {
+      Files.write(temporary, content);
+      Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+}
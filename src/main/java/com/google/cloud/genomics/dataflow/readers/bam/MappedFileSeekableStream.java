@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import com.google.common.base.Preconditions;
+
+import htsjdk.samtools.seekablestream.SeekableStream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * SeekableStream over a local file, served from memory-mapped regions of the file
+ * rather than read system calls.
+ * A mapping is limited to 2 GB, so larger files are mapped one region at a time,
+ * as the position moves into it.
+ */
+public class MappedFileSeekableStream extends SeekableStream {
+  static final int DEFAULT_REGION_SIZE = 1 << 30;
+
+  private final String source;
+  private final int regionSize;
+  private final FileChannel channel;
+  private final long length;
+  private MappedByteBuffer region = null;
+  private long regionStart = -1;
+  private long position = 0;
+
+  public MappedFileSeekableStream(Path file, String source) throws IOException {
+    this(file, source, DEFAULT_REGION_SIZE);
+  }
+
+  MappedFileSeekableStream(Path file, String source, int regionSize) throws IOException {
+    Preconditions.checkArgument(regionSize > 0, "Invalid region size: %s", regionSize);
+    this.source = source;
+    this.regionSize = regionSize;
+    this.channel = FileChannel.open(file, StandardOpenOption.READ);
+    this.length = channel.size();
+  }
+
+  @Override
+  public long length() {
+    return length;
+  }
+
+  @Override
+  public long position() throws IOException {
+    return position;
+  }
+
+  @Override
+  public void seek(long position) throws IOException {
+    if (position < 0 || position > length) {
+      throw new EOFException("Invalid seek to " + position + " in " + source
+          + " of length " + length);
+    }
+    this.position = position;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (position >= length) {
+      return -1;
+    }
+    mapRegionAt(position);
+    final int value = region.get((int) (position - regionStart)) & 0xFF;
+    position++;
+    return value;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+    if (position >= this.length) {
+      return -1;
+    }
+    int totalBytesRead = 0;
+    while (totalBytesRead < length && position < this.length) {
+      mapRegionAt(position);
+      final int offsetInRegion = (int) (position - regionStart);
+      final int bytesToCopy =
+          Math.min(length - totalBytesRead, region.capacity() - offsetInRegion);
+      region.position(offsetInRegion);
+      region.get(buffer, offset + totalBytesRead, bytesToCopy);
+      position += bytesToCopy;
+      totalBytesRead += bytesToCopy;
+    }
+    return totalBytesRead;
+  }
+
+  private void mapRegionAt(long position) throws IOException {
+    if (region != null && position >= regionStart
+        && position < regionStart + region.capacity()) {
+      return;
+    }
+    if (!channel.isOpen()) {
+      throw new IOException("Stream is closed: " + source);
+    }
+    regionStart = position / regionSize * regionSize;
+    region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart,
+        Math.min(regionSize, length - regionStart));
+  }
+
+  @Override
+  public void close() throws IOException {
+    // The mapping stays valid until it is garbage collected, even after the channel is closed.
+    region = null;
+    channel.close();
+  }
+
+  @Override
+  public boolean eof() throws IOException {
+    return position >= length;
+  }
+
+  @Override
+  public String getSource() {
+    return source;
+  }
+}
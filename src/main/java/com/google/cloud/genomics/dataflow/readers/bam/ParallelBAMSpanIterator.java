@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.util.CloserUtil;
+import htsjdk.samtools.util.RuntimeIOException;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the records in the chunks of a BAM file span, decoding them on
+ * the calling thread from a ParallelBGZFInputStream that inflates ahead of it.
+ * Returns the same records as HTSJDK's span iterator, without any filtering.
+ */
+public class ParallelBAMSpanIterator implements SAMRecordIterator {
+  private final ParallelBGZFInputStream input;
+  private final BAMRecordCodec codec;
+  private final ValidationStringency stringency;
+  private final Iterator<Chunk> chunks;
+  private Chunk currentChunk = null;
+  private SAMRecord next = null;
+
+  public ParallelBAMSpanIterator(SAMFileHeader header, ParallelBGZFInputStream input,
+      List<Chunk> chunks, ValidationStringency stringency) {
+    this.input = input;
+    this.codec = new BAMRecordCodec(header);
+    this.codec.setInputStream(input);
+    this.stringency = stringency;
+    this.chunks = chunks.iterator();
+    try {
+      advance();
+    } catch (RuntimeException e) {
+      // Nobody gets to close the input if construction fails.
+      CloserUtil.close(input);
+      throw e;
+    }
+  }
+
+  private void advance() {
+    next = null;
+    try {
+      while (true) {
+        if (currentChunk == null) {
+          if (!chunks.hasNext()) {
+            return;
+          }
+          currentChunk = chunks.next();
+          if (input.getFilePointer() != currentChunk.getChunkStart()) {
+            input.seek(currentChunk.getChunkStart());
+          }
+        }
+        if (input.getFilePointer() < currentChunk.getChunkEnd()) {
+          next = codec.decode();
+          if (next == null) {
+            // End of file.
+            currentChunk = null;
+            while (chunks.hasNext()) {
+              chunks.next();
+            }
+            return;
+          }
+          next.setValidationStringency(stringency);
+          return;
+        }
+        currentChunk = null;
+      }
+    } catch (IOException e) {
+      throw new RuntimeIOException(e);
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    return next != null;
+  }
+
+  @Override
+  public SAMRecord next() {
+    if (next == null) {
+      throw new NoSuchElementException();
+    }
+    final SAMRecord result = next;
+    advance();
+    return result;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException("Not supported: remove");
+  }
+
+  @Override
+  public void close() {
+    next = null;
+    CloserUtil.close(input);
+  }
+
+  /**
+   * Chunks of a span are in file order, so records come out in the order of the file;
+   * sort order is not checked.
+   */
+  @Override
+  public SAMRecordIterator assertSorted(SAMFileHeader.SortOrder sortOrder) {
+    return this;
+  }
+}
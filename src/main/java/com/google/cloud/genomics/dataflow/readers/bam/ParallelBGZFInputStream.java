@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import htsjdk.samtools.seekablestream.SeekableStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a BGZF file like HTSJDK's BlockCompressedInputStream, but inflates the upcoming
+ * blocks on a pool of worker threads while the caller consumes the current one.
+ * The pool is shared by all streams, with one daemon thread per processor, so that many
+ * streams open at once on a worker don't multiply the threads.
+ * Compressed blocks are read from the underlying stream on the calling thread, in order,
+ * and at most a bounded number of them is in flight at any time.
+ * Positions are BGZF virtual file pointers: compressed block address in the upper
+ * 48 bits and offset within the uncompressed block in the lower 16 bits.
+ */
+public class ParallelBGZFInputStream extends InputStream {
+  private static final int GZIP_ID1 = 31;
+  private static final int GZIP_ID2 = 139;
+  private static final int GZIP_FLG_FEXTRA = 4;
+  // Fixed gzip header fields up to and including XLEN.
+  private static final int GZIP_HEADER_LENGTH = 12;
+  // CRC32 and ISIZE.
+  private static final int GZIP_TRAILER_LENGTH = 8;
+  private static final int BGZF_SUBFIELD_ID1 = 66;
+  private static final int BGZF_SUBFIELD_ID2 = 67;
+
+  private static final ExecutorService INFLATER_POOL = Executors.newFixedThreadPool(
+      Runtime.getRuntime().availableProcessors(),
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("bgzf-inflate-%d").build());
+
+  private static class Block {
+    final long address;
+    final long nextAddress;
+    final byte[] data;
+
+    Block(long address, long nextAddress, byte[] data) {
+      this.address = address;
+      this.nextAddress = nextAddress;
+      this.data = data;
+    }
+  }
+
+  private static class PendingBlock {
+    final long address;
+    final Future<Block> block;
+
+    PendingBlock(long address, Future<Block> block) {
+      this.address = address;
+      this.block = block;
+    }
+  }
+
+  private final SeekableStream stream;
+  private final int maxBlocksInFlight;
+  private final ArrayDeque<PendingBlock> pending = new ArrayDeque<>();
+  // Address of the next compressed block to read from the stream.
+  private long nextBlockAddress;
+  private boolean endOfStream = false;
+  private Block current = null;
+  private int positionInBlock = 0;
+  private final byte[] oneByte = new byte[1];
+
+  /**
+   * @param stream the compressed file, positioned at the start of a block.
+   * @param threads number of blocks of this stream inflated at once, at most.
+   */
+  public ParallelBGZFInputStream(SeekableStream stream, int threads) throws IOException {
+    Preconditions.checkArgument(threads > 0, "Need at least one inflater thread: %s", threads);
+    this.stream = stream;
+    this.maxBlocksInFlight = 2 * threads;
+    this.nextBlockAddress = stream.position();
+  }
+
+  /**
+   * @return virtual file pointer of the next byte to be read.
+   */
+  public long getFilePointer() {
+    if (current == null) {
+      return (pending.isEmpty() ? nextBlockAddress : pending.peek().address) << 16;
+    }
+    if (positionInBlock == current.data.length) {
+      return current.nextAddress << 16;
+    }
+    return (current.address << 16) | positionInBlock;
+  }
+
+  /**
+   * Moves to the given virtual file pointer.
+   * Blocks that are already being inflated are kept if the pointer is at or after them,
+   * so skipping forward over small gaps does not waste the work done so far.
+   */
+  public void seek(long virtualOffset) throws IOException {
+    final long address = virtualOffset >>> 16;
+    final int offset = (int) (virtualOffset & 0xFFFF);
+    if (current != null && current.address == address) {
+      positionInBlock = offset;
+      return;
+    }
+    current = null;
+    while (!pending.isEmpty() && pending.peek().address < address) {
+      pending.poll().block.cancel(false);
+    }
+    if (pending.isEmpty() || pending.peek().address != address) {
+      for (PendingBlock block : pending) {
+        block.block.cancel(false);
+      }
+      pending.clear();
+      stream.seek(address);
+      nextBlockAddress = address;
+      endOfStream = false;
+    }
+    if (!nextBlock()) {
+      if (offset != 0) {
+        throw new IOException("Seek past the end of " + stream.getSource() + ": " + virtualOffset);
+      }
+      return;
+    }
+    if (offset > current.data.length) {
+      throw new IOException("Invalid virtual offset " + virtualOffset + " in "
+          + stream.getSource());
+    }
+    positionInBlock = offset;
+  }
+
+  @Override
+  public int read() throws IOException {
+    return read(oneByte, 0, 1) == 1 ? (oneByte[0] & 0xFF) : -1;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+    int totalBytesRead = 0;
+    while (totalBytesRead < length) {
+      if (current == null || positionInBlock == current.data.length) {
+        if (!nextBlock()) {
+          break;
+        }
+      }
+      final int bytesToCopy =
+          Math.min(length - totalBytesRead, current.data.length - positionInBlock);
+      System.arraycopy(current.data, positionInBlock, buffer, offset + totalBytesRead,
+          bytesToCopy);
+      positionInBlock += bytesToCopy;
+      totalBytesRead += bytesToCopy;
+    }
+    return totalBytesRead == 0 ? -1 : totalBytesRead;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return current != null ? current.data.length - positionInBlock : 0;
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (PendingBlock block : pending) {
+      block.block.cancel(false);
+    }
+    pending.clear();
+    current = null;
+    stream.close();
+  }
+
+  /**
+   * Makes the next non-empty block current.
+   * @return false at the end of the file.
+   */
+  private boolean nextBlock() throws IOException {
+    do {
+      fillPipeline();
+      final PendingBlock next = pending.poll();
+      if (next == null) {
+        current = null;
+        return false;
+      }
+      current = waitFor(next);
+      positionInBlock = 0;
+    } while (current.data.length == 0);
+    fillPipeline();
+    return true;
+  }
+
+  private Block waitFor(PendingBlock pendingBlock) throws IOException {
+    try {
+      return pendingBlock.block.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while inflating block at "
+          + pendingBlock.address + " of " + stream.getSource());
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Error inflating block at " + pendingBlock.address + " of "
+          + stream.getSource(), e.getCause());
+    }
+  }
+
+  /**
+   * Reads compressed blocks and submits them for inflation until enough are in flight.
+   */
+  private void fillPipeline() throws IOException {
+    while (!endOfStream && pending.size() < maxBlocksInFlight) {
+      final long address = nextBlockAddress;
+      final byte[] compressed = readCompressedBlock(address);
+      if (compressed == null) {
+        endOfStream = true;
+        return;
+      }
+      nextBlockAddress += compressed.length;
+      final long nextAddress = nextBlockAddress;
+      pending.add(new PendingBlock(address, INFLATER_POOL.submit(new Callable<Block>() {
+        @Override
+        public Block call() throws IOException {
+          return new Block(address, nextAddress, inflate(compressed, address));
+        }
+      })));
+    }
+  }
+
+  /**
+   * @return the whole compressed block starting at the current stream position,
+   * or null at the end of the stream.
+   */
+  private byte[] readCompressedBlock(long address) throws IOException {
+    final byte[] header = new byte[GZIP_HEADER_LENGTH];
+    final int headerBytes = readAsMuchAsPossible(header, 0, header.length);
+    if (headerBytes == 0) {
+      return null;
+    }
+    if (headerBytes < header.length
+        || (header[0] & 0xFF) != GZIP_ID1 || (header[1] & 0xFF) != GZIP_ID2
+        || (header[3] & GZIP_FLG_FEXTRA) == 0) {
+      throw new IOException("Invalid BGZF block header at " + address + " of "
+          + stream.getSource());
+    }
+    final int extraLength = unsignedShort(header, 10);
+    final byte[] extra = new byte[extraLength];
+    if (readAsMuchAsPossible(extra, 0, extraLength) < extraLength) {
+      throw new IOException("Truncated BGZF block at " + address + " of " + stream.getSource());
+    }
+    int blockSize = -1;
+    for (int i = 0; i + 4 <= extraLength; i += 4 + unsignedShort(extra, i + 2)) {
+      if ((extra[i] & 0xFF) == BGZF_SUBFIELD_ID1 && (extra[i + 1] & 0xFF) == BGZF_SUBFIELD_ID2
+          && unsignedShort(extra, i + 2) == 2 && i + 6 <= extraLength) {
+        blockSize = unsignedShort(extra, i + 4) + 1;
+        break;
+      }
+    }
+    if (blockSize < GZIP_HEADER_LENGTH + extraLength + GZIP_TRAILER_LENGTH) {
+      throw new IOException("Missing or invalid BGZF block size at " + address + " of "
+          + stream.getSource());
+    }
+    final byte[] block = new byte[blockSize];
+    System.arraycopy(header, 0, block, 0, GZIP_HEADER_LENGTH);
+    System.arraycopy(extra, 0, block, GZIP_HEADER_LENGTH, extraLength);
+    final int remaining = blockSize - GZIP_HEADER_LENGTH - extraLength;
+    if (readAsMuchAsPossible(block, GZIP_HEADER_LENGTH + extraLength, remaining) < remaining) {
+      throw new IOException("Truncated BGZF block at " + address + " of " + stream.getSource());
+    }
+    return block;
+  }
+
+  private byte[] inflate(byte[] block, long address) throws IOException {
+    final int dataOffset = GZIP_HEADER_LENGTH + unsignedShort(block, 10);
+    final int dataLength = block.length - dataOffset - GZIP_TRAILER_LENGTH;
+    final int uncompressedSize = (block[block.length - 4] & 0xFF)
+        | (block[block.length - 3] & 0xFF) << 8
+        | (block[block.length - 2] & 0xFF) << 16
+        | (block[block.length - 1] & 0xFF) << 24;
+    final byte[] data = new byte[uncompressedSize];
+    if (uncompressedSize == 0) {
+      return data;
+    }
+    // Ended here rather than left to the finalizer, which may not run for a long time.
+    final Inflater inflater = new Inflater(true);
+    inflater.setInput(block, dataOffset, dataLength);
+    try {
+      int inflated = 0;
+      while (inflated < uncompressedSize && !inflater.finished()) {
+        final int n = inflater.inflate(data, inflated, uncompressedSize - inflated);
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        inflated += n;
+      }
+      if (inflated != uncompressedSize) {
+        throw new IOException("Inflated " + inflated + " bytes instead of " + uncompressedSize
+            + " for block at " + address + " of " + stream.getSource());
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt BGZF block at " + address + " of " + stream.getSource(), e);
+    } finally {
+      inflater.end();
+    }
+    return data;
+  }
+
+  private int readAsMuchAsPossible(byte[] buffer, int offset, int length) throws IOException {
+    int total = 0;
+    while (total < length) {
+      final int n = stream.read(buffer, offset + total, length - total);
+      if (n < 0) {
+        break;
+      }
+      total += n;
+    }
+    return total;
+  }
+
+  private static int unsignedShort(byte[] buffer, int offset) {
+    return (buffer[offset] & 0xFF) | (buffer[offset + 1] & 0xFF) << 8;
+  }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import com.google.common.base.Preconditions;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Iterates over the records of another iterator, which runs on a thread of its own:
+ * fetching and decoding the next records overlaps with whatever the caller does with
+ * the current ones.
+ * Records are handed over in batches through a bounded queue, so the decoding thread
+ * waits when the caller falls behind. An exception thrown by the underlying iterator
+ * is rethrown to the caller once the records decoded before it have been returned.
+ * The underlying iterator is only ever used, and closed, by the decoding thread.
+ */
+public class PipelinedSAMRecordIterator implements SAMRecordIterator {
+  private static final Logger LOG = Logger.getLogger(PipelinedSAMRecordIterator.class.getName());
+
+  static final int RECORDS_PER_BATCH = 256;
+  // How often a blocked decoding thread checks whether the iterator was closed.
+  private static final long OFFER_TIMEOUT_MSEC = 100;
+  private static final List<SAMRecord> END_OF_RECORDS = new ArrayList<>();
+
+  private final SAMRecordIterator source;
+  private final BlockingQueue<List<SAMRecord>> queue;
+  private final Thread decoder;
+  private final AtomicLong decoderBlockedNanos = new AtomicLong();
+  private volatile boolean closed = false;
+  private volatile Throwable failure = null;
+
+  private long callerBlockedNanos = 0;
+  private Iterator<SAMRecord> current = null;
+  private boolean finished = false;
+
+  /**
+   * @param source the iterator to read on the decoding thread.
+   * @param queuedBatches number of batches of decoded records the decoding thread
+   * may get ahead of the caller.
+   */
+  public PipelinedSAMRecordIterator(SAMRecordIterator source, int queuedBatches,
+      String name) {
+    Preconditions.checkArgument(queuedBatches > 0,
+        "Need room for at least one batch: %s", queuedBatches);
+    this.source = source;
+    this.queue = new ArrayBlockingQueue<>(queuedBatches);
+    this.decoder = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        decode();
+      }
+    }, "bam-decode-" + name);
+    this.decoder.setDaemon(true);
+    this.decoder.start();
+  }
+
+  private void decode() {
+    try {
+      List<SAMRecord> batch = new ArrayList<>(RECORDS_PER_BATCH);
+      while (!closed && source.hasNext()) {
+        batch.add(source.next());
+        if (batch.size() == RECORDS_PER_BATCH) {
+          hand(batch);
+          batch = new ArrayList<>(RECORDS_PER_BATCH);
+        }
+      }
+      if (!batch.isEmpty()) {
+        hand(batch);
+      }
+    } catch (Throwable t) {
+      failure = t;
+    } finally {
+      source.close();
+      try {
+        hand(END_OF_RECORDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Queues a batch, waiting for room unless the iterator is closed in the meantime.
+   */
+  private void hand(List<SAMRecord> batch) throws InterruptedException {
+    final long start = System.nanoTime();
+    try {
+      while (!closed) {
+        if (queue.offer(batch, OFFER_TIMEOUT_MSEC, TimeUnit.MILLISECONDS)) {
+          return;
+        }
+      }
+    } finally {
+      decoderBlockedNanos.addAndGet(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (current == null || !current.hasNext()) {
+      if (finished) {
+        return false;
+      }
+      final long start = System.nanoTime();
+      final List<SAMRecord> batch;
+      try {
+        batch = queue.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while waiting for BAM records", e);
+      } finally {
+        callerBlockedNanos += System.nanoTime() - start;
+      }
+      if (batch == END_OF_RECORDS) {
+        finished = true;
+        current = null;
+        rethrowFailure();
+        return false;
+      }
+      current = batch.iterator();
+    }
+    return true;
+  }
+
+  private void rethrowFailure() {
+    final Throwable t = failure;
+    if (t == null) {
+      return;
+    }
+    if (t instanceof RuntimeException) {
+      throw (RuntimeException) t;
+    }
+    if (t instanceof Error) {
+      throw (Error) t;
+    }
+    throw new IllegalStateException("Failed to read BAM records", t);
+  }
+
+  @Override
+  public SAMRecord next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return current.next();
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException("Not supported: remove");
+  }
+
+  /**
+   * Stops the decoding thread, which closes the underlying iterator.
+   * Waits for any read it has in progress to finish.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    queue.clear();
+    try {
+      decoder.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOG.warning("Interrupted while stopping " + decoder.getName());
+    }
+    current = null;
+    finished = true;
+  }
+
+  /**
+   * @return time the decoding thread spent waiting for the caller to make room.
+   */
+  public long getDecoderBlockedNanos() {
+    return decoderBlockedNanos.get();
+  }
+
+  /**
+   * @return time the caller spent waiting for the decoding thread.
+   */
+  public long getCallerBlockedNanos() {
+    return callerBlockedNanos;
+  }
+
+  /**
+   * Records come out in the order of the underlying iterator, which checks the order
+   * itself if asked to before being wrapped.
+   */
+  @Override
+  public SAMRecordIterator assertSorted(SAMFileHeader.SortOrder sortOrder) {
+    return this;
+  }
+}
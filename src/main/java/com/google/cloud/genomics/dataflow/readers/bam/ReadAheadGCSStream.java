@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import com.google.api.client.http.HttpResponse;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.Storage.Objects.Get;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Adapter of GCS to look like HTSJDK SeekableStream that reads the object in
+ * fixed-size blocks using bounded range requests, instead of keeping a single
+ * open-ended response like SeekableGCSStream does.
+ * Seeks therefore never drop a connection, and the blocks after the current position
+ * are already being downloaded while the reader decodes the current one.
+ * All range requests are pinned to the object generation seen when the stream was opened.
+ * Failed requests are retried with exponential backoff, and slow ones can be hedged:
+ * sent a second time once they take longer than most recent requests did.
+ * Blocks can also be kept in a DiskBlockCache, shared by the processes on the host.
+ */
+public class ReadAheadGCSStream extends BlockCachingSeekableStream {
+  private static final Logger LOG = Logger.getLogger(ReadAheadGCSStream.class.getName());
+
+  public static final int DEFAULT_BLOCK_SIZE = 2 * 1024 * 1024;
+  public static final int DEFAULT_CACHED_BLOCKS = 16;
+
+  public static final double DEFAULT_HEDGE_PERCENTILE = 0.95;
+
+  // Latencies of the range requests of all streams in the JVM.
+  private static final FetchLatencyTracker LATENCIES = new FetchLatencyTracker();
+  // Requests of hedged fetches in flight at most in the JVM. Past that, fetches run on
+  // the fetch pool thread and are not hedged, rather than piling up threads on a slow GCS.
+  static final int HEDGE_THREADS = 64;
+  // How much of a response a hedged request reads before checking whether it was aborted.
+  private static final int ABORT_CHECK_BYTES = 64 * 1024;
+  // Runs the requests of hedged fetches; the fetch pool threads only wait for them.
+  private static final ExecutorService HEDGE_EXECUTOR = newHedgeExecutor();
+
+  private final Storage.Objects client;
+  private final String name;
+  private final StorageObject object;
+  private final long size;
+  private final double hedgePercentile;
+  private DiskBlockCache diskCache = null;
+  private FetchLatencyTracker latencies = LATENCIES;
+
+  public ReadAheadGCSStream(Storage.Objects client, String name, int blockSize,
+      int readAheadBlocks, int maxCachedBlocks) throws IOException {
+    this(client, name, blockSize, readAheadBlocks, maxCachedBlocks, 0);
+  }
+
+  /**
+   * @param hedgePercentile if positive, a range request that takes longer than this
+   * percentile of the recent requests is sent again; see fetchRangeHedged.
+   */
+  public ReadAheadGCSStream(Storage.Objects client, String name, int blockSize,
+      int readAheadBlocks, int maxCachedBlocks, double hedgePercentile) throws IOException {
+    super(blockSize, readAheadBlocks, maxCachedBlocks);
+    LOG.info("Creating ReadAheadGCSStream: " + name);
+    this.client = client;
+    this.name = name;
+    this.hedgePercentile = hedgePercentile;
+    ioStats.setSource(name);
+    final StorageObject location = SeekableGCSStream.uriToStorageObject(name);
+    this.object = client.get(location.getBucket(), location.getName()).execute();
+    this.size = object.getSize().longValue();
+  }
+
+  private static ExecutorService newHedgeExecutor() {
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(HEDGE_THREADS, HEDGE_THREADS,
+        60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("hedged-fetch-%d").build());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  @VisibleForTesting
+  void setLatencyTracker(FetchLatencyTracker latencies) {
+    this.latencies = latencies;
+  }
+
+  public Long getGeneration() {
+    return object.getGeneration();
+  }
+
+  @Override
+  public long length() {
+    return size;
+  }
+
+  @Override
+  public String getSource() {
+    return name;
+  }
+
+  /**
+   * Serves blocks from, and adds fetched blocks to, the given cache.
+   * @param diskCache a cache with the block size of this stream, or null.
+   */
+  public void setDiskCache(DiskBlockCache diskCache) {
+    if (diskCache != null) {
+      Preconditions.checkArgument(diskCache.getBlockSize() == blockSize,
+          "Disk cache block size %s differs from %s", diskCache.getBlockSize(), blockSize);
+    }
+    this.diskCache = diskCache;
+  }
+
+  @Override
+  protected byte[] fetchRange(long offset, int length) throws IOException {
+    if (diskCache != null) {
+      final byte[] cached = readFromDiskCache(offset, length);
+      if (cached != null) {
+        ioStats.bytesFromDiskCache.addAndGet(length);
+        return cached;
+      }
+    }
+    final byte[] data = hedgePercentile <= 0
+        ? fetchRangeWithRetries(offset, length, null) : fetchRangeHedged(offset, length);
+    if (diskCache != null) {
+      writeToDiskCache(offset, data);
+    }
+    return data;
+  }
+
+  private String cacheKey() {
+    return object.getBucket() + "/" + object.getName();
+  }
+
+  /**
+   * @return the range, if all of its blocks are in the disk cache, or null.
+   */
+  private byte[] readFromDiskCache(long offset, int length) {
+    final byte[] data = new byte[length];
+    try {
+      for (int from = 0; from < length; from += blockSize) {
+        final byte[] block =
+            diskCache.get(cacheKey(), object.getGeneration(), offset + from);
+        if (block == null || block.length != Math.min(blockSize, length - from)) {
+          return null;
+        }
+        System.arraycopy(block, 0, data, from, block.length);
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Error reading the disk cache for '" + name + "'", e);
+      return null;
+    }
+    return data;
+  }
+
+  private void writeToDiskCache(long offset, byte[] data) {
+    try {
+      for (int from = 0; from < data.length; from += blockSize) {
+        diskCache.put(cacheKey(), object.getGeneration(), offset + from, data, from,
+            Math.min(blockSize, data.length - from));
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Error writing the disk cache for '" + name + "'", e);
+    }
+  }
+
+  /**
+   * One copy of a hedged request, which is aborted once the other copy has won.
+   */
+  private class Attempt implements Callable<byte[]> {
+    private final long offset;
+    private final int length;
+    private volatile boolean aborted = false;
+
+    Attempt(long offset, int length) {
+      this.offset = offset;
+      this.length = length;
+    }
+
+    @Override
+    public byte[] call() throws IOException {
+      return fetchRangeWithRetries(offset, length, this);
+    }
+  }
+
+  /**
+   * Fetches the range, and if it takes longer than the hedging percentile of the
+   * recent requests, fetches it again in parallel and uses whichever copy arrives first.
+   * The other copy then stops reading its response and disconnects it.
+   */
+  private byte[] fetchRangeHedged(final long offset, final int length) throws IOException {
+    final CompletionService<byte[]> attempts =
+        new ExecutorCompletionService<>(HEDGE_EXECUTOR);
+    final List<Attempt> started = new ArrayList<>(2);
+    final List<Future<byte[]>> pending = new ArrayList<>(2);
+    try {
+      final Attempt first = new Attempt(offset, length);
+      try {
+        pending.add(attempts.submit(first));
+      } catch (RejectedExecutionException e) {
+        return fetchRangeWithRetries(offset, length, null);
+      }
+      started.add(first);
+      final long deadline = latencies.deadlineNanos(hedgePercentile, length, blockSize);
+      Future<byte[]> done = deadline >= 0
+          ? attempts.poll(deadline, TimeUnit.NANOSECONDS) : attempts.take();
+      if (done == null) {
+        final Attempt second = new Attempt(offset, length);
+        try {
+          pending.add(attempts.submit(second));
+          started.add(second);
+          if (LOG.isLoggable(Level.FINE)) {
+            LOG.fine(String.format("Hedging request for '%s' at %d after %d ms", name,
+                offset, TimeUnit.NANOSECONDS.toMillis(deadline)));
+          }
+          ioStats.hedgedRequests.incrementAndGet();
+        } catch (RejectedExecutionException e) {
+          LOG.fine("No thread left to hedge request for '" + name + "' at " + offset);
+        }
+        done = attempts.take();
+      }
+      try {
+        return done.get();
+      } catch (ExecutionException e) {
+        if (pending.size() == 1) {
+          throw e;
+        }
+        // The other copy may still make it.
+        LOG.warning(String.format("One of two requests for '%s' at %d failed: %s", name,
+            offset, e.getCause()));
+        return attempts.take().get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while reading '" + name + "' at " + offset);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Error reading '" + name + "' at " + offset, e.getCause());
+    } finally {
+      // Interrupting does not stop a blocking socket read, so the losing copy also
+      // checks its flag between reads.
+      for (int i = 0; i < pending.size(); i++) {
+        if (!pending.get(i).isDone()) {
+          started.get(i).aborted = true;
+          pending.get(i).cancel(true);
+        }
+      }
+    }
+  }
+
+  /**
+   * @param attempt the hedged copy this request is made for, or null. Once it is
+   * aborted, the request is given up instead of retried.
+   */
+  private byte[] fetchRangeWithRetries(long offset, int length, Attempt attempt)
+      throws IOException {
+    final byte[] data = new byte[length];
+    int retriesAttempted = 0;
+    while (true) {
+      try {
+        final long start = System.nanoTime();
+        final Get get = client.get(object.getBucket(), object.getName())
+            .setGeneration(object.getGeneration());
+        get.getRequestHeaders()
+            .setRange(String.format("bytes=%d-%d", offset, offset + length - 1));
+        final HttpResponse response = get.executeMedia();
+        try (InputStream content = response.getContent()) {
+          readFully(content, data, attempt);
+        } finally {
+          response.disconnect();
+        }
+        final long latency = System.nanoTime() - start;
+        latencies.record(latency, length, blockSize);
+        ioStats.recordRequest(latency);
+        ioStats.bytesFetched.addAndGet(length);
+        return data;
+      } catch (IOException ioe) {
+        ioStats.requests.incrementAndGet();
+        if (attempt != null && attempt.aborted) {
+          throw ioe;
+        }
+        if (retriesAttempted == RetryBackoff.MAX_RETRIES) {
+          LOG.warning(String.format("Already attempted max of %d retries while reading '%s' "
+              + "at %d; throwing exception.", retriesAttempted, name, offset));
+          throw ioe;
+        }
+        ++retriesAttempted;
+        ioStats.retries.incrementAndGet();
+        LOG.warning(String.format("Got exception: %s while reading '%s' at %d; retry # %d. "
+            + "Sleeping...", ioe.getMessage(), name, offset, retriesAttempted));
+        try {
+          RetryBackoff.sleep(retriesAttempted);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          ioe.addSuppressed(ie);
+          throw ioe;
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the response in pieces, so that an aborted attempt stops reading, and
+   * disconnects, while the response is still coming in.
+   */
+  private void readFully(InputStream content, byte[] data, Attempt attempt)
+      throws IOException {
+    int total = 0;
+    while (total < data.length) {
+      if (attempt != null && attempt.aborted) {
+        throw new InterruptedIOException("Aborted request for '" + name + "' at "
+            + attempt.offset);
+      }
+      final int n = content.read(data, total, Math.min(ABORT_CHECK_BYTES, data.length - total));
+      if (n < 0) {
+        throw new EOFException("Got " + total + " of " + data.length + " bytes of '" + name
+            + "'");
+      }
+      total += n;
+    }
+  }
+}
@@ -17,23 +17,24 @@ package com.google.cloud.genomics.dataflow.readers.bam;
 
 import com.google.api.services.storage.Storage;
 import com.google.cloud.genomics.dataflow.functions.BreakFusionTransform;
+import com.google.cloud.genomics.dataflow.model.ReadBatch;
 import com.google.common.base.CharMatcher;
 import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.Files;
 import org.apache.beam.sdk.Pipeline;
 import org.apache.beam.sdk.extensions.gcp.options.GcsOptions;
+import org.apache.beam.sdk.options.Default;
+import org.apache.beam.sdk.options.Description;
 import org.apache.beam.sdk.options.PipelineOptions;
 import org.apache.beam.sdk.metrics.Metrics;
 import org.apache.beam.sdk.transforms.Create;
 import org.apache.beam.sdk.transforms.DoFn;
-import org.apache.beam.sdk.transforms.GroupByKey;
 import org.apache.beam.sdk.transforms.ParDo;
 import org.apache.beam.sdk.transforms.PTransform;
 import org.apache.beam.sdk.util.GcsUtil;
 import org.apache.beam.sdk.util.Transport;
 import org.apache.beam.sdk.util.gcsfs.GcsPath;
-import org.apache.beam.sdk.values.KV;
 import org.apache.beam.sdk.values.PCollection;
 import com.google.cloud.genomics.dataflow.utils.GCSOptions;
 import com.google.cloud.genomics.utils.Contig;
@@ -45,6 +46,9 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -59,6 +63,111 @@ public class ReadBAMTransform extends PTransform<PCollection<BAMShard>, PCollect
   OfflineAuth auth;
   ReaderOptions options;
 
+  /**
+   * Pipeline flags for the ReaderOptions that tune how BAM files are read.
+   * See ReaderOptions for the meaning of each setting.
+   */
+  public static interface Options extends PipelineOptions {
+    @Description("Number of blocks to fetch ahead of the current position when reading BAM "
+        + "and BAI files from GCS. 0 reads them from a single streaming response instead.")
+    @Default.Integer(0)
+    int getReadAheadBlocks();
+
+    void setReadAheadBlocks(int readAheadBlocks);
+
+    @Description("Size in bytes of a single range request when --readAheadBlocks is above 0.")
+    @Default.Integer(ReadAheadGCSStream.DEFAULT_BLOCK_SIZE)
+    int getReadAheadBlockSize();
+
+    void setReadAheadBlockSize(int readAheadBlockSize);
+
+    @Description("Number of recently used blocks kept in memory per stream with read-ahead.")
+    @Default.Integer(ReadAheadGCSStream.DEFAULT_CACHED_BLOCKS)
+    int getCachedBlocks();
+
+    void setCachedBlocks(int cachedBlocks);
+
+    @Description("Send read-ahead range requests that are slower than --hedgePercentile "
+        + "of the recent requests a second time, and use the first answer.")
+    @Default.Boolean(false)
+    boolean getHedgedReads();
+
+    void setHedgedReads(boolean hedgedReads);
+
+    @Description("Percentile of the recent request latencies after which a request is hedged.")
+    @Default.Double(ReadAheadGCSStream.DEFAULT_HEDGE_PERCENTILE)
+    double getHedgePercentile();
+
+    void setHedgePercentile(double hedgePercentile);
+
+    @Description("Local file caching the blocks fetched with read-ahead, shared by the "
+        + "workers of a host. Default (empty) disables the disk cache.")
+    @Default.String("")
+    String getDiskCachePath();
+
+    void setDiskCachePath(String diskCachePath);
+
+    @Description("Size in bytes of the disk cache file, when it is created.")
+    @Default.Long(10L * 1024 * 1024 * 1024)
+    long getDiskCacheBytes();
+
+    void setDiskCacheBytes(long diskCacheBytes);
+
+    @Description("Number of BGZF blocks of a shard inflated at once, on a pool with a thread "
+        + "per processor shared by all shards. "
+        + "With 1, blocks are inflated by HTSJDK on the thread reading the shard.")
+    @Default.Integer(1)
+    int getInflaterThreads();
+
+    void setInflaterThreads(int inflaterThreads);
+
+    @Description("Decode BAM records on a thread of their own while the reads are converted.")
+    @Default.Boolean(false)
+    boolean getPipelinedReading();
+
+    void setPipelinedReading(boolean pipelinedReading);
+
+    @Description("Read the shards with a splittable DoFn, so that the runner can split "
+        + "a shard while it is being read.")
+    @Default.Boolean(false)
+    boolean getSplittableReading();
+
+    void setSplittableReading(boolean splittableReading);
+
+    @Description("Save the shards computed for each BAM file in a manifest next to it, "
+        + "and reuse them in later runs with the same references and sharding.")
+    @Default.Boolean(false)
+    boolean getShardManifests();
+
+    void setShardManifests(boolean shardManifests);
+
+    @Description("If above 0, split each BAM file into about this many shards of similar "
+        + "size instead of by the sharding policy, e.g. a small multiple of the workers.")
+    @Default.Integer(0)
+    int getTargetShardsPerFile();
+
+    void setTargetShardsPerFile(int targetShardsPerFile);
+
+    @Description("If above 0, finalize a shard once its estimated processing time reaches "
+        + "this many seconds, counting the bytes, loci and chunks it spans, instead of "
+        + "by its size in bytes.")
+    @Default.Double(0)
+    double getTargetShardSeconds();
+
+    void setTargetShardSeconds(double targetShardSeconds);
+  }
+
+  /**
+   * @return the sharding policy chosen by the options: the cost model when
+   * --targetShardSeconds is set, otherwise shards of at most maxBytesPerShard bytes.
+   */
+  public static ShardingPolicy getShardingPolicy(Options options, long maxBytesPerShard) {
+    if (options.getTargetShardSeconds() > 0) {
+      return new CostModelShardingPolicy(options.getTargetShardSeconds());
+    }
+    return ShardingPolicy.byteSize(maxBytesPerShard);
+  }
+
   public static class ReadFn extends DoFn<BAMShard, Read> {
     OfflineAuth auth;
     Storage.Objects storage;
@@ -78,15 +187,112 @@ public class ReadBAMTransform extends PTransform<PCollection<BAMShard>, PCollect
     public void processElement(ProcessContext c) throws java.lang.Exception {
       final Reader reader = new Reader(storage, options, c.element(), c);
       reader.process();
-      Metrics.counter(ReadBAMTransform.class, "Processed records").inc(reader.recordsProcessed);
-      Metrics.counter(ReadBAMTransform.class, "Reads generated").inc(reader.readsGenerated);
-      Metrics.counter(ReadBAMTransform.class, "Skipped start").inc(reader.recordsBeforeStart);
-      Metrics.counter(ReadBAMTransform.class, "Skipped end").inc(reader.recordsAfterEnd);
-      Metrics.counter(ReadBAMTransform.class, "Ref mismatch").inc(reader.mismatchedSequence);
+      reader.updateMetrics();
 
     }
   }
 
+  /**
+   * Same as ReadFn, but emits the reads of each shard in batches of up to batchSize reads.
+   * A batch never spans shards.
+   */
+  public static class ReadBatchFn extends DoFn<BAMShard, ReadBatch> {
+    OfflineAuth auth;
+    Storage.Objects storage;
+    ReaderOptions options;
+    int batchSize;
+
+    public ReadBatchFn(OfflineAuth auth, ReaderOptions options, int batchSize) {
+      this.auth = auth;
+      this.options = options;
+      this.batchSize = batchSize;
+    }
+
+    @StartBundle
+    public void startBundle(DoFn<BAMShard, ReadBatch>.StartBundleContext c) throws IOException {
+      storage = Transport.newStorageClient(c.getPipelineOptions().as(GCSOptions.class)).build().objects();
+    }
+
+    @ProcessElement
+    public void processElement(final ProcessContext c) throws java.lang.Exception {
+      final List<Read> batch = new ArrayList<>(batchSize);
+      final Reader reader = new Reader(storage, options, c.element(), new Reader.ReaderOutput() {
+        @Override
+        public void output(Read read) {
+          batch.add(read);
+          if (batch.size() == batchSize) {
+            c.output(new ReadBatch(batch));
+            batch.clear();
+          }
+        }
+      });
+      reader.process();
+      if (!batch.isEmpty()) {
+        c.output(new ReadBatch(batch));
+      }
+      reader.updateMetrics();
+    }
+  }
+
+  /**
+   * Reads BAM shards into ReadBatches rather than single Reads.
+   */
+  public static class Batched extends PTransform<PCollection<BAMShard>, PCollection<ReadBatch>> {
+    OfflineAuth auth;
+    ReaderOptions options;
+    int batchSize;
+
+    public Batched(OfflineAuth auth, ReaderOptions options, int batchSize) {
+      this.auth = auth;
+      this.options = options;
+      this.batchSize = batchSize;
+    }
+
+    @Override
+    public PCollection<ReadBatch> expand(PCollection<BAMShard> shards) {
+      if (options.getSplittableReading()) {
+        LOG.warning("Splittable reading is not supported for batches, reading whole shards");
+      }
+      return shards.apply("Read read batches from BAMShards", ParDo
+          .of(new ReadBatchFn(auth, options, batchSize)));
+    }
+  }
+
+  /**
+   * Reads one contig of each BAM file with plain HTSJDK sequential iteration,
+   * outputting the reads as they are decoded.
+   * Used to compare sharded reading with unsharded reading on the workers.
+   */
+  public static class ReadSequentiallyFn extends DoFn<String, Read> {
+    transient Storage.Objects storage;
+    Contig contig;
+    ReaderOptions options;
+
+    public ReadSequentiallyFn(Contig contig, ReaderOptions options) {
+      this.contig = contig;
+      this.options = options;
+    }
+
+    @ProcessElement
+    public void processElement(final ProcessContext c) throws java.lang.Exception {
+      // Local files are opened through their StorageBackend, without a GCS client.
+      if (storage == null && !c.element().startsWith(LocalFileStorageBackend.FILE_PREFIX)) {
+        storage = Transport.newStorageClient(c.getPipelineOptions().as(GCSOptions.class))
+            .build().objects();
+      }
+      IOStats.startCollecting();
+      final int reads = Reader.readSequentially(storage, c.element(), contig, options,
+          new Reader.ReaderOutput() {
+            @Override
+            public void output(Read read) {
+              c.output(read);
+            }
+          });
+      IOStats.publishCollected(ReadBAMTransform.class);
+      Metrics.counter(ReadBAMTransform.class, "Reads generated").inc(reads);
+    }
+  }
+
   // ----------------------------------------------------------------
   // back to ReadBAMTransform
 
@@ -125,7 +331,7 @@ public class ReadBAMTransform extends PTransform<PCollection<BAMShard>, PCollect
     readBAMSTransform.setAuth(auth);
     final Storage.Objects storage = Transport
         .newStorageClient(pipelineOptions.as(GCSOptions.class)).build().objects();
-    final List<BAMShard> shardsList = Sharder.shardBAMFile(storage, BAMFile, contigs,
+    final List<BAMShard> shardsList = shardBAMFile(storage, BAMFile, contigs, options,
         shardingPolicy);
     PCollection<BAMShard> shards = p.apply(Create
         .of(shardsList));
@@ -151,11 +357,62 @@ public class ReadBAMTransform extends PTransform<PCollection<BAMShard>, PCollect
       PipelineOptions pipelineOptions,
       OfflineAuth auth,
       final List<Contig> contigs,
-      ReaderOptions options,
+      final ReaderOptions options,
       String bamFileListOrGlob,
       final ShardingPolicy shardingPolicy) throws IOException, URISyntaxException {
       ReadBAMTransform readBAMSTransform = new ReadBAMTransform(options);
       readBAMSTransform.setAuth(auth);
+      return getShardsFromBAMFiles(p, pipelineOptions, contigs, options, bamFileListOrGlob,
+          shardingPolicy)
+        .apply(readBAMSTransform);
+  }
+
+  /**
+   * Same as getReadsFromBAMFilesSharded, but emits batches of up to batchSize reads,
+   * e.g. ReadBatch.DEFAULT_SIZE, for the batch-aware transforms downstream.
+   */
+  public static PCollection<ReadBatch> getReadBatchesFromBAMFilesSharded(
+      Pipeline p,
+      PipelineOptions pipelineOptions,
+      OfflineAuth auth,
+      final List<Contig> contigs,
+      final ReaderOptions options,
+      String bamFileListOrGlob,
+      final ShardingPolicy shardingPolicy,
+      int batchSize) throws IOException, URISyntaxException {
+      return getShardsFromBAMFiles(p, pipelineOptions, contigs, options, bamFileListOrGlob,
+          shardingPolicy)
+        .apply(new Batched(auth, options, batchSize));
+  }
+
+  /**
+   * Get the reads of a single contig of a BAM file without sharding, e.g. to check
+   * the sharded reading against it. The file is read on a single worker and its
+   * reads are streamed into the pipeline, rather than collected by the launcher.
+   *
+   * @param p
+   * @param contig
+   * @param options
+   * @param BAMFile
+   * @return
+   */
+  public static PCollection<Read> getReadsFromBAMFileSequentially(
+      Pipeline p,
+      Contig contig,
+      ReaderOptions options,
+      String BAMFile) {
+    return p
+      .apply(Create.of(BAMFile))
+      .apply("Read BAM file sequentially", ParDo.of(new ReadSequentiallyFn(contig, options)));
+  }
+
+  private static PCollection<BAMShard> getShardsFromBAMFiles(
+      Pipeline p,
+      PipelineOptions pipelineOptions,
+      final List<Contig> contigs,
+      final ReaderOptions options,
+      String bamFileListOrGlob,
+      final ShardingPolicy shardingPolicy) throws IOException, URISyntaxException {
 
       List<String> prefixes = null;
       File f = new File(bamFileListOrGlob);
@@ -179,6 +436,10 @@ public class ReadBAMTransform extends PTransform<PCollection<BAMShard>, PCollect
       Set<String> uris = new HashSet<>();
       GcsUtil gcsUtil = pipelineOptions.as(GcsOptions.class).getGcsUtil();
       for (String prefix : prefixes) {
+        if (prefix.startsWith(LocalFileStorageBackend.FILE_PREFIX)) {
+          uris.addAll(expandLocalPrefix(prefix));
+          continue;
+        }
         URI absoluteUri = new URI(prefix);
         URI gcsUriGlob = new URI(
             absoluteUri.getScheme(),
@@ -211,7 +472,9 @@ public class ReadBAMTransform extends PTransform<PCollection<BAMShard>, PCollect
           public void processElement(DoFn<String, BAMShard>.ProcessContext c) {
             List<BAMShard> shardsList = null;
             try {
-              shardsList = Sharder.shardBAMFile(storage, c.element(), contigs, shardingPolicy);
+              IOStats.startCollecting();
+              shardsList = shardBAMFile(storage, c.element(), contigs, options, shardingPolicy);
+              IOStats.publishCollected(ReadBAMTransform.class);
               LOG.info("Sharding BAM " + c.element());
               Metrics.counter(ReadBAMTransform.class, "BAM files").inc();
               Metrics.counter(ReadBAMTransform.class, "BAM file shards").inc(shardsList.size());
@@ -223,28 +486,47 @@ public class ReadBAMTransform extends PTransform<PCollection<BAMShard>, PCollect
             }
           }
         }))
-        // We need a BreakFusionTransform here but BAMShard does not have a deterministic coder, a
-        // requirement for values that are keys.  Send it as a value instead.
-        .apply("Break BAMShard fusion - group", ParDo.of(new DoFn<BAMShard, KV<String, BAMShard>>() {
-          @DoFn.ProcessElement
-          public void processElement(DoFn<BAMShard, KV<String, BAMShard>>.ProcessContext c) throws Exception {
-            c.output(KV.of(c.element().toString(), c.element()));
-          }
-        }))
-        .apply("Break BAMShard fusion - shuffle", GroupByKey.<String, BAMShard>create())
-        .apply("Break BAMShard fusion - ungroup", ParDo.of(new DoFn<KV<String, Iterable<BAMShard>>, BAMShard>() {
-          @DoFn.ProcessElement
-          public void processElement(DoFn<KV<String, Iterable<BAMShard>>, BAMShard>.ProcessContext c) {
-            for (BAMShard shard : c.element().getValue()) {
-              c.output(shard);
-            }
-          }
-        }))
-        .apply(readBAMSTransform);
+        .apply("Break BAMShard fusion", new BreakFusionTransform<BAMShard>());
+  }
+
+  /**
+   * Lists the BAM files whose file:// path starts with the given prefix, like the
+   * GCS glob does for gs:// paths.
+   */
+  static List<String> expandLocalPrefix(String prefix) throws IOException {
+    final Path path = LocalFileStorageBackend.toPath(prefix);
+    final Path directory = prefix.endsWith("/") ? path : path.getParent();
+    final String namePrefix = prefix.endsWith("/") ? "" : path.getFileName().toString();
+    final List<String> uris = new ArrayList<>();
+    try (DirectoryStream<Path> entries = java.nio.file.Files.newDirectoryStream(directory)) {
+      for (Path entry : entries) {
+        final String name = entry.getFileName().toString();
+        if (name.startsWith(namePrefix) && name.endsWith(BAMIO.BAM_FILE_SUFFIX)) {
+          uris.add(entry.toUri().toString());
+        }
+      }
+    }
+    return uris;
+  }
+
+  static List<BAMShard> shardBAMFile(Storage.Objects storage, String BAMFile,
+      List<Contig> contigs, ReaderOptions options, ShardingPolicy shardingPolicy)
+      throws IOException {
+    if (options.getTargetShardsPerFile() > 0) {
+      return Sharder.shardBAMFile(storage, BAMFile, contigs, options.getTargetShardsPerFile());
+    }
+    if (options.getShardManifests()) {
+      return ShardManifest.shardBAMFile(storage, BAMFile, contigs, shardingPolicy);
+    }
+    return Sharder.shardBAMFile(storage, BAMFile, contigs, shardingPolicy);
   }
 
   @Override
   public PCollection<Read> expand(PCollection<BAMShard> shards) {
+    if (options.getSplittableReading()) {
+      return shards.apply("Read reads from BAMShards", ParDo
+          .of(new SplittableReadFn(auth, options)));
+    }
     final PCollection<Read> reads = shards.apply("Read reads from BAMShards", ParDo
         .of(new ReadFn(auth, options)));
 
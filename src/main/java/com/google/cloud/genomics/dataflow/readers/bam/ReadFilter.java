@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import com.google.cloud.genomics.utils.Contig;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMTag;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Declarative filter on raw BAM record fields, applied by the Reader before a record is
+ * converted into a Read, so that rejected records are never fully decoded.
+ * Flag and mapping quality checks only look at the fixed-length part of the record;
+ * the read group check decodes the tags and the region check decodes the CIGAR, and
+ * both are done last.
+ *
+ * For example, the QC filters of VerifyBamId:
+ *   new ReadFilter().excludeFlags(ReadFilter.QC_FAILURE | ReadFilter.DUPLICATE)
+ *       .requireFlags(ReadFilter.PROPER_PAIR)
+ */
+public class ReadFilter implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  // SAM FLAG bits, as in section 1.4 of the SAM specification.
+  public static final int PAIRED = 0x1;
+  public static final int PROPER_PAIR = 0x2;
+  public static final int UNMAPPED = 0x4;
+  public static final int MATE_UNMAPPED = 0x8;
+  public static final int SECONDARY = 0x100;
+  public static final int QC_FAILURE = 0x200;
+  public static final int DUPLICATE = 0x400;
+  public static final int SUPPLEMENTARY = 0x800;
+
+  int requiredFlags = 0;
+  int excludedFlags = 0;
+  int minMappingQuality = 0;
+  // Null accepts every read group, or every region.
+  Set<String> readGroups = null;
+  List<Contig> regions = null;
+
+  private transient Map<String, List<Contig>> regionsByReference;
+
+  /**
+   * Only accepts records with all of the given FLAG bits set.
+   */
+  public ReadFilter requireFlags(int flags) {
+    requiredFlags |= flags;
+    return this;
+  }
+
+  /**
+   * Rejects records with any of the given FLAG bits set.
+   */
+  public ReadFilter excludeFlags(int flags) {
+    excludedFlags |= flags;
+    return this;
+  }
+
+  public ReadFilter minMappingQuality(int minMappingQuality) {
+    this.minMappingQuality = minMappingQuality;
+    return this;
+  }
+
+  /**
+   * Only accepts records whose RG tag is one of the given read group IDs.
+   */
+  public ReadFilter readGroups(Collection<String> readGroups) {
+    this.readGroups = ImmutableSet.copyOf(readGroups);
+    return this;
+  }
+
+  /**
+   * Only accepts records that overlap one of the given regions, with 0-based starts
+   * and exclusive ends.
+   */
+  public ReadFilter regions(Collection<Contig> regions) {
+    this.regions = Lists.newArrayList(regions);
+    regionsByReference = null;
+    return this;
+  }
+
+  public boolean accept(SAMRecord record) {
+    final int flags = record.getFlags();
+    if ((flags & requiredFlags) != requiredFlags || (flags & excludedFlags) != 0) {
+      return false;
+    }
+    if (record.getMappingQuality() < minMappingQuality) {
+      return false;
+    }
+    if (readGroups != null) {
+      final Object readGroup = record.getAttribute(SAMTag.RG.name());
+      if (readGroup == null || !readGroups.contains(readGroup.toString())) {
+        return false;
+      }
+    }
+    return regions == null || overlapsRegion(record);
+  }
+
+  private boolean overlapsRegion(SAMRecord record) {
+    if (regionsByReference == null) {
+      regionsByReference = Maps.newHashMap();
+      for (Contig region : regions) {
+        List<Contig> forReference = regionsByReference.get(region.referenceName);
+        if (forReference == null) {
+          forReference = Lists.newArrayList();
+          regionsByReference.put(region.referenceName, forReference);
+        }
+        forReference.add(region);
+      }
+    }
+    final List<Contig> candidates = regionsByReference.get(record.getReferenceName());
+    if (candidates == null) {
+      return false;
+    }
+    // 1-based and inclusive; placed unmapped reads have no alignment end.
+    final int start = record.getAlignmentStart();
+    for (Contig region : candidates) {
+      if (start <= region.end
+          && Math.max(start, record.getAlignmentEnd()) > region.start) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public String toString() {
+    return "ReadFilter [requiredFlags=" + requiredFlags + ", excludedFlags=" + excludedFlags
+        + ", minMappingQuality=" + minMappingQuality + ", readGroups=" + readGroups
+        + ", regions=" + regions + "]";
+  }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import com.google.cloud.genomics.utils.grpc.ReadUtils;
+import com.google.common.base.Strings;
+import com.google.genomics.v1.CigarUnit;
+import com.google.genomics.v1.LinearAlignment;
+import com.google.genomics.v1.Position;
+import com.google.genomics.v1.Read;
+
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.SAMRecord;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+/**
+ * The Read fields a pipeline needs from BAM records, the BAM counterpart of the
+ * partial response field masks used with the Genomics API (e.g. "alignments(alignment,id)").
+ * The id is always set.
+ * Fields that come from the fixed-length part of the record and the CIGAR are converted
+ * directly; the sequence, qualities and tags are only decoded when they are requested,
+ * in which case the conversion goes through ReadUtils.makeReadGrpc.
+ */
+public class ReadProjection implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  public enum Field {
+    /** fragmentName, fragmentLength, numberReads, readNumber and the FLAG booleans. */
+    FRAGMENT,
+    /** alignment.position and alignment.mappingQuality. */
+    ALIGNMENT,
+    /** alignment.cigar. */
+    CIGAR,
+    NEXT_MATE_POSITION,
+    ALIGNED_SEQUENCE,
+    ALIGNED_QUALITY,
+    READ_GROUP_ID,
+    INFO
+  }
+
+  public static final ReadProjection ALL = new ReadProjection(EnumSet.allOf(Field.class));
+
+  // The fields that need the full conversion.
+  private static final EnumSet<Field> DECODED_FIELDS = EnumSet.of(Field.ALIGNED_SEQUENCE,
+      Field.ALIGNED_QUALITY, Field.READ_GROUP_ID, Field.INFO);
+
+  private static final CigarUnit.Operation[] OPERATIONS = {
+    CigarUnit.Operation.ALIGNMENT_MATCH,
+    CigarUnit.Operation.INSERT,
+    CigarUnit.Operation.DELETE,
+    CigarUnit.Operation.SKIP,
+    CigarUnit.Operation.CLIP_SOFT,
+    CigarUnit.Operation.CLIP_HARD,
+    CigarUnit.Operation.PAD,
+    CigarUnit.Operation.SEQUENCE_MATCH,
+    CigarUnit.Operation.SEQUENCE_MISMATCH
+  };
+
+  private final EnumSet<Field> fields;
+
+  private ReadProjection(EnumSet<Field> fields) {
+    this.fields = fields;
+  }
+
+  public static ReadProjection of(Field... fields) {
+    final EnumSet<Field> set = EnumSet.noneOf(Field.class);
+    set.addAll(Arrays.asList(fields));
+    return new ReadProjection(set);
+  }
+
+  public boolean contains(Field field) {
+    return fields.contains(field);
+  }
+
+  public Read convert(SAMRecord record) {
+    if (fields.size() == Field.values().length) {
+      return ReadUtils.makeReadGrpc(record);
+    }
+    for (Field field : DECODED_FIELDS) {
+      if (fields.contains(field)) {
+        return clearUnrequested(ReadUtils.makeReadGrpc(record).toBuilder());
+      }
+    }
+    return convertFixedFields(record);
+  }
+
+  private Read clearUnrequested(Read.Builder read) {
+    if (!fields.contains(Field.FRAGMENT)) {
+      read.clearFragmentName()
+          .clearFragmentLength()
+          .clearNumberReads()
+          .clearReadNumber()
+          .clearProperPlacement()
+          .clearDuplicateFragment()
+          .clearFailedVendorQualityChecks()
+          .clearSecondaryAlignment()
+          .clearSupplementaryAlignment();
+    }
+    if (read.hasAlignment()) {
+      if (!fields.contains(Field.ALIGNMENT) && !fields.contains(Field.CIGAR)) {
+        read.clearAlignment();
+      } else if (!fields.contains(Field.ALIGNMENT)) {
+        read.getAlignmentBuilder().clearPosition().clearMappingQuality();
+      } else if (!fields.contains(Field.CIGAR)) {
+        read.getAlignmentBuilder().clearCigar();
+      }
+    }
+    if (!fields.contains(Field.NEXT_MATE_POSITION)) {
+      read.clearNextMatePosition();
+    }
+    if (!fields.contains(Field.ALIGNED_SEQUENCE)) {
+      read.clearAlignedSequence();
+    }
+    if (!fields.contains(Field.ALIGNED_QUALITY)) {
+      read.clearAlignedQuality();
+    }
+    if (!fields.contains(Field.READ_GROUP_ID)) {
+      read.clearReadGroupId();
+    }
+    if (!fields.contains(Field.INFO)) {
+      read.clearInfo();
+    }
+    return read.build();
+  }
+
+  /**
+   * Same values as ReadUtils.makeReadGrpc for the fields it fills in, without touching
+   * the sequence, qualities or tags of the record. makeReadGrpc leaves the reference
+   * sequence of the CIGAR units empty even with an MD tag, and so does this.
+   */
+  private Read convertFixedFields(SAMRecord record) {
+    final Read.Builder read = Read.newBuilder()
+        .setId(Strings.nullToEmpty(record.getReadName()));
+    if (fields.contains(Field.FRAGMENT)) {
+      read.setFragmentName(Strings.nullToEmpty(record.getReadName()))
+          .setFragmentLength(record.getInferredInsertSize())
+          .setNumberReads(record.getReadPairedFlag() ? 2 : 1)
+          .setProperPlacement(record.getReadPairedFlag() && record.getProperPairFlag())
+          .setDuplicateFragment(record.getDuplicateReadFlag())
+          .setFailedVendorQualityChecks(record.getReadFailsVendorQualityCheckFlag())
+          .setSecondaryAlignment(record.getNotPrimaryAlignmentFlag())
+          .setSupplementaryAlignment(record.getSupplementaryAlignmentFlag());
+      if (record.getReadPairedFlag()) {
+        if (record.getFirstOfPairFlag()) {
+          read.setReadNumber(0);
+        } else if (record.getSecondOfPairFlag()) {
+          read.setReadNumber(1);
+        }
+      }
+    }
+    if (!record.getReadUnmappedFlag() && record.getAlignmentStart() > 0
+        && (fields.contains(Field.ALIGNMENT) || fields.contains(Field.CIGAR))) {
+      final LinearAlignment.Builder alignment = read.getAlignmentBuilder();
+      if (fields.contains(Field.ALIGNMENT)) {
+        alignment.setPosition(Position.newBuilder()
+                .setReferenceName(Strings.nullToEmpty(record.getReferenceName()))
+                .setPosition(record.getAlignmentStart() - 1)
+                .setReverseStrand(record.getReadNegativeStrandFlag()))
+            .setMappingQuality(record.getMappingQuality());
+      }
+      if (fields.contains(Field.CIGAR)) {
+        for (CigarElement element : record.getCigar().getCigarElements()) {
+          alignment.addCigar(CigarUnit.newBuilder()
+              .setOperation(OPERATIONS[element.getOperator().ordinal()])
+              .setOperationLength(element.getLength()));
+        }
+      }
+    }
+    if (fields.contains(Field.NEXT_MATE_POSITION) && record.getReadPairedFlag()
+        && !record.getMateUnmappedFlag()) {
+      read.setNextMatePosition(Position.newBuilder()
+          .setReferenceName(record.getMateReferenceName())
+          .setPosition(record.getMateAlignmentStart() - 1)
+          .setReverseStrand(record.getMateNegativeStrandFlag()));
+    }
+    return read.build();
+  }
+
+  @Override
+  public String toString() {
+    return "ReadProjection " + fields;
+  }
+}
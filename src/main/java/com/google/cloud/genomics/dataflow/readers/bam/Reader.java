@@ -21,17 +21,16 @@ import htsjdk.samtools.SAMException;
 import org.apache.beam.sdk.metrics.Metrics;
 import org.apache.beam.sdk.transforms.DoFn;
 import com.google.cloud.genomics.utils.Contig;
-import com.google.cloud.genomics.utils.grpc.ReadUtils;
 import com.google.common.base.Stopwatch;
 import com.google.genomics.v1.Read;
 
+import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SamReader;
+import htsjdk.samtools.seekablestream.SeekableStream;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -43,9 +42,16 @@ import java.util.logging.Logger;
 public class Reader {
   private static final Logger LOG = Logger.getLogger(Reader.class.getName());
 
+  /**
+   * Reference name of the shards over a byte range of a file without an index that
+   * take the reads of every reference and the unmapped reads without a position.
+   * SAM reference names cannot start with '*', so it matches no reference.
+   */
+  public static final String ALL_READS = "**";
+
   Storage.Objects storageClient;
   BAMShard shard;
-  DoFn<BAMShard, Read>.ProcessContext c;
+  ReaderOutput output;
   Stopwatch timer;
   ReaderOptions options;
 
@@ -61,16 +67,40 @@ public class Reader {
   public int recordsBeforeStart = 0;
   public int recordsAfterEnd = 0;
   public int mismatchedSequence = 0;
+  public int recordsFilteredOut = 0;
   public int recordsProcessed = 0;
   public int readsGenerated = 0;
+  // Time spent waiting on the other thread, with pipelined reading.
+  public long decoderBlockedMillis = 0;
+  public long converterBlockedMillis = 0;
+
+  /**
+   * Receives the reads of the shard, e.g. to emit them from a DoFn one by one or in batches.
+   */
+  public interface ReaderOutput {
+    public void output(Read read);
+  }
+
+  public Reader(Objects storageClient, ReaderOptions options, BAMShard shard,
+      final DoFn<BAMShard, Read>.ProcessContext c) {
+    this(storageClient, options, shard, new ReaderOutput() {
+      @Override
+      public void output(Read read) {
+        c.output(read);
+      }
+    });
+  }
 
-  public Reader(Objects storageClient, ReaderOptions options, BAMShard shard, DoFn<BAMShard, Read>.ProcessContext c) {
+  public Reader(Objects storageClient, ReaderOptions options, BAMShard shard,
+      ReaderOutput output) {
     super();
     this.storageClient = storageClient;
     this.shard = shard;
-    this.c = c;
+    this.output = output;
     this.options = options;
     filter = setupFilter(options, shard.contig.referenceName);
+    // Attribute the I/O of the streams opened for this shard to it.
+    IOStats.startCollecting();
   }
 
   public static Filter setupFilter(ReaderOptions options, String referenceName) {
@@ -95,26 +125,67 @@ public class Reader {
   public void process() throws IOException {
     timer = Stopwatch.createStarted();
     openFile();
+    PipelinedSAMRecordIterator pipelined = null;
+    if (options.getPipelinedReading()) {
+      pipelined = new PipelinedSAMRecordIterator(iterator, options.getPipelinedBatches(),
+          shard.contig.toString());
+      iterator = pipelined;
+    }
 
-    while (iterator.hasNext()) {
-      processRecord(iterator.next());
+    try {
+      while (iterator.hasNext()) {
+        processRecord(iterator.next());
+      }
+    } finally {
+      iterator.close();
+    }
+    if (pipelined != null) {
+      decoderBlockedMillis = TimeUnit.NANOSECONDS.toMillis(pipelined.getDecoderBlockedNanos());
+      converterBlockedMillis = TimeUnit.NANOSECONDS.toMillis(pipelined.getCallerBlockedNanos());
     }
 
     dumpStats();
   }
 
+  /**
+   * Adds the counts of this reader, and the I/O counts of the streams it opened,
+   * to the pipeline counters.
+   * Must be called from the thread processing the shard.
+   */
+  public void updateMetrics() {
+    IOStats.publishCollected(ReadBAMTransform.class);
+    Metrics.counter(ReadBAMTransform.class, "Processed records").inc(recordsProcessed);
+    Metrics.counter(ReadBAMTransform.class, "Reads generated").inc(readsGenerated);
+    Metrics.counter(ReadBAMTransform.class, "Skipped start").inc(recordsBeforeStart);
+    Metrics.counter(ReadBAMTransform.class, "Skipped end").inc(recordsAfterEnd);
+    Metrics.counter(ReadBAMTransform.class, "Ref mismatch").inc(mismatchedSequence);
+    Metrics.counter(ReadBAMTransform.class, "Filtered out").inc(recordsFilteredOut);
+    if (options.getPipelinedReading()) {
+      Metrics.counter(ReadBAMTransform.class, "Decoder blocked (ms)").inc(decoderBlockedMillis);
+      Metrics.counter(ReadBAMTransform.class, "Converter blocked (ms)")
+          .inc(converterBlockedMillis);
+    }
+  }
+
   void openFile() throws IOException {
     LOG.info("Processing shard " + shard);
-    final SamReader reader = BAMIO.openBAM(storageClient, shard.file,
-        options.getStringency());
+    if (shard.span != null && options.getInflaterThreads() > 1) {
+      LOG.info("Processing span for " + shard.contig + " with "
+          + options.getInflaterThreads() + " inflater threads");
+      iterator = openParallelSpanIterator();
+      return;
+    }
+    final SamReader reader = BAMIO.openBAM(storageClient, shard.file, options, shard.span);
     iterator = null;
-    if (reader.hasIndex() && reader.indexing() != null) {
+    if (shard.span != null && reader.indexing() != null) {
+      // Spans do not need the index: the Sharder also splits the unmapped reads
+      // and files without an index into ranges of records.
+      LOG.info("Processing span for " + shard.contig);
+      iterator = reader.indexing().iterator(shard.span);
+    } else if (reader.hasIndex() && reader.indexing() != null) {
       if (filter == Filter.UNMAPPED_ONLY) {
         LOG.info("Processing unmapped");
         iterator = reader.queryUnmapped();
-      } else if (shard.span != null) {
-        LOG.info("Processing span for " + shard.contig);
-        iterator = reader.indexing().iterator(shard.span);
       } else if (shard.contig.referenceName != null && !shard.contig.referenceName.isEmpty()) {
         LOG.info("Processing all bases for " + shard.contig);
         iterator = reader.query(shard.contig.referenceName, (int) shard.contig.start,
@@ -127,6 +198,20 @@ public class Reader {
     }
   }
 
+  /**
+   * Reads the shard span without HTSJDK's reader, so that BGZF blocks can be
+   * inflated on several threads. The header comes from the worker-wide cache.
+   */
+  SAMRecordIterator openParallelSpanIterator() throws IOException {
+    final SAMFileHeader header =
+        BAMMetadataCache.get(storageClient, shard.file, options).getHeader();
+    final SeekableStream stream = BAMIO.openStream(storageClient, shard.file, options);
+    ChunkPrefetcher.prefetch(stream, shard.span);
+    return new ParallelBAMSpanIterator(header,
+        new ParallelBGZFInputStream(stream, options.getInflaterThreads()),
+        shard.span.getChunkList(), options.getStringency());
+  }
+
   /**
    * Checks if the record matches our filter.
    */
@@ -134,18 +219,31 @@ public class Reader {
       String referenceName) {
     // If we are looking for only mapped or only unmapped reads then we will use
     // the UnmappedFlag to decide if this read should be rejected.
-    if (filter == Filter.UNMAPPED_ONLY && !record.getReadUnmappedFlag()) {
+    // Unmapped mates placed next to their mapped mates belong to the mapped shards.
+    final boolean unplaced =
+        record.getReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX;
+    if (filter == Filter.UNMAPPED_ONLY && (!record.getReadUnmappedFlag() || !unplaced)) {
       return false;
     }
 
+    if (ALL_READS.equals(referenceName) && unplaced) {
+      return true;
+    }
+
     if (filter == Filter.MAPPED_ONLY && record.getReadUnmappedFlag()) {
       return false;
     }
 
+    // Unplaced unmapped reads are only read by the unmapped reads shards, even when
+    // the shard takes every reference.
+    if (filter == Filter.MAPPED_AND_UNMAPPED && unplaced) {
+      return false;
+    }
+
     // If we are looking for mapped reads, then we check the reference name
     // of the read matches the one we are looking for.
     final boolean referenceNameMismatch = referenceName != null &&
-        !referenceName.isEmpty() &&
+        !referenceName.isEmpty() && !ALL_READS.equals(referenceName) &&
         !referenceName.equals(record.getReferenceName());
 
     // Note that unmapped mate pair of mapped read will have a reference
@@ -168,16 +266,22 @@ public class Reader {
       mismatchedSequence++;
       return;
     }
-    if (record.getAlignmentStart() < shard.contig.start) {
+    // The unmapped reads contig ("*", 0, -1) has no loci to check against.
+    if (filter != Filter.UNMAPPED_ONLY && record.getAlignmentStart() < shard.contig.start) {
       recordsBeforeStart++;
       return;
     }
-    if (record.getAlignmentStart() > shard.contig.end) {
+    if (filter != Filter.UNMAPPED_ONLY && record.getAlignmentStart() > shard.contig.end) {
       recordsAfterEnd++;
       return;
     }
+    // Before the conversion, which decodes every field of the record.
+    if (options.getReadFilter() != null && !options.getReadFilter().accept(record)) {
+      recordsFilteredOut++;
+      return;
+    }
     try {
-      c.output(ReadUtils.makeReadGrpc(record));
+      output.output(options.getReadProjection().convert(record));
       readsGenerated++;
     } catch(SAMException e) {
       LOG.log(Level.WARNING, "Caught and handled SAMException", e);
@@ -198,7 +302,10 @@ public class Reader {
         ". Speed: " + (recordsProcessed*1000)/elapsed + " reads/sec"
         + ", filtered out by reference and mapping " + mismatchedSequence
         + ", skippedBefore " + recordsBeforeStart
-        + ", skipped after " + recordsAfterEnd);
+        + ", skipped after " + recordsAfterEnd
+        + ", filtered out " + recordsFilteredOut
+        + (options.getPipelinedReading() ? ", decoder blocked " + decoderBlockedMillis
+            + " ms, converter blocked " + converterBlockedMillis + " ms" : ""));
   }
 
   /**
@@ -206,48 +313,60 @@ public class Reader {
    * this method implements such iteration.
    * This makes it easier to discover errors such as reads that are somehow
    * skipped by a sharded approach.
+   * Reads are handed to the output as they are decoded, so memory use does not
+   * grow with the size of the contig.
+   * @return the number of reads output.
    */
-  public static Iterable<Read> readSequentiallyForTesting(Objects storageClient,
+  public static int readSequentially(Objects storageClient,
       String storagePath, Contig contig,
-      ReaderOptions options) throws IOException {
+      ReaderOptions options, ReaderOutput output) throws IOException {
     Stopwatch timer = Stopwatch.createStarted();
-    SamReader samReader = BAMIO.openBAM(storageClient, storagePath, options.getStringency());
+    SamReader samReader = BAMIO.openBAM(storageClient, storagePath, options);
     SAMRecordIterator iterator =  samReader.queryOverlapping(contig.referenceName,
         (int) contig.start + 1,
         (int) contig.end);
-    List<Read> reads = new ArrayList<Read>();
 
     int recordsBeforeStart = 0;
     int recordsAfterEnd = 0;
     int mismatchedSequence = 0;
     int recordsProcessed = 0;
     Filter filter = setupFilter(options, contig.referenceName);
-    while (iterator.hasNext()) {
-      SAMRecord record = iterator.next();
-      final boolean passesFilter = passesFilter(record, filter, contig.referenceName);
+    try {
+      while (iterator.hasNext()) {
+        SAMRecord record = iterator.next();
+        final boolean passesFilter = passesFilter(record, filter, contig.referenceName);
 
-      if (!passesFilter) {
-        mismatchedSequence++;
-        continue;
-      }
-      if (record.getAlignmentStart() < contig.start) {
-        recordsBeforeStart++;
-        continue;
+        if (!passesFilter) {
+          mismatchedSequence++;
+          continue;
+        }
+        if (record.getAlignmentStart() < contig.start) {
+          recordsBeforeStart++;
+          continue;
+        }
+        if (record.getAlignmentStart() > contig.end) {
+          recordsAfterEnd++;
+          continue;
+        }
+        if (options.getReadFilter() != null && !options.getReadFilter().accept(record)) {
+          continue;
+        }
+        output.output(options.getReadProjection().convert(record));
+        recordsProcessed++;
       }
-      if (record.getAlignmentStart() > contig.end) {
-        recordsAfterEnd++;
-        continue;
-      }
-      reads.add(ReadUtils.makeReadGrpc(record));
-      recordsProcessed++;
+    } finally {
+      iterator.close();
+      samReader.close();
     }
     timer.stop();
+    long elapsed = timer.elapsed(TimeUnit.MILLISECONDS);
+    if (elapsed == 0) elapsed = 1;
     LOG.info("NON SHARDED: Processed " + recordsProcessed +
         " in " + timer +
-        ". Speed: " + (recordsProcessed*1000)/timer.elapsed(TimeUnit.MILLISECONDS) + " reads/sec"
+        ". Speed: " + (recordsProcessed*1000)/elapsed + " reads/sec"
         + ", skipped other sequences " + mismatchedSequence
         + ", skippedBefore " + recordsBeforeStart
         + ", skipped after " + recordsAfterEnd);
-    return reads;
+    return recordsProcessed;
   }
 }
@@ -15,6 +15,8 @@
  */
 package com.google.cloud.genomics.dataflow.readers.bam;
 
+import com.google.common.base.Strings;
+
 import htsjdk.samtools.ValidationStringency;
 
 import java.io.Serializable;
@@ -35,6 +37,99 @@ public class ReaderOptions implements Serializable{
    */
   boolean includeUnmappedReads = false;
 
+  /**
+   * Number of blocks to fetch ahead of the current position when reading BAM and
+   * BAI files from GCS. Zero disables read-ahead, in which case reads are served
+   * from a single streaming response that is reopened on every seek.
+   * When the shard span is known, read-ahead follows its chunks rather than
+   * the blocks that merely come next in the file.
+   */
+  int readAheadBlocks = 0;
+
+  /**
+   * Size in bytes of a single range request when read-ahead is enabled.
+   */
+  int readAheadBlockSize = ReadAheadGCSStream.DEFAULT_BLOCK_SIZE;
+
+  /**
+   * Number of recently used blocks kept in memory per stream when read-ahead is enabled.
+   */
+  int cachedBlocks = ReadAheadGCSStream.DEFAULT_CACHED_BLOCKS;
+
+  /**
+   * If true, a read-ahead range request that is slower than hedgePercentile of the
+   * recent requests is sent a second time, and the first answer wins.
+   */
+  boolean hedgedReads = false;
+
+  double hedgePercentile = ReadAheadGCSStream.DEFAULT_HEDGE_PERCENTILE;
+
+  /**
+   * Local file caching the blocks fetched by read-ahead streams, shared by all workers
+   * on the host, or null for no disk cache. See DiskBlockCache.
+   */
+  String diskCachePath = null;
+
+  /**
+   * Size of the disk cache file, when it is created.
+   */
+  long diskCacheBytes = 10L * 1024 * 1024 * 1024;
+
+  /**
+   * Number of threads inflating BGZF blocks ahead of record decoding.
+   * Values above 1 enable the parallel reader for shards with a known span;
+   * other shards are always read by HTSJDK on a single thread.
+   */
+  int inflaterThreads = 1;
+
+  /**
+   * If true, shards are read by SplittableReadFn, which lets the runner split
+   * a shard while it is being read.
+   */
+  boolean splittableReading = false;
+
+  /**
+   * Compressed bytes per piece when SplittableReadFn splits a shard up front.
+   */
+  long bytesPerSplit = 64L * 1024 * 1024;
+
+  /**
+   * If true, the shards computed for a BAM file are saved in a manifest next to it
+   * and reused by later runs with the same contigs and sharding policy.
+   * See ShardManifest.
+   */
+  boolean shardManifests = false;
+
+  /**
+   * If above zero, each BAM file is split into about this many shards of similar size
+   * instead of by the sharding policy. Shard manifests are not used in that case.
+   */
+  int targetShardsPerFile = 0;
+
+  /**
+   * Filter applied to the raw BAM records before they are converted into Reads,
+   * or null to keep every record of the shard.
+   */
+  ReadFilter readFilter = null;
+
+  /**
+   * The Read fields filled in for every record that is kept.
+   */
+  ReadProjection readProjection = ReadProjection.ALL;
+
+  /**
+   * If true, records are fetched and decoded on a thread of their own while the
+   * thread processing the shard filters, converts and outputs them.
+   * Does not apply to shards read by SplittableReadFn in pieces.
+   */
+  boolean pipelinedReading = false;
+
+  /**
+   * Number of batches of decoded records the decoding thread may get ahead of
+   * the conversion with pipelined reading.
+   */
+  int pipelinedBatches = 64;
+
   public ReaderOptions() {
 
   }
@@ -44,6 +139,24 @@ public class ReaderOptions implements Serializable{
     this.includeUnmappedReads = includeUnmappedReads;
   }
 
+  /**
+   * Copies the settings given as pipeline flags, see ReadBAMTransform.Options.
+   */
+  public void applyPipelineOptions(ReadBAMTransform.Options pipelineOptions) {
+    readAheadBlocks = pipelineOptions.getReadAheadBlocks();
+    readAheadBlockSize = pipelineOptions.getReadAheadBlockSize();
+    cachedBlocks = pipelineOptions.getCachedBlocks();
+    hedgedReads = pipelineOptions.getHedgedReads();
+    hedgePercentile = pipelineOptions.getHedgePercentile();
+    diskCachePath = Strings.emptyToNull(pipelineOptions.getDiskCachePath());
+    diskCacheBytes = pipelineOptions.getDiskCacheBytes();
+    inflaterThreads = pipelineOptions.getInflaterThreads();
+    pipelinedReading = pipelineOptions.getPipelinedReading();
+    splittableReading = pipelineOptions.getSplittableReading();
+    shardManifests = pipelineOptions.getShardManifests();
+    targetShardsPerFile = pipelineOptions.getTargetShardsPerFile();
+  }
+
   public ValidationStringency getStringency() {
     return stringency;
   }
@@ -59,5 +172,132 @@ public class ReaderOptions implements Serializable{
   public void setIncludeUnmappedReads(boolean includeUnmappedReads) {
     this.includeUnmappedReads = includeUnmappedReads;
   }
-}
 
+  public int getReadAheadBlocks() {
+    return readAheadBlocks;
+  }
+
+  public void setReadAheadBlocks(int readAheadBlocks) {
+    this.readAheadBlocks = readAheadBlocks;
+  }
+
+  public int getReadAheadBlockSize() {
+    return readAheadBlockSize;
+  }
+
+  public void setReadAheadBlockSize(int readAheadBlockSize) {
+    this.readAheadBlockSize = readAheadBlockSize;
+  }
+
+  public int getCachedBlocks() {
+    return cachedBlocks;
+  }
+
+  public void setCachedBlocks(int cachedBlocks) {
+    this.cachedBlocks = cachedBlocks;
+  }
+
+  public boolean getHedgedReads() {
+    return hedgedReads;
+  }
+
+  public void setHedgedReads(boolean hedgedReads) {
+    this.hedgedReads = hedgedReads;
+  }
+
+  public double getHedgePercentile() {
+    return hedgePercentile;
+  }
+
+  public void setHedgePercentile(double hedgePercentile) {
+    this.hedgePercentile = hedgePercentile;
+  }
+
+  public String getDiskCachePath() {
+    return diskCachePath;
+  }
+
+  public void setDiskCachePath(String diskCachePath) {
+    this.diskCachePath = diskCachePath;
+  }
+
+  public long getDiskCacheBytes() {
+    return diskCacheBytes;
+  }
+
+  public void setDiskCacheBytes(long diskCacheBytes) {
+    this.diskCacheBytes = diskCacheBytes;
+  }
+
+  public int getInflaterThreads() {
+    return inflaterThreads;
+  }
+
+  public void setInflaterThreads(int inflaterThreads) {
+    this.inflaterThreads = inflaterThreads;
+  }
+
+  public boolean getSplittableReading() {
+    return splittableReading;
+  }
+
+  public void setSplittableReading(boolean splittableReading) {
+    this.splittableReading = splittableReading;
+  }
+
+  public long getBytesPerSplit() {
+    return bytesPerSplit;
+  }
+
+  public void setBytesPerSplit(long bytesPerSplit) {
+    this.bytesPerSplit = bytesPerSplit;
+  }
+
+  public boolean getShardManifests() {
+    return shardManifests;
+  }
+
+  public void setShardManifests(boolean shardManifests) {
+    this.shardManifests = shardManifests;
+  }
+
+  public int getTargetShardsPerFile() {
+    return targetShardsPerFile;
+  }
+
+  public void setTargetShardsPerFile(int targetShardsPerFile) {
+    this.targetShardsPerFile = targetShardsPerFile;
+  }
+
+  public ReadFilter getReadFilter() {
+    return readFilter;
+  }
+
+  public void setReadFilter(ReadFilter readFilter) {
+    this.readFilter = readFilter;
+  }
+
+  public ReadProjection getReadProjection() {
+    return readProjection;
+  }
+
+  public void setReadProjection(ReadProjection readProjection) {
+    this.readProjection = readProjection;
+  }
+
+  public boolean getPipelinedReading() {
+    return pipelinedReading;
+  }
+
+  public void setPipelinedReading(boolean pipelinedReading) {
+    this.pipelinedReading = pipelinedReading;
+  }
+
+  public int getPipelinedBatches() {
+    return pipelinedBatches;
+  }
+
+  public void setPipelinedBatches(int pipelinedBatches) {
+    this.pipelinedBatches = pipelinedBatches;
+  }
+}
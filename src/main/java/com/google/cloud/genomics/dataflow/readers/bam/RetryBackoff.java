@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Sleep times between retries of GCS requests: exponential backoff with jitter,
+ * so that the streams that failed together do not all retry at the same moment.
+ */
+class RetryBackoff {
+  static final int MAX_RETRIES = 5;
+  static final long INITIAL_SLEEP_MSEC = 250;
+  static final long MAX_SLEEP_MSEC = 8000;
+
+  private RetryBackoff() {
+  }
+
+  /**
+   * @param retry number of the upcoming retry, starting at 1.
+   * @return a random time between half and all of the backoff for this retry.
+   */
+  static long sleepMillis(int retry) {
+    final long backoff =
+        Math.min(MAX_SLEEP_MSEC, INITIAL_SLEEP_MSEC << Math.min(retry - 1, 20));
+    return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+  }
+
+  static void sleep(int retry) throws InterruptedException {
+    Thread.sleep(sleepMillis(retry));
+  }
+}
@@ -31,15 +31,13 @@ import java.util.regex.Pattern;
 /**
  * Adapter of GCS to look like HTSJDK SeekableStream so BAM readers
  * can stream data from GCS.
- * TODO: implement more sophisticated retries with backoff.
+ * Failed reads reopen the stream after an exponential backoff with jitter.
  */
 public class SeekableGCSStream extends SeekableStream {
   private static final Logger LOG = Logger.getLogger(SeekableGCSStream.class.getName());
 
   private static final Pattern SLASH = Pattern.compile("/");
   private static final String GCS_PREFIX = "gs://";
-  private static final int MAX_RETRIES = 3;
-  private static final long RETRY_SLEEP_TIME_MSEC = 1000;
 
   private Storage.Objects client;
   private StorageObject object;
@@ -50,10 +48,13 @@ public class SeekableGCSStream extends SeekableStream {
   private long position = -1;
   private byte[] oneByte = new byte[1];
   private boolean atEof = false;
+  private final IOStats ioStats = IOStats.forStream();
 
   public SeekableGCSStream(Storage.Objects client, String name) throws IOException {
     LOG.info("Creating SeekableGCSStream: " + name);
     this.client = client;
+    this.name = name;
+    ioStats.setSource(name);
     object = uriToStorageObject(name);
     get = this.client.get(object.getBucket(), object.getName());
     seek(0);
@@ -99,10 +100,17 @@ public class SeekableGCSStream extends SeekableStream {
       return;
     }
     validatePosition(arg0);
+    if (position >= 0) {
+      ioStats.seeks.incrementAndGet();
+    }
     position = arg0;
     openStream();
   }
 
+  public IOStats getIOStats() {
+    return ioStats;
+  }
+
   protected void openStream()
       throws IOException {
     if (LOG.isLoggable(Level.FINEST)) {
@@ -117,9 +125,14 @@ public class SeekableGCSStream extends SeekableStream {
     get.getRequestHeaders()
         .setRange(String.format("bytes=%d-", position));
     HttpResponse response;
+    final long start = System.nanoTime();
     try {
       response = get.executeMedia();
+      final long latency = System.nanoTime() - start;
+      ioStats.recordRequest(latency);
+      ioStats.waitNanos.addAndGet(latency);
     } catch (IOException e) {
+      ioStats.requests.incrementAndGet();
       String msg = String.format("Error reading %s at position %d",
           name, position);
       atEof = true;
@@ -175,8 +188,10 @@ public class SeekableGCSStream extends SeekableStream {
 
     do {
       try {
+        final long start = System.nanoTime();
         final int numBytesRead = stream.read(buf,
             offset + totalBytesRead, len - totalBytesRead);
+        ioStats.waitNanos.addAndGet(System.nanoTime() - start);
         if (LOG.isLoggable(Level.FINEST)) {
           LOG.finest("Read returned: " + numBytesRead);
         }
@@ -186,22 +201,23 @@ public class SeekableGCSStream extends SeekableStream {
         }
         totalBytesRead += numBytesRead;
         position += numBytesRead;
+        ioStats.bytesFetched.addAndGet(numBytesRead);
 
         retriesAttempted = 0;
       } catch (IOException ioe) {
-        if (retriesAttempted == MAX_RETRIES) {
+        if (retriesAttempted == RetryBackoff.MAX_RETRIES) {
           LOG.warning(
               String.format("Already attempted max of %d retries while reading '%s'; throwing exception.",
               retriesAttempted, name));
           throw ioe;
         } else {
           ++retriesAttempted;
+          ioStats.retries.incrementAndGet();
           LOG.warning(String.format("Got exception: %s while reading '%s'; retry # %d. Sleeping...",
               ioe.getMessage(), name, retriesAttempted));
 
           try {
-            // TODO: implement backoff logic instead of simplistic static sleep interval
-            Thread.sleep(RETRY_SLEEP_TIME_MSEC);
+            RetryBackoff.sleep(retriesAttempted);
           } catch (InterruptedException ie) {
             LOG.warning(String.format("Interrupted while sleeping before retry. Giving up "
                 + "after %d retries for '%s'", retriesAttempted, name));
@@ -223,7 +239,7 @@ public class SeekableGCSStream extends SeekableStream {
     return retVal;
   }
 
-  private static StorageObject uriToStorageObject(String uri) throws IOException {
+  static StorageObject uriToStorageObject(String uri) throws IOException {
     StorageObject object = new StorageObject();
     if (uri.startsWith(GCS_PREFIX)) {
       uri = uri.substring(GCS_PREFIX.length());
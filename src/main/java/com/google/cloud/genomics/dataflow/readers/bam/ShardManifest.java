@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import com.google.api.services.storage.Storage;
+import org.apache.beam.sdk.util.SerializableUtils;
+import org.apache.beam.sdk.util.VarInt;
+import com.google.cloud.genomics.utils.Contig;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Saves the shards computed for a BAM file in a manifest next to it, so that later runs
+ * over the same file with the same contigs and sharding policy skip the Sharder.
+ * The manifest name contains a hash of the contigs and of the serialized policy, and the
+ * manifest records the generations of the BAM and BAI it was computed from, so it is
+ * ignored once either file is replaced.
+ */
+public class ShardManifest {
+  private static final Logger LOG = Logger.getLogger(ShardManifest.class.getName());
+
+  public static final String MANIFEST_SUFFIX = ".shards";
+  private static final String MANIFEST_MIME_TYPE = "application/octet-stream";
+  // Bump when the manifest format or the Sharder output changes.
+  private static final int VERSION = 1;
+  // Generation recorded for a missing file, typically the index.
+  static final long MISSING_GENERATION = StorageBackend.MISSING_GENERATION;
+
+  /**
+   * Same as Sharder.shardBAMFile, but reuses the manifest of an earlier run if it is
+   * still valid, and writes one otherwise.
+   * Failing to write the manifest, e.g. to a read-only bucket, is not an error.
+   */
+  public static List<BAMShard> shardBAMFile(Storage.Objects storageClient,
+      String filePath, List<Contig> requestedContigs,
+      ShardingPolicy shardingPolicy) throws IOException {
+    final String manifestPath = manifestPath(filePath, requestedContigs, shardingPolicy);
+    final StorageBackend backend = StorageBackend.forPath(storageClient, filePath);
+    final long bamGeneration = backend.getGeneration(filePath);
+    final long baiGeneration = backend.getGeneration(filePath + ".bai");
+
+    final byte[] manifest = download(storageClient, manifestPath);
+    if (manifest != null) {
+      try {
+        final List<BAMShard> shards = decode(manifest, bamGeneration, baiGeneration);
+        if (shards != null) {
+          LOG.info("Read " + shards.size() + " shards from " + manifestPath);
+          return shards;
+        }
+        LOG.info("Ignoring stale shard manifest " + manifestPath);
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Ignoring corrupt shard manifest " + manifestPath, e);
+      }
+    }
+
+    final List<BAMShard> shards = Sharder.shardBAMFile(storageClient, filePath,
+        requestedContigs, shardingPolicy);
+    try {
+      backend.write(manifestPath, encode(bamGeneration, baiGeneration, shards),
+          MANIFEST_MIME_TYPE);
+      LOG.info("Wrote " + shards.size() + " shards to " + manifestPath);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Could not write shard manifest " + manifestPath, e);
+    }
+    return shards;
+  }
+
+  /**
+   * @return the path of the manifest for the given file, contigs and policy.
+   */
+  static String manifestPath(String filePath, List<Contig> requestedContigs,
+      ShardingPolicy shardingPolicy) {
+    final Hasher hasher = Hashing.sha256().newHasher().putInt(VERSION);
+    for (Contig contig : requestedContigs) {
+      hasher.putString(contig.referenceName != null ? contig.referenceName : "", Charsets.UTF_8)
+          .putLong(contig.start)
+          .putLong(contig.end);
+    }
+    // Policies are functions; their serialized form identifies the class and its settings.
+    hasher.putBytes(SerializableUtils.serializeToByteArray(shardingPolicy));
+    return filePath + "." + hasher.hash().toString().substring(0, 16) + MANIFEST_SUFFIX;
+  }
+
+  static byte[] encode(long bamGeneration, long baiGeneration, List<BAMShard> shards)
+      throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (OutputStream out = new GZIPOutputStream(bytes)) {
+      VarInt.encode(VERSION, out);
+      VarInt.encode(bamGeneration, out);
+      VarInt.encode(baiGeneration, out);
+      VarInt.encode(shards.size(), out);
+      for (BAMShard shard : shards) {
+        BAMShardCoder.of().encode(shard, out);
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * @return the shards in the manifest, or null if it is from another version or
+   * was computed from other generations of the files.
+   */
+  static List<BAMShard> decode(byte[] manifest, long bamGeneration, long baiGeneration)
+      throws IOException {
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(manifest))) {
+      if (VarInt.decodeInt(in) != VERSION
+          || VarInt.decodeLong(in) != bamGeneration
+          || VarInt.decodeLong(in) != baiGeneration) {
+        return null;
+      }
+      final int count = VarInt.decodeInt(in);
+      final List<BAMShard> shards = Lists.newArrayListWithCapacity(count);
+      for (int i = 0; i < count; i++) {
+        shards.add(BAMShardCoder.of().decode(in));
+      }
+      return shards;
+    }
+  }
+
+  private static byte[] download(Storage.Objects storageClient, String path) {
+    try (InputStream in = BAMIO.openStream(storageClient, path, null)) {
+      return ByteStreams.toByteArray(in);
+    } catch (IOException e) {
+      // Most likely the first run over this file.
+      LOG.fine("No shard manifest at " + path);
+      return null;
+    }
+  }
+}
@@ -28,14 +28,13 @@ import htsjdk.samtools.Bin;
 import htsjdk.samtools.Chunk;
 import htsjdk.samtools.GenomicIndexUtil;
 import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileSpanImpl;
 import htsjdk.samtools.SAMSequenceRecord;
-import htsjdk.samtools.SamReader;
-import htsjdk.samtools.ValidationStringency;
 import htsjdk.samtools.seekablestream.SeekableStream;
-import htsjdk.samtools.util.IOUtil;
 
 import java.io.IOException;
 import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.logging.Level;
@@ -49,6 +48,19 @@ import javax.annotation.Nullable;
 public class Sharder {
   private static final Logger LOG = Logger.getLogger(Sharder.class.getName());
 
+  // Below this, per-shard overhead dominates the work of reading a shard.
+  private static final long MIN_BYTES_PER_SHARD = 1024 * 1024;
+
+  /**
+   * Compressed bytes per shard of the unmapped reads at the end of an indexed file.
+   */
+  public static final long DEFAULT_UNMAPPED_BYTES_PER_SHARD = 1024L * 1024 * 1024;
+
+  /**
+   * Compressed bytes per shard of a file without an index.
+   */
+  public static final long DEFAULT_UNINDEXED_BYTES_PER_SHARD = 256L * 1024 * 1024;
+
   public interface SharderOutput {
     public void output(BAMShard shard);
   }
@@ -59,14 +71,15 @@ public class Sharder {
   SharderOutput output;
   final ShardingPolicy shardingPolicy;
 
-  SamReader reader;
-  SeekableStream indexStream;
   SAMFileHeader header;
   BAMFileIndexImpl index;
 
   boolean allReferences;
   boolean hasIndex;
   HashMap<String, Contig> contigsByReference;
+  boolean unmappedRequested;
+  long unmappedBytesPerShard = DEFAULT_UNMAPPED_BYTES_PER_SHARD;
+  long unindexedBytesPerShard = DEFAULT_UNINDEXED_BYTES_PER_SHARD;
 
   public static List<BAMShard> shardBAMFile(Objects storageClient,
       String filePath, List<Contig> requestedContigs,
@@ -83,6 +96,30 @@ public class Sharder {
     return shards;
   }
 
+  /**
+   * Shards the file into about targetShardCount shards of similar size, e.g. a small
+   * multiple of the number of workers.
+   * The file is sharded twice: once per reference to measure the total size of the
+   * requested contigs, then by bytes. Both passes use the cached header and index.
+   */
+  public static List<BAMShard> shardBAMFile(Objects storageClient,
+      String filePath, List<Contig> requestedContigs,
+      int targetShardCount) throws IOException {
+    long totalBytes = 0;
+    for (BAMShard shard : shardBAMFile(storageClient, filePath, requestedContigs,
+        ShardingPolicy.NEVER_SPLIT_POLICY)) {
+      if (shard.span != null) {
+        totalBytes += shard.approximateSizeInBytes();
+      }
+    }
+    final long bytesPerShard = Math.max(MIN_BYTES_PER_SHARD,
+        totalBytes / Math.max(1, targetShardCount));
+    LOG.info("Sharding " + filePath + " into shards of " + bytesPerShard + " bytes, "
+        + totalBytes + " bytes in total");
+    return shardBAMFile(storageClient, filePath, requestedContigs,
+        ShardingPolicy.byteSize(bytesPerShard));
+  }
+
   public Sharder(Objects storageClient, String filePath, List<Contig> requestedContigs,
       ShardingPolicy shardingPolicy,
       SharderOutput output) {
@@ -102,12 +139,45 @@ public class Sharder {
     this.output = output;
   }
 
+  /**
+   * Sets the compressed size of the shards the unmapped reads are split into.
+   * Zero or less keeps them in a single shard.
+   */
+  public void setUnmappedBytesPerShard(long unmappedBytesPerShard) {
+    this.unmappedBytesPerShard = unmappedBytesPerShard;
+  }
+
+  /**
+   * Sets the compressed size of the byte ranges a file without an index is split into.
+   * Zero or less gives the old behaviour of one whole-file shard per contig.
+   */
+  public void setUnindexedBytesPerShard(long unindexedBytesPerShard) {
+    this.unindexedBytesPerShard = unindexedBytesPerShard;
+  }
+
   public void process() throws IOException {
     LOG.info("Processing BAM file " + filePath);
 
     openFile();
     processHeader();
 
+    if (!hasIndex && unindexedBytesPerShard > 0) {
+      final List<Chunk> ranges = splitAtRecordStarts(-1, unindexedBytesPerShard);
+      if (!ranges.isEmpty()) {
+        createShardsWithoutIndex(ranges);
+        return;
+      }
+      LOG.warning("Found no records to split " + filePath + " at, reading it whole");
+    }
+
+    if (unmappedRequested) {
+      if (!hasIndex || index == null || unmappedBytesPerShard <= 0
+          || !createShardsForUnmappedReads()) {
+        LOG.info("Outputting unmapped reads shard ");
+        output.output(new BAMShard(filePath, null, new Contig("*", 0, -1)));
+      }
+    }
+
     for (SAMSequenceRecord sequenceRecord : header.getSequenceDictionary().getSequences()) {
       final Contig contig = desiredContigForReference(sequenceRecord);
       if (contig == null) {
@@ -127,18 +197,14 @@ public class Sharder {
   }
 
   void openFile() throws IOException {
-    final BAMIO.ReaderAndIndex r = BAMIO.openBAMAndExposeIndex(storageClient, filePath, ValidationStringency.DEFAULT_STRINGENCY);
-    reader = r.reader;
-    indexStream = r.index;
-    header = reader.getFileHeader();
-    hasIndex = reader.hasIndex() && reader.indexing().hasBrowseableIndex();
+    // Header and index come from the worker-wide cache, which the readers of
+    // the resulting shards will hit as well if they run on this worker.
+    final BAMMetadataCache.Entry metadata =
+        BAMMetadataCache.get(storageClient, filePath, null);
+    header = metadata.getHeader();
+    hasIndex = metadata.hasIndex();
     LOG.info("Has index = " + hasIndex);
-    if (hasIndex) {
-      index = new BAMFileIndexImpl(
-          IOUtil.maybeBufferedSeekableStream(indexStream),header.getSequenceDictionary());
-    } else {
-      index = null;
-    }
+    index = metadata.openBAMFileIndex();
   }
 
   void processHeader() {
@@ -146,16 +212,109 @@ public class Sharder {
     for (Contig contig : requestedContigs) {
       contigsByReference.put(contig.referenceName != null ? contig.referenceName : "", contig);
     }
-    if (contigsByReference.size() == 0 || contigsByReference.containsKey("*")) {
-      LOG.info("Outputting unmapped reads shard ");
-      output.output(new BAMShard(filePath, null, new Contig("*", 0, -1)));
-    }
+    unmappedRequested = contigsByReference.size() == 0 || contigsByReference.containsKey("*");
     allReferences =
         contigsByReference.size() == 0 || contigsByReference.containsKey("");
     LOG.info("All references = " + allReferences);
-    LOG.info("BAM has index = " + reader.hasIndex());
-    LOG.info("BAM has browseable index = " + reader.indexing().hasBrowseableIndex());
-    LOG.info("Class for index = " + reader.indexing().getIndex().getClass().getName());
+    LOG.info("BAM has index = " + hasIndex);
+  }
+
+  /**
+   * Splits the unmapped reads, which follow the last linear bin of the index, into
+   * shards of about unmappedBytesPerShard compressed bytes each.
+   * Mapped reads at the start of the region are dropped by the reader's filter.
+   * @return false if the index does not tell where the unmapped reads start.
+   */
+  boolean createShardsForUnmappedReads() throws IOException {
+    final long unmappedStart = index.getStartOfLastLinearBin();
+    if (unmappedStart < 0) {
+      return false;
+    }
+    final List<Chunk> ranges = splitAtRecordStarts(unmappedStart, unmappedBytesPerShard);
+    LOG.info("Outputting " + ranges.size() + " unmapped reads shards");
+    for (Chunk range : ranges) {
+      output.output(new BAMShard(filePath, spanOf(range), new Contig("*", 0, -1)));
+    }
+    return true;
+  }
+
+  /**
+   * Reads each byte range of a file without an index on its own, instead of scanning
+   * the whole file for every contig.
+   * When every reference is requested, each range is output once, and the shard takes
+   * the unmapped reads without a position too if they are requested. Otherwise a shard
+   * only takes one contig, so each range is output for the unmapped reads, if requested,
+   * and for every requested contig.
+   */
+  void createShardsWithoutIndex(List<Chunk> ranges) {
+    LOG.info("No index: outputting shards for " + ranges.size() + " byte ranges");
+    if (allReferences) {
+      // An empty reference name matches the reads of every reference.
+      final Contig contig =
+          new Contig(unmappedRequested ? Reader.ALL_READS : "", 0, Long.MAX_VALUE);
+      for (Chunk range : ranges) {
+        output.output(new BAMShard(filePath, spanOf(range), contig));
+      }
+      return;
+    }
+    final List<Contig> contigs = Lists.newArrayList();
+    for (SAMSequenceRecord sequenceRecord : header.getSequenceDictionary().getSequences()) {
+      final Contig contig = desiredContigForReference(sequenceRecord);
+      if (contig != null) {
+        contigs.add(contig);
+      }
+    }
+    for (Chunk range : ranges) {
+      if (unmappedRequested) {
+        output.output(new BAMShard(filePath, spanOf(range), new Contig("*", 0, -1)));
+      }
+      for (Contig contig : contigs) {
+        output.output(new BAMShard(filePath, spanOf(range), contig));
+      }
+    }
+  }
+
+  /**
+   * Splits the file from the given virtual file pointer to its end into ranges of about
+   * bytesPerShard compressed bytes.
+   * Ranges begin and end at record starts, found without the index the way index-free
+   * BAM splitters find them, and consecutive ranges share their boundary, so every
+   * record is read by exactly one range.
+   * @param start virtual file pointer of a record start, or -1 for the first record.
+   * @return the ranges, or an empty list if the file has no records.
+   */
+  List<Chunk> splitAtRecordStarts(long start, long bytesPerShard) throws IOException {
+    final List<Chunk> ranges = Lists.newArrayList();
+    final SeekableStream stream = BAMIO.openStream(storageClient, filePath, null);
+    try {
+      final BAMRecordBoundaryFinder finder = new BAMRecordBoundaryFinder(stream,
+          header.getSequenceDictionary().size());
+      final long fileLength = finder.getFileLength();
+      long rangeStart = start >= 0 ? start : finder.findFirstRecordStart();
+      if ((rangeStart >>> 16) >= fileLength
+          || finder.findRecordStart(rangeStart >>> 16, fileLength) < 0) {
+        return ranges;
+      }
+      for (long address = (rangeStart >>> 16) + bytesPerShard; address < fileLength;
+          address += bytesPerShard) {
+        final long boundary = finder.findRecordStart(address, fileLength);
+        if (boundary < 0) {
+          break;
+        }
+        if (boundary > rangeStart) {
+          ranges.add(new Chunk(rangeStart, boundary));
+          rangeStart = boundary;
+        }
+      }
+      ranges.add(new Chunk(rangeStart, fileLength << 16));
+    } finally {
+      stream.close();
+    }
+    return ranges;
+  }
+
+  private static SAMFileSpanImpl spanOf(Chunk range) {
+    return new SAMFileSpanImpl(Collections.singletonList(range));
   }
 
   Contig desiredContigForReference(SAMSequenceRecord reference) {
@@ -42,5 +42,49 @@ public interface ShardingPolicy extends SerializableFunction<BAMShard, Boolean>
       return shard.sizeInLoci() > MAX_BASE_PAIRS_PER_SHARD;
     }
   };
-}
 
+  /**
+   * Never finalizes a shard early, so there is one shard per requested contig.
+   */
+  public static ShardingPolicy NEVER_SPLIT_POLICY = new ShardingPolicy() {
+    @Override
+    public Boolean apply(BAMShard shard) {
+      return false;
+    }
+  };
+
+  public static ShardingPolicy byteSize(final long maxBytesPerShard) {
+    return new ShardingPolicy() {
+      @Override
+      public Boolean apply(BAMShard shard) {
+        return shard.approximateSizeInBytes() > maxBytesPerShard;
+      }
+    };
+  }
+
+  public static ShardingPolicy lociSize(final long maxLociPerShard) {
+    return new ShardingPolicy() {
+      @Override
+      public Boolean apply(BAMShard shard) {
+        return shard.sizeInLoci() > maxLociPerShard;
+      }
+    };
+  }
+
+  /**
+   * Finalizes a shard as soon as any of the given policies would.
+   */
+  public static ShardingPolicy anyOf(final ShardingPolicy... policies) {
+    return new ShardingPolicy() {
+      @Override
+      public Boolean apply(BAMShard shard) {
+        for (ShardingPolicy policy : policies) {
+          if (policy.apply(shard)) {
+            return true;
+          }
+        }
+        return false;
+      }
+    };
+  }
+}
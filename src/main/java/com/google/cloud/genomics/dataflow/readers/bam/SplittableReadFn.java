@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import com.google.api.services.storage.Storage;
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.coders.SerializableCoder;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.splittabledofn.OffsetRange;
+import org.apache.beam.sdk.transforms.splittabledofn.OffsetRangeTracker;
+import org.apache.beam.sdk.util.Transport;
+import com.google.cloud.genomics.dataflow.utils.GCSOptions;
+import com.google.cloud.genomics.utils.OfflineAuth;
+import com.google.genomics.v1.Read;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.SAMFileSpanImpl;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.seekablestream.SeekableStream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Splittable version of ReadBAMTransform.ReadFn, so that a shard's chunks are split up
+ * front and reading can be checkpointed and resumed part way through a shard.
+ * Note that the OffsetRangeTracker in this Beam SDK only supports checkpoints, so the
+ * runner cannot split a restriction that is already being read (no dynamic work
+ * rebalancing); only the initial splits and checkpoint/resume happen.
+ * The restriction is a range of BGZF virtual offsets within the chunks of the shard span,
+ * and every record claims its own virtual offset before it is output.
+ * Restrictions start either at a chunk start, which is where the initial splits are made,
+ * or one past the offset of the last record claimed before a checkpoint; in the latter
+ * case reading resumes at that record and skips it, since chunks can only be entered at
+ * a record boundary.
+ * Shards without a span, and unmapped-only shards, are read in one piece by Reader.
+ */
+public class SplittableReadFn extends DoFn<BAMShard, Read> {
+  private static final Logger LOG = Logger.getLogger(SplittableReadFn.class.getName());
+
+  private final OfflineAuth auth;
+  private final ReaderOptions options;
+  private transient Storage.Objects storage;
+
+  public SplittableReadFn(OfflineAuth auth, ReaderOptions options) {
+    this.auth = auth;
+    this.options = options;
+  }
+
+  private boolean isSplittable(BAMShard shard) {
+    return shard.span != null && !shard.span.getChunkList().isEmpty()
+        && Reader.setupFilter(options, shard.contig.referenceName)
+            != Reader.Filter.UNMAPPED_ONLY;
+  }
+
+  @GetInitialRestriction
+  public OffsetRange getInitialRestriction(BAMShard shard) {
+    if (!isSplittable(shard)) {
+      return new OffsetRange(0, 1);
+    }
+    final List<Chunk> chunks = shard.span.getChunkList();
+    return new OffsetRange(chunks.get(0).getChunkStart(),
+        chunks.get(chunks.size() - 1).getChunkEnd());
+  }
+
+  /**
+   * Splits at chunk starts, so that each piece has about options.getBytesPerSplit()
+   * compressed bytes to read.
+   */
+  @SplitRestriction
+  public void splitRestriction(BAMShard shard, OffsetRange range,
+      OutputReceiver<OffsetRange> receiver) {
+    if (!isSplittable(shard)) {
+      receiver.output(range);
+      return;
+    }
+    long pieceStart = range.getFrom();
+    long pieceBytes = 0;
+    for (Chunk chunk : shard.span.getChunkList()) {
+      if (chunk.getChunkEnd() <= range.getFrom() || chunk.getChunkStart() >= range.getTo()) {
+        continue;
+      }
+      if (pieceBytes >= options.getBytesPerSplit() && chunk.getChunkStart() > pieceStart) {
+        receiver.output(new OffsetRange(pieceStart, chunk.getChunkStart()));
+        pieceStart = chunk.getChunkStart();
+        pieceBytes = 0;
+      }
+      pieceBytes += (chunk.getChunkEnd() >>> 16) - (chunk.getChunkStart() >>> 16);
+    }
+    receiver.output(new OffsetRange(pieceStart, range.getTo()));
+  }
+
+  @NewTracker
+  public OffsetRangeTracker newTracker(OffsetRange range) {
+    return new OffsetRangeTracker(range);
+  }
+
+  @GetRestrictionCoder
+  public Coder<OffsetRange> getRestrictionCoder() {
+    return SerializableCoder.of(OffsetRange.class);
+  }
+
+  @StartBundle
+  public void startBundle(DoFn<BAMShard, Read>.StartBundleContext c) throws IOException {
+    storage = Transport.newStorageClient(c.getPipelineOptions().as(GCSOptions.class)).build().objects();
+  }
+
+  @ProcessElement
+  public void processElement(ProcessContext c, OffsetRangeTracker tracker) throws Exception {
+    final Reader reader = new Reader(storage, options, c.element(), c);
+    readShard(c.element(), tracker, reader);
+    reader.updateMetrics();
+  }
+
+  /**
+   * Reads the records of the shard within the restriction of the tracker into the reader.
+   * Marks the tracker done when the records run out before a claim fails, as otherwise
+   * the runner would find the end of the restriction unclaimed.
+   */
+  void readShard(BAMShard shard, OffsetRangeTracker tracker, Reader reader)
+      throws IOException {
+    if (!isSplittable(shard)) {
+      if (tracker.tryClaim(0)) {
+        reader.process();
+      }
+      return;
+    }
+    final OffsetRange range = tracker.currentRestriction();
+    final List<Chunk> chunks = new ArrayList<>();
+    for (Chunk chunk : shard.span.getChunkList()) {
+      if (chunk.getChunkEnd() > range.getFrom() && chunk.getChunkStart() < range.getTo()) {
+        chunks.add(chunk);
+      }
+    }
+    LOG.info("Processing " + shard + " from " + range.getFrom() + " to " + range.getTo()
+        + ", " + chunks.size() + " chunks");
+    final SeekableStream stream = BAMIO.openStream(storage, shard.file, options);
+    ChunkPrefetcher.prefetch(stream, new SAMFileSpanImpl(chunks));
+    final BAMRecordCodec codec = new BAMRecordCodec(
+        BAMMetadataCache.get(storage, shard.file, options).getHeader());
+    try (ParallelBGZFInputStream input =
+        new ParallelBGZFInputStream(stream, Math.max(1, options.getInflaterThreads()))) {
+      codec.setInputStream(input);
+      for (Chunk chunk : chunks) {
+        if (chunk.getChunkStart() >= range.getFrom()) {
+          input.seek(chunk.getChunkStart());
+        } else {
+          // Resuming after a checkpoint: the record before the range is the last one claimed.
+          input.seek(range.getFrom() - 1);
+          skipRecord(input);
+        }
+        while (input.getFilePointer() < chunk.getChunkEnd()) {
+          final long recordStart = input.getFilePointer();
+          if (!tracker.tryClaim(recordStart)) {
+            return;
+          }
+          final SAMRecord record = codec.decode();
+          if (record == null) {
+            tracker.markDone();
+            return;
+          }
+          record.setValidationStringency(options.getStringency());
+          reader.processRecord(record);
+        }
+      }
+    }
+    tracker.markDone();
+  }
+
+  /**
+   * Skips the record at the current position without decoding it.
+   */
+  static void skipRecord(InputStream input) throws IOException {
+    int blockSize = 0;
+    for (int i = 0; i < 4; i++) {
+      final int b = input.read();
+      if (b < 0) {
+        throw new EOFException("End of file in the middle of a record");
+      }
+      blockSize |= b << (8 * i);
+    }
+    long remaining = blockSize;
+    while (remaining > 0) {
+      final long skipped = input.skip(remaining);
+      if (skipped <= 0) {
+        throw new EOFException("End of file in the middle of a record");
+      }
+      remaining -= skipped;
+    }
+  }
+}
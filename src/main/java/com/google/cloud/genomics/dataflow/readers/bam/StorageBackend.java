@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import com.google.api.services.storage.Storage;
+
+import htsjdk.samtools.seekablestream.SeekableStream;
+
+import java.io.IOException;
+
+/**
+ * Where BAM files, their indexes and shard manifests are read from and written to.
+ * Paths are URIs, and the scheme picks the backend: file:// paths are local files,
+ * everything else is in GCS.
+ */
+public interface StorageBackend {
+  /**
+   * Generation of an object that does not exist.
+   */
+  public static final long MISSING_GENERATION = -1;
+
+  /**
+   * @return a new stream over the object, positioned at its start.
+   * @param options streaming settings such as read-ahead; may be null.
+   * @throws IOException if the object does not exist.
+   */
+  SeekableStream open(String path, ReaderOptions options) throws IOException;
+
+  /**
+   * @return a number that changes whenever the content of the object changes,
+   * or MISSING_GENERATION if it does not exist.
+   */
+  long getGeneration(String path) throws IOException;
+
+  /**
+   * Creates or replaces the object.
+   */
+  void write(String path, byte[] content, String mimeType) throws IOException;
+
+  /**
+   * @param storageClient used for GCS paths; may be null for local paths.
+   */
+  public static StorageBackend forPath(Storage.Objects storageClient, String path) {
+    if (path.startsWith(LocalFileStorageBackend.FILE_PREFIX)) {
+      return LocalFileStorageBackend.INSTANCE;
+    }
+    return new GCSStorageBackend(storageClient);
+  }
+}
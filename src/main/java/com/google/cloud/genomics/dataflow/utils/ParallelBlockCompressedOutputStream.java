@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.utils;
+
+import com.google.common.base.Preconditions;
+
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes BGZF like HTSJDK's BlockCompressedOutputStream, but deflates full blocks on a
+ * pool of worker threads and writes the compressed blocks to the underlying stream
+ * in their original order.
+ * At most a bounded number of blocks is in flight, so memory use stays constant and
+ * a slow destination slows down the writer instead of piling up blocks.
+ * Because compressed sizes are only known once blocks are deflated, file pointers
+ * handed out while writing use block ordinals instead of block addresses;
+ * @see #getFilePointer and #getBlockAddresses.
+ */
+public class ParallelBlockCompressedOutputStream extends OutputStream {
+  /**
+   * Uncompressed size of a block. Like samtools, we stay below 64 KB so that even
+   * an incompressible block fits in a BGZF block when stored without compression.
+   */
+  static final int UNCOMPRESSED_BLOCK_SIZE = 0xff00;
+
+  private static final byte[] BLOCK_HEADER = {
+      31, (byte) 139, 8, 4, // ID1, ID2, CM = deflate, FLG = FEXTRA
+      0, 0, 0, 0, // MTIME
+      0, (byte) 255, // XFL, OS = unknown
+      6, 0, // XLEN
+      66, 67, 2, 0 // BC subfield of length 2, followed by BSIZE
+  };
+
+  private final OutputStream out;
+  private final ExecutorService executor;
+  private final int maxBlocksInFlight;
+  private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+  // Address of every block written so far, followed by the number of bytes written.
+  private long[] blockAddresses = new long[64];
+  private int blocksWritten = 0;
+  private int blocksSubmitted = 0;
+  private byte[] buffer = new byte[UNCOMPRESSED_BLOCK_SIZE];
+  private int bufferedBytes = 0;
+  private final byte[] oneByte = new byte[1];
+  private boolean closed = false;
+
+  /**
+   * @param out destination of the compressed blocks.
+   * @param threads number of threads deflating blocks.
+   * @param compressionLevel deflate level, 0-9.
+   */
+  public ParallelBlockCompressedOutputStream(OutputStream out, int threads,
+      final int compressionLevel) {
+    Preconditions.checkArgument(threads > 0, "Need at least one compression thread: %s",
+        threads);
+    Preconditions.checkArgument(compressionLevel >= Deflater.NO_COMPRESSION
+        && compressionLevel <= Deflater.BEST_COMPRESSION,
+        "Invalid compression level: %s", compressionLevel);
+    this.out = out;
+    final AtomicInteger threadCount = new AtomicInteger();
+    this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        return new DeflaterThread(runnable, "bgzf-deflate-" + threadCount.getAndIncrement(),
+            compressionLevel);
+      }
+    });
+    this.maxBlocksInFlight = 2 * threads;
+  }
+
+  /**
+   * Pool thread with deflaters of its own. They are ended when the pool is shut down
+   * by close, instead of holding on to native memory until the thread is collected.
+   */
+  private static class DeflaterThread extends Thread {
+    final Deflater deflater;
+    final Deflater noCompressionDeflater;
+
+    DeflaterThread(Runnable runnable, String name, int compressionLevel) {
+      super(runnable, name);
+      setDaemon(true);
+      this.deflater = new Deflater(compressionLevel, true);
+      this.noCompressionDeflater = new Deflater(Deflater.NO_COMPRESSION, true);
+    }
+
+    @Override
+    public void run() {
+      try {
+        super.run();
+      } finally {
+        deflater.end();
+        noCompressionDeflater.end();
+      }
+    }
+  }
+
+  /**
+   * @return position of the next byte as (block ordinal << 16 | offset in block),
+   * i.e. a BGZF virtual file pointer with the block address replaced by the number of
+   * blocks before it.
+   */
+  public long getFilePointer() {
+    return ((long) blocksSubmitted << 16) | bufferedBytes;
+  }
+
+  /**
+   * @return compressed address of each block written so far, indexed by block ordinal,
+   * followed by the total number of compressed bytes written (not counting the
+   * end of file marker). Complete after close.
+   */
+  public long[] getBlockAddresses() {
+    return Arrays.copyOf(blockAddresses, blocksWritten + 1);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    oneByte[0] = (byte) b;
+    write(oneByte, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] bytes, int offset, int length) throws IOException {
+    while (length > 0) {
+      final int bytesToCopy = Math.min(length, UNCOMPRESSED_BLOCK_SIZE - bufferedBytes);
+      System.arraycopy(bytes, offset, buffer, bufferedBytes, bytesToCopy);
+      bufferedBytes += bytesToCopy;
+      offset += bytesToCopy;
+      length -= bytesToCopy;
+      if (bufferedBytes == UNCOMPRESSED_BLOCK_SIZE) {
+        submitBlock();
+      }
+    }
+  }
+
+  /**
+   * Ends the current block and writes out all blocks compressed so far.
+   * The next byte written will start a new block.
+   */
+  @Override
+  public void flush() throws IOException {
+    if (bufferedBytes > 0) {
+      submitBlock();
+    }
+    while (!pending.isEmpty()) {
+      writeNextBlock();
+    }
+    out.flush();
+  }
+
+  /**
+   * Writes out everything, followed by the empty BGZF block that marks the end of file.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      flush();
+      out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+      out.close();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private void submitBlock() throws IOException {
+    while (pending.size() >= maxBlocksInFlight) {
+      writeNextBlock();
+    }
+    final byte[] uncompressed = buffer;
+    final int length = bufferedBytes;
+    pending.add(executor.submit(new Callable<byte[]>() {
+      @Override
+      public byte[] call() {
+        return compressBlock(uncompressed, length);
+      }
+    }));
+    buffer = new byte[UNCOMPRESSED_BLOCK_SIZE];
+    bufferedBytes = 0;
+    blocksSubmitted++;
+  }
+
+  private void writeNextBlock() throws IOException {
+    final byte[] block;
+    try {
+      block = pending.poll().get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while compressing a BGZF block");
+    } catch (ExecutionException e) {
+      throw new IOException("Error compressing a BGZF block", e.getCause());
+    }
+    out.write(block);
+    if (blocksWritten + 2 > blockAddresses.length) {
+      blockAddresses = Arrays.copyOf(blockAddresses, 2 * blockAddresses.length);
+    }
+    blockAddresses[blocksWritten + 1] = blockAddresses[blocksWritten] + block.length;
+    blocksWritten++;
+  }
+
+  /**
+   * @return a complete BGZF block holding the given bytes.
+   */
+  private byte[] compressBlock(byte[] uncompressed, int length) {
+    final int maxDataLength = BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE
+        - BLOCK_HEADER.length - 2 - 8;
+    final byte[] block = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE];
+    final int dataOffset = BLOCK_HEADER.length + 2;
+    final DeflaterThread thread = (DeflaterThread) Thread.currentThread();
+    int dataLength = deflate(thread.deflater, uncompressed, length, block, dataOffset,
+        maxDataLength);
+    if (dataLength < 0) {
+      // Did not fit, which only happens for incompressible data: store it instead.
+      dataLength = deflate(thread.noCompressionDeflater, uncompressed, length, block,
+          dataOffset, maxDataLength);
+      Preconditions.checkState(dataLength >= 0, "Stored block does not fit in a BGZF block");
+    }
+    final int blockSize = dataOffset + dataLength + 8;
+    System.arraycopy(BLOCK_HEADER, 0, block, 0, BLOCK_HEADER.length);
+    writeShort(block, BLOCK_HEADER.length, blockSize - 1);
+    final CRC32 crc = new CRC32();
+    crc.update(uncompressed, 0, length);
+    writeInt(block, dataOffset + dataLength, (int) crc.getValue());
+    writeInt(block, dataOffset + dataLength + 4, length);
+    return Arrays.copyOf(block, blockSize);
+  }
+
+  /**
+   * @return number of compressed bytes, or -1 if they do not fit in maxLength.
+   */
+  private static int deflate(Deflater deflater, byte[] input, int inputLength,
+      byte[] output, int outputOffset, int maxLength) {
+    deflater.reset();
+    deflater.setInput(input, 0, inputLength);
+    deflater.finish();
+    final int compressedLength = deflater.deflate(output, outputOffset, maxLength);
+    return deflater.finished() ? compressedLength : -1;
+  }
+
+  private static void writeShort(byte[] buffer, int offset, int value) {
+    buffer[offset] = (byte) value;
+    buffer[offset + 1] = (byte) (value >> 8);
+  }
+
+  private static void writeInt(byte[] buffer, int offset, int value) {
+    buffer[offset] = (byte) value;
+    buffer[offset + 1] = (byte) (value >> 8);
+    buffer[offset + 2] = (byte) (value >> 16);
+    buffer[offset + 3] = (byte) (value >> 24);
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.writers.bam;
+
+import java.io.Serializable;
+import java.util.TreeMap;
+
+/**
+ * Index content for the reads of a single written BAM shard, built while the shard
+ * is written (@see BAMIndexFragmentBuilder).
+ * File pointers are relative to the start of the shard; they are rebased
+ * once the position of the shard in the combined file is known.
+ */
+public class BAMIndexFragment implements Serializable {
+  /** Marks linear index windows that have no reads in this shard. */
+  public static final long NO_OFFSET = -1;
+
+  /** Name of the shard file, which determines its position in the combined file. */
+  String shardName;
+
+  /** Size of the shard file, excluding the end of file marker. */
+  long shardSize;
+
+  /** Index of the reference the reads of the shard are on, or -1 if none. */
+  int referenceIndex = -1;
+
+  /** Chunk boundaries (start, end, start, end...) for every bin number with reads. */
+  TreeMap<Integer, long[]> bins = new TreeMap<>();
+
+  /** Smallest file pointer for every 16 kb window, or NO_OFFSET. */
+  long[] linearIndex = new long[0];
+
+  long firstOffset = NO_OFFSET;
+  long lastOffset = NO_OFFSET;
+  long alignedRecords = 0;
+  long unalignedRecords = 0;
+  long noCoordinateRecords = 0;
+
+  public String getShardName() {
+    return shardName;
+  }
+
+  public long getShardSize() {
+    return shardSize;
+  }
+
+  public int getReferenceIndex() {
+    return referenceIndex;
+  }
+
+  /**
+   * @return the file pointer moved by the given number of bytes.
+   */
+  static long rebase(long pointer, long shardOffset) {
+    return pointer + (shardOffset << 16);
+  }
+
+  @Override
+  public String toString() {
+    return shardName + ": reference " + referenceIndex + ", " + bins.size() + " bins, "
+        + alignedRecords + " aligned, " + unalignedRecords + " unaligned, "
+        + noCoordinateRecords + " without coordinates";
+  }
+}
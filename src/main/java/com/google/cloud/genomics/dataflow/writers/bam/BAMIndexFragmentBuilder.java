@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.writers.bam;
+
+import htsjdk.samtools.Bin;
+import htsjdk.samtools.BinningIndexBuilder;
+import htsjdk.samtools.BinningIndexContent;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.IndexingBins;
+import htsjdk.samtools.SAMException;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+
+import java.util.List;
+
+/**
+ * Builds a BAMIndexFragment for a shard as its records are written, the same way
+ * BAMShardIndexer does for records read back from the combined file.
+ * The writer does not know block addresses until the blocks are compressed, so
+ * records come with block ordinals in their file pointers, which are resolved
+ * into addresses in build().
+ */
+public class BAMIndexFragmentBuilder {
+  private final SAMSequenceDictionary sequenceDictionary;
+  private BinningIndexBuilder binningIndexBuilder = null;
+  private final BAMIndexFragment fragment = new BAMIndexFragment();
+
+  public BAMIndexFragmentBuilder(SAMSequenceDictionary sequenceDictionary) {
+    this.sequenceDictionary = sequenceDictionary;
+  }
+
+  /**
+   * Records the index information for a record written between the given pointers,
+   * both in the form (block ordinal << 16 | offset in block).
+   */
+  public void processAlignment(final SAMRecord rec, long start, long end) {
+    if (rec.getAlignmentStart() == SAMRecord.NO_ALIGNMENT_START) {
+      fragment.noCoordinateRecords++;
+      return;
+    }
+    processAlignment(rec.getReferenceIndex(), rec.getAlignmentStart(), rec.getAlignmentEnd(),
+        IndexingBins.getIndexingBin(rec), rec.getReadUnmappedFlag(), start, end);
+  }
+
+  /**
+   * Same as above, for a record in the BAM binary layout, block_size included,
+   * e.g. as it comes out of SortingBAMRecordBuffer.
+   */
+  public void processEncodedAlignment(final byte[] record, long start, long end) {
+    final int reference = readInt(record, 4);
+    final int alignmentStart = readInt(record, 8) + 1;
+    final int binMappingQualityNameLength = readInt(record, 12);
+    final int flagCigarLength = readInt(record, 16);
+    final boolean unmapped = ((flagCigarLength >>> 16) & 0x4) != 0;
+    int referenceLength = 0;
+    int cigarOffset = 36 + (binMappingQualityNameLength & 0xFF);
+    for (int i = 0; i < (flagCigarLength & 0xFFFF); i++, cigarOffset += 4) {
+      final int cigarUnit = readInt(record, cigarOffset);
+      switch (cigarUnit & 0xF) {
+        case 0: // M
+        case 2: // D
+        case 3: // N
+        case 7: // =
+        case 8: // X
+          referenceLength += cigarUnit >>> 4;
+          break;
+        default:
+          break;
+      }
+    }
+    // Same as SAMRecord.getAlignmentEnd().
+    final int alignmentEnd = unmapped
+        ? SAMRecord.NO_ALIGNMENT_START : alignmentStart + referenceLength - 1;
+    processAlignment(reference, alignmentStart, alignmentEnd,
+        binMappingQualityNameLength >>> 16, unmapped, start, end);
+  }
+
+  private static int readInt(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8
+        | (bytes[offset + 2] & 0xFF) << 16 | (bytes[offset + 3] & 0xFF) << 24;
+  }
+
+  /**
+   * Same as above, for a record that was written already encoded
+   * (@see ReadBAMRecordEncoder).
+   */
+  public void processAlignment(int reference, final int alignmentStart,
+      final int alignmentEnd, final int bin, boolean unmapped, long start, long end) {
+    if (alignmentStart == SAMRecord.NO_ALIGNMENT_START) {
+      fragment.noCoordinateRecords++;
+      return;
+    }
+    // Shifted by one block so that no pointer is zero, which
+    // BinningIndexBuilder takes for an empty linear index window.
+    final long chunkStart = start + (1L << 16);
+    final long chunkEnd = end + (1L << 16);
+    if (binningIndexBuilder == null) {
+      fragment.referenceIndex = reference;
+      binningIndexBuilder = new BinningIndexBuilder(reference,
+          sequenceDictionary.getSequence(reference).getSequenceLength());
+    } else if (reference != fragment.referenceIndex) {
+      throw new SAMException("Unexpected reference " + reference +
+          " when constructing index for " + fragment.referenceIndex + " for record at "
+          + alignmentStart);
+    }
+    if (unmapped) {
+      fragment.unalignedRecords++;
+    } else {
+      fragment.alignedRecords++;
+    }
+    if (fragment.firstOffset == BAMIndexFragment.NO_OFFSET) {
+      fragment.firstOffset = chunkStart;
+    }
+    fragment.lastOffset = chunkEnd;
+
+    binningIndexBuilder.processFeature(new BinningIndexBuilder.FeatureToBeIndexed() {
+      @Override
+      public int getStart() {
+        return alignmentStart;
+      }
+
+      @Override
+      public int getEnd() {
+        return alignmentEnd;
+      }
+
+      @Override
+      public Integer getIndexingBin() {
+        return bin;
+      }
+
+      @Override
+      public Chunk getChunk() {
+        return new Chunk(chunkStart, chunkEnd);
+      }
+    });
+  }
+
+  /**
+   * @param blockAddresses compressed address of every block of the shard, followed by
+   * the size of the shard, as returned by ParallelBAMBlockWriter#getBlockAddresses.
+   * @return the fragment with all file pointers relative to the start of the shard.
+   */
+  public BAMIndexFragment build(String shardName, long[] blockAddresses) {
+    fragment.shardName = shardName;
+    fragment.shardSize = blockAddresses[blockAddresses.length - 1];
+    if (binningIndexBuilder == null) {
+      return fragment;
+    }
+    fragment.firstOffset = resolve(fragment.firstOffset, blockAddresses);
+    fragment.lastOffset = resolve(fragment.lastOffset, blockAddresses);
+    final BinningIndexContent content = binningIndexBuilder.generateIndexContent();
+    if (content == null) {
+      return fragment;
+    }
+    for (Bin bin : content.getBins()) {
+      final List<Chunk> chunks = bin.getChunkList();
+      final long[] boundaries = new long[2 * chunks.size()];
+      for (int i = 0; i < chunks.size(); i++) {
+        boundaries[2 * i] = resolve(chunks.get(i).getChunkStart(), blockAddresses);
+        boundaries[2 * i + 1] = resolve(chunks.get(i).getChunkEnd(), blockAddresses);
+      }
+      fragment.bins.put(bin.getBinNumber(), boundaries);
+    }
+    final long[] entries = content.getLinearIndex().getIndexEntries();
+    final int indexStart = content.getLinearIndex().getIndexStart();
+    fragment.linearIndex = new long[indexStart + entries.length];
+    for (int i = 0; i < fragment.linearIndex.length; i++) {
+      final long entry = i < indexStart ? 0 : entries[i - indexStart];
+      fragment.linearIndex[i] = entry == 0
+          ? BAMIndexFragment.NO_OFFSET : resolve(entry, blockAddresses);
+    }
+    return fragment;
+  }
+
+  private static long resolve(long pointer, long[] blockAddresses) {
+    final int ordinal = (int) (pointer >>> 16) - 1;
+    return (blockAddresses[ordinal] << 16) | (pointer & 0xFFFF);
+  }
+}
@@ -29,18 +29,28 @@ import org.apache.beam.sdk.values.PCollectionView;
 import com.google.cloud.genomics.dataflow.utils.GCSOptions;
 import com.google.cloud.genomics.dataflow.utils.GCSOutputOptions;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.nio.channels.Channels;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 /*
  * Takes a set of files that have been written to disk, concatenates them into one
  * file and also appends "EOF" content at the end.
+ * The source files are deleted in batches once the final file has been composed,
+ * on a background thread while the rest of the bundle is processed; the bundle only
+ * finishes once they are gone.
  */
 public class CombineShardsFn extends DoFn<String, String> {
 
@@ -48,31 +58,75 @@ public class CombineShardsFn extends DoFn<String, String> {
 
   private static final int MAX_FILES_FOR_COMPOSE = 32;
   private static final int MAX_RETRY_COUNT = 3;
+  private static final int MAX_CONCURRENT_COMPOSES = 16;
+
+  private static final ExecutorService DELETE_EXECUTOR = Executors.newSingleThreadExecutor(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("shard-cleanup-%d").build());
 
   private static final String FILE_MIME_TYPE = "application/octet-stream";
   private static final Logger LOG = Logger.getLogger(CombineShardsFn.class.getName());
 
   final PCollectionView<Iterable<String>> shards;
   final PCollectionView<byte[]> eofContents;
+  // Deletes started by the current bundle.
+  transient List<Future<Integer>> pendingDeletes;
 
   public CombineShardsFn(PCollectionView<Iterable<String>> shards, PCollectionView<byte[]> eofContent) {
     this.shards = shards;
     this.eofContents = eofContent;
   }
 
+  @Setup
+  public void setup() {
+    pendingDeletes = Lists.newArrayList();
+  }
+
   @ProcessElement
   public void processElement(DoFn<String, String>.ProcessContext c) throws Exception {
+    final Options options = c.getPipelineOptions().as(Options.class);
+    final List<String> filesToDelete = Lists.newArrayList();
     final String result =
         combineShards(
-            c.getPipelineOptions().as(Options.class),
+            options,
             c.element(),
             c.sideInput(shards),
-            c.sideInput(eofContents));
+            c.sideInput(eofContents),
+            filesToDelete);
     c.output(result);
+    // The combined file exists now, so the sources can go; this doesn't affect the result.
+    final GcsUtil gcsUtil = new GcsUtil.GcsUtilFactory().create(options);
+    pendingDeletes.add(DELETE_EXECUTOR.submit(new Callable<Integer>() {
+      @Override
+      public Integer call() {
+        return deleteFiles(gcsUtil, filesToDelete);
+      }
+    }));
+    Metrics.counter(CombineShardsFn.class, "Files to delete").inc(filesToDelete.size());
   }
 
+  /**
+   * Waits for the deletes of the bundle, since the worker may go away as soon as
+   * the bundle is committed; teardown is not guaranteed to run.
+   */
+  @FinishBundle
+  public void finishBundle(DoFn<String, String>.FinishBundleContext c) throws Exception {
+    try {
+      for (Future<Integer> delete : pendingDeletes) {
+        Metrics.counter(CombineShardsFn.class, "Files deleted").inc(delete.get());
+      }
+    } finally {
+      pendingDeletes.clear();
+    }
+  }
+
+  /**
+   * Composes the shards into dest.
+   * @param filesToDelete receives the shards and intermediate files that are no longer
+   * needed once dest exists; the caller is responsible for deleting them.
+   */
   String combineShards(Options options, String dest,
-      Iterable<String> srcShards, byte[] eofContent) throws IOException {
+      Iterable<String> srcShards, byte[] eofContent, List<String> filesToDelete)
+      throws IOException {
     LOG.info("Combining shards into " + dest);
     final Storage.Objects storage = Transport.newStorageClient(
         options
@@ -99,47 +153,88 @@ public class CombineShardsFn extends DoFn<String, String> {
       LOG.info("No EOF content");
     }
 
-    int stageNumber = 0;
-    /*
-     * GCS Compose method takes only up to 32 files, so if we have more
-     * shards than that we need to do a hierarchical combine:
-     * first combine all original shards in groups no more than 32
-     * and then collect the results of these combines and so on until
-     * we have a group of no more than 32 that we can finally combine into
-     * a single file.
-     */
-    while (sortedShardsNames.size() > MAX_FILES_FOR_COMPOSE) {
-      LOG.info("Stage " + stageNumber + ": Have " + sortedShardsNames.size() +
-          " shards: must combine in groups of " + MAX_FILES_FOR_COMPOSE);
-      final ArrayList<String> combinedShards = Lists.newArrayList();
-      for (int idx = 0; idx < sortedShardsNames.size(); idx += MAX_FILES_FOR_COMPOSE) {
-        final int endIdx = Math.min(idx + MAX_FILES_FOR_COMPOSE,
-            sortedShardsNames.size());
-        final List<String> combinableShards = sortedShardsNames.subList(
-            idx, endIdx);
-        final String intermediateCombineResultName = dest + "-" +
-            String.format("%02d",stageNumber) + "-" +
-            String.format("%02d",idx) + "-" +
-            String.format("%02d",endIdx);
-        final String combineResult = composeAndCleanUpShards(storage,
-            combinableShards, intermediateCombineResultName);
-        combinedShards.add(combineResult);
-        LOG.info("Stage " + stageNumber + ": adding combine result for " +
-            idx + "-" + endIdx + ": " + combineResult);
+    final ExecutorService executor = Executors.newFixedThreadPool(MAX_CONCURRENT_COMPOSES,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("compose-%d").build());
+    try {
+      int stageNumber = 0;
+      /*
+       * GCS Compose method takes only up to 32 files, so if we have more
+       * shards than that we need to do a hierarchical combine:
+       * first combine all original shards in groups no more than 32
+       * and then collect the results of these combines and so on until
+       * we have a group of no more than 32 that we can finally combine into
+       * a single file.
+       * The groups of a stage are independent, so they are composed concurrently.
+       */
+      while (sortedShardsNames.size() > MAX_FILES_FOR_COMPOSE) {
+        LOG.info("Stage " + stageNumber + ": Have " + sortedShardsNames.size() +
+            " shards: must combine in groups of " + MAX_FILES_FOR_COMPOSE);
+        Metrics.counter(CombineShardsFn.class, "Files to combine").inc(sortedShardsNames.size());
+        final List<Future<String>> stageResults = Lists.newArrayList();
+        for (int idx = 0; idx < sortedShardsNames.size(); idx += MAX_FILES_FOR_COMPOSE) {
+          final int endIdx = Math.min(idx + MAX_FILES_FOR_COMPOSE,
+              sortedShardsNames.size());
+          final List<String> combinableShards = sortedShardsNames.subList(
+              idx, endIdx);
+          final String intermediateCombineResultName = dest + "-" +
+              String.format("%02d",stageNumber) + "-" +
+              String.format("%02d",idx) + "-" +
+              String.format("%02d",endIdx);
+          stageResults.add(executor.submit(new Callable<String>() {
+            @Override
+            public String call() throws IOException {
+              return composeShards(storage, combinableShards, intermediateCombineResultName);
+            }
+          }));
+        }
+        final ArrayList<String> combinedShards = Lists.newArrayList();
+        for (Future<String> stageResult : stageResults) {
+          final String combineResult = waitFor(stageResult);
+          combinedShards.add(combineResult);
+          LOG.info("Stage " + stageNumber + ": adding combine result " + combineResult);
+        }
+        Metrics.counter(CombineShardsFn.class, "Files combined").inc(sortedShardsNames.size());
+        Metrics.counter(CombineShardsFn.class, "Files created").inc(combinedShards.size());
+        filesToDelete.addAll(sortedShardsNames);
+        LOG.info("Stage " + stageNumber + ": moving to next stage with " +
+            combinedShards.size() + "shards");
+        sortedShardsNames = combinedShards;
+        stageNumber++;
       }
-      LOG.info("Stage " + stageNumber + ": moving to next stage with " +
-          combinedShards.size() + "shards");
-      sortedShardsNames = combinedShards;
-      stageNumber++;
+    } finally {
+      executor.shutdownNow();
     }
 
     LOG.info("Combining a final group of " + sortedShardsNames.size() + " shards");
-    final String combineResult = composeAndCleanUpShards(storage,
+    Metrics.counter(CombineShardsFn.class, "Files to combine").inc(sortedShardsNames.size());
+    final String combineResult = composeShards(storage,
         sortedShardsNames, dest);
+    Metrics.counter(CombineShardsFn.class, "Files combined").inc(sortedShardsNames.size());
+    Metrics.counter(CombineShardsFn.class, "Files created").inc();
+    filesToDelete.addAll(sortedShardsNames);
     return combineResult;
   }
 
- String composeAndCleanUpShards(
+  private static String waitFor(Future<String> compose) throws IOException {
+    try {
+      return compose.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for compose");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Compose failed", e.getCause());
+    }
+  }
+
+  /**
+   * Composes the given files into dest, leaving the sources in place.
+   * Called concurrently for the groups of a stage, so it only logs and doesn't
+   * update metrics, which are not available outside of the DoFn thread.
+   */
+  String composeShards(
       Storage.Objects storage, List<String> shardNames, String dest) throws IOException {
     LOG.info("Combining shards into " + dest);
 
@@ -156,7 +251,6 @@ public class CombineShardsFn extends DoFn<String, String> {
       addedShardCount++;
     }
     LOG.info("Added " + addedShardCount + " shards for composition");
-    Metrics.counter(CombineShardsFn.class, "Files to combine").inc(addedShardCount);
 
     final ComposeRequest composeRequest =
         new ComposeRequest().setDestination(destination).setSourceObjects(sourceObjects);
@@ -165,25 +259,28 @@ public class CombineShardsFn extends DoFn<String, String> {
     final StorageObject result = compose.execute();
     final String combineResult = GcsPath.fromObject(result).toString();
     LOG.info("Combine result is " + combineResult);
-    Metrics.counter(CombineShardsFn.class, "Files combined").inc(addedShardCount);
-    Metrics.counter(CombineShardsFn.class, "Files created").inc();
-    for (SourceObjects sourceObject : sourceObjects) {
-      final String shardToDelete = sourceObject.getName();
-      LOG.info("Cleaning up shard  " + shardToDelete + " for result " + dest);
-      int retryCount = MAX_RETRY_COUNT;
-      boolean done = false;
-      while (!done && retryCount > 0) {
-        try {
-          storage.delete(destPath.getBucket(), shardToDelete).execute();
-          done = true;
-        } catch (Exception ex) {
-          LOG.info("Error deleting " + ex.getMessage() + retryCount + " retries left");
-        }
+    return combineResult;
+  }
+
+  /**
+   * Deletes the given files. GcsUtil groups the deletes into batch requests and
+   * sends the batches concurrently; already deleted files are not an error, so
+   * a failed attempt can simply be repeated.
+   * Failures are logged and otherwise ignored, as leftover files don't affect the result.
+   * @return number of files deleted.
+   */
+  static int deleteFiles(GcsUtil gcsUtil, List<String> files) {
+    LOG.info("Cleaning up " + files.size() + " files");
+    int retryCount = MAX_RETRY_COUNT;
+    while (retryCount > 0) {
+      try {
+        gcsUtil.remove(files);
+        return files.size();
+      } catch (Exception ex) {
         retryCount--;
+        LOG.info("Error deleting " + ex.getMessage() + " " + retryCount + " retries left");
       }
-      Metrics.counter(CombineShardsFn.class, "Files deleted").inc();
     }
-
-    return combineResult;
+    return 0;
   }
 }
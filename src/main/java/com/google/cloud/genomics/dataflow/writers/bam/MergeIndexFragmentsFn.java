@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.writers.bam;
+
+import org.apache.beam.sdk.metrics.Metrics;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.util.GcsUtil;
+import org.apache.beam.sdk.util.gcsfs.GcsPath;
+import org.apache.beam.sdk.values.PCollectionView;
+import com.google.cloud.genomics.dataflow.readers.bam.BAMIO;
+import com.google.cloud.genomics.dataflow.readers.bam.HeaderInfo;
+import com.google.cloud.genomics.dataflow.utils.GCSOutputOptions;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
+
+import htsjdk.samtools.GenomicIndexUtil;
+import htsjdk.samtools.util.BinaryCodec;
+
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Writes the BAI file for the combined BAM from the index fragments built while
+ * the shards were written, instead of reading the combined BAM back.
+ * The input is the path of the combined BAM file, so that the index is only written
+ * once the shards have been combined, and the output is the path of the BAI file.
+ * Shards are combined in the order of their names, so this is the order in which
+ * the fragments are rebased and merged.
+ */
+public class MergeIndexFragmentsFn extends DoFn<String, String> {
+  private static final Logger LOG = Logger.getLogger(MergeIndexFragmentsFn.class.getName());
+
+  public static interface Options extends GCSOutputOptions {}
+
+  private static final byte[] BAM_INDEX_MAGIC = {'B', 'A', 'I', 1};
+
+  final PCollectionView<Iterable<BAMIndexFragment>> fragmentsView;
+  final PCollectionView<HeaderInfo> headerView;
+
+  public MergeIndexFragmentsFn(PCollectionView<Iterable<BAMIndexFragment>> fragmentsView,
+      PCollectionView<HeaderInfo> headerView) {
+    this.fragmentsView = fragmentsView;
+    this.headerView = headerView;
+  }
+
+  @ProcessElement
+  public void processElement(DoFn<String, String>.ProcessContext c) throws Exception {
+    final Stopwatch stopWatch = Stopwatch.createStarted();
+    final String baiFilePath = c.element() + ".bai";
+    final List<BAMIndexFragment> fragments = Lists.newArrayList(c.sideInput(fragmentsView));
+    final int referenceCount =
+        c.sideInput(headerView).header.getSequenceDictionary().size();
+    LOG.info("Merging " + fragments.size() + " index fragments into " + baiFilePath);
+    final OutputStream outputStream =
+        Channels.newOutputStream(
+            new GcsUtil.GcsUtilFactory().create(c.getPipelineOptions().as(Options.class))
+              .create(GcsPath.fromUri(baiFilePath),
+                  BAMIO.BAM_INDEX_FILE_MIME_TYPE));
+    writeIndex(fragments, referenceCount, outputStream);
+    outputStream.close();
+    c.output(baiFilePath);
+    Metrics.counter(MergeIndexFragmentsFn.class, "Merged index fragments").inc(fragments.size());
+    Metrics.distribution(MergeIndexFragmentsFn.class, "Index merging time (sec)")
+        .update(stopWatch.elapsed(TimeUnit.SECONDS));
+  }
+
+  /**
+   * Rebases the fragments to their shard positions and writes a complete BAI file.
+   */
+  static void writeIndex(List<BAMIndexFragment> fragments, int referenceCount,
+      OutputStream output) {
+    final List<BAMIndexFragment> sorted = new ArrayList<>(fragments);
+    Collections.sort(sorted, new Comparator<BAMIndexFragment>() {
+      @Override
+      public int compare(BAMIndexFragment a, BAMIndexFragment b) {
+        return a.shardName.compareTo(b.shardName);
+      }
+    });
+    final List<List<BAMIndexFragment>> fragmentsByReference = new ArrayList<>();
+    final List<List<Long>> offsetsByReference = new ArrayList<>();
+    for (int i = 0; i < referenceCount; i++) {
+      fragmentsByReference.add(new ArrayList<BAMIndexFragment>());
+      offsetsByReference.add(new ArrayList<Long>());
+    }
+    long shardOffset = 0;
+    long noCoordinateRecords = 0;
+    for (BAMIndexFragment fragment : sorted) {
+      if (fragment.referenceIndex >= 0) {
+        fragmentsByReference.get(fragment.referenceIndex).add(fragment);
+        offsetsByReference.get(fragment.referenceIndex).add(shardOffset);
+      }
+      noCoordinateRecords += fragment.noCoordinateRecords;
+      shardOffset += fragment.shardSize;
+    }
+
+    final BinaryCodec codec = new BinaryCodec(output);
+    codec.writeBytes(BAM_INDEX_MAGIC);
+    codec.writeInt(referenceCount);
+    for (int i = 0; i < referenceCount; i++) {
+      writeReference(codec, fragmentsByReference.get(i), offsetsByReference.get(i));
+    }
+    codec.writeLong(noCoordinateRecords);
+  }
+
+  /**
+   * Writes the content for one reference in the same layout as BinaryBAMShardIndexWriter.
+   */
+  static void writeReference(BinaryCodec codec, List<BAMIndexFragment> fragments,
+      List<Long> shardOffsets) {
+    final TreeMap<Integer, List<Long>> bins = new TreeMap<>();
+    long[] linearIndex = new long[0];
+    long firstOffset = BAMIndexFragment.NO_OFFSET;
+    long lastOffset = BAMIndexFragment.NO_OFFSET;
+    long alignedRecords = 0;
+    long unalignedRecords = 0;
+    for (int f = 0; f < fragments.size(); f++) {
+      final BAMIndexFragment fragment = fragments.get(f);
+      final long shardOffset = shardOffsets.get(f);
+      if (fragment.bins.isEmpty()) {
+        continue;
+      }
+      for (Map.Entry<Integer, long[]> bin : fragment.bins.entrySet()) {
+        List<Long> chunks = bins.get(bin.getKey());
+        if (chunks == null) {
+          chunks = new ArrayList<>();
+          bins.put(bin.getKey(), chunks);
+        }
+        for (long boundary : bin.getValue()) {
+          chunks.add(BAMIndexFragment.rebase(boundary, shardOffset));
+        }
+      }
+      if (fragment.linearIndex.length > linearIndex.length) {
+        final int oldLength = linearIndex.length;
+        linearIndex = Arrays.copyOf(linearIndex, fragment.linearIndex.length);
+        Arrays.fill(linearIndex, oldLength, linearIndex.length, BAMIndexFragment.NO_OFFSET);
+      }
+      for (int i = 0; i < fragment.linearIndex.length; i++) {
+        // Fragments come in file order, so the first offset seen for a window is the smallest.
+        if (linearIndex[i] == BAMIndexFragment.NO_OFFSET
+            && fragment.linearIndex[i] != BAMIndexFragment.NO_OFFSET) {
+          linearIndex[i] = BAMIndexFragment.rebase(fragment.linearIndex[i], shardOffset);
+        }
+      }
+      if (firstOffset == BAMIndexFragment.NO_OFFSET) {
+        firstOffset = BAMIndexFragment.rebase(fragment.firstOffset, shardOffset);
+      }
+      lastOffset = BAMIndexFragment.rebase(fragment.lastOffset, shardOffset);
+      alignedRecords += fragment.alignedRecords;
+      unalignedRecords += fragment.unalignedRecords;
+    }
+
+    if (bins.isEmpty()) {
+      // 0 bins, 0 intervals
+      codec.writeLong(0);
+      return;
+    }
+    codec.writeInt(bins.size() + 1);
+    for (Map.Entry<Integer, List<Long>> bin : bins.entrySet()) {
+      codec.writeInt(bin.getKey());
+      codec.writeInt(bin.getValue().size() / 2);
+      for (long boundary : bin.getValue()) {
+        codec.writeLong(boundary);
+      }
+    }
+    // Metadata pseudo-bin.
+    codec.writeInt(GenomicIndexUtil.MAX_BINS);
+    codec.writeInt(2);
+    codec.writeLong(firstOffset);
+    codec.writeLong(lastOffset);
+    codec.writeLong(alignedRecords);
+    codec.writeLong(unalignedRecords);
+
+    // Like samtools, windows without reads point at the last window that has some.
+    codec.writeInt(linearIndex.length);
+    long lastEntry = 0;
+    for (long entry : linearIndex) {
+      if (entry != BAMIndexFragment.NO_OFFSET) {
+        lastEntry = entry;
+      }
+      codec.writeLong(lastEntry);
+    }
+  }
+}
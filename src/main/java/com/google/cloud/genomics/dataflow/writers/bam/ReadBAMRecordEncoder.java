@@ -0,0 +1,446 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.writers.bam;
+
+import com.google.cloud.genomics.utils.grpc.ReadUtils;
+import com.google.genomics.v1.CigarUnit;
+import com.google.genomics.v1.LinearAlignment;
+import com.google.genomics.v1.Position;
+import com.google.genomics.v1.Read;
+import com.google.protobuf.ListValue;
+import com.google.protobuf.Value;
+
+import htsjdk.samtools.IndexingBins;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.TagValueAndUnsignedArrayFlag;
+import htsjdk.samtools.TextTagCodec;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Encodes Reads straight into the BAM binary record layout, without building a SAMRecord
+ * first. The record, including its leading block_size, is written into a buffer that is
+ * reused from one read to the next, so encoding allocates next to nothing.
+ * Fields are mapped as in ReadUtils.makeSAMRecord. Tags from the info map are written as
+ * integers or floats when they hold a single number, and as integer or float arrays when
+ * they hold several numbers. Tags holding strings, which is how makeReadGrpc stores them,
+ * get the type ReadUtils.getTagType gives them, as in makeSAMRecord, and are strings
+ * if it does not know them.
+ * The position fields of the last encoded record are kept for indexing and sorting.
+ */
+public class ReadBAMRecordEncoder {
+  private static final byte[] BASE_CODES = new byte[128];
+  static {
+    Arrays.fill(BASE_CODES, (byte) 15);
+    final String bases = "=ACMGRSVTWYHKDBN";
+    for (int i = 0; i < bases.length(); i++) {
+      BASE_CODES[bases.charAt(i)] = (byte) i;
+      BASE_CODES[Character.toLowerCase(bases.charAt(i))] = (byte) i;
+    }
+  }
+
+  private final SAMFileHeader header;
+  private final boolean placeUnmappedWithMate;
+  private final TextTagCodec tagCodec = new TextTagCodec();
+  private byte[] buffer = new byte[1024];
+  private int length;
+
+  private int referenceIndex;
+  private int alignmentStart;
+  private int alignmentEnd;
+  private int bin;
+  private boolean readUnmapped;
+
+  /**
+   * @param placeUnmappedWithMate give unmapped reads with a mapped mate the reference and
+   * position of their mate, as WriteBAMFn does, so they sort and index next to it.
+   */
+  public ReadBAMRecordEncoder(SAMFileHeader header, boolean placeUnmappedWithMate) {
+    this.header = header;
+    this.placeUnmappedWithMate = placeUnmappedWithMate;
+  }
+
+  /**
+   * Encodes the read, replacing the previously encoded record.
+   * @return the length of the record in getBuffer().
+   */
+  public int encode(Read read) {
+    length = 0;
+    final boolean hasAlignment = read.hasAlignment()
+        && !read.getAlignment().getPosition().getReferenceName().isEmpty();
+    final boolean hasMate = read.hasNextMatePosition()
+        && !read.getNextMatePosition().getReferenceName().isEmpty();
+    final LinearAlignment alignment = read.getAlignment();
+    final Position position = alignment.getPosition();
+    final Position mate = read.getNextMatePosition();
+
+    readUnmapped = !hasAlignment;
+    referenceIndex = hasAlignment ? referenceIndex(position.getReferenceName()) : -1;
+    alignmentStart = hasAlignment
+        ? (int) position.getPosition() + 1 : SAMRecord.NO_ALIGNMENT_START;
+    if (readUnmapped && placeUnmappedWithMate && hasMate) {
+      referenceIndex = referenceIndex(mate.getReferenceName());
+      alignmentStart = (int) mate.getPosition() + 1;
+    }
+    int referenceLength = 0;
+    for (CigarUnit unit : alignment.getCigarList()) {
+      if (consumesReference(unit.getOperation())) {
+        referenceLength += (int) unit.getOperationLength();
+      }
+    }
+    // Same as SAMRecord.getAlignmentEnd() and computeIndexingBin(), which gives
+    // reads without a position the bin of [-1, 0), i.e. 4680.
+    alignmentEnd = readUnmapped
+        ? SAMRecord.NO_ALIGNMENT_START : alignmentStart + referenceLength - 1;
+    bin = IndexingBins.regionToBin(alignmentStart - 1,
+        alignmentEnd <= 0 ? alignmentStart : alignmentEnd);
+
+    final String readName = read.getFragmentName().isEmpty() ? "*" : read.getFragmentName();
+    final String sequence = read.getAlignedSequence();
+    final int sequenceLength = sequence.isEmpty() || sequence.equals("*") ? 0 : sequence.length();
+
+    putInt(0); // block_size, filled in at the end.
+    putInt(referenceIndex);
+    putInt(alignmentStart - 1);
+    putByte(readName.length() + 1);
+    putByte(hasAlignment ? alignment.getMappingQuality() : 0);
+    putShort(bin);
+    putShort(alignment.getCigarCount());
+    putShort(flags(read, hasAlignment, hasMate));
+    putInt(sequenceLength);
+    putInt(hasMate ? referenceIndex(mate.getReferenceName()) : -1);
+    putInt(hasMate ? (int) mate.getPosition() : -1);
+    putInt(read.getFragmentLength());
+    putString(readName);
+    putByte(0);
+    for (CigarUnit unit : alignment.getCigarList()) {
+      putInt((int) unit.getOperationLength() << 4 | operationCode(unit.getOperation()));
+    }
+    putSequence(sequence, sequenceLength);
+    putQualities(read, sequenceLength);
+    for (Map.Entry<String, ListValue> tag : read.getInfo().entrySet()) {
+      putTag(tag.getKey(), tag.getValue());
+    }
+    writeInt(0, length - 4);
+    return length;
+  }
+
+  /**
+   * @return the buffer holding the last encoded record; only valid until the next encode().
+   */
+  public byte[] getBuffer() {
+    return buffer;
+  }
+
+  public int getLength() {
+    return length;
+  }
+
+  public int getReferenceIndex() {
+    return referenceIndex;
+  }
+
+  public int getAlignmentStart() {
+    return alignmentStart;
+  }
+
+  public int getAlignmentEnd() {
+    return alignmentEnd;
+  }
+
+  public int getIndexingBin() {
+    return bin;
+  }
+
+  public boolean getReadUnmappedFlag() {
+    return readUnmapped;
+  }
+
+  private int referenceIndex(String referenceName) {
+    return header.getSequenceIndex(referenceName);
+  }
+
+  private static int flags(Read read, boolean hasAlignment, boolean hasMate) {
+    int flags = 0;
+    final boolean paired = read.getNumberReads() == 2;
+    if (paired) {
+      flags |= 0x1;
+      if (!hasMate) {
+        flags |= 0x8;
+      } else if (read.getNextMatePosition().getReverseStrand()) {
+        flags |= 0x20;
+      }
+      if (read.getReadNumber() == 0) {
+        flags |= 0x40;
+      } else if (read.getReadNumber() == 1) {
+        flags |= 0x80;
+      }
+    }
+    if (read.getProperPlacement()) {
+      flags |= 0x2;
+    }
+    if (!hasAlignment) {
+      flags |= 0x4;
+    } else if (read.getAlignment().getPosition().getReverseStrand()) {
+      flags |= 0x10;
+    }
+    if (read.getSecondaryAlignment()) {
+      flags |= 0x100;
+    }
+    if (read.getFailedVendorQualityChecks()) {
+      flags |= 0x200;
+    }
+    if (read.getDuplicateFragment()) {
+      flags |= 0x400;
+    }
+    if (read.getSupplementaryAlignment()) {
+      flags |= 0x800;
+    }
+    return flags;
+  }
+
+  private static boolean consumesReference(CigarUnit.Operation operation) {
+    switch (operation) {
+      case ALIGNMENT_MATCH:
+      case DELETE:
+      case SKIP:
+      case SEQUENCE_MATCH:
+      case SEQUENCE_MISMATCH:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private static int operationCode(CigarUnit.Operation operation) {
+    switch (operation) {
+      case ALIGNMENT_MATCH:
+        return 0;
+      case INSERT:
+        return 1;
+      case DELETE:
+        return 2;
+      case SKIP:
+        return 3;
+      case CLIP_SOFT:
+        return 4;
+      case CLIP_HARD:
+        return 5;
+      case PAD:
+        return 6;
+      case SEQUENCE_MATCH:
+        return 7;
+      case SEQUENCE_MISMATCH:
+        return 8;
+      default:
+        throw new IllegalArgumentException("Unexpected CIGAR operation: " + operation);
+    }
+  }
+
+  private void putSequence(String sequence, int sequenceLength) {
+    ensureCapacity((sequenceLength + 1) / 2);
+    for (int i = 0; i < sequenceLength; i += 2) {
+      final int high = baseCode(sequence.charAt(i));
+      final int low = i + 1 < sequenceLength ? baseCode(sequence.charAt(i + 1)) : 0;
+      buffer[length++] = (byte) (high << 4 | low);
+    }
+  }
+
+  private static int baseCode(char base) {
+    return base < BASE_CODES.length ? BASE_CODES[base] : 15;
+  }
+
+  /**
+   * Writes the qualities, or 0xFF for every base, meaning none, unless there is
+   * exactly one quality per base.
+   */
+  private void putQualities(Read read, int sequenceLength) {
+    ensureCapacity(sequenceLength);
+    final boolean hasQualities = read.getAlignedQualityCount() == sequenceLength;
+    for (int i = 0; i < sequenceLength; i++) {
+      buffer[length++] = hasQualities ? (byte) read.getAlignedQuality(i) : (byte) 0xFF;
+    }
+  }
+
+  private void putTag(String tag, ListValue values) {
+    if (tag.length() != 2 || values.getValuesCount() == 0) {
+      return;
+    }
+    putString(tag);
+    boolean numbers = true;
+    boolean integers = true;
+    for (Value value : values.getValuesList()) {
+      if (value.getKindCase() != Value.KindCase.NUMBER_VALUE) {
+        numbers = false;
+        break;
+      }
+      integers &= isInteger(value.getNumberValue());
+    }
+    if (numbers) {
+      if (values.getValuesCount() > 1) {
+        putByte('B');
+        putByte(integers ? 'i' : 'f');
+        putInt(values.getValuesCount());
+      } else {
+        putByte(integers ? 'i' : 'f');
+      }
+      for (Value value : values.getValuesList()) {
+        putInt(integers ? (int) value.getNumberValue()
+            : Float.floatToIntBits((float) value.getNumberValue()));
+      }
+      return;
+    }
+    final String type = ReadUtils.getTagType(tag);
+    if (!type.equals("Z")) {
+      // makeSAMRecord sets the tag once per value, so the last one wins.
+      putTypedValue(tagCodec.decode(tag + ":" + type + ":"
+          + valueString(values.getValues(values.getValuesCount() - 1))).getValue());
+      return;
+    }
+    putByte('Z');
+    for (int i = 0; i < values.getValuesCount(); i++) {
+      if (i > 0) {
+        putByte(',');
+      }
+      putString(valueString(values.getValues(i)));
+    }
+    putByte(0);
+  }
+
+  /**
+   * Writes the type and value of a tag value decoded by TextTagCodec.
+   */
+  private void putTypedValue(Object value) {
+    boolean unsigned = false;
+    if (value instanceof TagValueAndUnsignedArrayFlag) {
+      unsigned = ((TagValueAndUnsignedArrayFlag) value).isUnsignedArray;
+      value = ((TagValueAndUnsignedArrayFlag) value).value;
+    }
+    if (value instanceof Integer || value instanceof Long) {
+      final long number = ((Number) value).longValue();
+      putByte(number > Integer.MAX_VALUE ? 'I' : 'i');
+      putInt((int) number);
+    } else if (value instanceof Float) {
+      putByte('f');
+      putInt(Float.floatToIntBits((Float) value));
+    } else if (value instanceof Character) {
+      putByte('A');
+      putByte((Character) value);
+    } else if (value instanceof byte[]) {
+      final byte[] array = (byte[]) value;
+      putArrayHeader(unsigned ? 'C' : 'c', array.length);
+      for (byte element : array) {
+        putByte(element);
+      }
+    } else if (value instanceof short[]) {
+      final short[] array = (short[]) value;
+      putArrayHeader(unsigned ? 'S' : 's', array.length);
+      for (short element : array) {
+        putShort(element);
+      }
+    } else if (value instanceof int[]) {
+      final int[] array = (int[]) value;
+      putArrayHeader(unsigned ? 'I' : 'i', array.length);
+      for (int element : array) {
+        putInt(element);
+      }
+    } else if (value instanceof float[]) {
+      final float[] array = (float[]) value;
+      putArrayHeader('f', array.length);
+      for (float element : array) {
+        putInt(Float.floatToIntBits(element));
+      }
+    } else {
+      putByte('Z');
+      putString(String.valueOf(value));
+      putByte(0);
+    }
+  }
+
+  private void putArrayHeader(char elementType, int count) {
+    putByte('B');
+    putByte(elementType);
+    putInt(count);
+  }
+
+  private static boolean isInteger(double number) {
+    return number == Math.rint(number)
+        && number >= Integer.MIN_VALUE && number <= Integer.MAX_VALUE;
+  }
+
+  private static String valueString(Value value) {
+    switch (value.getKindCase()) {
+      case STRING_VALUE:
+        return value.getStringValue();
+      case NUMBER_VALUE:
+        return String.valueOf(value.getNumberValue());
+      case BOOL_VALUE:
+        return String.valueOf(value.getBoolValue());
+      default:
+        return "";
+    }
+  }
+
+  private void ensureCapacity(int bytes) {
+    if (length + bytes > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(length + bytes, 2 * buffer.length));
+    }
+  }
+
+  private void putByte(int value) {
+    ensureCapacity(1);
+    buffer[length++] = (byte) value;
+  }
+
+  private void putShort(int value) {
+    ensureCapacity(2);
+    buffer[length++] = (byte) value;
+    buffer[length++] = (byte) (value >>> 8);
+  }
+
+  private void putInt(int value) {
+    ensureCapacity(4);
+    writeInt(length, value);
+    length += 4;
+  }
+
+  private void writeInt(int offset, int value) {
+    buffer[offset] = (byte) value;
+    buffer[offset + 1] = (byte) (value >>> 8);
+    buffer[offset + 2] = (byte) (value >>> 16);
+    buffer[offset + 3] = (byte) (value >>> 24);
+  }
+
+  private void putString(String value) {
+    final int stringLength = value.length();
+    ensureCapacity(stringLength);
+    for (int i = 0; i < stringLength; i++) {
+      final char c = value.charAt(i);
+      if (c >= 0x80) {
+        // Not expected in BAM text fields; fall back to the proper encoding.
+        final byte[] bytes = value.substring(i).getBytes(StandardCharsets.UTF_8);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+        return;
+      }
+      buffer[length++] = (byte) c;
+    }
+  }
+}
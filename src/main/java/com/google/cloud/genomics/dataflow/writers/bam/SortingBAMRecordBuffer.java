@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.writers.bam;
+
+import com.google.common.base.Preconditions;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.RuntimeIOException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.logging.Logger;
+
+/**
+ * Collects the records of a shard and returns them sorted by reference and position.
+ * Records are kept BAM-encoded in a bounded in-memory buffer; whenever it fills up,
+ * it is sorted and spilled to a temporary file, and at the end the spilled runs and
+ * what is left in memory are merged.
+ * Records with the same position come out in the order they were added.
+ * Each spilled run is deleted as soon as it has been merged; close deletes whatever
+ * is left, e.g. when the shard fails before its records are merged.
+ */
+public class SortingBAMRecordBuffer implements Closeable {
+  private static final Logger LOG = Logger.getLogger(SortingBAMRecordBuffer.class.getName());
+
+  // Offsets of refID and pos in an encoded record, after the block_size field.
+  private static final int REFERENCE_OFFSET = 4;
+  private static final int POSITION_OFFSET = 8;
+
+  private final SAMFileHeader header;
+  private final int maxBufferBytes;
+  private final File tempDirectory;
+  private final BAMRecordCodec encoder;
+  private final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+
+  private byte[] buffer = new byte[64 * 1024];
+  private int bufferedBytes = 0;
+  private int[] offsets = new int[1024];
+  private long[] keys = new long[1024];
+  private int recordCount = 0;
+  private final List<File> runs = new ArrayList<>();
+
+  /**
+   * @param maxBufferBytes size of the in-memory buffer, in bytes of encoded records.
+   * @param tempDirectory where to spill sorted runs.
+   */
+  public SortingBAMRecordBuffer(SAMFileHeader header, int maxBufferBytes, File tempDirectory) {
+    Preconditions.checkArgument(maxBufferBytes > 0, "Invalid buffer size: %s", maxBufferBytes);
+    this.header = header;
+    this.maxBufferBytes = maxBufferBytes;
+    this.tempDirectory = tempDirectory;
+    this.encoder = new BAMRecordCodec(header);
+    this.encoder.setOutputStream(encoded);
+  }
+
+  public void add(SAMRecord record) throws IOException {
+    encoded.reset();
+    encoder.encode(record);
+    addEncoded(encoded.toByteArray(), encoded.size());
+  }
+
+  /**
+   * Adds a record that is already in the BAM binary layout, block_size included.
+   */
+  public void addEncoded(byte[] record, int length) throws IOException {
+    if (bufferedBytes + length > maxBufferBytes && recordCount > 0) {
+      spill();
+    }
+    if (bufferedBytes + length > buffer.length) {
+      buffer = Arrays.copyOf(buffer,
+          Math.max(bufferedBytes + length, Math.min(maxBufferBytes, 2 * buffer.length)));
+    }
+    if (recordCount == offsets.length) {
+      offsets = Arrays.copyOf(offsets, 2 * recordCount);
+      keys = Arrays.copyOf(keys, 2 * recordCount);
+    }
+    System.arraycopy(record, 0, buffer, bufferedBytes, length);
+    offsets[recordCount] = bufferedBytes;
+    keys[recordCount] = sortKey(buffer, bufferedBytes);
+    recordCount++;
+    bufferedBytes += length;
+  }
+
+  /**
+   * @return number of sorted runs spilled to disk so far.
+   */
+  public int getSpilledRunCount() {
+    return runs.size();
+  }
+
+  /**
+   * Returns all records added so far in sorted order. No more records may be added.
+   * Closing the iterator deletes the spilled runs.
+   */
+  public CloseableIterator<SAMRecord> sortedRecords() throws IOException {
+    final CloseableIterator<byte[]> encodedRecords = sortedEncodedRecords();
+    final BAMRecordCodec decoder = new BAMRecordCodec(header);
+    return new CloseableIterator<SAMRecord>() {
+      @Override
+      public boolean hasNext() {
+        return encodedRecords.hasNext();
+      }
+
+      @Override
+      public SAMRecord next() {
+        decoder.setInputStream(new ByteArrayInputStream(encodedRecords.next()));
+        return decoder.decode();
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("Not supported: remove");
+      }
+
+      @Override
+      public void close() {
+        encodedRecords.close();
+      }
+    };
+  }
+
+  /**
+   * Same as sortedRecords, but returns the records in the BAM binary layout,
+   * block_size included, so that they can be written without decoding them.
+   */
+  public CloseableIterator<byte[]> sortedEncodedRecords() throws IOException {
+    final List<RunCursor> cursors = new ArrayList<>();
+    for (File run : runs) {
+      cursors.add(new FileRunCursor(run, cursors.size()));
+    }
+    cursors.add(new MemoryRunCursor(sortedIndices(), cursors.size()));
+    return new MergingIterator(cursors);
+  }
+
+  /**
+   * Deletes the spilled runs that have not been merged yet.
+   */
+  @Override
+  public void close() {
+    for (File run : runs) {
+      if (run.exists() && !run.delete()) {
+        LOG.warning("Could not delete " + run);
+      }
+    }
+    runs.clear();
+  }
+
+  /**
+   * Coordinate order: by reference, with records without a reference last, then by position.
+   */
+  private static long sortKey(byte[] record, int offset) {
+    final int reference = readInt(record, offset + REFERENCE_OFFSET);
+    final int position = readInt(record, offset + POSITION_OFFSET);
+    final long referenceKey = reference < 0 ? Integer.MAX_VALUE : reference;
+    return (referenceKey << 32) | (position + 1L);
+  }
+
+  private static int readInt(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8
+        | (bytes[offset + 2] & 0xFF) << 16 | (bytes[offset + 3] & 0xFF) << 24;
+  }
+
+  private static int recordLength(byte[] bytes, int offset) {
+    return 4 + readInt(bytes, offset);
+  }
+
+  /**
+   * Sorts the buffered records without boxing: each key is replaced by its rank among
+   * the distinct keys, and the rank and the record index are packed into a single long,
+   * so that equal keys keep the order in which they were added.
+   */
+  private int[] sortedIndices() {
+    final long[] distinctKeys = Arrays.copyOf(keys, recordCount);
+    Arrays.sort(distinctKeys);
+    int distinctCount = 0;
+    for (int i = 0; i < recordCount; i++) {
+      if (distinctCount == 0 || distinctKeys[distinctCount - 1] != distinctKeys[i]) {
+        distinctKeys[distinctCount++] = distinctKeys[i];
+      }
+    }
+    final long[] packed = new long[recordCount];
+    for (int i = 0; i < recordCount; i++) {
+      final long rank = Arrays.binarySearch(distinctKeys, 0, distinctCount, keys[i]);
+      packed[i] = rank << 32 | i;
+    }
+    Arrays.sort(packed);
+    final int[] indices = new int[recordCount];
+    for (int i = 0; i < recordCount; i++) {
+      indices[i] = (int) packed[i];
+    }
+    return indices;
+  }
+
+  private void spill() throws IOException {
+    final File run = File.createTempFile("bam-sort-", ".run", tempDirectory);
+    runs.add(run);
+    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(run), 1 << 16)) {
+      for (int index : sortedIndices()) {
+        final int offset = offsets[index];
+        out.write(buffer, offset, recordLength(buffer, offset));
+      }
+    }
+    LOG.info("Spilled " + recordCount + " records, " + bufferedBytes + " bytes to " + run);
+    recordCount = 0;
+    bufferedBytes = 0;
+  }
+
+  /**
+   * A sorted sequence of encoded records.
+   */
+  private abstract static class RunCursor {
+    final int runIndex;
+    byte[] record;
+    long key;
+
+    RunCursor(int runIndex) {
+      this.runIndex = runIndex;
+    }
+
+    /**
+     * Moves to the next record.
+     * @return false if the run is exhausted.
+     */
+    abstract boolean advance() throws IOException;
+
+    void close() throws IOException {
+    }
+  }
+
+  private class MemoryRunCursor extends RunCursor {
+    private final int[] indices;
+    private int next = 0;
+
+    MemoryRunCursor(int[] indices, int runIndex) {
+      super(runIndex);
+      this.indices = indices;
+    }
+
+    @Override
+    boolean advance() {
+      if (next == indices.length) {
+        return false;
+      }
+      final int offset = offsets[indices[next++]];
+      record = Arrays.copyOfRange(buffer, offset, offset + recordLength(buffer, offset));
+      key = sortKey(record, 0);
+      return true;
+    }
+  }
+
+  private static class FileRunCursor extends RunCursor {
+    private final File file;
+    private final DataInputStream in;
+    private final byte[] blockSize = new byte[4];
+    private boolean closed = false;
+
+    FileRunCursor(File file, int runIndex) throws IOException {
+      super(runIndex);
+      this.file = file;
+      this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+    }
+
+    @Override
+    boolean advance() throws IOException {
+      try {
+        in.readFully(blockSize);
+      } catch (EOFException e) {
+        // The run is merged, no need to keep it around until the end of the shard.
+        close();
+        return false;
+      }
+      record = new byte[recordLength(blockSize, 0)];
+      System.arraycopy(blockSize, 0, record, 0, 4);
+      in.readFully(record, 4, record.length - 4);
+      key = sortKey(record, 0);
+      return true;
+    }
+
+    @Override
+    void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      in.close();
+      if (!file.delete()) {
+        LOG.warning("Could not delete " + file);
+      }
+    }
+  }
+
+  private class MergingIterator implements CloseableIterator<byte[]> {
+    private final List<RunCursor> cursors;
+    private final PriorityQueue<RunCursor> queue;
+
+    MergingIterator(List<RunCursor> cursors) throws IOException {
+      this.cursors = cursors;
+      // Earlier runs hold records added earlier, so they win ties.
+      this.queue = new PriorityQueue<>(Math.max(1, cursors.size()), new Comparator<RunCursor>() {
+        @Override
+        public int compare(RunCursor a, RunCursor b) {
+          final int byKey = Long.compare(a.key, b.key);
+          return byKey != 0 ? byKey : Integer.compare(a.runIndex, b.runIndex);
+        }
+      });
+      for (RunCursor cursor : cursors) {
+        if (cursor.advance()) {
+          queue.add(cursor);
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return !queue.isEmpty();
+    }
+
+    @Override
+    public byte[] next() {
+      final RunCursor cursor = queue.poll();
+      if (cursor == null) {
+        throw new NoSuchElementException();
+      }
+      final byte[] record = cursor.record;
+      try {
+        if (cursor.advance()) {
+          queue.add(cursor);
+        }
+      } catch (IOException e) {
+        throw new RuntimeIOException(e);
+      }
+      return record;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("Not supported: remove");
+    }
+
+    @Override
+    public void close() {
+      queue.clear();
+      for (RunCursor cursor : cursors) {
+        try {
+          cursor.close();
+        } catch (IOException e) {
+          LOG.warning("Error closing sorted run: " + e.getMessage());
+        }
+      }
+      SortingBAMRecordBuffer.this.close();
+    }
+  }
+}
@@ -17,6 +17,8 @@ package com.google.cloud.genomics.dataflow.writers.bam;
 
 import com.google.api.services.storage.Storage;
 import org.apache.beam.sdk.metrics.Metrics;
+import org.apache.beam.sdk.options.Default;
+import org.apache.beam.sdk.options.Description;
 import org.apache.beam.sdk.transforms.DoFn;
 import org.apache.beam.sdk.transforms.windowing.BoundedWindow;
 import org.apache.beam.sdk.util.GcsUtil;
@@ -37,9 +39,13 @@ import com.google.common.base.Stopwatch;
 import com.google.genomics.v1.Read;
 
 import htsjdk.samtools.BAMBlockWriter;
+import htsjdk.samtools.ParallelBAMBlockWriter;
+import htsjdk.samtools.SAMFileWriterImpl;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.CloseableIterator;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.channels.Channels;
@@ -52,12 +58,57 @@ import java.util.logging.Logger;
  * its name at the end of the bundle.
  */
 public class WriteBAMFn extends DoFn<Read, String> {
+  // HTSJDK's default level, which its BlockCompressedStreamConstants does not expose
+  // as a compile-time constant.
+  static final int DEFAULT_COMPRESSION_LEVEL = 5;
 
-  public static interface Options extends GCSOutputOptions {}
+  public static interface Options extends GCSOutputOptions {
+    @Description("Number of threads compressing the BGZF blocks of each written BAM shard. "
+        + "With 1, blocks are compressed on the thread writing the reads.")
+    @Default.Integer(1)
+    int getCompressionThreads();
+
+    void setCompressionThreads(int compressionThreads);
+
+    @Description("Deflate compression level (0-9) of the written BAM shards.")
+    @Default.Integer(DEFAULT_COMPRESSION_LEVEL)
+    int getCompressionLevel();
+
+    void setCompressionLevel(int compressionLevel);
+
+    @Description("Build the BAM index while writing the shards, instead of reading "
+        + "the combined BAM file back to index it.")
+    @Default.Boolean(false)
+    boolean getIndexWhileWriting();
+
+    void setIndexWhileWriting(boolean indexWhileWriting);
+
+    @Description("Sort the reads of each shard before writing them, instead of dropping "
+        + "the reads that arrive out of order.")
+    @Default.Boolean(false)
+    boolean getSortShards();
+
+    void setSortShards(boolean sortShards);
+
+    @Description("Memory used to sort the reads of a shard, in megabytes. Reads past that "
+        + "are sorted in runs spilled to local disk and merged at the end of the shard.")
+    @Default.Integer(256)
+    int getSortBufferMB();
+
+    void setSortBufferMB(int sortBufferMB);
+
+    @Description("Encode the reads straight into BAM records instead of converting them "
+        + "to SAMRecords first. Uses the same writer as --compressionThreads above 1.")
+    @Default.Boolean(false)
+    boolean getEncodeReadsDirectly();
+
+    void setEncodeReadsDirectly(boolean encodeReadsDirectly);
+  }
 
   private static final Logger LOG = Logger.getLogger(WriteBAMFn.class.getName());
   public static TupleTag<String> WRITTEN_BAM_NAMES_TAG = new TupleTag<String>(){};
   public static TupleTag<KV<Integer, Long>> SEQUENCE_SHARD_SIZES_TAG = new TupleTag<KV<Integer, Long>>(){};
+  public static TupleTag<BAMIndexFragment> INDEX_FRAGMENTS_TAG = new TupleTag<BAMIndexFragment>(){};
 
   final PCollectionView<HeaderInfo> headerView;
   Storage.Objects storage;
@@ -67,13 +118,17 @@ public class WriteBAMFn extends DoFn<Read, String> {
   int unmappedReadCount;
   String shardName;
   TruncatedOutputStream ts;
-  BAMBlockWriter bw;
+  SAMFileWriterImpl bw;
+  BAMIndexFragmentBuilder indexBuilder;
+  SortingBAMRecordBuffer sortBuffer;
+  ReadBAMRecordEncoder recordEncoder;
   Contig shardContig;
   Options options;
   HeaderInfo headerInfo;
   int sequenceIndex;
 
   SAMRecord prevRead = null;
+  int prevAlignmentStart = Integer.MIN_VALUE;
   long minAlignment = Long.MAX_VALUE;
   long maxAlignment = Long.MIN_VALUE;
   boolean hadOutOfOrder = false;
@@ -98,13 +153,41 @@ public class WriteBAMFn extends DoFn<Read, String> {
     unmappedReadCount = 0;
     headerInfo = null;
     prevRead = null;
+    prevAlignmentStart = Integer.MIN_VALUE;
     minAlignment = Long.MAX_VALUE;
     maxAlignment = Long.MIN_VALUE;
     hadOutOfOrder = false;
+    indexBuilder = null;
+    if (sortBuffer != null) {
+      // Left over from a bundle that failed, so its spilled runs were never merged.
+      sortBuffer.close();
+    }
+    sortBuffer = null;
+    recordEncoder = null;
   }
 
   @FinishBundle
   public void finishBundle(DoFn<Read, String>.FinishBundleContext c) throws IOException {
+    if (sortBuffer != null) {
+      LOG.info("Merging " + sortBuffer.getSpilledRunCount() + " sorted runs into " + shardName);
+      Metrics.distribution(WriteBAMFn.class, "Sorted runs spilled per shard")
+          .update(sortBuffer.getSpilledRunCount());
+      // The records are written as the buffer holds them, without decoding them again.
+      final ParallelBAMBlockWriter writer = (ParallelBAMBlockWriter) bw;
+      try (CloseableIterator<byte[]> sorted = sortBuffer.sortedEncodedRecords()) {
+        while (sorted.hasNext()) {
+          final byte[] record = sorted.next();
+          final long start = writer.getFilePointer();
+          writer.writeEncodedRecord(record, record.length);
+          if (indexBuilder != null) {
+            indexBuilder.processEncodedAlignment(record, start, writer.getFilePointer());
+          }
+        }
+      } finally {
+        sortBuffer.close();
+      }
+      sortBuffer = null;
+    }
     bw.close();
     Metrics.distribution(WriteBAMFn.class, "Maximum Write Shard Processing Time (sec)")
         .update(stopWatch.elapsed(TimeUnit.SECONDS));
@@ -120,6 +203,12 @@ public class WriteBAMFn extends DoFn<Read, String> {
     c.output(shardName, window.maxTimestamp(), window);
     c.output(SEQUENCE_SHARD_SIZES_TAG, KV.of(sequenceIndex, bytesWritten),
         window.maxTimestamp(), window);
+    if (indexBuilder != null) {
+      final BAMIndexFragment fragment = indexBuilder.build(shardName,
+          ((ParallelBAMBlockWriter) bw).getBlockAddresses());
+      LOG.info("Built index fragment " + fragment);
+      c.output(INDEX_FRAGMENTS_TAG, fragment, window.maxTimestamp(), window);
+    }
   }
 
   @ProcessElement
@@ -150,16 +239,46 @@ public class WriteBAMFn extends DoFn<Read, String> {
                     BAMIO.BAM_INDEX_FILE_MIME_TYPE));
       ts = new TruncatedOutputStream(
           outputStream, BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK.length);
-      bw = new BAMBlockWriter(ts, null /*file*/);
+      // Building the index needs the file pointers that only the parallel writer exposes,
+      // and only the parallel writer takes encoded records, as written when sorting.
+      final boolean parallelCompression = options.getCompressionThreads() > 1
+          || options.getIndexWhileWriting() || options.getEncodeReadsDirectly()
+          || options.getSortShards();
+      if (parallelCompression) {
+        bw = new ParallelBAMBlockWriter(ts, options.getCompressionThreads(),
+            options.getCompressionLevel());
+      } else {
+        bw = new BAMBlockWriter(ts, null /*file*/, options.getCompressionLevel());
+      }
+      if (options.getIndexWhileWriting()) {
+        indexBuilder = new BAMIndexFragmentBuilder(headerInfo.header.getSequenceDictionary());
+      }
+      if (options.getEncodeReadsDirectly()) {
+        recordEncoder = new ReadBAMRecordEncoder(headerInfo.header, true);
+      }
+      if (options.getSortShards()) {
+        sortBuffer = new SortingBAMRecordBuffer(headerInfo.header,
+            (int) Math.min(Integer.MAX_VALUE - 8, options.getSortBufferMB() * 1024L * 1024L),
+            new File(System.getProperty("java.io.tmpdir")));
+      }
       bw.setSortOrder(headerInfo.header.getSortOrder(), true);
       bw.setHeader(headerInfo.header);
       if (isFirstShard) {
         LOG.info("First shard - writing header to " + shardName);
-        bw.writeHeader(headerInfo.header);
+        if (parallelCompression) {
+          ((ParallelBAMBlockWriter) bw).writeHeader(headerInfo.header);
+        } else {
+          ((BAMBlockWriter) bw).writeHeader(headerInfo.header);
+        }
       }
     }
+    if (recordEncoder != null) {
+      processEncoded(read);
+      return;
+    }
     SAMRecord samRecord = ReadUtils.makeSAMRecord(read, headerInfo.header);
-    if (prevRead != null && prevRead.getAlignmentStart() > samRecord.getAlignmentStart()) {
+    if (sortBuffer == null && prevRead != null
+        && prevRead.getAlignmentStart() > samRecord.getAlignmentStart()) {
       LOG.info("Out of order read " + prevRead.getAlignmentStart() + " " +
           samRecord.getAlignmentStart() + " during writing of shard " + shardName +
           " after processing " + readCount + " reads, min seen alignment is " +
@@ -181,7 +300,58 @@ public class WriteBAMFn extends DoFn<Read, String> {
       }
       unmappedReadCount++;
     }
-    bw.addAlignment(samRecord);
+    if (sortBuffer != null) {
+      sortBuffer.add(samRecord);
+    } else {
+      writeRecord(samRecord);
+    }
+    readCount++;
+  }
+
+  private void writeRecord(SAMRecord samRecord) {
+    if (indexBuilder != null) {
+      final ParallelBAMBlockWriter writer = (ParallelBAMBlockWriter) bw;
+      final long start = writer.getFilePointer();
+      bw.addAlignment(samRecord);
+      indexBuilder.processAlignment(samRecord, start, writer.getFilePointer());
+    } else {
+      bw.addAlignment(samRecord);
+    }
+  }
+
+  /**
+   * Same as the rest of processElement, for reads encoded with recordEncoder.
+   */
+  private void processEncoded(Read read) throws IOException {
+    final int length = recordEncoder.encode(read);
+    final int alignmentStart = recordEncoder.getAlignmentStart();
+    if (sortBuffer == null && prevAlignmentStart > alignmentStart) {
+      LOG.info("Out of order read " + prevAlignmentStart + " " + alignmentStart
+          + " during writing of shard " + shardName + " after processing " + readCount
+          + " reads, min seen alignment is " + minAlignment + " and max is " + maxAlignment);
+      Metrics.counter(WriteBAMFn.class, "Out of order reads").inc();
+      readCount++;
+      hadOutOfOrder = true;
+      return;
+    }
+    minAlignment = Math.min(minAlignment, alignmentStart);
+    maxAlignment = Math.max(maxAlignment, alignmentStart);
+    prevAlignmentStart = alignmentStart;
+    if (recordEncoder.getReadUnmappedFlag()) {
+      unmappedReadCount++;
+    }
+    if (sortBuffer != null) {
+      sortBuffer.addEncoded(recordEncoder.getBuffer(), length);
+    } else {
+      final ParallelBAMBlockWriter writer = (ParallelBAMBlockWriter) bw;
+      final long start = writer.getFilePointer();
+      writer.writeEncodedRecord(recordEncoder.getBuffer(), length);
+      if (indexBuilder != null) {
+        indexBuilder.processAlignment(recordEncoder.getReferenceIndex(), alignmentStart,
+            recordEncoder.getAlignmentEnd(), recordEncoder.getIndexingBin(),
+            recordEncoder.getReadUnmappedFlag(), start, writer.getFilePointer());
+      }
+    }
     readCount++;
   }
 }
@@ -18,6 +18,7 @@ package com.google.cloud.genomics.dataflow.writers.bam;
 import org.apache.beam.sdk.Pipeline;
 import org.apache.beam.sdk.coders.Coder;
 import org.apache.beam.sdk.coders.DelegateCoder;
+import org.apache.beam.sdk.coders.SerializableCoder;
 import org.apache.beam.sdk.coders.StringUtf8Coder;
 import org.apache.beam.sdk.transforms.Combine;
 import org.apache.beam.sdk.transforms.Create;
@@ -53,6 +54,8 @@ import java.util.Arrays;
 /*
  * Writes sets of reads to BAM files in parallel, then combines the files and writes an index
  * for the combined file.
+ * The index is either built by reading the combined file back, one reference at a time,
+ * or, with --indexWhileWriting, merged from index fragments built by the shard writers.
  */
 public class WriteBAMTransform extends PTransform<PCollectionTuple, PCollection<String>> {
 
@@ -63,6 +66,7 @@ public class WriteBAMTransform extends PTransform<PCollectionTuple, PCollection<
 
   private String output;
   private Pipeline pipeline;
+  private Options options;
 
   @Override
   public PCollection<String> expand(PCollectionTuple tuple) {
@@ -76,7 +80,12 @@ public class WriteBAMTransform extends PTransform<PCollectionTuple, PCollection<
         shardedReads.apply("Write BAM shards", ParDo
           .of(new WriteBAMFn(headerView))
           .withSideInputs(Arrays.asList(headerView))
-          .withOutputTags(WriteBAMFn.WRITTEN_BAM_NAMES_TAG, TupleTagList.of(WriteBAMFn.SEQUENCE_SHARD_SIZES_TAG)));
+          .withOutputTags(WriteBAMFn.WRITTEN_BAM_NAMES_TAG,
+              TupleTagList.of(WriteBAMFn.SEQUENCE_SHARD_SIZES_TAG)
+                .and(WriteBAMFn.INDEX_FRAGMENTS_TAG)));
+    final PCollection<BAMIndexFragment> indexFragments =
+        writeBAMFilesResult.get(WriteBAMFn.INDEX_FRAGMENTS_TAG)
+          .setCoder(SerializableCoder.of(BAMIndexFragment.class));
 
     PCollection<String> writtenBAMShardNames = writeBAMFilesResult.get(WriteBAMFn.WRITTEN_BAM_NAMES_TAG);
     final PCollectionView<Iterable<String>> writtenBAMShardsView =
@@ -100,6 +109,19 @@ public class WriteBAMTransform extends PTransform<PCollectionTuple, PCollection<
           .of(new CombineShardsFn(writtenBAMShardsView, eofForBAM))
           .withSideInputs(writtenBAMShardsView, eofForBAM));
 
+    if (options.getIndexWhileWriting()) {
+      // The shards have indexed themselves, so we only need to merge their index fragments.
+      // This takes the combined BAM path as input so that it waits for the shards to be combined.
+      final PCollectionView<Iterable<BAMIndexFragment>> indexFragmentsView =
+          indexFragments.apply(View.<BAMIndexFragment>asIterable());
+      final PCollection<String> writtenBAIFile = writtenBAMFile
+          .apply("Merge index fragments", ParDo
+            .of(new MergeIndexFragmentsFn(indexFragmentsView, headerView))
+            .withSideInputs(indexFragmentsView, headerView));
+      return PCollectionList.of(writtenBAMFile).and(writtenBAIFile)
+          .apply(Flatten.<String>pCollections());
+    }
+
     final PCollectionView<String> writtenBAMFileView =
         writtenBAMFile.apply(View.<String>asSingleton());
 
@@ -164,17 +186,18 @@ public class WriteBAMTransform extends PTransform<PCollectionTuple, PCollection<
     }
   }
 
-  private WriteBAMTransform(String output, Pipeline pipeline) {
+  private WriteBAMTransform(String output, Pipeline pipeline, Options options) {
     this.output = output;
     this.pipeline = pipeline;
+    this.options = options;
   }
 
   public static PCollection<String> write(PCollection<Read> shardedReads, HeaderInfo headerInfo,
-      String output, Pipeline pipeline) {
+      String output, Pipeline pipeline, Options options) {
     final PCollectionTuple tuple = PCollectionTuple
         .of(SHARDED_READS_TAG,shardedReads)
         .and(HEADER_TAG, pipeline.apply(Create.of(headerInfo).withCoder(HEADER_INFO_CODER)));
-    return (new WriteBAMTransform(output, pipeline)).expand(tuple);
+    return (new WriteBAMTransform(output, pipeline, options)).expand(tuple);
   }
 
   static Coder<HeaderInfo> HEADER_INFO_CODER = DelegateCoder.of(
@@ -16,6 +16,10 @@ public class BAMBlockWriter extends BAMFileWriter {
   public BAMBlockWriter(final OutputStream os, final File file) {
     super(os, file);
   }
+
+  public BAMBlockWriter(final OutputStream os, final File file, final int compressionLevel) {
+    super(os, file, compressionLevel);
+  }
   
   protected void writeHeader(String textHeader) {
     // Deliberately empty.
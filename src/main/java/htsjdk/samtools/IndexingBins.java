@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package htsjdk.samtools;
+
+/**
+ * Exposes the package-private bin computations of SAMRecord and GenomicIndexUtil,
+ * so that records can be indexed while they are written.
+ */
+public class IndexingBins {
+  private IndexingBins() {
+  }
+
+  /**
+   * @return the indexing bin of the record, as stored in it or computed from its alignment.
+   */
+  public static int getIndexingBin(final SAMRecord rec) {
+    final Integer binNumber = rec.getIndexingBin();
+    return binNumber == null ? rec.computeIndexingBin() : binNumber;
+  }
+
+  /**
+   * @return the smallest bin that contains the 0-based, half-open region [beg, end).
+   */
+  public static int regionToBin(final int beg, final int end) {
+    return GenomicIndexUtil.reg2bin(beg, end);
+  }
+}
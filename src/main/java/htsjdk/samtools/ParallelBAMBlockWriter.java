@@ -0,0 +1,95 @@
+package htsjdk.samtools;
+
+import com.google.cloud.genomics.dataflow.utils.ParallelBlockCompressedOutputStream;
+
+import htsjdk.samtools.util.BinaryCodec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+
+/**
+ * Counterpart of BAMBlockWriter that compresses BGZF blocks on several threads.
+ * Like BAMBlockWriter it doesn't write the header unless explicitly asked to,
+ * so that it can produce shards of a larger BAM file.
+ */
+public class ParallelBAMBlockWriter extends SAMFileWriterImpl {
+  private final ParallelBlockCompressedOutputStream blockCompressedOutputStream;
+  private final BinaryCodec outputBinaryCodec;
+  private BAMRecordCodec bamRecordCodec = null;
+
+  public ParallelBAMBlockWriter(final OutputStream os, final int compressionThreads,
+      final int compressionLevel) {
+    blockCompressedOutputStream =
+        new ParallelBlockCompressedOutputStream(os, compressionThreads, compressionLevel);
+    outputBinaryCodec = new BinaryCodec(blockCompressedOutputStream);
+  }
+
+  /**
+   * @return file pointer of the next record, with a block ordinal in place of the
+   * block address (@see ParallelBlockCompressedOutputStream#getFilePointer).
+   */
+  public long getFilePointer() {
+    return blockCompressedOutputStream.getFilePointer();
+  }
+
+  /**
+   * @return block addresses to resolve file pointers with, once the writer is closed.
+   */
+  public long[] getBlockAddresses() {
+    return blockCompressedOutputStream.getBlockAddresses();
+  }
+
+  /**
+   * Writes a record that is already in the BAM binary layout, block_size included,
+   * bypassing SAMRecord and BAMRecordCodec.
+   */
+  public void writeEncodedRecord(final byte[] record, final int length) {
+    outputBinaryCodec.writeBytes(record, 0, length);
+  }
+
+  @Override
+  protected void writeAlignment(final SAMRecord alignment) {
+    if (bamRecordCodec == null) {
+      bamRecordCodec = new BAMRecordCodec(getFileHeader());
+      bamRecordCodec.setOutputStream(outputBinaryCodec.getOutputStream(), getFilename());
+    }
+    bamRecordCodec.encode(alignment);
+  }
+
+  @Override
+  protected void writeHeader(final String textHeader) {
+    // Deliberately empty.
+  }
+
+  /**
+   * Writes the BAM header the same way BAMFileWriter does, and ends the current
+   * BGZF block so that the reads start in a block of their own.
+   */
+  public void writeHeader(final SAMFileHeader header) {
+    final StringWriter headerTextBuffer = new StringWriter();
+    new SAMTextHeaderCodec().encode(headerTextBuffer, header);
+    outputBinaryCodec.writeBytes(BAMFileConstants.BAM_MAGIC);
+    outputBinaryCodec.writeString(headerTextBuffer.toString(), true, false);
+    outputBinaryCodec.writeInt(header.getSequenceDictionary().size());
+    for (final SAMSequenceRecord sequenceRecord : header.getSequenceDictionary().getSequences()) {
+      outputBinaryCodec.writeString(sequenceRecord.getSequenceName(), true, true);
+      outputBinaryCodec.writeInt(sequenceRecord.getSequenceLength());
+    }
+    try {
+      outputBinaryCodec.getOutputStream().flush();
+    } catch (final IOException e) {
+      throw new SAMException("Error writing BAM header", e);
+    }
+  }
+
+  @Override
+  protected void finish() {
+    outputBinaryCodec.close();
+  }
+
+  @Override
+  protected String getFilename() {
+    return outputBinaryCodec.getOutputFileName();
+  }
+}
@@ -21,6 +21,13 @@ public class SAMFileSpanImpl extends BAMFileSpan {
 	
 	private static final double AVERAGE_BAM_COMPRESSION_RATIO = 0.39;
 	
+	/**
+	 * Exposes the chunk list so that readers can plan their I/O ahead of time.
+	 */
+	public List<Chunk> getChunkList() {
+	  return getChunks();
+	}
+	
 	public long approximateSizeInBytes() {
 	  if (cachedSize < 0) {
     	  cachedSize = 0;
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.coders;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.cloud.genomics.dataflow.model.ReadBatch;
+import com.google.genomics.v1.Read;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public class ReadBatchCoderTest {
+
+  private static Read read(String id) {
+    return Read.newBuilder()
+        .setId(id)
+        .setFragmentName("fragment-" + id)
+        .setAlignedSequence("ACGT")
+        .build();
+  }
+
+  /**
+   * Batches written back to back must decode to the same reads, in order.
+   */
+  @Test
+  public void testCodingInIterable() throws IOException {
+    final List<Read> reads = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      reads.add(read("read" + i));
+    }
+    final ReadBatch first = new ReadBatch(reads);
+    final ReadBatch second = new ReadBatch(Arrays.asList(read("last")));
+
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ReadBatchCoder.of().encode(first, output);
+    ReadBatchCoder.of().encode(second, output);
+
+    final InputStream input = new ByteArrayInputStream(output.toByteArray());
+    assertEquals(first, ReadBatchCoder.of().decode(input));
+    assertEquals(second, ReadBatchCoder.of().decode(input));
+  }
+
+  @Test
+  public void testEmptyBatch() throws IOException {
+    final ReadBatch empty = new ReadBatch(Collections.<Read>emptyList());
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ReadBatchCoder.of().encode(empty, output);
+    assertEquals(empty,
+        ReadBatchCoder.of().decode(new ByteArrayInputStream(output.toByteArray())));
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.functions;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.beam.sdk.transforms.DoFnTester;
+import org.apache.beam.sdk.values.KV;
+import com.google.cloud.genomics.dataflow.model.ReadBatch;
+import com.google.cloud.genomics.utils.Contig;
+import com.google.genomics.v1.LinearAlignment;
+import com.google.genomics.v1.Position;
+import com.google.genomics.v1.Read;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public class KeyReadBatchesFnTest {
+
+  @Test
+  public void testKeysLikeKeyReadsFn() throws Exception {
+    final List<Read> reads = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      reads.add(Read.newBuilder()
+          .setFragmentName("mapped" + i)
+          .setAlignment(LinearAlignment.newBuilder()
+              .setPosition(Position.newBuilder()
+                  .setReferenceName(i % 2 == 0 ? "chr1" : "chr2").setPosition(i * 4000)))
+          .build());
+      reads.add(Read.newBuilder().setFragmentName("unplaced" + i).build());
+    }
+    final List<KV<Contig, Read>> expected = DoFnTester.of(new KeyReadsFn()).processBundle(reads);
+    final List<KV<Contig, Read>> actual = DoFnTester.of(new KeyReadBatchesFn()).processBundle(
+        new ReadBatch(reads.subList(0, 7)), new ReadBatch(reads.subList(7, reads.size())));
+    assertEquals(expected, actual);
+  }
+}
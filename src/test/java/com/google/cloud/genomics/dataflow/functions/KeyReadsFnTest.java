@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.functions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.beam.sdk.values.KV;
+import com.google.cloud.genomics.utils.Contig;
+import com.google.genomics.v1.LinearAlignment;
+import com.google.genomics.v1.Position;
+import com.google.genomics.v1.Read;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+@RunWith(JUnit4.class)
+public class KeyReadsFnTest {
+
+  @Test
+  public void testMappedReadsAreKeyedByWindow() {
+    final Read read = Read.newBuilder()
+        .setFragmentName("mapped")
+        .setAlignment(LinearAlignment.newBuilder()
+            .setPosition(Position.newBuilder().setReferenceName("chr1").setPosition(12345)))
+        .build();
+    final Contig key = KeyReadsFn.shardKeyForRead(read, 10000);
+    assertEquals("chr1", key.referenceName);
+    assertEquals(10000, key.start);
+    assertEquals(20000, key.end);
+  }
+
+  @Test
+  public void testReadsAreKeyedByBoundariesWhereTheyHaveShards() {
+    final WritingShardBoundaries boundaries = WritingShardBoundaries.fromHistogram(
+        Arrays.asList(KV.of(KV.of("chr1", 0L), 100L), KV.of(KV.of("chr1", 1L), 100L)),
+        1000, 100);
+    final Contig adaptive = KeyReadsFn.shardKeyForRead(mapped("chr1", 1500), boundaries, 10000);
+    assertEquals(boundaries.shardFor("chr1", 1500), adaptive);
+    final Contig fixed = KeyReadsFn.shardKeyForRead(mapped("chr2", 12345), boundaries, 10000);
+    assertEquals(10000, fixed.start);
+    final Read unplaced = Read.newBuilder().setFragmentName("unplaced").build();
+    assertEquals(KeyReadsFn.unplacedShardKey(unplaced),
+        KeyReadsFn.shardKeyForRead(unplaced, boundaries, 10000));
+    assertEquals(KeyReadsFn.unplacedShardKey(unplaced),
+        KeyReadsFn.shardKeyForRead(unplaced, null, 10000));
+  }
+
+  private static Read mapped(String referenceName, long position) {
+    return Read.newBuilder()
+        .setFragmentName("mapped")
+        .setAlignment(LinearAlignment.newBuilder()
+            .setPosition(Position.newBuilder()
+                .setReferenceName(referenceName).setPosition(position)))
+        .build();
+  }
+
+  @Test
+  public void testUnplacedReadsAreSpreadOverSeveralKeys() {
+    final Set<Long> keys = new HashSet<>();
+    for (int i = 0; i < 1000; i++) {
+      final Read read = Read.newBuilder().setFragmentName("fragment" + i).build();
+      assertEquals("*", KeyReadsFn.shardKeyForRead(read, 10000).referenceName);
+      final Contig key = KeyReadsFn.unplacedShardKey(read);
+      assertEquals("*", key.referenceName);
+      // Both mates of a fragment go to the same key.
+      assertEquals(key, KeyReadsFn.unplacedShardKey(read.toBuilder().setReadNumber(1).build()));
+      keys.add(key.start);
+    }
+    assertTrue(keys.size() > 1);
+    assertTrue(keys.size() <= KeyReadsFn.UNPLACED_READ_KEYS);
+  }
+}
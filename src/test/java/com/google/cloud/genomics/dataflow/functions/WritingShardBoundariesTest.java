@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.functions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.apache.beam.sdk.values.KV;
+import com.google.cloud.genomics.utils.Contig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public class WritingShardBoundariesTest {
+
+  private static KV<KV<String, Long>, Long> bucket(String reference, long index, long count) {
+    return KV.of(KV.of(reference, index), count);
+  }
+
+  private static void assertShard(String reference, long start, long end, Contig shard) {
+    assertEquals(reference, shard.referenceName);
+    assertEquals(start, shard.start);
+    assertEquals(end, shard.end);
+  }
+
+  @Test
+  public void testDenseBucketsGetTheirOwnShards() {
+    final List<KV<KV<String, Long>, Long>> histogram = new ArrayList<>();
+    // Sparse coverage, then a pileup in bucket 10, then sparse again.
+    for (long i = 0; i < 10; i++) {
+      histogram.add(bucket("chr1", i, 10));
+    }
+    histogram.add(bucket("chr1", 10, 500));
+    histogram.add(bucket("chr1", 11, 10));
+    histogram.add(bucket("chr1", 30, 10));
+    histogram.add(bucket("chr2", 5, 1));
+
+    final WritingShardBoundaries boundaries =
+        WritingShardBoundaries.fromHistogram(histogram, 1000, 50);
+
+    assertEquals(4, boundaries.getShardCount("chr1"));
+    assertShard("chr1", 0, 5000, boundaries.shardFor("chr1", 0));
+    assertShard("chr1", 5000, 10000, boundaries.shardFor("chr1", 9999));
+    assertShard("chr1", 10000, 11000, boundaries.shardFor("chr1", 10000));
+    assertShard("chr1", 11000, Long.MAX_VALUE, boundaries.shardFor("chr1", 50000));
+    assertEquals(1, boundaries.getShardCount("chr2"));
+    assertShard("chr2", 0, Long.MAX_VALUE, boundaries.shardFor("chr2", 5500));
+    assertNull(boundaries.shardFor("chr3", 10));
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.google.cloud.genomics.dataflow.model.ReadBatch;
+import com.google.genomics.v1.Read;
+import com.google.genomics.v1.StreamReadsResponse;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public class ReadBatchStreamerTest {
+
+  private static List<StreamReadsResponse> pages(int... pageSizes) {
+    final List<StreamReadsResponse> pages = new ArrayList<>();
+    int read = 0;
+    for (int pageSize : pageSizes) {
+      final StreamReadsResponse.Builder page = StreamReadsResponse.newBuilder();
+      for (int i = 0; i < pageSize; i++) {
+        page.addAlignments(Read.newBuilder().setFragmentName("read" + read++));
+      }
+      pages.add(page.build());
+    }
+    return pages;
+  }
+
+  @Test
+  public void testBatchesDoNotFollowPages() {
+    final Iterator<ReadBatch> batches =
+        ReadBatchStreamer.batches(pages(3, 0, 4, 1).iterator(), 3);
+    final List<String> names = new ArrayList<>();
+    final List<Integer> sizes = new ArrayList<>();
+    while (batches.hasNext()) {
+      final ReadBatch batch = batches.next();
+      sizes.add(batch.size());
+      for (Read read : batch.getReads()) {
+        names.add(read.getFragmentName());
+      }
+    }
+    assertEquals(Arrays.asList(3, 3, 2), sizes);
+    for (int i = 0; i < names.size(); i++) {
+      assertEquals("read" + i, names.get(i));
+    }
+    assertEquals(8, names.size());
+  }
+
+  @Test
+  public void testEmptyStream() {
+    assertFalse(ReadBatchStreamer.batches(
+        Collections.<StreamReadsResponse>emptyIterator(), 3).hasNext());
+    assertFalse(ReadBatchStreamer.batches(pages(0, 0).iterator(), 3).hasNext());
+  }
+}
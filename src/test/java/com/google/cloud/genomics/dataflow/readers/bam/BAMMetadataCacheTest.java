@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+
+@RunWith(JUnit4.class)
+public class BAMMetadataCacheTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testLoadsHeaderAndIndex() throws IOException {
+    final TestBAMFile bam = TestBAMFile.write(folder.getRoot(), "indexed", 10, 100, 2);
+    final BAMMetadataCache.Entry entry = BAMMetadataCache.get(null, bam.path, null);
+    assertEquals(2, entry.getHeader().getSequenceDictionary().size());
+    assertTrue(entry.hasIndex());
+    assertEquals(new File(bam.file.getPath() + ".bai").length(), entry.openIndex().length());
+  }
+
+  @Test
+  public void testMissingIndex() throws IOException {
+    final TestBAMFile bam = TestBAMFile.write(folder.getRoot(), "unindexed", 10, 100, 2);
+    assertTrue(new File(bam.file.getPath() + ".bai").delete());
+    assertFalse(BAMMetadataCache.get(null, bam.path, null).hasIndex());
+  }
+
+  @Test
+  public void testUnreadableIndexIsAnError() throws IOException {
+    final TestBAMFile bam = TestBAMFile.write(folder.getRoot(), "unreadable", 10, 100, 2);
+    final File index = new File(bam.file.getPath() + ".bai");
+    assertTrue(index.delete());
+    // Exists, but cannot be read as a file.
+    assertTrue(index.mkdir());
+    try {
+      BAMMetadataCache.get(null, bam.path, null);
+      fail("Expected the index read to fail");
+    } catch (IOException expected) {
+    }
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+@RunWith(JUnit4.class)
+public class BAMRecordBoundaryFinderTest {
+  private static final int RECORD_COUNT = 4000;
+  private static final char[] BASES = {'A', 'C', 'G', 'T'};
+
+  private byte[] bam;
+  private final List<Long> recordStarts = new ArrayList<>();
+  private final List<Long> blockStarts = new ArrayList<>();
+
+  @Before
+  public void writeBAM() throws IOException {
+    final SAMFileHeader header = new SAMFileHeader();
+    header.setSequenceDictionary(new SAMSequenceDictionary(Arrays.asList(
+        new SAMSequenceRecord("chr1", 100000))));
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final BlockCompressedOutputStream out =
+        new BlockCompressedOutputStream(bytes, (File) null);
+    final BinaryCodec binaryCodec = new BinaryCodec(out);
+    binaryCodec.writeBytes("BAM\1".getBytes("US-ASCII"));
+    binaryCodec.writeInt(0);
+    binaryCodec.writeInt(1);
+    binaryCodec.writeInt(5);
+    binaryCodec.writeBytes("chr1\0".getBytes("US-ASCII"));
+    binaryCodec.writeInt(100000);
+
+    final BAMRecordCodec codec = new BAMRecordCodec(header);
+    codec.setOutputStream(out);
+    final Random random = new Random(7);
+    for (int i = 0; i < RECORD_COUNT; i++) {
+      // Mapped reads followed by the unmapped tail, as in a sorted file.
+      final SAMRecord record = new SAMRecord(header);
+      record.setReadName("read" + i);
+      final char[] bases = new char[100];
+      final char[] qualities = new char[100];
+      for (int j = 0; j < bases.length; j++) {
+        bases[j] = BASES[random.nextInt(BASES.length)];
+        qualities[j] = (char) ('!' + random.nextInt(40));
+      }
+      record.setReadString(new String(bases));
+      record.setBaseQualityString(new String(qualities));
+      if (i < RECORD_COUNT / 2) {
+        record.setReferenceIndex(0);
+        record.setAlignmentStart(1 + i * 20);
+        record.setCigarString("100M");
+        record.setMappingQuality(60);
+      } else {
+        record.setReadUnmappedFlag(true);
+      }
+      recordStarts.add(out.getFilePointer());
+      codec.encode(record);
+    }
+    out.close();
+    bam = bytes.toByteArray();
+
+    for (int address = 0; address < bam.length;
+        address += ((bam[address + 16] & 0xFF) | (bam[address + 17] & 0xFF) << 8) + 1) {
+      blockStarts.add((long) address);
+    }
+    assertTrue("Test data should span many blocks", blockStarts.size() > 10);
+  }
+
+  private BAMRecordBoundaryFinder finder() {
+    return new BAMRecordBoundaryFinder(new InMemorySeekableStream(bam, "test.bam"), 1);
+  }
+
+  @Test
+  public void testFindsFirstRecordAfterHeader() throws IOException {
+    assertEquals(recordStarts.get(0).longValue(), finder().findFirstRecordStart());
+  }
+
+  @Test
+  public void testFindsBlockStarts() throws IOException {
+    final BAMRecordBoundaryFinder finder = finder();
+    for (long address = 0; address < bam.length; address += 4999) {
+      long expected = -1;
+      for (long blockStart : blockStarts) {
+        if (blockStart >= address) {
+          expected = blockStart;
+          break;
+        }
+      }
+      assertEquals("Block start after " + address, expected,
+          finder.findBlockStart(address, bam.length));
+    }
+  }
+
+  @Test
+  public void testFindsRecordStarts() throws IOException {
+    final BAMRecordBoundaryFinder finder = finder();
+    for (long address = 1; address < bam.length; address += 7919) {
+      long expected = -1;
+      for (long recordStart : recordStarts) {
+        if ((recordStart >>> 16) >= address) {
+          expected = recordStart;
+          break;
+        }
+      }
+      assertEquals("Record start after " + address, expected,
+          finder.findRecordStart(address, bam.length));
+    }
+  }
+
+  @Test
+  public void testStopsAtEndAddress() throws IOException {
+    final BAMRecordBoundaryFinder finder = finder();
+    final long secondBlock = blockStarts.get(1);
+    assertEquals(-1, finder.findBlockStart(1, secondBlock));
+    assertEquals(secondBlock, finder.findBlockStart(1, secondBlock + 1));
+    // Only the empty EOF block is left.
+    assertEquals(-1, finder.findRecordStart(blockStarts.get(blockStarts.size() - 1),
+        bam.length));
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.beam.sdk.coders.SerializableCoder;
+import org.apache.beam.sdk.util.CoderUtils;
+import com.google.cloud.genomics.utils.Contig;
+
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.SAMFileSpanImpl;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public class BAMShardCoderTest {
+
+  private static void assertChunksEqual(List<Chunk> expected, List<Chunk> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.get(i).getChunkStart(), actual.get(i).getChunkStart());
+      assertEquals(expected.get(i).getChunkEnd(), actual.get(i).getChunkEnd());
+    }
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    final BAMShard shard = new BAMShard("gs://bucket/file.bam", "chr1", 1000);
+    shard.addBin(Arrays.asList(new Chunk(5L << 16 | 10, 9L << 16 | 100),
+        new Chunk(2L << 16, 3L << 16 | 5)), 20000);
+    shard.approximateSizeInBytes();
+
+    final byte[] encoded = CoderUtils.encodeToByteArray(BAMShardCoder.of(), shard);
+    final BAMShard decoded = CoderUtils.decodeFromByteArray(BAMShardCoder.of(), encoded);
+
+    assertEquals(shard.file, decoded.file);
+    assertEquals(shard.contig.referenceName, decoded.contig.referenceName);
+    assertEquals(shard.contig.start, decoded.contig.start);
+    assertEquals(shard.contig.end, decoded.contig.end);
+    assertEquals(shard.cachedSizeInBytes, decoded.cachedSizeInBytes);
+    assertChunksEqual(shard.chunks, decoded.chunks);
+    assertChunksEqual(shard.span.getChunkList(), decoded.span.getChunkList());
+    assertArrayEquals(encoded, CoderUtils.encodeToByteArray(BAMShardCoder.of(), decoded));
+  }
+
+  @Test
+  public void testShardWithoutChunkList() throws Exception {
+    final BAMShard shard = new BAMShard("gs://bucket/file.bam",
+        new SAMFileSpanImpl(Arrays.asList(new Chunk(100L << 16, 200L << 16))),
+        new Contig("*", 0, -1));
+    final BAMShard decoded = CoderUtils.decodeFromByteArray(BAMShardCoder.of(),
+        CoderUtils.encodeToByteArray(BAMShardCoder.of(), shard));
+    assertNull(decoded.chunks);
+    assertEquals(-1, decoded.contig.end);
+    assertEquals(-1, decoded.cachedSizeInBytes);
+    assertChunksEqual(shard.span.getChunkList(), decoded.span.getChunkList());
+  }
+
+  @Test
+  public void testSmallerThanJavaSerialization() throws Exception {
+    final List<Chunk> chunks = new ArrayList<>();
+    for (long block = 0; block < 1000; block++) {
+      final long address = 1000000 + block * 20000;
+      chunks.add(new Chunk(address << 16, (address + 15000) << 16));
+    }
+    final BAMShard shard = new BAMShard("gs://bucket/file.bam", new SAMFileSpanImpl(chunks),
+        new Contig("chr1", 0, 1000000));
+    final int compact = CoderUtils.encodeToByteArray(BAMShardCoder.of(), shard).length;
+    final int serialized =
+        CoderUtils.encodeToByteArray(SerializableCoder.of(BAMShard.class), shard).length;
+    assertTrue(compact + " vs " + serialized, compact * 2 < serialized);
+  }
+}
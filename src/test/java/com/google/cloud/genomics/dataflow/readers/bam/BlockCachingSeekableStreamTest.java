@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(JUnit4.class)
+public class BlockCachingSeekableStreamTest {
+
+  static class InMemoryStream extends BlockCachingSeekableStream {
+    final byte[] data;
+    final AtomicInteger fetches = new AtomicInteger();
+
+    InMemoryStream(byte[] data, int blockSize, int readAheadBlocks, int maxCachedBlocks) {
+      super(blockSize, readAheadBlocks, maxCachedBlocks);
+      this.data = data;
+    }
+
+    @Override
+    protected byte[] fetchRange(long offset, int length) throws IOException {
+      fetches.incrementAndGet();
+      return Arrays.copyOfRange(data, (int) offset, (int) offset + length);
+    }
+
+    @Override
+    public long length() {
+      return data.length;
+    }
+
+    @Override
+    public String getSource() {
+      return "in-memory";
+    }
+  }
+
+  static byte[] testData(int size) {
+    final byte[] data = new byte[size];
+    for (int i = 0; i < size; i++) {
+      data[i] = (byte) (i * 31);
+    }
+    return data;
+  }
+
+  @Test
+  public void testSequentialReadAcrossBlocks() throws IOException {
+    final byte[] data = testData(1000);
+    final InMemoryStream stream = new InMemoryStream(data, 64, 2, 4);
+    final byte[] result = new byte[data.length];
+    int total = 0;
+    while (total < result.length) {
+      final int n = stream.read(result, total, Math.min(100, result.length - total));
+      assertTrue(n > 0);
+      total += n;
+    }
+    assertArrayEquals(data, result);
+    assertEquals(-1, stream.read(result, 0, 10));
+    assertTrue(stream.eof());
+  }
+
+  @Test
+  public void testSeekIsServedFromCache() throws IOException {
+    final byte[] data = testData(256);
+    final InMemoryStream stream = new InMemoryStream(data, 64, 0, 8);
+    stream.seek(130);
+    assertEquals(data[130] & 0xFF, stream.read());
+    stream.seek(10);
+    assertEquals(data[10] & 0xFF, stream.read());
+    final int fetchesBefore = stream.fetches.get();
+    stream.seek(140);
+    assertEquals(data[140] & 0xFF, stream.read());
+    assertEquals(fetchesBefore, stream.fetches.get());
+    assertEquals(141, stream.position());
+  }
+
+  @Test
+  public void testPrefetchPlanSkipsGapsAndMergesRequests() throws IOException {
+    final byte[] data = testData(1024);
+    final InMemoryStream stream = new InMemoryStream(data, 64, 4, 4);
+    final List<long[]> ranges = Arrays.asList(new long[] {128, 384}, new long[] {640, 700});
+    stream.setPrefetchPlan(ranges);
+
+    final byte[] result = new byte[256];
+    stream.seek(128);
+    assertEquals(256, stream.read(result, 0, result.length));
+    assertArrayEquals(Arrays.copyOfRange(data, 128, 384), result);
+    stream.seek(640);
+    assertEquals(60, stream.read(result, 0, 60));
+    assertArrayEquals(Arrays.copyOfRange(data, 640, 700), Arrays.copyOf(result, 60));
+    // The first block on seek, one request for the rest of the first range, one for the second.
+    assertEquals(3, stream.fetches.get());
+  }
+
+  /**
+   * Fetches starting at the second block hang until they are interrupted.
+   */
+  static class HangingStream extends InMemoryStream {
+    final CountDownLatch interrupted = new CountDownLatch(1);
+
+    HangingStream(byte[] data, int blockSize, int readAheadBlocks) {
+      super(data, blockSize, readAheadBlocks, 0);
+    }
+
+    @Override
+    protected byte[] fetchRange(long offset, int length) throws IOException {
+      if (offset == blockSize) {
+        try {
+          new CountDownLatch(1).await(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          interrupted.countDown();
+          throw new IOException(e);
+        }
+      }
+      return super.fetchRange(offset, length);
+    }
+  }
+
+  @Test
+  public void testEvictionCancelsPendingFetch() throws Exception {
+    // Holds 4 blocks: the current one, one of read-ahead, and as many again.
+    final HangingStream stream = new HangingStream(testData(64 * 20), 64, 1);
+    stream.seek(0);
+    stream.read();
+    for (int block = 10; block < 20; block += 2) {
+      stream.seek(block * 64);
+      stream.read();
+    }
+    assertTrue(stream.interrupted.await(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testEvictionCancelsRunOnceAllItsBlocksAreEvicted() throws Exception {
+    // Holds 6 blocks; the plan fetches blocks 1-2 in a single request.
+    final HangingStream stream = new HangingStream(testData(64 * 20), 64, 2);
+    stream.setPrefetchPlan(Arrays.asList(new long[] {0, 64 * 3}));
+    stream.seek(0);
+    stream.read();
+    for (int block = 10; block < 14; block++) {
+      stream.seek(block * 64);
+      stream.read();
+    }
+    // Block 2 of the run is still cached.
+    assertFalse(stream.interrupted.await(100, TimeUnit.MILLISECONDS));
+    for (int block = 14; block < 20; block++) {
+      stream.seek(block * 64);
+      stream.read();
+    }
+    assertTrue(stream.interrupted.await(10, TimeUnit.SECONDS));
+  }
+}
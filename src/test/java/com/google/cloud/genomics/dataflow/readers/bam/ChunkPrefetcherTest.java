@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import htsjdk.samtools.Chunk;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public class ChunkPrefetcherTest {
+
+  private static long virtualOffset(long blockAddress, int offsetInBlock) {
+    return (blockAddress << 16) | offsetInBlock;
+  }
+
+  @Test
+  public void testNearbyChunksAreMerged() {
+    final List<Chunk> chunks = Arrays.asList(
+        new Chunk(virtualOffset(1000, 10), virtualOffset(2000, 5)),
+        new Chunk(virtualOffset(70000, 0), virtualOffset(80000, 100)),
+        new Chunk(virtualOffset(1000000, 0), virtualOffset(1001000, 0)));
+    final List<long[]> ranges = ChunkPrefetcher.toByteRanges(chunks, 10000, 10000000);
+    assertEquals(2, ranges.size());
+    assertArrayEquals(new long[] {1000, 80000 + ChunkPrefetcher.MAX_BGZF_BLOCK_SIZE},
+        ranges.get(0));
+    assertArrayEquals(new long[] {1000000, 1001000 + ChunkPrefetcher.MAX_BGZF_BLOCK_SIZE},
+        ranges.get(1));
+  }
+
+  @Test
+  public void testRangesAreClippedToFileLength() {
+    final List<Chunk> chunks = Arrays.asList(
+        new Chunk(virtualOffset(100, 0), virtualOffset(500, 0)));
+    final List<long[]> ranges = ChunkPrefetcher.toByteRanges(chunks, 0, 600);
+    assertEquals(1, ranges.size());
+    assertArrayEquals(new long[] {100, 600}, ranges.get(0));
+  }
+}
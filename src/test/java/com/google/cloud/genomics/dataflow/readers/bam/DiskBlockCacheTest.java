@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+@RunWith(JUnit4.class)
+public class DiskBlockCacheTest {
+  private static final int BLOCK_SIZE = 64;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static byte[] block(int seed, int length) {
+    final byte[] block = new byte[length];
+    for (int i = 0; i < length; i++) {
+      block[i] = (byte) (seed + i);
+    }
+    return block;
+  }
+
+  @Test
+  public void testGetAndPut() throws IOException {
+    final DiskBlockCache cache =
+        DiskBlockCache.create(folder.newFile().toPath(), BLOCK_SIZE, 4, 2);
+    assertNull(cache.get("bucket/a.bam", 1, 0));
+    cache.put("bucket/a.bam", 1, 0, block(1, BLOCK_SIZE), 0, BLOCK_SIZE);
+    // The last block of an object is usually shorter.
+    final byte[] run = block(2, BLOCK_SIZE + 10);
+    cache.put("bucket/a.bam", 1, BLOCK_SIZE, run, BLOCK_SIZE, 10);
+
+    assertArrayEquals(block(1, BLOCK_SIZE), cache.get("bucket/a.bam", 1, 0));
+    assertArrayEquals(Arrays.copyOfRange(run, BLOCK_SIZE, BLOCK_SIZE + 10),
+        cache.get("bucket/a.bam", 1, BLOCK_SIZE));
+    // Other generations and objects do not match.
+    assertNull(cache.get("bucket/a.bam", 2, 0));
+    assertNull(cache.get("bucket/b.bam", 1, 0));
+    cache.close();
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() throws IOException {
+    // A single set, so that every block competes for the same two slots.
+    final DiskBlockCache cache =
+        DiskBlockCache.create(folder.newFile().toPath(), BLOCK_SIZE, 1, 2);
+    cache.put("bucket/a.bam", 1, 0, block(0, BLOCK_SIZE), 0, BLOCK_SIZE);
+    cache.put("bucket/a.bam", 1, BLOCK_SIZE, block(1, BLOCK_SIZE), 0, BLOCK_SIZE);
+    // Makes the first block the most recently used.
+    assertNotNull(cache.get("bucket/a.bam", 1, 0));
+    cache.put("bucket/a.bam", 1, 2 * BLOCK_SIZE, block(2, BLOCK_SIZE), 0, BLOCK_SIZE);
+
+    assertNotNull(cache.get("bucket/a.bam", 1, 0));
+    assertNull(cache.get("bucket/a.bam", 1, BLOCK_SIZE));
+    assertNotNull(cache.get("bucket/a.bam", 1, 2 * BLOCK_SIZE));
+    cache.close();
+  }
+
+  @Test
+  public void testBlocksOutliveTheProcessThatCachedThem() throws IOException {
+    final File file = folder.newFile();
+    DiskBlockCache cache = DiskBlockCache.create(file.toPath(), BLOCK_SIZE, 4, 2);
+    cache.put("bucket/a.bam", 1, 0, block(3, BLOCK_SIZE), 0, BLOCK_SIZE);
+    cache.close();
+
+    cache = DiskBlockCache.create(file.toPath(), BLOCK_SIZE, 4, 2);
+    assertArrayEquals(block(3, BLOCK_SIZE), cache.get("bucket/a.bam", 1, 0));
+    cache.close();
+
+    // A cache with another geometry leaves the file alone.
+    assertNull(DiskBlockCache.create(file.toPath(), BLOCK_SIZE, 8, 2));
+  }
+
+  @Test
+  public void testOpenSharesOneInstancePerFile() throws IOException {
+    final String path = new File(folder.getRoot(), "blocks").getPath();
+    final DiskBlockCache cache = DiskBlockCache.open(path, 1024 * 1024, BLOCK_SIZE);
+    assertSame(cache, DiskBlockCache.open(path, 1024 * 1024, BLOCK_SIZE));
+    assertNull(DiskBlockCache.open(path, 1024 * 1024, 2 * BLOCK_SIZE));
+    cache.close();
+  }
+
+  @Test
+  public void testLeavesOtherFilesAlone() throws IOException {
+    final File file = folder.newFile();
+    final byte[] contents = "Not a block cache".getBytes(StandardCharsets.UTF_8);
+    Files.write(file.toPath(), contents);
+    assertNull(DiskBlockCache.create(file.toPath(), BLOCK_SIZE, 4, 2));
+    assertArrayEquals(contents, Files.readAllBytes(file.toPath()));
+  }
+
+  @Test
+  public void testMapsSeveralSetsAtOnce() throws IOException {
+    // Sets of 2 * (40 + 64) bytes, so 3 sets to a region of 700 bytes.
+    final DiskBlockCache cache =
+        DiskBlockCache.create(folder.newFile().toPath(), BLOCK_SIZE, 10, 2, 700);
+    assertEquals(4, cache.mappedRegionCount());
+    for (int i = 0; i < 10; i++) {
+      cache.put("bucket/a.bam", 1, i * BLOCK_SIZE, block(i, BLOCK_SIZE), 0, BLOCK_SIZE);
+    }
+    int found = 0;
+    for (int i = 0; i < 10; i++) {
+      final byte[] cached = cache.get("bucket/a.bam", 1, i * BLOCK_SIZE);
+      if (cached != null) {
+        assertArrayEquals(block(i, BLOCK_SIZE), cached);
+        found++;
+      }
+    }
+    // Blocks that hash to a full set evict one another, but most fit.
+    assertTrue(found >= 5);
+    cache.close();
+  }
+
+  @Test
+  public void testLargeCachesUseFewMappings() throws IOException {
+    // Sets of 8 blocks of 2MB, so 63 sets to a 1GB region. The file is sparse.
+    final DiskBlockCache cache = DiskBlockCache.create(
+        new File(folder.getRoot(), "large").toPath(), 2 * 1024 * 1024, 100, 8);
+    assertEquals(2, cache.mappedRegionCount());
+    cache.close();
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class FetchLatencyTrackerTest {
+  private static final int BLOCK_SIZE = 1000;
+
+  @Test
+  public void testNoDeadlineUntilEnoughSamples() {
+    final FetchLatencyTracker tracker = new FetchLatencyTracker();
+    for (int i = 0; i < FetchLatencyTracker.MIN_SAMPLES - 1; i++) {
+      tracker.record(100, BLOCK_SIZE, BLOCK_SIZE);
+    }
+    assertEquals(-1, tracker.deadlineNanos(0.95, BLOCK_SIZE, BLOCK_SIZE));
+    tracker.record(100, BLOCK_SIZE, BLOCK_SIZE);
+    assertEquals(100, tracker.deadlineNanos(0.95, BLOCK_SIZE, BLOCK_SIZE));
+  }
+
+  @Test
+  public void testPercentiles() {
+    final FetchLatencyTracker tracker = new FetchLatencyTracker();
+    for (int i = 1; i <= 100; i++) {
+      tracker.record(i, BLOCK_SIZE, BLOCK_SIZE);
+    }
+    assertEquals(50, tracker.percentileNanosPerBlock(0.5));
+    assertEquals(95, tracker.percentileNanosPerBlock(0.95));
+    assertEquals(100, tracker.percentileNanosPerBlock(1.0));
+    assertEquals(1, tracker.percentileNanosPerBlock(0.0));
+  }
+
+  @Test
+  public void testLatenciesArePerBlock() {
+    final FetchLatencyTracker tracker = new FetchLatencyTracker();
+    for (int i = 0; i < FetchLatencyTracker.MIN_SAMPLES; i++) {
+      // Four blocks, the last one partial.
+      tracker.record(4000, 3 * BLOCK_SIZE + 1, BLOCK_SIZE);
+    }
+    assertEquals(1000, tracker.percentileNanosPerBlock(0.95));
+    assertEquals(1000, tracker.deadlineNanos(0.95, 10, BLOCK_SIZE));
+    assertEquals(8000, tracker.deadlineNanos(0.95, 8 * BLOCK_SIZE, BLOCK_SIZE));
+  }
+
+  @Test
+  public void testOnlyTheLatestSamplesCount() {
+    final FetchLatencyTracker tracker = new FetchLatencyTracker();
+    for (int i = 0; i < FetchLatencyTracker.WINDOW; i++) {
+      tracker.record(1000000, BLOCK_SIZE, BLOCK_SIZE);
+    }
+    for (int i = 0; i < FetchLatencyTracker.WINDOW; i++) {
+      tracker.record(10, BLOCK_SIZE, BLOCK_SIZE);
+    }
+    assertEquals(10, tracker.percentileNanosPerBlock(1.0));
+  }
+
+  @Test
+  public void testBackoffGrowsWithinBounds() {
+    for (int retry = 1; retry <= RetryBackoff.MAX_RETRIES + 30; retry++) {
+      final long backoff = Math.min(RetryBackoff.MAX_SLEEP_MSEC,
+          RetryBackoff.INITIAL_SLEEP_MSEC << Math.min(retry - 1, 20));
+      for (int i = 0; i < 100; i++) {
+        final long sleep = RetryBackoff.sleepMillis(retry);
+        assertTrue("Retry " + retry + " slept " + sleep,
+            sleep >= backoff / 2 && sleep <= backoff);
+      }
+    }
+  }
+}
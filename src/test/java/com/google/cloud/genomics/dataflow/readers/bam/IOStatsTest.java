@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(JUnit4.class)
+public class IOStatsTest {
+
+  @Test
+  public void testPublishResetsCounts() {
+    final IOStats stats = IOStats.forStream();
+    stats.recordRequest(TimeUnit.MILLISECONDS.toNanos(5));
+    stats.bytesFetched.addAndGet(100);
+    stats.seeks.incrementAndGet();
+    assertEquals(1, stats.requests.get());
+    // Outside of a pipeline the metrics go nowhere, but the counts are still taken.
+    stats.publish(IOStatsTest.class);
+    assertEquals(0, stats.requests.get());
+    assertEquals(0, stats.bytesFetched.get());
+    assertEquals(0, stats.seeks.get());
+  }
+
+  @Test
+  public void testLatenciesAreBounded() {
+    final IOStats stats = IOStats.forStream();
+    for (int i = 0; i < IOStats.MAX_LATENCIES + 10; i++) {
+      stats.recordRequest(1000);
+    }
+    assertEquals(IOStats.MAX_LATENCIES + 10, stats.requests.get());
+    stats.publish(IOStatsTest.class);
+    // Room for new samples once published.
+    stats.recordRequest(1000);
+    assertEquals(1, stats.requests.get());
+  }
+
+  @Test
+  public void testCollectsStreamsOpenedByThisThread() throws Exception {
+    IOStats.startCollecting();
+    final IOStats collected = IOStats.forStream();
+    final IOStats[] otherThread = new IOStats[1];
+    final Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        otherThread[0] = IOStats.forStream();
+      }
+    });
+    thread.start();
+    thread.join();
+    collected.bytesFetched.addAndGet(10);
+    otherThread[0].bytesFetched.addAndGet(10);
+    IOStats.publishCollected(IOStatsTest.class);
+    assertEquals(0, collected.bytesFetched.get());
+    assertEquals(10, otherThread[0].bytesFetched.get());
+
+    // Not collecting any more.
+    final IOStats notCollected = IOStats.forStream();
+    notCollected.bytesFetched.addAndGet(10);
+    IOStats.publishCollected(IOStatsTest.class);
+    assertEquals(10, notCollected.bytesFetched.get());
+  }
+
+  @Test
+  public void testBlockCachingStreamCountsSeeks() throws IOException {
+    final byte[] data = BlockCachingSeekableStreamTest.testData(256);
+    final BlockCachingSeekableStreamTest.InMemoryStream stream =
+        new BlockCachingSeekableStreamTest.InMemoryStream(data, 64, 0, 8);
+    stream.seek(130);
+    stream.read();
+    // Already there.
+    stream.seek(131);
+    stream.seek(10);
+    stream.read();
+    assertEquals(2, stream.getIOStats().seeks.get());
+    stream.close();
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import htsjdk.samtools.seekablestream.SeekableStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public class LocalFileStorageBackendTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static byte[] content(int length) {
+    final byte[] content = new byte[length];
+    for (int i = 0; i < length; i++) {
+      content[i] = (byte) (i * 7);
+    }
+    return content;
+  }
+
+  private File write(String name, byte[] content) throws IOException {
+    final File file = folder.newFile(name);
+    Files.write(file.toPath(), content);
+    return file;
+  }
+
+  @Test
+  public void testForPath() {
+    assertTrue(StorageBackend.forPath(null, "file:///tmp/a.bam")
+        instanceof LocalFileStorageBackend);
+    assertTrue(StorageBackend.forPath(null, "gs://bucket/a.bam") instanceof GCSStorageBackend);
+  }
+
+  @Test
+  public void testReadsAcrossRegions() throws IOException {
+    final byte[] content = content(1000);
+    final File file = write("test.bam", content);
+    // Regions much smaller than the file, so reads span several of them.
+    try (SeekableStream stream =
+        new MappedFileSeekableStream(file.toPath(), file.toString(), 64)) {
+      assertEquals(content.length, stream.length());
+      final byte[] all = new byte[content.length];
+      stream.readFully(all);
+      assertArrayEquals(content, all);
+      assertTrue(stream.eof());
+      assertEquals(-1, stream.read());
+
+      stream.seek(100);
+      final byte[] some = new byte[200];
+      assertEquals(200, stream.read(some, 0, some.length));
+      assertArrayEquals(Arrays.copyOfRange(content, 100, 300), some);
+      assertEquals(300, stream.position());
+
+      stream.seek(63);
+      assertEquals(content[63] & 0xFF, stream.read());
+      assertEquals(content[64] & 0xFF, stream.read());
+      assertFalse(stream.eof());
+    }
+  }
+
+  @Test
+  public void testOpenThroughBackend() throws IOException {
+    final byte[] content = content(100);
+    final File file = write("open.bam", content);
+    final String path = file.toPath().toUri().toString();
+    try (SeekableStream stream = BAMIO.openStream(null, path, new ReaderOptions())) {
+      final byte[] all = new byte[content.length];
+      stream.readFully(all);
+      assertArrayEquals(content, all);
+      assertEquals(path, stream.getSource());
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testOpenMissingFile() throws IOException {
+    BAMIO.openStream(null,
+        new File(folder.getRoot(), "missing.bam").toPath().toUri().toString(), null);
+  }
+
+  @Test
+  public void testGenerationAndWrite() throws IOException {
+    final String path =
+        new File(folder.getRoot(), "manifest.shards").toPath().toUri().toString();
+    final StorageBackend backend = StorageBackend.forPath(null, path);
+    assertEquals(StorageBackend.MISSING_GENERATION, backend.getGeneration(path));
+
+    backend.write(path, content(10), "application/octet-stream");
+    final long generation = backend.getGeneration(path);
+    assertNotEquals(StorageBackend.MISSING_GENERATION, generation);
+
+    backend.write(path, content(20), "application/octet-stream");
+    assertNotEquals(generation, backend.getGeneration(path));
+    try (SeekableStream stream = backend.open(path, null)) {
+      assertEquals(20, stream.length());
+    }
+  }
+
+  @Test
+  public void testExpandLocalPrefix() throws IOException {
+    write("sample1.bam", content(1));
+    write("sample1.bam.bai", content(1));
+    write("sample2.bam", content(1));
+    write("other.bam", content(1));
+    final String prefix = folder.getRoot().toPath().toUri().toString() + "sample";
+    final List<String> uris = ReadBAMTransform.expandLocalPrefix(prefix);
+    Collections.sort(uris);
+    assertEquals(Arrays.asList(
+        new File(folder.getRoot(), "sample1.bam").toPath().toUri().toString(),
+        new File(folder.getRoot(), "sample2.bam").toPath().toUri().toString()), uris);
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+@RunWith(JUnit4.class)
+public class ParallelBGZFInputStreamTest {
+  private static final int DATA_SIZE = 500000;
+  private static final int MARK = 300001;
+
+  private byte[] data;
+  private long markPointer;
+
+  private byte[] compress() throws IOException {
+    data = new byte[DATA_SIZE];
+    final Random random = new Random(17);
+    for (int i = 0; i < data.length; i++) {
+      // Compressible, but not trivially so.
+      data[i] = (byte) ('A' + random.nextInt(4));
+    }
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final BlockCompressedOutputStream out =
+        new BlockCompressedOutputStream(bytes, (File) null);
+    out.write(data, 0, MARK);
+    markPointer = out.getFilePointer();
+    out.write(data, MARK, data.length - MARK);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  @Test
+  public void testReadsWholeFile() throws IOException {
+    final byte[] compressed = compress();
+    final ParallelBGZFInputStream in = new ParallelBGZFInputStream(
+        new InMemorySeekableStream(compressed, "test"), 3);
+    final byte[] result = new byte[DATA_SIZE];
+    int total = 0;
+    while (total < result.length) {
+      final int n = in.read(result, total, Math.min(10000, result.length - total));
+      if (n < 0) {
+        break;
+      }
+      total += n;
+    }
+    assertEquals(DATA_SIZE, total);
+    assertArrayEquals(data, result);
+    assertEquals(-1, in.read());
+    in.close();
+  }
+
+  @Test
+  public void testSeekToVirtualOffset() throws IOException {
+    final byte[] compressed = compress();
+    final ParallelBGZFInputStream in = new ParallelBGZFInputStream(
+        new InMemorySeekableStream(compressed, "test"), 2);
+    assertEquals(data[0] & 0xFF, in.read());
+    in.seek(markPointer);
+    assertEquals(markPointer, in.getFilePointer());
+    final byte[] result = new byte[1000];
+    assertEquals(result.length, in.read(result, 0, result.length));
+    assertArrayEquals(Arrays.copyOfRange(data, MARK, MARK + result.length), result);
+    // Going back discards the blocks inflated so far.
+    in.seek(0);
+    assertEquals(data[0] & 0xFF, in.read());
+    in.close();
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFormatException;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public class PipelinedSAMRecordIteratorTest {
+
+  /**
+   * Returns numbered records, then fails if failAfter is reached.
+   */
+  private static class TestIterator implements SAMRecordIterator {
+    final SAMFileHeader header = new SAMFileHeader();
+    final int count;
+    final int failAfter;
+    volatile int returned = 0;
+    volatile boolean closed = false;
+
+    TestIterator(int count, int failAfter) {
+      this.count = count;
+      this.failAfter = failAfter;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return returned < count;
+    }
+
+    @Override
+    public SAMRecord next() {
+      if (returned == failAfter) {
+        throw new SAMFormatException("Bad record " + returned);
+      }
+      final SAMRecord record = new SAMRecord(header);
+      record.setReadName("read" + returned++);
+      return record;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+
+    @Override
+    public SAMRecordIterator assertSorted(SAMFileHeader.SortOrder sortOrder) {
+      return this;
+    }
+  }
+
+  private static List<String> readNames(SAMRecordIterator iterator) {
+    final List<String> names = new ArrayList<>();
+    while (iterator.hasNext()) {
+      names.add(iterator.next().getReadName());
+    }
+    return names;
+  }
+
+  @Test
+  public void testReturnsAllRecordsInOrder() {
+    final int count = 3 * PipelinedSAMRecordIterator.RECORDS_PER_BATCH + 7;
+    final TestIterator source = new TestIterator(count, -1);
+    // A single queued batch makes the decoder wait for the caller most of the time.
+    final PipelinedSAMRecordIterator iterator = new PipelinedSAMRecordIterator(source, 1, "test");
+    final List<String> names = readNames(iterator);
+    iterator.close();
+    assertEquals(count, names.size());
+    for (int i = 0; i < count; i++) {
+      assertEquals("read" + i, names.get(i));
+    }
+    assertTrue(source.closed);
+  }
+
+  @Test
+  public void testEmptySource() {
+    final TestIterator source = new TestIterator(0, -1);
+    final PipelinedSAMRecordIterator iterator = new PipelinedSAMRecordIterator(source, 4, "test");
+    assertFalse(iterator.hasNext());
+    iterator.close();
+    assertTrue(source.closed);
+  }
+
+  @Test
+  public void testRethrowsAfterTheRecordsBeforeTheFailure() {
+    final int failAfter = PipelinedSAMRecordIterator.RECORDS_PER_BATCH + 10;
+    final TestIterator source = new TestIterator(10000, failAfter);
+    final PipelinedSAMRecordIterator iterator = new PipelinedSAMRecordIterator(source, 4, "test");
+    int returned = 0;
+    try {
+      while (iterator.hasNext()) {
+        iterator.next();
+        returned++;
+      }
+      fail("Expected the decoding failure");
+    } catch (SAMFormatException e) {
+      assertEquals("Bad record " + failAfter, e.getMessage());
+    } finally {
+      iterator.close();
+    }
+    // The records of the incomplete batch are lost with the failure.
+    assertEquals(PipelinedSAMRecordIterator.RECORDS_PER_BATCH, returned);
+    assertTrue(source.closed);
+  }
+
+  @Test
+  public void testCloseStopsTheDecoder() {
+    final TestIterator source = new TestIterator(Integer.MAX_VALUE, -1);
+    final PipelinedSAMRecordIterator iterator = new PipelinedSAMRecordIterator(source, 2, "test");
+    assertEquals("read0", iterator.next().getReadName());
+    iterator.close();
+    assertTrue(source.closed);
+    assertFalse(iterator.hasNext());
+    // The queue and the batch being decoded, at most.
+    assertTrue(source.returned <= 4 * PipelinedSAMRecordIterator.RECORDS_PER_BATCH);
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.Json;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.storage.Storage;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(JUnit4.class)
+public class ReadAheadGCSStreamTest {
+  private static final int BLOCK_SIZE = 4096;
+  private static final byte[] DATA = new byte[4000];
+
+  static {
+    new Random(1).nextBytes(DATA);
+  }
+
+  /**
+   * Serves the object metadata and byte ranges of DATA. The first slowRequests range
+   * requests trickle out one byte every few milliseconds.
+   */
+  private static class FakeGCS extends MockHttpTransport {
+    final int slowRequests;
+    final AtomicInteger mediaRequests = new AtomicInteger();
+    final AtomicInteger slowBytesSent = new AtomicInteger();
+    final CountDownLatch slowDisconnected = new CountDownLatch(1);
+
+    FakeGCS(int slowRequests) {
+      this.slowRequests = slowRequests;
+    }
+
+    @Override
+    public LowLevelHttpRequest buildRequest(String method, final String url) {
+      return new MockLowLevelHttpRequest(url) {
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+          if (!url.contains("alt=media")) {
+            return new MockLowLevelHttpResponse()
+                .setContentType(Json.MEDIA_TYPE)
+                .setContent("{\"bucket\":\"bucket\",\"name\":\"file.bam\",\"size\":\""
+                    + DATA.length + "\",\"generation\":\"1\"}");
+          }
+          final String[] range =
+              getFirstHeaderValue("range").substring("bytes=".length()).split("-");
+          final byte[] content = Arrays.copyOfRange(DATA, Integer.parseInt(range[0]),
+              Integer.parseInt(range[1]) + 1);
+          if (mediaRequests.getAndIncrement() >= slowRequests) {
+            return new MockLowLevelHttpResponse().setContent(content);
+          }
+          return slowResponse(content);
+        }
+      };
+    }
+
+    private LowLevelHttpResponse slowResponse(final byte[] content) {
+      final InputStream trickle = new InputStream() {
+        @Override
+        public int read() throws IOException {
+          try {
+            Thread.sleep(5);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          final int sent = slowBytesSent.getAndIncrement();
+          return sent < content.length ? content[sent] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+          final int c = read();
+          if (c < 0) {
+            return -1;
+          }
+          b[off] = (byte) c;
+          return 1;
+        }
+      };
+      return new MockLowLevelHttpResponse() {
+        @Override
+        public InputStream getContent() {
+          return trickle;
+        }
+
+        @Override
+        public void disconnect() {
+          slowDisconnected.countDown();
+        }
+      };
+    }
+  }
+
+  private static ReadAheadGCSStream open(FakeGCS gcs, long nanosPerBlock)
+      throws IOException {
+    final Storage.Objects client = new Storage.Builder(gcs,
+        JacksonFactory.getDefaultInstance(), null).setApplicationName("test").build().objects();
+    final ReadAheadGCSStream stream =
+        new ReadAheadGCSStream(client, "gs://bucket/file.bam", BLOCK_SIZE, 0, 1, 0.5);
+    final FetchLatencyTracker latencies = new FetchLatencyTracker();
+    for (int i = 0; i < FetchLatencyTracker.MIN_SAMPLES; i++) {
+      latencies.record(nanosPerBlock, BLOCK_SIZE, BLOCK_SIZE);
+    }
+    stream.setLatencyTracker(latencies);
+    return stream;
+  }
+
+  @Test
+  public void testFastRequestIsNotHedged() throws IOException {
+    final FakeGCS gcs = new FakeGCS(0);
+    final ReadAheadGCSStream stream = open(gcs, TimeUnit.SECONDS.toNanos(10));
+    assertArrayEquals(DATA, stream.fetchRange(0, DATA.length));
+    assertEquals(1, gcs.mediaRequests.get());
+    assertEquals(0, stream.ioStats.hedgedRequests.get());
+  }
+
+  @Test
+  public void testHedgedRequestWinsAndAbortsTheSlowOne() throws Exception {
+    final FakeGCS gcs = new FakeGCS(1);
+    final ReadAheadGCSStream stream = open(gcs, TimeUnit.MILLISECONDS.toNanos(50));
+    assertArrayEquals(DATA, stream.fetchRange(0, DATA.length));
+    assertEquals(2, gcs.mediaRequests.get());
+    assertEquals(1, stream.ioStats.hedgedRequests.get());
+
+    // Read in full, the slow response would take 20 seconds.
+    assertTrue(gcs.slowDisconnected.await(5, TimeUnit.SECONDS));
+    assertTrue(gcs.slowBytesSent.get() < DATA.length);
+  }
+
+  @Test
+  public void testHedgedRequestAsksForTheSameRange() throws IOException {
+    final byte[] expected = Arrays.copyOfRange(DATA, 100, 300);
+    final FakeGCS gcs = new FakeGCS(1);
+    final ReadAheadGCSStream stream = open(gcs, TimeUnit.MILLISECONDS.toNanos(50));
+    assertArrayEquals(expected, stream.fetchRange(100, 200));
+    assertEquals(1, stream.ioStats.hedgedRequests.get());
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.beam.sdk.testing.PAssert;
+import org.apache.beam.sdk.testing.TestPipeline;
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.ParDo;
+import org.apache.beam.sdk.values.PCollection;
+import com.google.cloud.genomics.utils.Contig;
+import com.google.genomics.v1.Read;
+
+import htsjdk.samtools.ValidationStringency;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public class ReadBAMTransformTest {
+  private static final Contig CONTIG = new Contig("chr1", 1000, 5000);
+
+  @Rule
+  public final transient TestPipeline p = TestPipeline.create();
+
+  @Rule
+  public transient TemporaryFolder folder = new TemporaryFolder();
+
+  private transient TestBAMFile bam;
+
+  @Before
+  public void writeBAM() throws IOException {
+    bam = TestBAMFile.write(folder.getRoot(), "sequential", 1000, 10, 10);
+  }
+
+  private static class ReadNameFn extends DoFn<Read, String> {
+    @ProcessElement
+    public void processElement(ProcessContext c) {
+      c.output(c.element().getFragmentName());
+    }
+  }
+
+  @Test
+  public void testReadSequentially() throws IOException {
+    final List<String> names = new ArrayList<>();
+    final int reads = Reader.readSequentially(null, bam.path, CONTIG,
+        new ReaderOptions(ValidationStringency.SILENT, false), new Reader.ReaderOutput() {
+          @Override
+          public void output(Read read) {
+            names.add(read.getFragmentName());
+          }
+        });
+    assertEquals(bam.names(CONTIG.referenceName, CONTIG.start, CONTIG.end), names);
+    assertEquals(names.size(), reads);
+  }
+
+  @Test
+  public void testGetReadsFromBAMFileSequentially() {
+    final PCollection<String> names = ReadBAMTransform.getReadsFromBAMFileSequentially(p,
+        CONTIG, new ReaderOptions(ValidationStringency.SILENT, false), bam.path)
+        .apply(ParDo.of(new ReadNameFn()));
+    PAssert.that(names)
+        .containsInAnyOrder(bam.names(CONTIG.referenceName, CONTIG.start, CONTIG.end));
+    p.run();
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.beam.sdk.util.SerializableUtils;
+import com.google.cloud.genomics.utils.Contig;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMReadGroupRecord;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+
+@RunWith(JUnit4.class)
+public class ReadFilterTest {
+
+  private static SAMRecord record(int start, int mappingQuality, String readGroup) {
+    final SAMFileHeader header = new SAMFileHeader();
+    header.setSequenceDictionary(new SAMSequenceDictionary(Arrays.asList(
+        new SAMSequenceRecord("chr1", 100000), new SAMSequenceRecord("chr2", 100000))));
+    header.addReadGroup(new SAMReadGroupRecord("rg1"));
+    header.addReadGroup(new SAMReadGroupRecord("rg2"));
+    final SAMRecord record = new SAMRecord(header);
+    record.setReadName("read");
+    record.setReadString("ACGTACGTAC");
+    record.setBaseQualityString("IIIIIIIIII");
+    record.setReferenceIndex(0);
+    record.setAlignmentStart(start);
+    record.setCigarString("10M");
+    record.setMappingQuality(mappingQuality);
+    record.setAttribute("RG", readGroup);
+    return record;
+  }
+
+  @Test
+  public void testEmptyFilterAcceptsEverything() {
+    final SAMRecord record = record(100, 0, "rg1");
+    record.setDuplicateReadFlag(true);
+    assertTrue(new ReadFilter().accept(record));
+  }
+
+  @Test
+  public void testFlags() {
+    final ReadFilter filter = new ReadFilter()
+        .excludeFlags(ReadFilter.QC_FAILURE | ReadFilter.DUPLICATE)
+        .requireFlags(ReadFilter.PAIRED | ReadFilter.PROPER_PAIR);
+    final SAMRecord record = record(100, 60, "rg1");
+    assertFalse(filter.accept(record));
+    record.setReadPairedFlag(true);
+    assertFalse(filter.accept(record));
+    record.setProperPairFlag(true);
+    assertTrue(filter.accept(record));
+    record.setDuplicateReadFlag(true);
+    assertFalse(filter.accept(record));
+    record.setDuplicateReadFlag(false);
+    record.setReadFailsVendorQualityCheckFlag(true);
+    assertFalse(filter.accept(record));
+  }
+
+  @Test
+  public void testMappingQualityAndReadGroup() {
+    final ReadFilter filter = new ReadFilter().minMappingQuality(20)
+        .readGroups(Arrays.asList("rg2"));
+    assertTrue(filter.accept(record(100, 20, "rg2")));
+    assertFalse(filter.accept(record(100, 19, "rg2")));
+    assertFalse(filter.accept(record(100, 60, "rg1")));
+  }
+
+  @Test
+  public void testRegions() {
+    final ReadFilter filter = new ReadFilter().regions(Arrays.asList(
+        new Contig("chr1", 1000, 2000), new Contig("chr2", 0, 100)));
+    // The 0-based [1000, 2000) is 1001-2000 in 1-based coordinates.
+    assertTrue(filter.accept(record(992, 60, "rg1")));
+    assertFalse(filter.accept(record(991, 60, "rg1")));
+    assertTrue(filter.accept(record(2000, 60, "rg1")));
+    assertFalse(filter.accept(record(2001, 60, "rg1")));
+    assertFalse(filter.accept(record(50000, 60, "rg1")));
+    final SAMRecord onChr2 = record(50, 60, "rg1");
+    onChr2.setReferenceIndex(1);
+    assertTrue(filter.accept(onChr2));
+  }
+
+  @Test
+  public void testSerializable() {
+    final ReadFilter filter = new ReadFilter().excludeFlags(ReadFilter.DUPLICATE)
+        .regions(Arrays.asList(new Contig("chr1", 1000, 2000)));
+    assertTrue(filter.accept(record(1500, 60, "rg1")));
+    final ReadFilter copy = SerializableUtils.clone(filter);
+    assertTrue(copy.accept(record(1500, 60, "rg1")));
+    assertFalse(copy.accept(record(5000, 60, "rg1")));
+  }
+}
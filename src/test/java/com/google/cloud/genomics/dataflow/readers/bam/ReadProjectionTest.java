@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.beam.sdk.util.SerializableUtils;
+import com.google.cloud.genomics.dataflow.readers.bam.ReadProjection.Field;
+import com.google.cloud.genomics.utils.grpc.ReadUtils;
+import com.google.genomics.v1.Read;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+
+@RunWith(JUnit4.class)
+public class ReadProjectionTest {
+
+  private static SAMRecord pairedRecord() {
+    final SAMFileHeader header = new SAMFileHeader();
+    header.setSequenceDictionary(new SAMSequenceDictionary(Arrays.asList(
+        new SAMSequenceRecord("chr1", 100000), new SAMSequenceRecord("chr2", 100000))));
+    final SAMRecord record = new SAMRecord(header);
+    record.setReadName("read1");
+    record.setReadString("ACGTACGTAC");
+    record.setBaseQualityString("IIIIIIIIII");
+    record.setReferenceIndex(0);
+    record.setAlignmentStart(1000);
+    record.setCigarString("3S5M1I1M");
+    record.setMappingQuality(40);
+    record.setReadNegativeStrandFlag(true);
+    record.setReadPairedFlag(true);
+    record.setProperPairFlag(true);
+    record.setFirstOfPairFlag(true);
+    record.setMateReferenceIndex(1);
+    record.setMateAlignmentStart(2000);
+    record.setMateNegativeStrandFlag(false);
+    record.setInferredInsertSize(300);
+    record.setAttribute("NM", 1);
+    return record;
+  }
+
+  @Test
+  public void testAllIsTheFullConversion() {
+    final SAMRecord record = pairedRecord();
+    assertEquals(ReadUtils.makeReadGrpc(record), ReadProjection.ALL.convert(record));
+  }
+
+  @Test
+  public void testFixedFieldsMatchTheFullConversion() {
+    final SAMRecord record = pairedRecord();
+    final Read full = ReadUtils.makeReadGrpc(record);
+    final Read projected = ReadProjection.of(Field.FRAGMENT, Field.ALIGNMENT, Field.CIGAR,
+        Field.NEXT_MATE_POSITION).convert(record);
+    final Read expected = full.toBuilder()
+        .clearAlignedSequence()
+        .clearAlignedQuality()
+        .clearReadGroupId()
+        .clearInfo()
+        .build();
+    assertEquals(expected, projected);
+  }
+
+  @Test
+  public void testCigarMatchesTheFullConversionWithAnMdTag() {
+    final SAMRecord record = pairedRecord();
+    record.setCigarString("3S2M1D3M1X1M");
+    record.setAttribute("MD", "2^A3C1");
+    final Read full = ReadUtils.makeReadGrpc(record);
+    final Read projected = ReadProjection.of(Field.CIGAR).convert(record);
+    assertEquals(full.getId(), projected.getId());
+    assertEquals(full.getAlignment().getCigarList(), projected.getAlignment().getCigarList());
+  }
+
+  @Test
+  public void testNoAlignmentWithoutAStart() {
+    final SAMRecord record = pairedRecord();
+    record.setAlignmentStart(0);
+    final Read full = ReadUtils.makeReadGrpc(record);
+    final Read projected = ReadProjection.of(Field.FRAGMENT, Field.ALIGNMENT, Field.CIGAR,
+        Field.NEXT_MATE_POSITION).convert(record);
+    assertFalse(full.hasAlignment());
+    assertFalse(projected.hasAlignment());
+    assertEquals("read1", projected.getId());
+  }
+
+  @Test
+  public void testAlignmentWithoutCigar() {
+    final SAMRecord record = pairedRecord();
+    final Read projected = ReadProjection.of(Field.ALIGNMENT).convert(record);
+    assertEquals(999, projected.getAlignment().getPosition().getPosition());
+    assertEquals("chr1", projected.getAlignment().getPosition().getReferenceName());
+    assertTrue(projected.getAlignment().getPosition().getReverseStrand());
+    assertEquals(40, projected.getAlignment().getMappingQuality());
+    assertEquals(0, projected.getAlignment().getCigarCount());
+    assertEquals("", projected.getFragmentName());
+    assertFalse(projected.hasNextMatePosition());
+  }
+
+  @Test
+  public void testDecodedFieldsAreOnlyKeptWhenRequested() {
+    final SAMRecord record = pairedRecord();
+    final Read projected = ReadProjection.of(Field.ALIGNED_SEQUENCE).convert(record);
+    assertEquals("ACGTACGTAC", projected.getAlignedSequence());
+    assertEquals(0, projected.getAlignedQualityCount());
+    assertEquals(0, projected.getInfoCount());
+    assertFalse(projected.hasAlignment());
+    assertEquals("", projected.getFragmentName());
+  }
+
+  @Test
+  public void testUnmappedRecordHasNoAlignment() {
+    final SAMRecord record = pairedRecord();
+    record.setReadUnmappedFlag(true);
+    assertFalse(ReadProjection.of(Field.ALIGNMENT, Field.CIGAR).convert(record).hasAlignment());
+  }
+
+  @Test
+  public void testSerializable() {
+    final ReadProjection projection =
+        SerializableUtils.clone(ReadProjection.of(Field.ALIGNMENT, Field.CIGAR));
+    assertTrue(projection.contains(Field.CIGAR));
+    assertFalse(projection.contains(Field.INFO));
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.beam.sdk.options.PipelineOptionsFactory;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ReaderOptionsTest {
+
+  @Test
+  public void testDefaultPipelineOptionsKeepDefaults() {
+    final ReaderOptions options = new ReaderOptions();
+    options.applyPipelineOptions(
+        PipelineOptionsFactory.fromArgs().as(ReadBAMTransform.Options.class));
+    final ReaderOptions defaults = new ReaderOptions();
+    assertEquals(defaults.getReadAheadBlocks(), options.getReadAheadBlocks());
+    assertEquals(defaults.getReadAheadBlockSize(), options.getReadAheadBlockSize());
+    assertEquals(defaults.getCachedBlocks(), options.getCachedBlocks());
+    assertEquals(defaults.getHedgedReads(), options.getHedgedReads());
+    assertEquals(defaults.getHedgePercentile(), options.getHedgePercentile(), 0);
+    assertNull(options.getDiskCachePath());
+    assertEquals(defaults.getDiskCacheBytes(), options.getDiskCacheBytes());
+    assertEquals(defaults.getInflaterThreads(), options.getInflaterThreads());
+    assertFalse(options.getPipelinedReading());
+    assertFalse(options.getSplittableReading());
+    assertFalse(options.getShardManifests());
+    assertEquals(0, options.getTargetShardsPerFile());
+  }
+
+  @Test
+  public void testPipelineOptions() {
+    final ReaderOptions options = new ReaderOptions();
+    options.applyPipelineOptions(PipelineOptionsFactory.fromArgs(
+        "--readAheadBlocks=8",
+        "--readAheadBlockSize=65536",
+        "--hedgedReads=true",
+        "--hedgePercentile=0.99",
+        "--diskCachePath=/tmp/blocks",
+        "--inflaterThreads=4",
+        "--pipelinedReading=true",
+        "--targetShardsPerFile=16").as(ReadBAMTransform.Options.class));
+    assertEquals(8, options.getReadAheadBlocks());
+    assertEquals(65536, options.getReadAheadBlockSize());
+    assertTrue(options.getHedgedReads());
+    assertEquals(0.99, options.getHedgePercentile(), 0);
+    assertEquals("/tmp/blocks", options.getDiskCachePath());
+    assertEquals(4, options.getInflaterThreads());
+    assertTrue(options.getPipelinedReading());
+    assertEquals(16, options.getTargetShardsPerFile());
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Random;
+
+@RunWith(JUnit4.class)
+public class ReaderTest {
+  private final SAMFileHeader header = TestBAMFile.header();
+  private final Random random = new Random(7);
+
+  private SAMRecord placedUnmapped() {
+    final SAMRecord record = TestBAMFile.record(header, random, "placed", 1, 1000);
+    record.setReadUnmappedFlag(true);
+    record.setCigarString("*");
+    return record;
+  }
+
+  @Test
+  public void testUnmappedOnlyKeepsUnplacedUnmappedReads() {
+    final SAMRecord unplaced = TestBAMFile.record(header, random, "unplaced", -1, 0);
+    assertTrue(Reader.passesFilter(unplaced, Reader.Filter.UNMAPPED_ONLY, "*"));
+  }
+
+  @Test
+  public void testUnmappedOnlyRejectsMappedAndPlacedUnmappedReads() {
+    final SAMRecord mapped = TestBAMFile.record(header, random, "mapped", 1, 1000);
+    assertFalse(Reader.passesFilter(mapped, Reader.Filter.UNMAPPED_ONLY, "*"));
+    assertFalse(Reader.passesFilter(placedUnmapped(), Reader.Filter.UNMAPPED_ONLY, "*"));
+  }
+
+  @Test
+  public void testPlacedUnmappedReadsBelongToTheirMatesReference() {
+    final SAMRecord placed = placedUnmapped();
+    assertTrue(Reader.passesFilter(placed, Reader.Filter.MAPPED_AND_UNMAPPED, "chr2"));
+    assertFalse(Reader.passesFilter(placed, Reader.Filter.MAPPED_AND_UNMAPPED, "chr1"));
+    assertFalse(Reader.passesFilter(placed, Reader.Filter.MAPPED_ONLY, "chr2"));
+  }
+
+  @Test
+  public void testAllReadsTakesEveryReferenceAndUnplacedReads() {
+    final SAMRecord unplaced = TestBAMFile.record(header, random, "unplaced", -1, 0);
+    final SAMRecord mapped = TestBAMFile.record(header, random, "mapped", 0, 1000);
+    assertTrue(Reader.passesFilter(unplaced, Reader.Filter.MAPPED_ONLY, Reader.ALL_READS));
+    assertTrue(Reader.passesFilter(mapped, Reader.Filter.MAPPED_ONLY, Reader.ALL_READS));
+    assertFalse(
+        Reader.passesFilter(placedUnmapped(), Reader.Filter.MAPPED_ONLY, Reader.ALL_READS));
+    assertTrue(Reader.passesFilter(placedUnmapped(), Reader.Filter.MAPPED_AND_UNMAPPED,
+        Reader.ALL_READS));
+  }
+
+  @Test
+  public void testEveryReferenceShardSkipsUnplacedReads() {
+    final SAMRecord unplaced = TestBAMFile.record(header, random, "unplaced", -1, 0);
+    assertFalse(Reader.passesFilter(unplaced, Reader.Filter.MAPPED_AND_UNMAPPED, ""));
+    assertTrue(Reader.passesFilter(placedUnmapped(), Reader.Filter.MAPPED_AND_UNMAPPED, ""));
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class RetryBackoffTest {
+
+  private static void assertBetween(long min, long max, long value) {
+    assertTrue(value + " not in [" + min + ", " + max + "]", value >= min && value <= max);
+  }
+
+  @Test
+  public void testBackoffDoubles() {
+    for (int i = 0; i < 100; i++) {
+      assertBetween(125, 250, RetryBackoff.sleepMillis(1));
+      assertBetween(250, 500, RetryBackoff.sleepMillis(2));
+      assertBetween(500, 1000, RetryBackoff.sleepMillis(3));
+    }
+  }
+
+  @Test
+  public void testBackoffIsCapped() {
+    for (int retry = 1; retry <= 100; retry++) {
+      assertBetween(RetryBackoff.INITIAL_SLEEP_MSEC / 2, RetryBackoff.MAX_SLEEP_MSEC,
+          RetryBackoff.sleepMillis(retry));
+    }
+    assertBetween(RetryBackoff.MAX_SLEEP_MSEC / 2, RetryBackoff.MAX_SLEEP_MSEC,
+        RetryBackoff.sleepMillis(Integer.MAX_VALUE));
+  }
+
+  @Test
+  public void testBackoffIsJittered() {
+    final long first = RetryBackoff.sleepMillis(RetryBackoff.MAX_RETRIES);
+    for (int i = 0; i < 100; i++) {
+      if (RetryBackoff.sleepMillis(RetryBackoff.MAX_RETRIES) != first) {
+        return;
+      }
+    }
+    throw new AssertionError("Sleep times are all " + first + " ms");
+  }
+}
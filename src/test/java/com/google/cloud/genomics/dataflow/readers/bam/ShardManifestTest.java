@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cloud.genomics.utils.Contig;
+
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.SAMFileSpanImpl;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public class ShardManifestTest {
+  private static final String FILE = "gs://bucket/file.bam";
+
+  private static List<BAMShard> shards() {
+    final BAMShard mapped = new BAMShard(FILE, "chr1", 1);
+    mapped.addBin(Arrays.asList(new Chunk(5L << 16 | 10, 9L << 16 | 100)), 16384);
+    final BAMShard unmapped = new BAMShard(FILE,
+        new SAMFileSpanImpl(Collections.singletonList(new Chunk(20L << 16, 30L << 16))),
+        new Contig("*", 0, -1));
+    return Arrays.asList(mapped, unmapped);
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    final List<BAMShard> shards = shards();
+    final List<BAMShard> decoded =
+        ShardManifest.decode(ShardManifest.encode(7, 8, shards), 7, 8);
+    assertEquals(shards.size(), decoded.size());
+    for (int i = 0; i < shards.size(); i++) {
+      assertEquals(shards.get(i).toString(), decoded.get(i).toString());
+      assertEquals(shards.get(i).span.getChunkList().get(0).getChunkStart(),
+          decoded.get(i).span.getChunkList().get(0).getChunkStart());
+      assertEquals(shards.get(i).span.getChunkList().get(0).getChunkEnd(),
+          decoded.get(i).span.getChunkList().get(0).getChunkEnd());
+    }
+  }
+
+  @Test
+  public void testIgnoresOtherGenerations() throws IOException {
+    final byte[] manifest = ShardManifest.encode(7, 8, shards());
+    assertNull(ShardManifest.decode(manifest, 6, 8));
+    assertNull(ShardManifest.decode(manifest, 7, ShardManifest.MISSING_GENERATION));
+  }
+
+  @Test
+  public void testPathDependsOnContigsAndPolicy() {
+    final List<Contig> contigs = Arrays.asList(new Contig("chr1", 0, 1000));
+    final String path = ShardManifest.manifestPath(FILE, contigs,
+        ShardingPolicy.byteSize(1000));
+    assertTrue(path.startsWith(FILE + "."));
+    assertTrue(path.endsWith(ShardManifest.MANIFEST_SUFFIX));
+    assertEquals(path, ShardManifest.manifestPath(FILE, contigs,
+        ShardingPolicy.byteSize(1000)));
+    assertFalse(path.equals(ShardManifest.manifestPath(FILE, contigs,
+        ShardingPolicy.byteSize(2000))));
+    assertFalse(path.equals(ShardManifest.manifestPath(FILE, contigs,
+        ShardingPolicy.lociSize(1000))));
+    assertFalse(path.equals(ShardManifest.manifestPath(FILE,
+        Arrays.asList(new Contig("chr2", 0, 1000)), ShardingPolicy.byteSize(1000))));
+  }
+}
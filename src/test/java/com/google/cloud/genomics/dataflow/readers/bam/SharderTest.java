@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cloud.genomics.utils.Contig;
+import com.google.genomics.v1.Read;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.ValidationStringency;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+@RunWith(JUnit4.class)
+public class SharderTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static final List<Contig> CONTIGS = Arrays.asList(
+      new Contig("chr1", 0, TestBAMFile.REFERENCE_LENGTH),
+      new Contig("chr2", 0, TestBAMFile.REFERENCE_LENGTH));
+
+  private TestBAMFile bam;
+
+  @Before
+  public void writeBAM() throws IOException {
+    // A few megabytes per reference, so that several 1MB shards fit in each.
+    bam = TestBAMFile.write(folder.getRoot(), "sharder", 20000, 40, 0);
+  }
+
+  private static List<String> readNames(List<BAMShard> shards) throws IOException {
+    final List<String> names = new ArrayList<>();
+    final ReaderOptions options = new ReaderOptions(ValidationStringency.SILENT, false);
+    for (BAMShard shard : shards) {
+      new Reader(null, options, shard, new Reader.ReaderOutput() {
+        @Override
+        public void output(Read read) {
+          names.add(read.getFragmentName());
+        }
+      }).process();
+    }
+    Collections.sort(names);
+    return names;
+  }
+
+  private List<String> expectedNames() {
+    final List<String> names = new ArrayList<>();
+    names.addAll(bam.names("chr1", 1, TestBAMFile.REFERENCE_LENGTH));
+    names.addAll(bam.names("chr2", 1, TestBAMFile.REFERENCE_LENGTH));
+    Collections.sort(names);
+    return names;
+  }
+
+  @Test
+  public void testSingleTargetShardKeepsOneShardPerReference() throws IOException {
+    final List<BAMShard> shards = Sharder.shardBAMFile(null, bam.path, CONTIGS, 1);
+    assertEquals(2, shards.size());
+    assertEquals(expectedNames(), readNames(shards));
+  }
+
+  @Test
+  public void testTargetShardCount() throws IOException {
+    final List<BAMShard> shards = Sharder.shardBAMFile(null, bam.path, CONTIGS, 4);
+    // Shards end at reference boundaries, so each reference may add one more.
+    assertTrue("Got " + shards.size() + " shards", shards.size() >= 4 && shards.size() <= 6);
+    assertEquals(expectedNames(), readNames(shards));
+  }
+
+  @Test
+  public void testTargetShardCountKeepsMinimumShardSize() throws IOException {
+    long totalBytes = 0;
+    for (BAMShard shard : Sharder.shardBAMFile(null, bam.path, CONTIGS, 1)) {
+      totalBytes += shard.approximateSizeInBytes();
+    }
+    // Shards of at least 1MB, plus the last shard of each reference.
+    final List<BAMShard> shards = Sharder.shardBAMFile(null, bam.path, CONTIGS, 100000);
+    assertTrue("Got " + shards.size() + " shards",
+        shards.size() <= totalBytes / (1024 * 1024) + 2);
+    assertEquals(expectedNames(), readNames(shards));
+  }
+
+  @Test
+  public void testSplitsUnmappedReads() throws IOException {
+    final SAMFileHeader header = TestBAMFile.header();
+    final Random random = new Random(42);
+    final List<SAMRecord> records = new ArrayList<>();
+    for (int reference = 0; reference < 2; reference++) {
+      for (int i = 0; i < 2000; i++) {
+        records.add(TestBAMFile.record(header, random, "mapped-" + reference + "-" + i,
+            reference, 1 + i * 400));
+      }
+    }
+    // An unmapped mate placed next to its mapped mate, which belongs to the mapped shards.
+    final SAMRecord placed = TestBAMFile.record(header, random, "placed", 1, 1 + 1999 * 400);
+    placed.setReadUnmappedFlag(true);
+    placed.setCigarString("*");
+    placed.setMappingQuality(0);
+    records.add(placed);
+    for (int i = 0; i < 20000; i++) {
+      records.add(TestBAMFile.record(header, random, "unmapped-" + i, -1, 0));
+    }
+    final TestBAMFile unmapped =
+        TestBAMFile.write(folder.getRoot(), "unmapped", header, records);
+
+    final List<BAMShard> shards = new ArrayList<>();
+    final Sharder sharder = new Sharder(null, unmapped.path,
+        Arrays.asList(new Contig("*", 0, -1)), ShardingPolicy.BYTE_SIZE_POLICY_10MB,
+        new Sharder.SharderOutput() {
+          @Override
+          public void output(BAMShard shard) {
+            shards.add(shard);
+          }
+        });
+    sharder.setUnmappedBytesPerShard(512 * 1024);
+    sharder.process();
+
+    assertTrue("Got " + shards.size() + " shards", shards.size() > 1);
+    for (BAMShard shard : shards) {
+      assertEquals("*", shard.contig.referenceName);
+    }
+    final List<String> expected = new ArrayList<>(unmapped.names(null, 0, 0));
+    Collections.sort(expected);
+    assertEquals(expected, readNames(shards));
+  }
+
+  private static List<BAMShard> shardWithoutIndex(TestBAMFile file, List<Contig> contigs)
+      throws IOException {
+    final List<BAMShard> shards = new ArrayList<>();
+    final Sharder sharder = new Sharder(null, file.path, contigs,
+        ShardingPolicy.BYTE_SIZE_POLICY_10MB, new Sharder.SharderOutput() {
+          @Override
+          public void output(BAMShard shard) {
+            shards.add(shard);
+          }
+        });
+    sharder.setUnindexedBytesPerShard(256 * 1024);
+    sharder.process();
+    return shards;
+  }
+
+  private TestBAMFile writeUnindexed(String name) throws IOException {
+    final TestBAMFile file = TestBAMFile.write(folder.getRoot(), name, 5000, 100, 5000);
+    assertTrue(new File(folder.getRoot(), name + ".bam.bai").delete());
+    return file;
+  }
+
+  @Test
+  public void testUnindexedRangesAreReadOnce() throws IOException {
+    final TestBAMFile unindexed = writeUnindexed("unindexed");
+    final List<BAMShard> shards =
+        shardWithoutIndex(unindexed, Collections.<Contig>emptyList());
+
+    assertTrue("Got " + shards.size() + " shards", shards.size() > 1);
+    for (BAMShard shard : shards) {
+      assertEquals(Reader.ALL_READS, shard.contig.referenceName);
+    }
+    final List<String> expected = new ArrayList<>();
+    for (SAMRecord record : unindexed.records) {
+      expected.add(record.getReadName());
+    }
+    Collections.sort(expected);
+    assertEquals(expected, readNames(shards));
+  }
+
+  @Test
+  public void testUnindexedRangesWithoutUnmappedReads() throws IOException {
+    final TestBAMFile unindexed = writeUnindexed("unindexed-mapped");
+    final List<BAMShard> shards =
+        shardWithoutIndex(unindexed, Arrays.asList(new Contig("", 0, -1)));
+
+    for (BAMShard shard : shards) {
+      assertEquals("", shard.contig.referenceName);
+    }
+    final List<String> expected = new ArrayList<>();
+    expected.addAll(unindexed.names("chr1", 1, TestBAMFile.REFERENCE_LENGTH));
+    expected.addAll(unindexed.names("chr2", 1, TestBAMFile.REFERENCE_LENGTH));
+    Collections.sort(expected);
+    assertEquals(expected, readNames(shards));
+  }
+}
@@ -15,14 +15,24 @@
  */
 package com.google.cloud.genomics.dataflow.readers.bam;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cloud.genomics.utils.Contig;
+
+import org.apache.beam.sdk.options.PipelineOptionsFactory;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import htsjdk.samtools.Chunk;
+import htsjdk.samtools.SAMFileSpanImpl;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 
 @RunWith(JUnit4.class)
 public class ShardingPolicyTest {
@@ -63,4 +73,64 @@ public class ShardingPolicyTest {
     		" is big enough but it should NOT be",
     		ShardingPolicy.LOCI_SIZE_POLICY_100KBP.apply(shard));
   }
+
+  /**
+   * A shard over the given loci with chunkCount chunks of 1000 compressed bytes each.
+   */
+  private static BAMShard shard(long loci, int chunkCount) {
+    final List<Chunk> chunks = new ArrayList<>();
+    for (long i = 0; i < chunkCount; i++) {
+      chunks.add(new Chunk((i * 2000) << 16, (i * 2000 + 1000) << 16));
+    }
+    return new BAMShard("gs://bucket/file.bam", new SAMFileSpanImpl(chunks),
+        new Contig("chr1", 0, loci));
+  }
+
+  @Test
+  public void testCostModelAddsUpBytesLociAndChunks() {
+    final CostModelShardingPolicy policy =
+        new CostModelShardingPolicy(1.0 * 1024 * 1024, 1.0 * 1000000, 1.0, 10);
+    final BAMShard shard = shard(2, 3);
+    final double seconds = shard.approximateSizeInBytes() + 2.0 + 3.0;
+    assertEquals(seconds, policy.estimateSeconds(shard), 1e-6);
+  }
+
+  @Test
+  public void testCostModelTargetRuntime() {
+    // Only loci cost anything: one second per megabase.
+    final CostModelShardingPolicy policy = new CostModelShardingPolicy(0, 1, 0, 10);
+    assertFalse(policy.apply(shard(10000000, 1)));
+    assertTrue(policy.apply(shard(10000001, 1)));
+  }
+
+  @Test
+  public void testTargetShardSecondsOptionPicksTheCostModel() {
+    final ShardingPolicy policy = ReadBAMTransform.getShardingPolicy(
+        PipelineOptionsFactory.fromArgs("--targetShardSeconds=30")
+            .as(ReadBAMTransform.Options.class), 100000);
+    assertTrue(policy instanceof CostModelShardingPolicy);
+    // 10 megabases at the default cost of a megabase take 0.1s, far from the target,
+    // while the byte size alone would have split the shard.
+    assertFalse(policy.apply(shard(10000000, 100)));
+    assertTrue(policy.apply(shard(3000000000L, 1)));
+  }
+
+  @Test
+  public void testByteSizePolicyByDefault() {
+    final ShardingPolicy policy = ReadBAMTransform.getShardingPolicy(
+        PipelineOptionsFactory.fromArgs().as(ReadBAMTransform.Options.class), 100000);
+    assertFalse(policy instanceof CostModelShardingPolicy);
+    assertFalse(policy.apply(shard(10000000, 1)));
+    assertTrue(policy.apply(shard(500, 100)));
+  }
+
+  @Test
+  public void testAnyOf() {
+    final ShardingPolicy policy = ShardingPolicy.anyOf(
+        ShardingPolicy.lociSize(1000), ShardingPolicy.byteSize(100000));
+    assertFalse(policy.apply(shard(500, 1)));
+    assertTrue(policy.apply(shard(5000, 1)));
+    assertTrue(policy.apply(shard(500, 100)));
+    assertFalse(ShardingPolicy.NEVER_SPLIT_POLICY.apply(shard(5000, 100)));
+  }
 }
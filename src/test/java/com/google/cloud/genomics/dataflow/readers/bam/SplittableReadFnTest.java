@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.splittabledofn.OffsetRange;
+import org.apache.beam.sdk.transforms.splittabledofn.OffsetRangeTracker;
+import com.google.cloud.genomics.utils.Contig;
+import com.google.genomics.v1.Read;
+
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.SAMFileSpanImpl;
+import htsjdk.samtools.ValidationStringency;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(JUnit4.class)
+public class SplittableReadFnTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private TestBAMFile bam;
+  private BAMShard shard;
+
+  @Before
+  public void writeBAM() throws IOException {
+    bam = TestBAMFile.write(folder.getRoot(), "splittable", 3000, 10, 0);
+    shard = new BAMShard(bam.path, bam.span(0, 1, TestBAMFile.REFERENCE_LENGTH),
+        new Contig("chr1", 0, TestBAMFile.REFERENCE_LENGTH));
+  }
+
+  /**
+   * Collects the names of the reads output for the shard, optionally checkpointing
+   * the tracker after checkpointAfter reads.
+   */
+  private static class Collector implements Reader.ReaderOutput {
+    final List<String> names = new ArrayList<>();
+    final int checkpointAfter;
+    OffsetRangeTracker tracker;
+    OffsetRange residual;
+
+    Collector(int checkpointAfter) {
+      this.checkpointAfter = checkpointAfter;
+    }
+
+    @Override
+    public void output(Read read) {
+      names.add(read.getFragmentName());
+      if (names.size() == checkpointAfter) {
+        residual = tracker.checkpoint();
+      }
+    }
+  }
+
+  private Collector read(SplittableReadFn fn, ReaderOptions options, OffsetRange range,
+      int checkpointAfter) throws IOException {
+    final Collector collector = new Collector(checkpointAfter);
+    collector.tracker = fn.newTracker(range);
+    fn.readShard(shard, collector.tracker, new Reader(null, options, shard, collector));
+    // Throws if the end of the restriction was neither claimed nor marked done.
+    collector.tracker.checkDone();
+    return collector;
+  }
+
+  private static Chunk chunk(long startAddress, long endAddress) {
+    return new Chunk(startAddress << 16, endAddress << 16);
+  }
+
+  private static List<OffsetRange> split(SplittableReadFn fn, BAMShard shard) {
+    final List<OffsetRange> pieces = new ArrayList<>();
+    fn.splitRestriction(shard, fn.getInitialRestriction(shard),
+        new DoFn.OutputReceiver<OffsetRange>() {
+          @Override
+          public void output(OffsetRange output) {
+            pieces.add(output);
+          }
+        });
+    return pieces;
+  }
+
+  @Test
+  public void testSplitsAtChunkStarts() {
+    final ReaderOptions options = new ReaderOptions(ValidationStringency.SILENT, false);
+    options.setBytesPerSplit(100);
+    final SplittableReadFn fn = new SplittableReadFn(null, options);
+    final BAMShard shard = new BAMShard("gs://bucket/file.bam",
+        new SAMFileSpanImpl(Arrays.asList(
+            chunk(0, 60), chunk(70, 130), chunk(200, 210), chunk(300, 500), chunk(500, 520))),
+        new Contig("chr1", 0, 1000));
+
+    // 120 bytes in the first piece, 210 in the second, then the remaining 20.
+    final List<OffsetRange> pieces = split(fn, shard);
+    assertEquals(3, pieces.size());
+    assertEquals(new OffsetRange(0, 200L << 16), pieces.get(0));
+    assertEquals(new OffsetRange(200L << 16, 500L << 16), pieces.get(1));
+    assertEquals(new OffsetRange(500L << 16, 520L << 16), pieces.get(2));
+  }
+
+  @Test
+  public void testUnmappedShardIsNotSplit() {
+    final SplittableReadFn fn = new SplittableReadFn(null,
+        new ReaderOptions(ValidationStringency.SILENT, false));
+    final BAMShard shard = new BAMShard("gs://bucket/file.bam",
+        new SAMFileSpanImpl(Arrays.asList(chunk(0, 1000))), new Contig("*", 0, -1));
+    assertEquals(Arrays.asList(new OffsetRange(0, 1)), split(fn, shard));
+  }
+
+  @Test
+  public void testSkipRecord() throws IOException {
+    final ByteArrayInputStream input =
+        new ByteArrayInputStream(new byte[] {3, 0, 0, 0, 1, 2, 3, 42});
+    SplittableReadFn.skipRecord(input);
+    assertEquals(42, input.read());
+  }
+
+  @Test
+  public void testReadsWholeShard() throws IOException {
+    final ReaderOptions options = new ReaderOptions(ValidationStringency.SILENT, false);
+    final SplittableReadFn fn = new SplittableReadFn(null, options);
+    final Collector collector = read(fn, options, fn.getInitialRestriction(shard), -1);
+    assertEquals(bam.names("chr1", 1, TestBAMFile.REFERENCE_LENGTH), collector.names);
+  }
+
+  @Test
+  public void testResumesAfterCheckpoint() throws IOException {
+    final ReaderOptions options = new ReaderOptions(ValidationStringency.SILENT, false);
+    final SplittableReadFn fn = new SplittableReadFn(null, options);
+    final Collector first = read(fn, options, fn.getInitialRestriction(shard), 1234);
+    assertEquals(1234, first.names.size());
+    final Collector second = read(fn, options, first.residual, -1);
+
+    final List<String> names = new ArrayList<>(first.names);
+    names.addAll(second.names);
+    assertEquals(bam.names("chr1", 1, TestBAMFile.REFERENCE_LENGTH), names);
+  }
+
+  @Test
+  public void testReadsSplitPieces() throws IOException {
+    final ReaderOptions options = new ReaderOptions(ValidationStringency.SILENT, false);
+    options.setBytesPerSplit(1);
+    final SplittableReadFn fn = new SplittableReadFn(null, options);
+    final List<String> names = new ArrayList<>();
+    for (OffsetRange piece : split(fn, shard)) {
+      names.addAll(read(fn, options, piece, -1).names);
+    }
+    assertEquals(bam.names("chr1", 1, TestBAMFile.REFERENCE_LENGTH), names);
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.readers.bam;
+
+import static org.junit.Assert.assertTrue;
+
+import htsjdk.samtools.BAMFileIndexImpl;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileSpanImpl;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.seekablestream.SeekableFileStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes small coordinate-sorted BAM files with an index, for the tests that read
+ * real shards through the local storage backend.
+ */
+final class TestBAMFile {
+  static final int REFERENCE_LENGTH = 1000000;
+  static final int READ_LENGTH = 100;
+  private static final char[] BASES = {'A', 'C', 'G', 'T'};
+
+  final File file;
+  final String path;
+  final SAMFileHeader header;
+  final List<SAMRecord> records;
+
+  private TestBAMFile(File file, SAMFileHeader header, List<SAMRecord> records) {
+    this.file = file;
+    this.path = file.toPath().toUri().toString();
+    this.header = header;
+    this.records = records;
+  }
+
+  static SAMFileHeader header() {
+    final SAMFileHeader header = new SAMFileHeader();
+    header.setSequenceDictionary(new SAMSequenceDictionary(Arrays.asList(
+        new SAMSequenceRecord("chr1", REFERENCE_LENGTH),
+        new SAMSequenceRecord("chr2", REFERENCE_LENGTH))));
+    header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+    return header;
+  }
+
+  /**
+   * A read with random bases, mapped at the given 1-based start, or unmapped and
+   * without a position if referenceIndex is -1.
+   */
+  static SAMRecord record(SAMFileHeader header, Random random, String name,
+      int referenceIndex, int start) {
+    final SAMRecord record = new SAMRecord(header);
+    record.setReadName(name);
+    final char[] bases = new char[READ_LENGTH];
+    final char[] qualities = new char[READ_LENGTH];
+    for (int i = 0; i < READ_LENGTH; i++) {
+      bases[i] = BASES[random.nextInt(BASES.length)];
+      qualities[i] = (char) ('!' + random.nextInt(40));
+    }
+    record.setReadString(new String(bases));
+    record.setBaseQualityString(new String(qualities));
+    if (referenceIndex < 0) {
+      record.setReadUnmappedFlag(true);
+    } else {
+      record.setReferenceIndex(referenceIndex);
+      record.setAlignmentStart(start);
+      record.setCigarString(READ_LENGTH + "M");
+      record.setMappingQuality(60);
+    }
+    return record;
+  }
+
+  /**
+   * Writes mappedPerReference reads, spaced by step loci, on each reference, followed
+   * by unmapped reads without a position.
+   */
+  static TestBAMFile write(File directory, String name, int mappedPerReference, int step,
+      int unmapped) throws IOException {
+    final SAMFileHeader header = header();
+    final Random random = new Random(name.hashCode());
+    final List<SAMRecord> records = new ArrayList<>();
+    for (int reference = 0; reference < 2; reference++) {
+      for (int i = 0; i < mappedPerReference; i++) {
+        records.add(record(header, random, name + "-" + reference + "-" + i, reference,
+            1 + i * step));
+      }
+    }
+    for (int i = 0; i < unmapped; i++) {
+      records.add(record(header, random, name + "-unmapped-" + i, -1, 0));
+    }
+    return write(directory, name, header, records);
+  }
+
+  /**
+   * Writes the records, which must be in coordinate order, to name.bam and its index
+   * to name.bam.bai, where BAMIO looks for it.
+   */
+  static TestBAMFile write(File directory, String name, SAMFileHeader header,
+      List<SAMRecord> records) throws IOException {
+    final File file = new File(directory, name + ".bam");
+    final SAMFileWriter writer = new SAMFileWriterFactory()
+        .setCreateIndex(true)
+        .makeBAMWriter(header, true, file);
+    for (SAMRecord record : records) {
+      writer.addAlignment(record);
+    }
+    writer.close();
+    final File index = new File(directory, name + ".bai");
+    if (index.exists()) {
+      assertTrue(index.renameTo(new File(directory, name + ".bam.bai")));
+    }
+    return new TestBAMFile(file, header, records);
+  }
+
+  /**
+   * @return the span of the records overlapping the given 1-based loci, from the index.
+   */
+  SAMFileSpanImpl span(int referenceIndex, int start, int end) throws IOException {
+    // The same lookup as BAMShard.finalize, since BAMFileSpan is not public.
+    final BAMFileIndexImpl index = new BAMFileIndexImpl(
+        new SeekableFileStream(new File(file.getPath() + ".bai")),
+        header.getSequenceDictionary());
+    try {
+      return new SAMFileSpanImpl(index.getChunksOverlapping(
+          header.getSequence(referenceIndex).getSequenceName(), start, end));
+    } finally {
+      index.close();
+    }
+  }
+
+  /**
+   * @return names of the written records on the given reference (null for the unmapped
+   * reads without a position) that start within the given 1-based loci.
+   */
+  List<String> names(String referenceName, long start, long end) {
+    final List<String> names = new ArrayList<>();
+    for (SAMRecord record : records) {
+      if (referenceName == null ? record.getReferenceIndex() < 0
+          : referenceName.equals(record.getReferenceName())
+              && record.getAlignmentStart() >= start && record.getAlignmentStart() <= end) {
+        names.add(record.getReadName());
+      }
+    }
+    return names;
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.io.ByteStreams;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+@RunWith(JUnit4.class)
+public class ParallelBlockCompressedOutputStreamTest {
+
+  private static byte[] roundTrip(byte[] data, int threads, int level) throws IOException {
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    final ParallelBlockCompressedOutputStream out =
+        new ParallelBlockCompressedOutputStream(compressed, threads, level);
+    // Odd write sizes, so that writes straddle block boundaries.
+    for (int offset = 0; offset < data.length; offset += 7777) {
+      out.write(data, offset, Math.min(7777, data.length - offset));
+    }
+    out.close();
+    final BlockCompressedInputStream in = new BlockCompressedInputStream(
+        new ByteArrayInputStream(compressed.toByteArray()));
+    final byte[] result = ByteStreams.toByteArray(in);
+    in.close();
+    return result;
+  }
+
+  @Test
+  public void testCompressibleData() throws IOException {
+    final byte[] data = new byte[1000000];
+    final Random random = new Random(5);
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) ('A' + random.nextInt(4));
+    }
+    assertArrayEquals(data, roundTrip(data, 4, 5));
+  }
+
+  @Test
+  public void testIncompressibleDataIsStored() throws IOException {
+    final byte[] data = new byte[300000];
+    new Random(7).nextBytes(data);
+    assertArrayEquals(data, roundTrip(data, 2, 9));
+  }
+
+  @Test
+  public void testEmptyStreamHasOnlyTerminator() throws IOException {
+    assertEquals(0, roundTrip(new byte[0], 1, 5).length);
+  }
+}
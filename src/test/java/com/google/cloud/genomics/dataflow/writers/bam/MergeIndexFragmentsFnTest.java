@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.writers.bam;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+@RunWith(JUnit4.class)
+public class MergeIndexFragmentsFnTest {
+  private static final int BIN = 4681;
+  private static final long NO = BAMIndexFragment.NO_OFFSET;
+
+  private static long pointer(long address, int offset) {
+    return (address << 16) | offset;
+  }
+
+  private static BAMIndexFragment fragment(String name, long size, int reference) {
+    final BAMIndexFragment fragment = new BAMIndexFragment();
+    fragment.shardName = name;
+    fragment.shardSize = size;
+    fragment.referenceIndex = reference;
+    return fragment;
+  }
+
+  @Test
+  public void testFragmentsAreRebasedAndMerged() {
+    final BAMIndexFragment first = fragment("a", 500, 0);
+    first.bins.put(BIN, new long[] {pointer(100, 5), pointer(200, 10)});
+    first.linearIndex = new long[] {pointer(100, 5), NO};
+    first.firstOffset = pointer(100, 5);
+    first.lastOffset = pointer(200, 10);
+    first.alignedRecords = 3;
+
+    final BAMIndexFragment second = fragment("b", 1000, 0);
+    second.bins.put(BIN, new long[] {pointer(0, 0), pointer(50, 0)});
+    second.linearIndex = new long[] {NO, NO, pointer(0, 0)};
+    second.firstOffset = pointer(0, 0);
+    second.lastOffset = pointer(50, 0);
+    second.alignedRecords = 2;
+    second.unalignedRecords = 1;
+
+    final BAMIndexFragment unmapped = fragment("c", 10, -1);
+    unmapped.noCoordinateRecords = 4;
+
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    // Out of order on purpose: shards are merged in the order of their names.
+    MergeIndexFragmentsFn.writeIndex(Arrays.asList(unmapped, second, first), 1, bytes);
+    final ByteBuffer bai = ByteBuffer.wrap(bytes.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+
+    assertEquals('B', bai.get());
+    assertEquals('A', bai.get());
+    assertEquals('I', bai.get());
+    assertEquals(1, bai.get());
+    assertEquals(1, bai.getInt()); // references
+    assertEquals(2, bai.getInt()); // bins, including metadata
+    assertEquals(BIN, bai.getInt());
+    assertEquals(2, bai.getInt()); // chunks
+    assertEquals(pointer(100, 5), bai.getLong());
+    assertEquals(pointer(200, 10), bai.getLong());
+    assertEquals(pointer(500, 0), bai.getLong());
+    assertEquals(pointer(550, 0), bai.getLong());
+    assertEquals(37450, bai.getInt()); // metadata pseudo-bin
+    assertEquals(2, bai.getInt());
+    assertEquals(pointer(100, 5), bai.getLong());
+    assertEquals(pointer(550, 0), bai.getLong());
+    assertEquals(5, bai.getLong()); // aligned
+    assertEquals(1, bai.getLong()); // unaligned
+    assertEquals(3, bai.getInt()); // linear index
+    assertEquals(pointer(100, 5), bai.getLong());
+    assertEquals(pointer(100, 5), bai.getLong());
+    assertEquals(pointer(500, 0), bai.getLong());
+    assertEquals(4, bai.getLong()); // no coordinate records
+    assertFalse(bai.hasRemaining());
+  }
+
+  @Test
+  public void testReferenceWithoutReadsIsEmpty() {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    MergeIndexFragmentsFn.writeIndex(Arrays.asList(fragment("a", 100, -1)), 2, bytes);
+    // Magic, reference count, two empty references, no coordinate count.
+    assertEquals(4 + 4 + 2 * 8 + 8, bytes.size());
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.writers.bam;
+
+import com.google.cloud.genomics.utils.grpc.ReadUtils;
+import com.google.genomics.v1.Read;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares encoding Reads with ReadBAMRecordEncoder against converting them with
+ * ReadUtils.makeSAMRecord and encoding the SAMRecord with BAMRecordCodec, as WriteBAMFn
+ * does by default.
+ * Run with:
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *   -Dexec.mainClass=com.google.cloud.genomics.dataflow.writers.bam.ReadBAMRecordEncoderBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ReadBAMRecordEncoderBenchmark {
+  private SAMFileHeader header;
+  private Read read;
+  private ReadBAMRecordEncoder encoder;
+  private BAMRecordCodec codec;
+  private ByteArrayOutputStream encoded;
+
+  @Setup
+  public void setUp() {
+    header = ReadBAMRecordEncoderTest.header();
+    read = ReadBAMRecordEncoderTest.pairedRead();
+    encoder = new ReadBAMRecordEncoder(header, true);
+    encoded = new ByteArrayOutputStream();
+    codec = new BAMRecordCodec(header);
+    codec.setOutputStream(encoded);
+  }
+
+  @Benchmark
+  public int makeSAMRecordAndEncode() {
+    encoded.reset();
+    codec.encode(ReadUtils.makeSAMRecord(read, header));
+    return encoded.size();
+  }
+
+  @Benchmark
+  public int encodeDirectly() {
+    return encoder.encode(read);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(ReadBAMRecordEncoderBenchmark.class.getSimpleName())
+        .warmupIterations(5)
+        .measurementIterations(5)
+        .forks(1)
+        .build()).run();
+  }
+}
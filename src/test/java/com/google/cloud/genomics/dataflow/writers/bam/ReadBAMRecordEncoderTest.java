@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.writers.bam;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cloud.genomics.utils.grpc.ReadUtils;
+import com.google.genomics.v1.CigarUnit;
+import com.google.genomics.v1.LinearAlignment;
+import com.google.genomics.v1.Position;
+import com.google.genomics.v1.Read;
+import com.google.protobuf.ListValue;
+import com.google.protobuf.Value;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.IndexingBins;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+
+@RunWith(JUnit4.class)
+public class ReadBAMRecordEncoderTest {
+
+  static SAMFileHeader header() {
+    final SAMFileHeader header = new SAMFileHeader();
+    header.setSequenceDictionary(new SAMSequenceDictionary(Arrays.asList(
+        new SAMSequenceRecord("chr1", 1000000), new SAMSequenceRecord("chr2", 1000000))));
+    return header;
+  }
+
+  static Read pairedRead() {
+    return Read.newBuilder()
+        .setFragmentName("fragment1")
+        .setNumberReads(2)
+        .setReadNumber(0)
+        .setProperPlacement(true)
+        .setFragmentLength(150)
+        .setAlignment(LinearAlignment.newBuilder()
+            .setPosition(Position.newBuilder()
+                .setReferenceName("chr2").setPosition(1000).setReverseStrand(true))
+            .setMappingQuality(60)
+            .addCigar(cigar(CigarUnit.Operation.CLIP_SOFT, 2))
+            .addCigar(cigar(CigarUnit.Operation.ALIGNMENT_MATCH, 5))
+            .addCigar(cigar(CigarUnit.Operation.DELETE, 3))
+            .addCigar(cigar(CigarUnit.Operation.ALIGNMENT_MATCH, 2)))
+        .setNextMatePosition(Position.newBuilder()
+            .setReferenceName("chr2").setPosition(1100))
+        .setAlignedSequence("ACGTNACGT")
+        .addAllAlignedQuality(Arrays.asList(30, 31, 32, 33, 2, 35, 36, 37, 38))
+        .putInfo("RG", ListValue.newBuilder()
+            .addValues(Value.newBuilder().setStringValue("group1")).build())
+        .build();
+  }
+
+  private static CigarUnit cigar(CigarUnit.Operation operation, long length) {
+    return CigarUnit.newBuilder().setOperation(operation).setOperationLength(length).build();
+  }
+
+  private static SAMRecord decode(SAMFileHeader header, ReadBAMRecordEncoder encoder,
+      int length) {
+    final BAMRecordCodec codec = new BAMRecordCodec(header);
+    codec.setInputStream(new ByteArrayInputStream(
+        Arrays.copyOf(encoder.getBuffer(), length)));
+    final SAMRecord record = codec.decode();
+    record.setHeader(header);
+    return record;
+  }
+
+  @Test
+  public void testMappedReadDecodesWithHtsjdk() {
+    final SAMFileHeader header = header();
+    final ReadBAMRecordEncoder encoder = new ReadBAMRecordEncoder(header, false);
+    final SAMRecord record = decode(header, encoder, encoder.encode(pairedRead()));
+
+    assertEquals("fragment1", record.getReadName());
+    assertEquals(1, (int) record.getReferenceIndex());
+    assertEquals(1001, record.getAlignmentStart());
+    assertEquals(1010, record.getAlignmentEnd());
+    assertEquals("2S5M3D2M", record.getCigarString());
+    assertEquals(60, record.getMappingQuality());
+    assertTrue(record.getReadPairedFlag());
+    assertTrue(record.getProperPairFlag());
+    assertTrue(record.getFirstOfPairFlag());
+    assertTrue(record.getReadNegativeStrandFlag());
+    assertFalse(record.getMateUnmappedFlag());
+    assertFalse(record.getMateNegativeStrandFlag());
+    assertEquals(1, (int) record.getMateReferenceIndex());
+    assertEquals(1101, record.getMateAlignmentStart());
+    assertEquals(150, record.getInferredInsertSize());
+    assertEquals("ACGTNACGT", record.getReadString());
+    assertEquals("?@AB#DEFG", record.getBaseQualityString());
+    assertEquals("group1", record.getAttribute("RG"));
+    assertEquals(IndexingBins.regionToBin(1000, 1010), IndexingBins.getIndexingBin(record));
+    assertEquals(IndexingBins.regionToBin(1000, 1010), encoder.getIndexingBin());
+    assertEquals(1001, encoder.getAlignmentStart());
+    assertEquals(1010, encoder.getAlignmentEnd());
+  }
+
+  @Test
+  public void testUnmappedReadIsPlacedWithItsMate() {
+    final SAMFileHeader header = header();
+    final Read read = pairedRead().toBuilder()
+        .clearAlignment()
+        .setReadNumber(1)
+        .setAlignedSequence("ACGT")
+        .clearAlignedQuality()
+        .clearInfo()
+        .build();
+
+    final ReadBAMRecordEncoder encoder = new ReadBAMRecordEncoder(header, true);
+    final SAMRecord record = decode(header, encoder, encoder.encode(read));
+    assertTrue(record.getReadUnmappedFlag());
+    assertTrue(record.getSecondOfPairFlag());
+    assertEquals("chr2", record.getReferenceName());
+    assertEquals(1101, record.getAlignmentStart());
+    assertEquals("*", record.getBaseQualityString());
+    assertTrue(encoder.getReadUnmappedFlag());
+    assertEquals(IndexingBins.regionToBin(1100, 1101), encoder.getIndexingBin());
+    assertEquals(encoder.getIndexingBin(), IndexingBins.getIndexingBin(record));
+
+    final ReadBAMRecordEncoder unplaced = new ReadBAMRecordEncoder(header, false);
+    final SAMRecord unplacedRecord = decode(header, unplaced, unplaced.encode(read));
+    assertEquals(SAMRecord.NO_ALIGNMENT_START, unplacedRecord.getAlignmentStart());
+    assertEquals(-1, (int) unplacedRecord.getReferenceIndex());
+  }
+
+  @Test
+  public void testMatchesMakeSAMRecord() {
+    final SAMFileHeader header = header();
+    final Read paired = pairedRead();
+    final Read unplaced = paired.toBuilder()
+        .clearAlignment()
+        .clearNextMatePosition()
+        .setReadNumber(1)
+        .build();
+    final Read unpaired = Read.newBuilder()
+        .setFragmentName("fragment2")
+        .setAlignment(LinearAlignment.newBuilder()
+            .setPosition(Position.newBuilder().setReferenceName("chr1").setPosition(0))
+            .setMappingQuality(20)
+            .addCigar(cigar(CigarUnit.Operation.ALIGNMENT_MATCH, 3))
+            .addCigar(cigar(CigarUnit.Operation.INSERT, 1))
+            .addCigar(cigar(CigarUnit.Operation.ALIGNMENT_MATCH, 4)))
+        .setAlignedSequence("ACGTACGT")
+        .addAllAlignedQuality(Arrays.asList(10, 11, 12, 13, 14, 15, 16, 17))
+        .build();
+
+    final ReadBAMRecordEncoder encoder = new ReadBAMRecordEncoder(header, false);
+    for (Read read : Arrays.asList(paired, unpaired, unplaced)) {
+      final SAMRecord expected = ReadUtils.makeSAMRecord(read, header);
+      final SAMRecord actual = decode(header, encoder, encoder.encode(read));
+      assertEquals(expected.getSAMString(), actual.getSAMString());
+      assertEquals(IndexingBins.getIndexingBin(expected), IndexingBins.getIndexingBin(actual));
+      assertEquals(IndexingBins.getIndexingBin(expected), encoder.getIndexingBin());
+    }
+    // The last read is unplaced.
+    assertEquals(4680, encoder.getIndexingBin());
+  }
+
+  @Test
+  public void testQualitiesThatDoNotMatchTheSequenceAreDropped() {
+    final SAMFileHeader header = header();
+    final Read read = pairedRead().toBuilder()
+        .clearAlignedQuality()
+        .addAllAlignedQuality(Arrays.asList(30, 31, 32))
+        .build();
+    final ReadBAMRecordEncoder encoder = new ReadBAMRecordEncoder(header, false);
+    final SAMRecord record = decode(header, encoder, encoder.encode(read));
+    assertEquals("ACGTNACGT", record.getReadString());
+    assertEquals("*", record.getBaseQualityString());
+  }
+
+  @Test
+  public void testTagTypes() {
+    final SAMFileHeader header = header();
+    final Read read = pairedRead().toBuilder()
+        .putInfo("XI", numbers(42))
+        .putInfo("XF", numbers(0.5))
+        .putInfo("XA", numbers(1, 2, 3))
+        .putInfo("XB", numbers(1, 2.5))
+        .putInfo("XS", ListValue.newBuilder()
+            .addValues(Value.newBuilder().setStringValue("a"))
+            .addValues(Value.newBuilder().setStringValue("b")).build())
+        .build();
+    final ReadBAMRecordEncoder encoder = new ReadBAMRecordEncoder(header, false);
+    final SAMRecord record = decode(header, encoder, encoder.encode(read));
+    assertEquals(42, record.getAttribute("XI"));
+    assertEquals(0.5f, record.getAttribute("XF"));
+    assertArrayEquals(new int[] {1, 2, 3}, (int[]) record.getAttribute("XA"));
+    assertArrayEquals(new float[] {1, 2.5f}, (float[]) record.getAttribute("XB"), 0);
+    assertEquals("a,b", record.getAttribute("XS"));
+    assertEquals("group1", record.getAttribute("RG"));
+  }
+
+  @Test
+  public void testStringValuedTagsAreTypedLikeMakeSAMRecord() {
+    final SAMFileHeader header = header();
+    // As makeReadGrpc stores the tags of NM:i:3 MD:Z:5^ACG2 FZ:B:S,1,2.
+    final Read read = pairedRead().toBuilder()
+        .putInfo("NM", strings("3"))
+        .putInfo("MD", strings("5^ACG2"))
+        .putInfo("FZ", strings("S,1,2"))
+        .build();
+    final ReadBAMRecordEncoder encoder = new ReadBAMRecordEncoder(header, false);
+    final SAMRecord record = decode(header, encoder, encoder.encode(read));
+    assertEquals(3, record.getAttribute("NM"));
+    assertEquals("5^ACG2", record.getAttribute("MD"));
+    assertArrayEquals(new short[] {1, 2}, (short[]) record.getAttribute("FZ"));
+    assertEquals(ReadUtils.makeSAMRecord(read, header).getSAMString(), record.getSAMString());
+  }
+
+  private static ListValue strings(String... strings) {
+    final ListValue.Builder values = ListValue.newBuilder();
+    for (String string : strings) {
+      values.addValues(Value.newBuilder().setStringValue(string));
+    }
+    return values.build();
+  }
+
+  private static ListValue numbers(double... numbers) {
+    final ListValue.Builder values = ListValue.newBuilder();
+    for (double number : numbers) {
+      values.addValues(Value.newBuilder().setNumberValue(number));
+    }
+    return values.build();
+  }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2015 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.cloud.genomics.dataflow.writers.bam;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.CloseableIterator;
+
+import org.apache.beam.sdk.util.SerializableUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+@RunWith(JUnit4.class)
+public class SortingBAMRecordBufferTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static SAMFileHeader header() {
+    final SAMFileHeader header = new SAMFileHeader();
+    header.setSequenceDictionary(new SAMSequenceDictionary(Arrays.asList(
+        new SAMSequenceRecord("chr1", 100000), new SAMSequenceRecord("chr2", 100000))));
+    return header;
+  }
+
+  private static SAMRecord record(SAMFileHeader header, String name, int reference, int start) {
+    final SAMRecord record = new SAMRecord(header);
+    record.setReadName(name);
+    record.setReadString("ACGTACGTAC");
+    record.setBaseQualityString("IIIIIIIIII");
+    if (reference < 0) {
+      record.setReadUnmappedFlag(true);
+    } else {
+      record.setReferenceIndex(reference);
+      record.setAlignmentStart(start);
+      record.setCigarString("10M");
+      record.setMappingQuality(60);
+    }
+    return record;
+  }
+
+  @Test
+  public void testSortsAcrossSpilledRuns() throws IOException {
+    final SAMFileHeader header = header();
+    // Small enough to spill every few records.
+    final SortingBAMRecordBuffer buffer =
+        new SortingBAMRecordBuffer(header, 512, folder.getRoot());
+    final Random random = new Random(42);
+    final int count = 200;
+    for (int i = 0; i < count; i++) {
+      final int reference = random.nextInt(10) == 0 ? -1 : random.nextInt(2);
+      buffer.add(record(header, "read" + i, reference, 1 + random.nextInt(1000)));
+    }
+    assertTrue(buffer.getSpilledRunCount() > 1);
+
+    int seen = 0;
+    long previousKey = Long.MIN_VALUE;
+    try (CloseableIterator<SAMRecord> sorted = buffer.sortedRecords()) {
+      while (sorted.hasNext()) {
+        final SAMRecord record = sorted.next();
+        final long reference =
+            record.getReferenceIndex() < 0 ? Integer.MAX_VALUE : record.getReferenceIndex();
+        final long key = (reference << 32) | record.getAlignmentStart();
+        assertTrue(key >= previousKey);
+        previousKey = key;
+        assertEquals("ACGTACGTAC", record.getReadString());
+        seen++;
+      }
+    }
+    assertEquals(count, seen);
+    assertEquals(0, folder.getRoot().list().length);
+  }
+
+  @Test
+  public void testEqualPositionsKeepInsertionOrder() throws IOException {
+    final SAMFileHeader header = header();
+    final SortingBAMRecordBuffer buffer =
+        new SortingBAMRecordBuffer(header, 256, folder.getRoot());
+    for (int i = 0; i < 20; i++) {
+      buffer.add(record(header, "read" + i, 0, 100));
+    }
+    try (CloseableIterator<SAMRecord> sorted = buffer.sortedRecords()) {
+      for (int i = 0; i < 20; i++) {
+        assertEquals("read" + i, sorted.next().getReadName());
+      }
+      assertFalse(sorted.hasNext());
+    }
+  }
+
+  @Test
+  public void testEncodedRecordsAreTheSortedRecords() throws IOException {
+    final SAMFileHeader header = header();
+    final SortingBAMRecordBuffer encodedBuffer =
+        new SortingBAMRecordBuffer(header, 256, folder.getRoot());
+    final SortingBAMRecordBuffer decodedBuffer =
+        new SortingBAMRecordBuffer(header, 256, folder.getRoot());
+    final Random random = new Random(7);
+    for (int i = 0; i < 50; i++) {
+      final SAMRecord record = record(header, "read" + i, 1, 1 + random.nextInt(100));
+      encodedBuffer.add(record);
+      decodedBuffer.add(record);
+    }
+    final BAMRecordCodec encoder = new BAMRecordCodec(header);
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    encoder.setOutputStream(expected);
+    try (CloseableIterator<byte[]> encoded = encodedBuffer.sortedEncodedRecords();
+        CloseableIterator<SAMRecord> decoded = decodedBuffer.sortedRecords()) {
+      while (decoded.hasNext()) {
+        expected.reset();
+        encoder.encode(decoded.next());
+        assertArrayEquals(expected.toByteArray(), encoded.next());
+      }
+      assertFalse(encoded.hasNext());
+    }
+  }
+
+  @Test
+  public void testEncodedRecordsAreIndexedLikeSAMRecords() throws IOException {
+    final SAMFileHeader header = header();
+    final SortingBAMRecordBuffer buffer =
+        new SortingBAMRecordBuffer(header, 256, folder.getRoot());
+    for (int i = 0; i < 20; i++) {
+      final SAMRecord record = record(header, "read" + i, 0, 20000 - 1000 * i);
+      record.setCigarString(i % 2 == 0 ? "3M2D7M" : "2S5M100N3M");
+      buffer.add(record);
+    }
+    // Unmapped, placed at its mate.
+    final SAMRecord unmapped = record(header, "unmapped", 0, 5000);
+    unmapped.setReadUnmappedFlag(true);
+    buffer.add(unmapped);
+
+    final BAMIndexFragmentBuilder fromEncoded =
+        new BAMIndexFragmentBuilder(header.getSequenceDictionary());
+    final BAMIndexFragmentBuilder fromRecords =
+        new BAMIndexFragmentBuilder(header.getSequenceDictionary());
+    final BAMRecordCodec decoder = new BAMRecordCodec(header);
+    int block = 0;
+    try (CloseableIterator<byte[]> sorted = buffer.sortedEncodedRecords()) {
+      while (sorted.hasNext()) {
+        final byte[] record = sorted.next();
+        final long start = (long) block << 16;
+        final long end = (long) ++block << 16;
+        fromEncoded.processEncodedAlignment(record, start, end);
+        decoder.setInputStream(new ByteArrayInputStream(record));
+        fromRecords.processAlignment(decoder.decode(), start, end);
+      }
+    }
+    final long[] blockAddresses = new long[block + 2];
+    for (int i = 0; i < blockAddresses.length; i++) {
+      blockAddresses[i] = 1000L * i;
+    }
+    assertArrayEquals(
+        SerializableUtils.serializeToByteArray(fromRecords.build("shard", blockAddresses)),
+        SerializableUtils.serializeToByteArray(fromEncoded.build("shard", blockAddresses)));
+  }
+
+  @Test
+  public void testCloseDeletesUnmergedRuns() throws IOException {
+    final SAMFileHeader header = header();
+    final SortingBAMRecordBuffer buffer =
+        new SortingBAMRecordBuffer(header, 256, folder.getRoot());
+    for (int i = 0; i < 20; i++) {
+      buffer.add(record(header, "read" + i, 0, 100 - i));
+    }
+    assertTrue(buffer.getSpilledRunCount() > 0);
+    assertEquals(buffer.getSpilledRunCount(), folder.getRoot().list().length);
+    buffer.close();
+    assertEquals(0, folder.getRoot().list().length);
+  }
+
+  @Test
+  public void testMergedRunsAreDeletedBeforeTheIteratorIsClosed() throws IOException {
+    final SAMFileHeader header = header();
+    final SortingBAMRecordBuffer buffer =
+        new SortingBAMRecordBuffer(header, 256, folder.getRoot());
+    for (int i = 0; i < 20; i++) {
+      buffer.add(record(header, "read" + i, 0, 100 + i));
+    }
+    try (CloseableIterator<SAMRecord> sorted = buffer.sortedRecords()) {
+      while (sorted.hasNext()) {
+        sorted.next();
+      }
+      assertEquals(0, folder.getRoot().list().length);
+    }
+  }
+}